@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.animation;
+
+import android.util.ArrayMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The values of the {@link ObjectAnimator}s that run in the same frame of an
+ * {@link AnimationHandler}, evaluated together once all the frame callbacks have run.
+ *
+ * Animators are grouped by interpolator and each group keeps the elapsed fractions of its
+ * animators in a primitive array, so that every interpolator runs over all of its fractions in a
+ * single loop. The interpolated fractions are then turned into values and set on the targets
+ * through the float and int setters cached by the {@link PropertyValuesHolder}s, without boxing.
+ *
+ * The arrays are kept from one frame to the next, so a steady animation allocates nothing.
+ */
+final class AnimationBatch {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final ArrayMap<TimeInterpolator, Group> mGroups = new ArrayMap<>();
+    private final ArrayList<Group> mSpareGroups = new ArrayList<>();
+
+    /**
+     * Adds the value of an animator for the current frame.
+     *
+     * @param fraction The elapsed fraction of the animation, before interpolation.
+     */
+    void add(ObjectAnimator animator, Object target, float fraction) {
+        final TimeInterpolator interpolator = animator.getInterpolator();
+        Group group = mGroups.get(interpolator);
+        if (group == null) {
+            final int spareCount = mSpareGroups.size();
+            group = spareCount > 0 ? mSpareGroups.remove(spareCount - 1) : new Group();
+            group.mInterpolator = interpolator;
+            mGroups.put(interpolator, group);
+        }
+        group.add(animator, target, fraction);
+    }
+
+    /**
+     * Sets the values of all the animators added since the last call, and releases the
+     * animators and their targets.
+     */
+    void apply() {
+        final int groupCount = mGroups.size();
+        if (groupCount == 0) {
+            return;
+        }
+        try {
+            for (int i = 0; i < groupCount; i++) {
+                mGroups.valueAt(i).apply();
+            }
+        } finally {
+            for (int i = 0; i < groupCount; i++) {
+                final Group group = mGroups.valueAt(i);
+                group.clear();
+                mSpareGroups.add(group);
+            }
+            mGroups.clear();
+        }
+    }
+
+    /**
+     * The animators of a frame that share an interpolator, stored as parallel arrays.
+     */
+    private static final class Group {
+        TimeInterpolator mInterpolator;
+        ObjectAnimator[] mAnimators = new ObjectAnimator[INITIAL_CAPACITY];
+        Object[] mTargets = new Object[INITIAL_CAPACITY];
+        float[] mFractions = new float[INITIAL_CAPACITY];
+        int mSize;
+
+        void add(ObjectAnimator animator, Object target, float fraction) {
+            if (mSize == mFractions.length) {
+                final int capacity = mSize * 2;
+                mAnimators = Arrays.copyOf(mAnimators, capacity);
+                mTargets = Arrays.copyOf(mTargets, capacity);
+                mFractions = Arrays.copyOf(mFractions, capacity);
+            }
+            mAnimators[mSize] = animator;
+            mTargets[mSize] = target;
+            mFractions[mSize] = fraction;
+            mSize++;
+        }
+
+        void apply() {
+            final TimeInterpolator interpolator = mInterpolator;
+            final float[] fractions = mFractions;
+            final int size = mSize;
+            for (int i = 0; i < size; i++) {
+                fractions[i] = interpolator.getInterpolation(fractions[i]);
+            }
+            final ObjectAnimator[] animators = mAnimators;
+            final Object[] targets = mTargets;
+            for (int i = 0; i < size; i++) {
+                animators[i].animateDeferredValue(fractions[i], targets[i]);
+            }
+        }
+
+        void clear() {
+            Arrays.fill(mAnimators, 0, mSize, null);
+            Arrays.fill(mTargets, 0, mSize, null);
+            mInterpolator = null;
+            mSize = 0;
+        }
+    }
+}
@@ -47,6 +47,9 @@ public class AnimationHandler {
     private final ArrayList<AnimationFrameCallback> mCommitCallbacks =
             new ArrayList<>();
     private AnimationFrameCallbackProvider mProvider;
+    private final AnimationBatch mBatch = new AnimationBatch();
+    private boolean mInAnimationFrame;
+    private static boolean sBatchingEnabled = true;
 
     private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
         @Override
@@ -137,26 +140,60 @@ public class AnimationHandler {
     private void doAnimationFrame(long frameTime) {
         long currentTime = SystemClock.uptimeMillis();
         final int size = mAnimationCallbacks.size();
-        for (int i = 0; i < size; i++) {
-            final AnimationFrameCallback callback = mAnimationCallbacks.get(i);
-            if (callback == null) {
-                continue;
-            }
-            if (isCallbackDue(callback, currentTime)) {
-                callback.doAnimationFrame(frameTime);
-                if (mCommitCallbacks.contains(callback)) {
-                    getProvider().postCommitCallback(new Runnable() {
-                        @Override
-                        public void run() {
-                            commitAnimationFrame(callback, getProvider().getFrameTime());
-                        }
-                    });
+        mInAnimationFrame = true;
+        try {
+            for (int i = 0; i < size; i++) {
+                final AnimationFrameCallback callback = mAnimationCallbacks.get(i);
+                if (callback == null) {
+                    continue;
+                }
+                if (isCallbackDue(callback, currentTime)) {
+                    callback.doAnimationFrame(frameTime);
+                    if (mCommitCallbacks.contains(callback)) {
+                        getProvider().postCommitCallback(new Runnable() {
+                            @Override
+                            public void run() {
+                                commitAnimationFrame(callback, getProvider().getFrameTime());
+                            }
+                        });
+                    }
                 }
             }
+        } finally {
+            mInAnimationFrame = false;
+            mBatch.apply();
         }
         cleanUpList();
     }
 
+    /**
+     * Adds the value of an animator for the current frame to the batch that is applied once all
+     * the callbacks have run. Values are only batched while this handler runs a frame, so that
+     * an animator pulsed from anywhere else sets its value right away.
+     *
+     * @return true if the value was added to the batch.
+     */
+    boolean deferAnimateValue(ObjectAnimator animator, Object target, float fraction) {
+        if (!mInAnimationFrame || !sBatchingEnabled) {
+            return false;
+        }
+        mBatch.add(animator, target, fraction);
+        return true;
+    }
+
+    /**
+     * Enables or disables the batched evaluation of animated values, for testing and
+     * benchmarking. Enabled by default.
+     * <p>
+     * While it is enabled, the targets of batched {@link ObjectAnimator}s, Views included, keep
+     * the value of the previous frame until all the animation callbacks of the frame have run,
+     * so code reading them during the frame, like the update listeners of other animators, sees
+     * them one frame late.
+     */
+    public static void setBatchingEnabled(boolean enabled) {
+        sBatchingEnabled = enabled;
+    }
+
     private void commitAnimationFrame(AnimationFrameCallback callback, long frameTime) {
         if (!mDelayedCallbackStartTime.containsKey(callback) &&
                 mCommitCallbacks.contains(callback)) {
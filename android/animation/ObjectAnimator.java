@@ -85,6 +85,19 @@ public final class ObjectAnimator extends ValueAnimator {
 
     private boolean mAutoCancel = false;
 
+    /**
+     * True while the value of the current frame waits in the batch of the AnimationHandler. Reset
+     * when the value is set directly, so that a value set later in the same frame wins, and when
+     * the animation ends.
+     */
+    boolean mValuePending;
+
+    /** The fraction of the pending value, before interpolation. */
+    private float mPendingFraction;
+
+    /** Whether the pending value was already calculated for one of the getters. */
+    private boolean mPendingValueCalculated;
+
     /**
      * Sets the name of the property that will be animated. This name is used to derive
      * a setter function that will be called to set animated values.
@@ -976,6 +989,7 @@ public final class ObjectAnimator extends ValueAnimator {
     @CallSuper
     @Override
     void animateValue(float fraction) {
+        mValuePending = false;
         final Object target = getTarget();
         if (mTarget != null && target == null) {
             // We lost the target reference, cancel and clean up. Note: we allow null target if the
@@ -991,6 +1005,102 @@ public final class ObjectAnimator extends ValueAnimator {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The target property keeps the value of the previous frame until the handler sets the
+     * batch, after every animation callback of the frame ran. The values returned by
+     * {@link #getAnimatedValue()} and {@link #getAnimatedFraction()} are those of the current
+     * frame, calculated when they are asked for.</p>
+     */
+    @Override
+    boolean deferAnimateValue(float fraction) {
+        // Update listeners expect to see the value of the frame when they are called.
+        if (mUpdateListeners != null) {
+            return false;
+        }
+        final Object target = getTarget();
+        if (target == null) {
+            return false;
+        }
+        final int numValues = mValues.length;
+        for (int i = 0; i < numValues; ++i) {
+            if (!mValues[i].hasPrimitiveSetter()) {
+                return false;
+            }
+        }
+        if (!getAnimationHandler().deferAnimateValue(this, target, fraction)) {
+            return false;
+        }
+        mValuePending = true;
+        mPendingFraction = fraction;
+        mPendingValueCalculated = false;
+        return true;
+    }
+
+    @Override
+    public float getAnimatedFraction() {
+        calculatePendingValue();
+        return super.getAnimatedFraction();
+    }
+
+    @Override
+    public Object getAnimatedValue() {
+        calculatePendingValue();
+        return super.getAnimatedValue();
+    }
+
+    @Override
+    public Object getAnimatedValue(String propertyName) {
+        calculatePendingValue();
+        return super.getAnimatedValue(propertyName);
+    }
+
+    /**
+     * Calculates the pending value of the current frame ahead of the batch, without setting it.
+     */
+    private void calculatePendingValue() {
+        if (!mValuePending || mPendingValueCalculated) {
+            return;
+        }
+        mPendingValueCalculated = true;
+        final float fraction = getInterpolator().getInterpolation(mPendingFraction);
+        mCurrentFraction = fraction;
+        final int numValues = mValues.length;
+        for (int i = 0; i < numValues; ++i) {
+            mValues[i].calculateValue(fraction);
+        }
+    }
+
+    @Override
+    void dropDeferredValue() {
+        mValuePending = false;
+    }
+
+    /**
+     * Sets the value deferred by {@link #deferAnimateValue(float)}, unless a value was set
+     * directly or the animation ended since.
+     *
+     * @param fraction The interpolated fraction of the animation.
+     * @param target The target, held strongly by the handler until the end of the frame.
+     */
+    void animateDeferredValue(float fraction, Object target) {
+        if (!mValuePending) {
+            return;
+        }
+        mValuePending = false;
+        mCurrentFraction = fraction;
+        final boolean calculated = mPendingValueCalculated;
+        final int numValues = mValues.length;
+        for (int i = 0; i < numValues; ++i) {
+            final PropertyValuesHolder holder = mValues[i];
+            if (!calculated) {
+                holder.calculateValue(fraction);
+            }
+            holder.setAnimatedValue(target);
+        }
+    }
+
     @Override
     boolean isInitialized() {
         return mInitialized;
@@ -999,6 +1109,7 @@ public final class ObjectAnimator extends ValueAnimator {
     @Override
     public ObjectAnimator clone() {
         final ObjectAnimator anim = (ObjectAnimator) super.clone();
+        anim.mValuePending = false;
         return anim;
     }
 
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.animation;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.FloatProperty;
+import android.util.IntProperty;
+import android.view.animation.AccelerateDecelerateInterpolator;
+import android.view.animation.DecelerateInterpolator;
+import android.view.animation.LinearInterpolator;
+import android.view.animation.OvershootInterpolator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+/**
+ * Runs a few thousand ObjectAnimators at once, with and without the batched evaluation of
+ * {@link AnimationHandler}. Frames are pulsed by the test instead of the Choreographer, so each
+ * iteration is exactly one animation pass and its time is the CPU time of that pass.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ObjectAnimatorPerfTest {
+    private static final int ANIMATOR_COUNT = 4000;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Test
+    public void timeFloatProperty() {
+        runOnMainThread(true, ValueType.FLOAT_PROPERTY);
+    }
+
+    @Test
+    public void timeFloatProperty_Unbatched() {
+        runOnMainThread(false, ValueType.FLOAT_PROPERTY);
+    }
+
+    @Test
+    public void timeIntProperty() {
+        runOnMainThread(true, ValueType.INT_PROPERTY);
+    }
+
+    @Test
+    public void timeIntProperty_Unbatched() {
+        runOnMainThread(false, ValueType.INT_PROPERTY);
+    }
+
+    @Test
+    public void timeFloatSetter() {
+        runOnMainThread(true, ValueType.FLOAT_SETTER);
+    }
+
+    @Test
+    public void timeFloatSetter_Unbatched() {
+        runOnMainThread(false, ValueType.FLOAT_SETTER);
+    }
+
+    private enum ValueType {
+        FLOAT_PROPERTY,
+        INT_PROPERTY,
+        FLOAT_SETTER,
+    }
+
+    private void runOnMainThread(boolean batched, ValueType type) {
+        // Animators need a Looper thread.
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> run(batched, type));
+    }
+
+    private void run(boolean batched, ValueType type) {
+        final float durationScale = ValueAnimator.getDurationScale();
+        final AnimationHandler handler = AnimationHandler.getInstance();
+        final TestAnimationFrameProvider provider = new TestAnimationFrameProvider();
+        final ArrayList<ObjectAnimator> animators = new ArrayList<>(ANIMATOR_COUNT);
+        ValueAnimator.setDurationScale(1f);
+        AnimationHandler.setBatchingEnabled(batched);
+        handler.setProvider(provider);
+        try {
+            final TimeInterpolator[] interpolators = {
+                    new LinearInterpolator(),
+                    new AccelerateDecelerateInterpolator(),
+                    new DecelerateInterpolator(),
+                    new OvershootInterpolator(),
+            };
+            for (int i = 0; i < ANIMATOR_COUNT; i++) {
+                final ObjectAnimator animator = createAnimator(type, new Target());
+                animator.setDuration(300 + i % 200);
+                animator.setRepeatCount(ValueAnimator.INFINITE);
+                animator.setRepeatMode(ValueAnimator.REVERSE);
+                animator.setInterpolator(interpolators[i % interpolators.length]);
+                animator.start();
+                animators.add(animator);
+            }
+
+            final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+            while (state.keepRunning()) {
+                provider.doFrame();
+            }
+        } finally {
+            for (int i = 0; i < animators.size(); i++) {
+                animators.get(i).cancel();
+            }
+            handler.setProvider(null);
+            AnimationHandler.setBatchingEnabled(true);
+            ValueAnimator.setDurationScale(durationScale);
+        }
+    }
+
+    private static ObjectAnimator createAnimator(ValueType type, Target target) {
+        switch (type) {
+            case FLOAT_PROPERTY:
+                return ObjectAnimator.ofFloat(target, Target.FLOAT_VALUE, 0f, 100f);
+            case INT_PROPERTY:
+                return ObjectAnimator.ofInt(target, Target.INT_VALUE, 0, 100);
+            default:
+                return ObjectAnimator.ofFloat(target, "floatValue", 0f, 100f);
+        }
+    }
+
+    public static class Target {
+        static final FloatProperty<Target> FLOAT_VALUE = new FloatProperty<Target>("floatValue") {
+            @Override
+            public void setValue(Target target, float value) {
+                target.mFloatValue = value;
+            }
+
+            @Override
+            public Float get(Target target) {
+                return target.mFloatValue;
+            }
+        };
+
+        static final IntProperty<Target> INT_VALUE = new IntProperty<Target>("intValue") {
+            @Override
+            public void setValue(Target target, int value) {
+                target.mIntValue = value;
+            }
+
+            @Override
+            public Integer get(Target target) {
+                return target.mIntValue;
+            }
+        };
+
+        private float mFloatValue;
+        private int mIntValue;
+
+        public void setFloatValue(float value) {
+            mFloatValue = value;
+        }
+
+        public float getFloatValue() {
+            return mFloatValue;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.animation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.FloatProperty;
+import android.view.animation.LinearInterpolator;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Test the values that batched {@link ObjectAnimator}s report and set while
+ * {@link AnimationHandler} runs a frame, including when they are canceled or ended in it.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ObjectAnimatorTest {
+    private static final float DELTA = 1e-4f;
+
+    @Test
+    public void testCancelDuringFrame() {
+        final Target target = new Target();
+        final float[] valueAtCancel = new float[1];
+        runFrames(target, animator -> {
+            animator.cancel();
+            valueAtCancel[0] = target.mValue;
+        });
+        // The value of the frame the animation was canceled in is never set.
+        assertEquals(valueAtCancel[0], target.mValue, DELTA);
+    }
+
+    @Test
+    public void testEndDuringFrame() {
+        final Target target = new Target();
+        runFrames(target, ObjectAnimator::end);
+        assertEquals(100f, target.mValue, DELTA);
+    }
+
+    @Test
+    public void testAnimatedValueDuringFrame() {
+        final Target target = new Target();
+        final float[] values = new float[3];
+        runFrames(target, animator -> {
+            values[0] = animator.getAnimatedFraction();
+            values[1] = (Float) animator.getAnimatedValue();
+            values[2] = target.mValue;
+            animator.cancel();
+        });
+        // The animator reports the value of the frame, which the target only gets after it.
+        assertTrue(values[0] > 0);
+        assertEquals(values[0] * 100f, values[1], DELTA);
+        assertTrue(values[2] < values[1]);
+    }
+
+    /**
+     * Runs an animator on {@code target} for a few frames, with {@code action} applied to it
+     * during the second one, after its value of that frame was deferred.
+     */
+    private static void runFrames(Target target, Action action) {
+        final boolean[] running = new boolean[2];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+            final float durationScale = ValueAnimator.getDurationScale();
+            final AnimationHandler handler = AnimationHandler.getInstance();
+            final TestAnimationFrameProvider provider = new TestAnimationFrameProvider();
+            ValueAnimator.setDurationScale(1f);
+            AnimationHandler.setBatchingEnabled(true);
+            handler.setProvider(provider);
+            final ObjectAnimator animator = ObjectAnimator.ofFloat(target, Target.VALUE, 0f, 100f);
+            // Started second, so its update listener runs after the first animator was pulsed.
+            final ValueAnimator trigger = ValueAnimator.ofFloat(0f, 1f);
+            try {
+                animator.setDuration(1000);
+                animator.setInterpolator(new LinearInterpolator());
+                trigger.setDuration(1000);
+                trigger.addUpdateListener(a -> {
+                    if (a.getAnimatedFraction() > 0 && animator.isRunning()) {
+                        action.apply(animator);
+                    }
+                });
+                animator.start();
+                trigger.start();
+                provider.doFrame();
+                provider.doFrame();
+                running[0] = animator.isRunning();
+                running[1] = trigger.isRunning();
+                provider.doFrame();
+            } finally {
+                animator.cancel();
+                trigger.cancel();
+                handler.setProvider(null);
+                ValueAnimator.setDurationScale(durationScale);
+            }
+        });
+        assertFalse(running[0]);
+        assertTrue(running[1]);
+    }
+
+    private interface Action {
+        void apply(ObjectAnimator animator);
+    }
+
+    private static class Target {
+        static final FloatProperty<Target> VALUE = new FloatProperty<Target>("value") {
+            @Override
+            public void setValue(Target target, float value) {
+                target.mValue = value;
+            }
+
+            @Override
+            public Float get(Target target) {
+                return target.mValue;
+            }
+        };
+
+        float mValue;
+    }
+}
@@ -1018,6 +1018,15 @@ public class PropertyValuesHolder implements Cloneable {
         mAnimatedValue = mConverter == null ? value : mConverter.convert(value);
     }
 
+    /**
+     * Returns whether the value is calculated and set on the target without boxing, through a
+     * {@link FloatProperty}, an {@link IntProperty} or a cached JNI setter. Only such holders are
+     * animated in the batch of {@link AnimationHandler}.
+     */
+    boolean hasPrimitiveSetter() {
+        return false;
+    }
+
     /**
      * Sets the name of the property that will be animated. This name is used to derive
      * a setter function that will be called to set animated values.
@@ -1207,6 +1216,11 @@ public class PropertyValuesHolder implements Cloneable {
             mIntAnimatedValue = mIntKeyframes.getIntValue(fraction);
         }
 
+        @Override
+        boolean hasPrimitiveSetter() {
+            return mIntProperty != null || (mProperty == null && mJniSetter != 0);
+        }
+
         @Override
         Object getAnimatedValue() {
             return mIntAnimatedValue;
@@ -1354,6 +1368,11 @@ public class PropertyValuesHolder implements Cloneable {
             mFloatAnimatedValue = mFloatKeyframes.getFloatValue(fraction);
         }
 
+        @Override
+        boolean hasPrimitiveSetter() {
+            return mFloatProperty != null || (mProperty == null && mJniSetter != 0);
+        }
+
         @Override
         Object getAnimatedValue() {
             return mFloatAnimatedValue;
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.animation;
+
+import android.view.Choreographer;
+
+/**
+ * Pulses the animation frames of an {@link AnimationHandler} on demand, for tests.
+ */
+class TestAnimationFrameProvider implements AnimationHandler.AnimationFrameCallbackProvider {
+    static final long FRAME_INTERVAL_MS = 16;
+
+    private Choreographer.FrameCallback mFrameCallback;
+    private long mFrameTime;
+
+    /**
+     * Runs the frame callback posted since the last frame, if any, one frame interval later.
+     */
+    void doFrame() {
+        final Choreographer.FrameCallback callback = mFrameCallback;
+        mFrameCallback = null;
+        mFrameTime += FRAME_INTERVAL_MS;
+        if (callback != null) {
+            callback.doFrame(mFrameTime * 1000000);
+        }
+    }
+
+    @Override
+    public void postFrameCallback(Choreographer.FrameCallback callback) {
+        mFrameCallback = callback;
+    }
+
+    @Override
+    public void postCommitCallback(Runnable runnable) {
+    }
+
+    @Override
+    public long getFrameTime() {
+        return mFrameTime;
+    }
+
+    @Override
+    public long getFrameDelay() {
+        return FRAME_INTERVAL_MS;
+    }
+
+    @Override
+    public void setFrameDelay(long delay) {
+    }
+}
@@ -148,7 +148,7 @@ public class ValueAnimator extends Animator implements AnimationHandler.Animatio
      * Tracks current elapsed/eased fraction, for querying in getAnimatedFraction().
      * This is calculated by interpolating the fraction (range: [0, 1]) in the current iteration.
      */
-    private float mCurrentFraction = 0f;
+    float mCurrentFraction = 0f;
 
     /**
      * Tracks the time (in milliseconds) when the last frame arrived.
@@ -1210,6 +1210,9 @@ public class ValueAnimator extends Animator implements AnimationHandler.Animatio
             return;
         }
         removeAnimationCallback();
+        // A value of this frame still waiting in the handler's batch must not be set after the
+        // animation was canceled.
+        dropDeferredValue();
 
         mAnimationEndRequested = true;
         mPaused = false;
@@ -1336,11 +1339,35 @@ public class ValueAnimator extends Animator implements AnimationHandler.Animatio
             mOverallFraction = clampFraction(fraction);
             float currentIterationFraction = getCurrentIterationFraction(
                     mOverallFraction, mReversing);
-            animateValue(currentIterationFraction);
+            // The value of the last frame is set right away, so that it can be read when the end
+            // listeners are notified.
+            if (done || !deferAnimateValue(currentIterationFraction)) {
+                animateValue(currentIterationFraction);
+            }
         }
         return done;
     }
 
+    /**
+     * Called instead of {@link #animateValue(float)} for the frames that do not end the
+     * animation, to let the value be calculated and set at the end of the animation pass of the
+     * {@link AnimationHandler}, together with the values of the other animators.
+     *
+     * @param fraction The elapsed fraction of the animation.
+     * @return true if the value will be set by the handler, false if {@link #animateValue(float)}
+     * must be called.
+     */
+    boolean deferAnimateValue(float fraction) {
+        return false;
+    }
+
+    /**
+     * Called when the animation ends, so that a value deferred by
+     * {@link #deferAnimateValue(float)} for the current frame is not set any more.
+     */
+    void dropDeferredValue() {
+    }
+
     /**
      * Internal use only.
      *
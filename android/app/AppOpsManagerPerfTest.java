@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app;
+
+import android.content.Context;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures {@link AppOpsManager} checks and notes while other threads hammer the service, with
+ * and without the service side decision cache.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class AppOpsManagerPerfTest {
+    private static final long TIMEOUT_MS = 5000;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private AppOpsManager mAppOps;
+    private String mPackageName;
+    private int mUid;
+
+    private CountDownLatch mStartLatch;
+    private AtomicBoolean mThreadState;  // True for running, False for stopped.
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        mAppOps = context.getSystemService(AppOpsManager.class);
+        mPackageName = context.getPackageName();
+        mUid = Process.myUid();
+    }
+
+    @After
+    public void tearDown() {
+        setDecisionCacheEnabled(true);
+    }
+
+    @Test
+    public void timeCheckOp_Thread_1() {
+        runCheckTest(true, 1);
+    }
+
+    @Test
+    public void timeCheckOp_Thread_4() {
+        runCheckTest(true, 4);
+    }
+
+    @Test
+    public void timeCheckOp_Thread_4_NoCache() {
+        runCheckTest(false, 4);
+    }
+
+    @Test
+    public void timeNoteOp_Thread_1() {
+        runNoteTest(true, 1);
+    }
+
+    @Test
+    public void timeNoteOp_Thread_4() {
+        runNoteTest(true, 4);
+    }
+
+    @Test
+    public void timeNoteOp_Thread_4_NoCache() {
+        runNoteTest(false, 4);
+    }
+
+    private void runCheckTest(boolean cacheEnabled, int numOfTotalThreads) {
+        setDecisionCacheEnabled(cacheEnabled);
+        final Thread[] threads = startBackgroundThreads(numOfTotalThreads - 1, false);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mAppOps.checkOpNoThrow(AppOpsManager.OP_COARSE_LOCATION, mUid, mPackageName);
+        }
+        finishThreads(threads);
+    }
+
+    private void runNoteTest(boolean cacheEnabled, int numOfTotalThreads) {
+        setDecisionCacheEnabled(cacheEnabled);
+        final Thread[] threads = startBackgroundThreads(numOfTotalThreads - 1, true);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mAppOps.noteOpNoThrow(AppOpsManager.OP_COARSE_LOCATION, mUid, mPackageName);
+        }
+        finishThreads(threads);
+    }
+
+    private Thread[] startBackgroundThreads(int numOfThreads, boolean note) {
+        mStartLatch = new CountDownLatch(numOfThreads);
+        mThreadState = new AtomicBoolean(true);
+
+        final Thread[] threads = new Thread[numOfThreads];
+        for (int i = 0; i < numOfThreads; ++i) {
+            threads[i] = new Thread(() -> {
+                mStartLatch.countDown();
+                while (mThreadState.get()) {
+                    if (note) {
+                        mAppOps.noteOpNoThrow(AppOpsManager.OP_COARSE_LOCATION, mUid,
+                                mPackageName);
+                    } else {
+                        mAppOps.checkOpNoThrow(AppOpsManager.OP_COARSE_LOCATION, mUid,
+                                mPackageName);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        try {
+            mStartLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        return threads;
+    }
+
+    private void finishThreads(Thread[] threads) {
+        mThreadState.set(false);
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        mStartLatch = null;
+        mThreadState = null;
+    }
+
+    /** Flips the service side cache through {@code app_ops_constants}, as the shell would. */
+    private static void setDecisionCacheEnabled(boolean enabled) {
+        final String command = enabled
+                ? "settings delete global app_ops_constants"
+                : "settings put global app_ops_constants decision_cache_enabled=false";
+        final ParcelFileDescriptor pfd = InstrumentationRegistry.getInstrumentation()
+                .getUiAutomation().executeShellCommand(command);
+        // Wait for the command to finish by draining its output.
+        try (InputStream in = new FileInputStream(pfd.getFileDescriptor())) {
+            final byte[] buffer = new byte[256];
+            while (in.read(buffer) != -1) {
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            try {
+                pfd.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -24,10 +24,12 @@ import android.os.Parcelable;
 import android.os.PatternMatcher;
 import android.text.TextUtils;
 import android.util.AndroidException;
+import android.util.ArraySet;
 import android.util.Log;
 import android.util.Printer;
 import android.util.proto.ProtoOutputStream;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.XmlUtils;
 
 import org.xmlpull.v1.XmlPullParser;
@@ -38,6 +40,7 @@ import java.io.IOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Set;
 
@@ -159,6 +162,14 @@ public class IntentFilter implements Parcelable {
     private static final String ACTION_STR = "action";
     private static final String AUTO_VERIFY_STR = "autoVerify";
 
+    /**
+     * Lists with at least this many entries are matched through a {@link CompiledFilter}
+     * instead of being scanned.
+     */
+    private static final int COMPILE_THRESHOLD = 8;
+
+    private static volatile boolean sCompiledMatching = true;
+
     /**
      * The filter {@link #setPriority} value at which system high-priority
      * receivers are placed; that is, receivers that should execute before
@@ -280,6 +291,8 @@ public class IntentFilter implements Parcelable {
     private ArrayList<PatternMatcher> mDataPaths = null;
     private ArrayList<String> mDataTypes = null;
     private boolean mHasPartialTypes = false;
+    /** Lookup tables for the long lists above; built on first match, dropped on change. */
+    private CompiledFilter mCompiled;
 
     private static final int STATE_VERIFY_AUTO         = 0x00000001;
     private static final int STATE_NEED_VERIFY         = 0x00000010;
@@ -702,6 +715,7 @@ public class IntentFilter implements Parcelable {
     public final void addAction(String action) {
         if (!mActions.contains(action)) {
             mActions.add(action.intern());
+            mCompiled = null;
         }
     }
 
@@ -728,7 +742,11 @@ public class IntentFilter implements Parcelable {
      * @return True if the action is explicitly mentioned in the filter.
      */
     public final boolean hasAction(String action) {
-        return action != null && mActions.contains(action);
+        if (action == null) {
+            return false;
+        }
+        final ArraySet<String> actions = getCompiled().mActions;
+        return actions != null ? actions.contains(action) : mActions.contains(action);
     }
 
     /**
@@ -851,6 +869,7 @@ public class IntentFilter implements Parcelable {
         if (mDataSchemes == null) mDataSchemes = new ArrayList<String>();
         if (!mDataSchemes.contains(scheme)) {
             mDataSchemes.add(scheme.intern());
+            mCompiled = null;
         }
     }
 
@@ -1030,6 +1049,7 @@ public class IntentFilter implements Parcelable {
             mDataSchemeSpecificParts = new ArrayList<PatternMatcher>();
         }
         mDataSchemeSpecificParts.add(ssp);
+        mCompiled = null;
     }
 
     /**
@@ -1060,6 +1080,10 @@ public class IntentFilter implements Parcelable {
         if (mDataSchemeSpecificParts == null) {
             return false;
         }
+        final PatternTable table = getCompiled().mSchemeSpecificParts;
+        if (table != null) {
+            return table.match(data);
+        }
         final int numDataSchemeSpecificParts = mDataSchemeSpecificParts.size();
         for (int i = 0; i < numDataSchemeSpecificParts; i++) {
             final PatternMatcher pe = mDataSchemeSpecificParts.get(i);
@@ -1123,6 +1147,7 @@ public class IntentFilter implements Parcelable {
         if (mDataAuthorities == null) mDataAuthorities =
                 new ArrayList<AuthorityEntry>();
         mDataAuthorities.add(ent);
+        mCompiled = null;
     }
 
     /**
@@ -1208,6 +1233,7 @@ public class IntentFilter implements Parcelable {
     public final void addDataPath(PatternMatcher path) {
         if (mDataPaths == null) mDataPaths = new ArrayList<PatternMatcher>();
         mDataPaths.add(path);
+        mCompiled = null;
     }
 
     /**
@@ -1239,6 +1265,10 @@ public class IntentFilter implements Parcelable {
         if (mDataPaths == null) {
             return false;
         }
+        final PatternTable table = getCompiled().mPaths;
+        if (table != null) {
+            return table.match(data);
+        }
         final int numDataPaths = mDataPaths.size();
         for (int i = 0; i < numDataPaths; i++) {
             final PatternMatcher pe = mDataPaths.get(i);
@@ -1285,6 +1315,10 @@ public class IntentFilter implements Parcelable {
         if (mDataAuthorities == null || data == null) {
             return NO_MATCH_DATA;
         }
+        final CompiledFilter compiled = getCompiled();
+        if (compiled.mHosts != null) {
+            return compiled.matchAuthority(mDataAuthorities, data);
+        }
         final int numDataAuthorities = mDataAuthorities.size();
         for (int i = 0; i < numDataAuthorities; i++) {
             final AuthorityEntry ae = mDataAuthorities.get(i);
@@ -1346,7 +1380,10 @@ public class IntentFilter implements Parcelable {
         }
 
         if (schemes != null) {
-            if (schemes.contains(scheme != null ? scheme : "")) {
+            final String[] sortedSchemes = getCompiled().mSchemes;
+            if (sortedSchemes != null
+                    ? Arrays.binarySearch(sortedSchemes, scheme != null ? scheme : "") >= 0
+                    : schemes.contains(scheme != null ? scheme : "")) {
                 match = MATCH_CATEGORY_SCHEME;
             } else {
                 return NO_MATCH_DATA;
@@ -1424,6 +1461,7 @@ public class IntentFilter implements Parcelable {
         if (mCategories == null) mCategories = new ArrayList<String>();
         if (!mCategories.contains(category)) {
             mCategories.add(category.intern());
+            mCompiled = null;
         }
     }
 
@@ -1483,9 +1521,11 @@ public class IntentFilter implements Parcelable {
             return it.hasNext() ? it.next() : null;
         }
 
+        final ArraySet<String> filterCategories = getCompiled().mCategories;
         while (it.hasNext()) {
             final String category = it.next();
-            if (!mCategories.contains(category)) {
+            if (filterCategories != null ? !filterCategories.contains(category)
+                    : !mCategories.contains(category)) {
                 return category;
             }
         }
@@ -2068,6 +2108,191 @@ public class IntentFilter implements Parcelable {
         return false;
     }
 
+    /**
+     * Enables or disables matching through the compiled lookup tables; with them disabled every
+     * list is scanned as before.  Only used to compare the two in benchmarks.
+     *
+     * @hide
+     */
+    @VisibleForTesting
+    public static void setCompiledMatchingEnabled(boolean enabled) {
+        sCompiledMatching = enabled;
+    }
+
+    private CompiledFilter getCompiled() {
+        if (!sCompiledMatching) {
+            return CompiledFilter.NONE;
+        }
+        CompiledFilter compiled = mCompiled;
+        if (compiled == null) {
+            // Racing matchers may each build one; they are immutable and equivalent.
+            compiled = CompiledFilter.build(this);
+            mCompiled = compiled;
+        }
+        return compiled;
+    }
+
+    /**
+     * Lookup tables for the lists of an IntentFilter that declares a lot of actions,
+     * categories, schemes, hosts or paths, as generated filters for app links tend to.
+     * Only lists with at least {@link #COMPILE_THRESHOLD} entries get a table; a null
+     * table means the list is scanned as usual.
+     */
+    private static final class CompiledFilter {
+        static final CompiledFilter NONE = new CompiledFilter(null, null, null, null, null, null);
+
+        final ArraySet<String> mActions;
+        final ArraySet<String> mCategories;
+        /** Schemes in natural order, for binary search. */
+        final String[] mSchemes;
+        /**
+         * Hosts of the non-wildcard authorities, in case-insensitive order, and the index of
+         * each in the filter's authority list.
+         */
+        final String[] mHosts;
+        final int[] mHostIndices;
+        /** Indices of the wildcard authorities, ascending. */
+        final int[] mWildIndices;
+        final PatternTable mSchemeSpecificParts;
+        final PatternTable mPaths;
+
+        static CompiledFilter build(IntentFilter filter) {
+            if (!isLarge(filter.mActions) && !isLarge(filter.mCategories)
+                    && !isLarge(filter.mDataSchemes) && !isLarge(filter.mDataAuthorities)
+                    && !isLarge(filter.mDataSchemeSpecificParts) && !isLarge(filter.mDataPaths)) {
+                return NONE;
+            }
+            return new CompiledFilter(filter.mActions, filter.mCategories, filter.mDataSchemes,
+                    filter.mDataAuthorities, filter.mDataSchemeSpecificParts, filter.mDataPaths);
+        }
+
+        private static boolean isLarge(ArrayList<?> list) {
+            return list != null && list.size() >= COMPILE_THRESHOLD;
+        }
+
+        private CompiledFilter(ArrayList<String> actions, ArrayList<String> categories,
+                ArrayList<String> schemes, ArrayList<AuthorityEntry> authorities,
+                ArrayList<PatternMatcher> schemeSpecificParts, ArrayList<PatternMatcher> paths) {
+            mActions = isLarge(actions) ? new ArraySet<>(actions) : null;
+            mCategories = isLarge(categories) ? new ArraySet<>(categories) : null;
+            if (isLarge(schemes) && !schemes.contains(null)) {
+                mSchemes = schemes.toArray(new String[schemes.size()]);
+                Arrays.sort(mSchemes);
+            } else {
+                mSchemes = null;
+            }
+
+            if (isLarge(authorities)) {
+                int numWild = 0;
+                for (int i = 0; i < authorities.size(); i++) {
+                    if (authorities.get(i).mWild) {
+                        numWild++;
+                    }
+                }
+                final Integer[] order = new Integer[authorities.size() - numWild];
+                mWildIndices = new int[numWild];
+                for (int i = 0, exact = 0, wild = 0; i < authorities.size(); i++) {
+                    if (authorities.get(i).mWild) {
+                        mWildIndices[wild++] = i;
+                    } else {
+                        order[exact++] = i;
+                    }
+                }
+                Arrays.sort(order, (a, b) -> String.CASE_INSENSITIVE_ORDER.compare(
+                        authorities.get(a).mHost, authorities.get(b).mHost));
+                mHosts = new String[order.length];
+                mHostIndices = new int[order.length];
+                for (int i = 0; i < order.length; i++) {
+                    mHostIndices[i] = order[i];
+                    mHosts[i] = authorities.get(order[i]).mHost;
+                }
+            } else {
+                mHosts = null;
+                mHostIndices = null;
+                mWildIndices = null;
+            }
+
+            mSchemeSpecificParts = isLarge(schemeSpecificParts)
+                    ? new PatternTable(schemeSpecificParts) : null;
+            mPaths = isLarge(paths) ? new PatternTable(paths) : null;
+        }
+
+        /**
+         * Same result as {@link IntentFilter#matchDataAuthority}: the match of the first
+         * authority in the list that matches.
+         */
+        int matchAuthority(ArrayList<AuthorityEntry> authorities, Uri data) {
+            final String host = data.getHost();
+            if (host == null) {
+                return NO_MATCH_DATA;
+            }
+            int firstIndex = Integer.MAX_VALUE;
+            int firstMatch = NO_MATCH_DATA;
+            int pos = Arrays.binarySearch(mHosts, host, String.CASE_INSENSITIVE_ORDER);
+            if (pos >= 0) {
+                while (pos > 0
+                        && String.CASE_INSENSITIVE_ORDER.compare(mHosts[pos - 1], host) == 0) {
+                    pos--;
+                }
+                for (; pos < mHosts.length
+                        && String.CASE_INSENSITIVE_ORDER.compare(mHosts[pos], host) == 0; pos++) {
+                    final int index = mHostIndices[pos];
+                    if (index < firstIndex) {
+                        final int match = authorities.get(index).match(data);
+                        if (match >= 0) {
+                            firstIndex = index;
+                            firstMatch = match;
+                        }
+                    }
+                }
+            }
+            for (int i = 0; i < mWildIndices.length && mWildIndices[i] < firstIndex; i++) {
+                final int match = authorities.get(mWildIndices[i]).match(data);
+                if (match >= 0) {
+                    return match;
+                }
+            }
+            return firstMatch;
+        }
+    }
+
+    /**
+     * A list of paths or scheme specific parts split into a hashed set of the literal ones and
+     * the remaining patterns, which are matched in order.
+     */
+    private static final class PatternTable {
+        private final ArraySet<String> mLiterals = new ArraySet<>();
+        private final PatternMatcher[] mPatterns;
+
+        PatternTable(ArrayList<PatternMatcher> matchers) {
+            final ArrayList<PatternMatcher> patterns = new ArrayList<>();
+            for (int i = 0; i < matchers.size(); i++) {
+                final PatternMatcher pm = matchers.get(i);
+                if (pm.getType() == PatternMatcher.PATTERN_LITERAL && pm.getPath() != null) {
+                    mLiterals.add(pm.getPath());
+                } else {
+                    patterns.add(pm);
+                }
+            }
+            mPatterns = patterns.toArray(new PatternMatcher[patterns.size()]);
+        }
+
+        boolean match(String str) {
+            if (str == null) {
+                return false;
+            }
+            if (mLiterals.contains(str)) {
+                return true;
+            }
+            for (PatternMatcher pm : mPatterns) {
+                if (pm.match(str)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
     /**
      * @hide
      */
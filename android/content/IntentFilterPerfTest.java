@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content;
+
+import android.net.Uri;
+import android.os.PatternMatcher;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Set;
+
+/**
+ * Resolves a few intents against a few thousand filters, roughly the shape of the activity
+ * resolver on a device with many apps, with and without the compiled lookup tables.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class IntentFilterPerfTest {
+    private static final int FILTER_COUNT = 3000;
+    private static final int HOSTS_PER_FILTER = 24;
+    private static final int PATHS_PER_FILTER = 16;
+    private static final String LOG_TAG = "IntentFilterPerfTest";
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private final ArrayList<IntentFilter> mFilters = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        for (int i = 0; i < FILTER_COUNT; i++) {
+            mFilters.add(createFilter(i));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        IntentFilter.setCompiledMatchingEnabled(true);
+    }
+
+    @Test
+    public void timeResolveAppLink() {
+        runResolve(true, Intent.ACTION_VIEW, null,
+                Uri.parse("https://www17.example1233.com/products/item12/details"),
+                intentCategories(Intent.CATEGORY_BROWSABLE));
+    }
+
+    @Test
+    public void timeResolveAppLink_Scan() {
+        runResolve(false, Intent.ACTION_VIEW, null,
+                Uri.parse("https://www17.example1233.com/products/item12/details"),
+                intentCategories(Intent.CATEGORY_BROWSABLE));
+    }
+
+    @Test
+    public void timeResolveAction() {
+        runResolve(true, "com.example.action.ACTION_20", null, null, null);
+    }
+
+    @Test
+    public void timeResolveAction_Scan() {
+        runResolve(false, "com.example.action.ACTION_20", null, null, null);
+    }
+
+    @Test
+    public void timeResolveType() {
+        runResolve(true, Intent.ACTION_SEND, "image/png", null,
+                intentCategories(Intent.CATEGORY_DEFAULT));
+    }
+
+    @Test
+    public void timeResolveType_Scan() {
+        runResolve(false, Intent.ACTION_SEND, "image/png", null,
+                intentCategories(Intent.CATEGORY_DEFAULT));
+    }
+
+    private void runResolve(boolean compiled, String action, String type, Uri data,
+            Set<String> categories) {
+        IntentFilter.setCompiledMatchingEnabled(compiled);
+        final String scheme = data != null ? data.getScheme() : null;
+        final int count = mFilters.size();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            for (int i = 0; i < count; i++) {
+                mFilters.get(i).match(action, type, scheme, data, categories, LOG_TAG);
+            }
+        }
+    }
+
+    private static Set<String> intentCategories(String category) {
+        final Intent intent = new Intent();
+        intent.addCategory(category);
+        return intent.getCategories();
+    }
+
+    /**
+     * Every third filter is an app link filter with many hosts and paths, the rest are small
+     * action, share or launcher filters like most manifests declare.
+     */
+    private static IntentFilter createFilter(int n) throws Exception {
+        final IntentFilter filter = new IntentFilter();
+        switch (n % 3) {
+            case 0:
+                filter.addAction(Intent.ACTION_VIEW);
+                filter.addCategory(Intent.CATEGORY_DEFAULT);
+                filter.addCategory(Intent.CATEGORY_BROWSABLE);
+                filter.addDataScheme("http");
+                filter.addDataScheme("https");
+                for (int i = 0; i < HOSTS_PER_FILTER; i++) {
+                    filter.addDataAuthority((i % 4 == 0 ? "*." : "www" + i + ".")
+                            + "example" + n + ".com", null);
+                }
+                for (int i = 0; i < PATHS_PER_FILTER; i++) {
+                    filter.addDataPath("/products/item" + i,
+                            i % 2 == 0 ? PatternMatcher.PATTERN_PREFIX
+                                    : PatternMatcher.PATTERN_LITERAL);
+                    filter.addDataPath("/p/" + i + "/.*", PatternMatcher.PATTERN_SIMPLE_GLOB);
+                }
+                break;
+            case 1:
+                for (int i = 0; i < 32; i++) {
+                    filter.addAction("com.example" + n + ".action.ACTION_" + i);
+                }
+                filter.addAction("com.example.action.ACTION_" + (n % 50));
+                break;
+            default:
+                filter.addAction(Intent.ACTION_SEND);
+                filter.addAction(Intent.ACTION_SEND_MULTIPLE);
+                filter.addCategory(Intent.CATEGORY_DEFAULT);
+                filter.addDataType(n % 2 == 0 ? "image/*" : "text/plain");
+                break;
+        }
+        return filter;
+    }
+}
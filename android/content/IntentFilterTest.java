@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.net.Uri;
+import android.os.PatternMatcher;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.ArraySet;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Test that {@link IntentFilter}s with lists long enough to be matched through lookup tables
+ * give the same results as scanning the lists.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class IntentFilterTest {
+    private static final String LOG_TAG = "IntentFilterTest";
+    private static final int FILTER_COUNT = 200;
+    private static final int INTENTS_PER_FILTER = 50;
+    /** Lists get up to this many entries, so about half of them are compiled. */
+    private static final int MAX_LIST_SIZE = 16;
+    private static final int VOCABULARY_SIZE = 20;
+
+    private static final int[] PATTERN_TYPES = {
+            PatternMatcher.PATTERN_LITERAL, PatternMatcher.PATTERN_PREFIX,
+            PatternMatcher.PATTERN_SIMPLE_GLOB, PatternMatcher.PATTERN_ADVANCED_GLOB };
+
+    @After
+    public void tearDown() {
+        IntentFilter.setCompiledMatchingEnabled(true);
+    }
+
+    @Test
+    public void testCompiledMatchesScan() throws Exception {
+        final Random random = new Random(1);
+        for (int i = 0; i < FILTER_COUNT; i++) {
+            final IntentFilter filter = createFilter(random);
+            for (int j = 0; j < INTENTS_PER_FILTER; j++) {
+                final String action = random.nextInt(8) == 0 ? null : action(random);
+                final Set<String> categories = createCategories(random);
+                final Uri data = createData(random);
+                final String scheme = data != null ? data.getScheme() : null;
+                final String message = filter + " " + action + " " + categories + " " + data;
+
+                IntentFilter.setCompiledMatchingEnabled(false);
+                final int scanned = filter.match(action, null, scheme, data, categories,
+                        LOG_TAG);
+                final int scannedAuthority = filter.matchDataAuthority(data);
+                final String scannedCategory = filter.matchCategories(categories);
+                IntentFilter.setCompiledMatchingEnabled(true);
+                assertEquals(message, scanned, filter.match(action, null, scheme, data,
+                        categories, LOG_TAG));
+                assertEquals(message, scannedAuthority, filter.matchDataAuthority(data));
+                assertEquals(message, scannedCategory, filter.matchCategories(categories));
+            }
+        }
+    }
+
+    @Test
+    public void testAddAction() {
+        final IntentFilter filter = new IntentFilter();
+        for (int i = 0; i < MAX_LIST_SIZE; i++) {
+            filter.addAction("action" + i);
+        }
+        assertTrue(filter.hasAction("action0"));
+        filter.addAction("added");
+        assertTrue(filter.hasAction("added"));
+    }
+
+    @Test
+    public void testAddCategory() {
+        final IntentFilter filter = new IntentFilter();
+        for (int i = 0; i < MAX_LIST_SIZE; i++) {
+            filter.addCategory("category" + i);
+        }
+        final Set<String> categories = new ArraySet<>();
+        categories.add("category0");
+        assertEquals(null, filter.matchCategories(categories));
+        filter.addCategory("added");
+        categories.add("added");
+        assertEquals(null, filter.matchCategories(categories));
+    }
+
+    @Test
+    public void testAddDataScheme() {
+        final IntentFilter filter = new IntentFilter();
+        for (int i = 0; i < MAX_LIST_SIZE; i++) {
+            filter.addDataScheme("scheme" + i);
+        }
+        assertMatchesData(filter, "scheme0:ssp");
+        filter.addDataScheme("added");
+        assertMatchesData(filter, "added:ssp");
+    }
+
+    @Test
+    public void testAddDataSchemeSpecificPart() {
+        final IntentFilter filter = new IntentFilter();
+        filter.addDataScheme("scheme");
+        for (int i = 0; i < MAX_LIST_SIZE; i++) {
+            filter.addDataSchemeSpecificPart("ssp" + i, PatternMatcher.PATTERN_LITERAL);
+        }
+        assertMatchesData(filter, "scheme:ssp0");
+        filter.addDataSchemeSpecificPart("added", PatternMatcher.PATTERN_LITERAL);
+        assertMatchesData(filter, "scheme:added");
+    }
+
+    @Test
+    public void testAddDataAuthority() {
+        final IntentFilter filter = new IntentFilter();
+        filter.addDataScheme("scheme");
+        for (int i = 0; i < MAX_LIST_SIZE; i++) {
+            filter.addDataAuthority("host" + i, null);
+        }
+        assertMatchesData(filter, "scheme://host0/");
+        filter.addDataAuthority("added", null);
+        assertMatchesData(filter, "scheme://added/");
+        filter.addDataAuthority("*.wild", null);
+        assertMatchesData(filter, "scheme://added.wild/");
+    }
+
+    @Test
+    public void testAddDataPath() {
+        final IntentFilter filter = new IntentFilter();
+        filter.addDataScheme("scheme");
+        filter.addDataAuthority("host", null);
+        for (int i = 0; i < MAX_LIST_SIZE; i++) {
+            filter.addDataPath("/path" + i, PatternMatcher.PATTERN_LITERAL);
+        }
+        assertMatchesData(filter, "scheme://host/path0");
+        filter.addDataPath("/added", PatternMatcher.PATTERN_LITERAL);
+        assertMatchesData(filter, "scheme://host/added");
+        filter.addDataPath("/glob/.*", PatternMatcher.PATTERN_SIMPLE_GLOB);
+        assertMatchesData(filter, "scheme://host/glob/added");
+    }
+
+    /**
+     * Checks that {@code filter} matches {@code uri} after it was matched once, so that any
+     * lookup tables were built before the last change to the filter.
+     */
+    private static void assertMatchesData(IntentFilter filter, String uri) {
+        final Uri data = Uri.parse(uri);
+        assertTrue(uri, filter.matchData(null, data.getScheme(), data) >= 0);
+    }
+
+    private static IntentFilter createFilter(Random random) throws Exception {
+        final IntentFilter filter = new IntentFilter();
+        for (int i = random.nextInt(MAX_LIST_SIZE); i > 0; i--) {
+            filter.addAction(action(random));
+        }
+        for (int i = random.nextInt(MAX_LIST_SIZE); i > 0; i--) {
+            filter.addCategory(category(random));
+        }
+        // A filter without schemes only matches intents without data.
+        if (random.nextInt(4) == 0) {
+            return filter;
+        }
+        for (int i = random.nextInt(MAX_LIST_SIZE) + 1; i > 0; i--) {
+            filter.addDataScheme(scheme(random));
+        }
+        for (int i = random.nextInt(MAX_LIST_SIZE); i > 0; i--) {
+            filter.addDataSchemeSpecificPart(pattern(random, "ssp"), patternType(random));
+        }
+        for (int i = random.nextInt(MAX_LIST_SIZE); i > 0; i--) {
+            final String host = random.nextInt(4) == 0 ? "*.example" + random.nextInt(4)
+                    : host(random);
+            filter.addDataAuthority(host, random.nextBoolean() ? null : port(random));
+        }
+        for (int i = random.nextInt(MAX_LIST_SIZE); i > 0; i--) {
+            filter.addDataPath(pattern(random, "/p"), patternType(random));
+        }
+        return filter;
+    }
+
+    private static Set<String> createCategories(Random random) {
+        if (random.nextInt(4) == 0) {
+            return null;
+        }
+        final Set<String> categories = new ArraySet<>();
+        for (int i = random.nextInt(3); i > 0; i--) {
+            categories.add(category(random));
+        }
+        return categories;
+    }
+
+    private static Uri createData(Random random) {
+        switch (random.nextInt(3)) {
+            case 0:
+                return null;
+            case 1:
+                return Uri.parse(scheme(random) + ":ssp" + random.nextInt(VOCABULARY_SIZE));
+            default:
+                return Uri.parse(scheme(random) + "://" + host(random)
+                        + (random.nextBoolean() ? "" : ":" + port(random))
+                        + "/p" + random.nextInt(VOCABULARY_SIZE) + "/"
+                        + random.nextInt(VOCABULARY_SIZE));
+        }
+    }
+
+    private static String action(Random random) {
+        return "action" + random.nextInt(VOCABULARY_SIZE);
+    }
+
+    private static String category(Random random) {
+        return "category" + random.nextInt(VOCABULARY_SIZE);
+    }
+
+    private static String scheme(Random random) {
+        return "scheme" + random.nextInt(VOCABULARY_SIZE);
+    }
+
+    /** Hosts differ in case only sometimes, as host matching ignores case. */
+    private static String host(Random random) {
+        return (random.nextBoolean() ? "Host" : "host") + random.nextInt(VOCABULARY_SIZE)
+                + ".example" + random.nextInt(4);
+    }
+
+    private static String port(Random random) {
+        return Integer.toString(8000 + random.nextInt(3));
+    }
+
+    private static int patternType(Random random) {
+        return PATTERN_TYPES[random.nextInt(PATTERN_TYPES.length)];
+    }
+
+    /**
+     * Returns a literal or a pattern that matches some of the values {@link #createData}
+     * generates for {@code prefix}, whatever the pattern type.
+     */
+    private static String pattern(Random random, String prefix) {
+        final int n = random.nextInt(VOCABULARY_SIZE);
+        switch (random.nextInt(3)) {
+            case 0:
+                return prefix + n;
+            case 1:
+                return prefix + n + ".*";
+            default:
+                return prefix + "1.*";
+        }
+    }
+}
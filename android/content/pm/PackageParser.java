@@ -97,6 +97,7 @@ import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.XmlUtils;
 
 import libcore.io.IoUtils;
+import libcore.io.Streams;
 import libcore.util.EmptyArray;
 
 import org.xmlpull.v1.XmlPullParser;
@@ -104,12 +105,14 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.File;
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
@@ -126,6 +129,7 @@ import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Parser for package files (APKs) on disk. This supports apps packaged either
@@ -232,6 +236,41 @@ public class PackageParser {
      */
     public static final AtomicInteger sCachedPackageReadCount = new AtomicInteger();
 
+    /** Magic number at the start of every package cache file, "PKGC". */
+    private static final int CACHE_MAGIC = 0x504b4743;
+
+    /**
+     * Version of the package cache file format. Must be bumped whenever the layout written by
+     * {@link Package#writeToParcel} changes, so stale entries are rejected instead of misread.
+     */
+    private static final int CACHE_VERSION = 1;
+
+    /** Magic, version and payload length. */
+    private static final int CACHE_HEADER_SIZE = 12;
+
+    /**
+     * Cache files up to this size are read into a per-thread buffer that is kept around,
+     * instead of a new array per package.
+     *
+     * Entries are read rather than mapped: {@link Parcel#unmarshall} only takes an array, so a
+     * mapping would be copied out in full anyway. They are also decoded eagerly. The components
+     * of a {@link Package} are public final lists that the package manager reads directly, and
+     * the boot scan registers every one of them, so decoding them lazily would only move the
+     * cost.
+     */
+    private static final int MAX_RETAINED_CACHE_BUFFER_SIZE = 256 * 1024;
+
+    private static final ThreadLocal<byte[]> sCacheReadBuffer = new ThreadLocal<>();
+
+    // Package cache statistics, see dumpCacheStats().
+    private static final AtomicInteger sCacheHitCount = new AtomicInteger();
+    private static final AtomicInteger sCacheMissCount = new AtomicInteger();
+    private static final AtomicInteger sCacheRejectCount = new AtomicInteger();
+    private static final AtomicInteger sCacheWriteCount = new AtomicInteger();
+    private static final AtomicLong sCacheBytesRead = new AtomicLong();
+    private static final AtomicLong sCacheDecodeNanos = new AtomicLong();
+    private static final AtomicLong sCacheMaxDecodeNanos = new AtomicLong();
+
     // Set of broadcast actions that are safe for manifest receivers
     private static final Set<String> SAFE_BROADCASTS = new ArraySet<>();
     static {
@@ -1049,14 +1088,29 @@ public class PackageParser {
 
     @VisibleForTesting
     protected Package fromCacheEntry(byte[] bytes) {
-        return fromCacheEntryStatic(bytes);
+        return fromCacheEntry(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Decodes the cache entry held in {@code length} bytes of {@code bytes} from
+     * {@code offset}. The array is not referenced once this returns, so it can be reused.
+     */
+    @VisibleForTesting
+    protected Package fromCacheEntry(byte[] bytes, int offset, int length) {
+        return fromCacheEntryStatic(bytes, offset, length);
     }
 
     /** static version of {@link #fromCacheEntry} for unit tests. */
     @VisibleForTesting
     public static Package fromCacheEntryStatic(byte[] bytes) {
+        return fromCacheEntryStatic(bytes, 0, bytes.length);
+    }
+
+    /** static version of {@link #fromCacheEntry(byte[], int, int)} for unit tests. */
+    @VisibleForTesting
+    public static Package fromCacheEntryStatic(byte[] bytes, int offset, int length) {
         final Parcel p = Parcel.obtain();
-        p.unmarshall(bytes, 0, bytes.length);
+        p.unmarshall(bytes, offset, length);
         p.setDataPosition(0);
 
         final ReadHelper helper = new ReadHelper(p);
@@ -1139,25 +1193,38 @@ public class PackageParser {
         try {
             // If the cache is not up to date, return null.
             if (!isCacheUpToDate(packageFile, cacheFile)) {
+                sCacheMissCount.incrementAndGet();
                 return null;
             }
 
-            final byte[] bytes = IoUtils.readFileAsByteArray(cacheFile.getAbsolutePath());
-            Package p = fromCacheEntry(bytes);
+            final long decodeStart = SystemClock.elapsedRealtimeNanos();
+            Package p = readCacheFile(cacheFile);
+            if (p == null) {
+                // Written by another version of the format, or cut short.
+                sCacheRejectCount.incrementAndGet();
+                cacheFile.delete();
+                return null;
+            }
+            final long decodeNanos = SystemClock.elapsedRealtimeNanos() - decodeStart;
+            sCacheDecodeNanos.addAndGet(decodeNanos);
+            sCacheMaxDecodeNanos.accumulateAndGet(decodeNanos, Math::max);
             if (mCallback != null) {
                 String[] overlayApks = mCallback.getOverlayApks(p.packageName);
                 if (overlayApks != null && overlayApks.length > 0) {
                     for (String overlayApk : overlayApks) {
                         // If a static RRO is updated, return null.
                         if (!isCacheUpToDate(new File(overlayApk), cacheFile)) {
+                            sCacheMissCount.incrementAndGet();
                             return null;
                         }
                     }
                 }
             }
+            sCacheHitCount.incrementAndGet();
             return p;
         } catch (Throwable e) {
             Slog.w(TAG, "Error reading package cache: ", e);
+            sCacheRejectCount.incrementAndGet();
 
             // If something went wrong while reading the cache entry, delete the cache file
             // so that we regenerate it the next time.
@@ -1166,6 +1233,40 @@ public class PackageParser {
         }
     }
 
+    /**
+     * Reads {@code cacheFile} into a buffer this thread reuses for every package it reads, and
+     * decodes the package it holds.
+     *
+     * @return the package, or {@code null} if the file was not written with the current
+     *         {@link #CACHE_VERSION} or is truncated.
+     */
+    private Package readCacheFile(File cacheFile) throws IOException {
+        try (FileInputStream fis = new FileInputStream(cacheFile)) {
+            final long size = fis.getChannel().size();
+            if (size < CACHE_HEADER_SIZE || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            final int fileSize = (int) size;
+            byte[] buffer = sCacheReadBuffer.get();
+            if (buffer == null || buffer.length < fileSize) {
+                buffer = new byte[fileSize];
+                if (fileSize <= MAX_RETAINED_CACHE_BUFFER_SIZE) {
+                    sCacheReadBuffer.set(buffer);
+                }
+            }
+            Streams.readFully(fis, buffer, 0, fileSize);
+
+            final ByteBuffer header = ByteBuffer.wrap(buffer, 0, CACHE_HEADER_SIZE);
+            final int length = fileSize - CACHE_HEADER_SIZE;
+            if (header.getInt() != CACHE_MAGIC || header.getInt() != CACHE_VERSION
+                    || header.getInt() != length) {
+                return null;
+            }
+            sCacheBytesRead.addAndGet(length);
+            return fromCacheEntry(buffer, CACHE_HEADER_SIZE, length);
+        }
+    }
+
     /**
      * Caches the parse result for {@code packageFile} with flags {@code flags}.
      */
@@ -1190,8 +1291,13 @@ public class PackageParser {
                 return;
             }
 
+            final ByteBuffer header = ByteBuffer.allocate(CACHE_HEADER_SIZE);
+            header.putInt(CACHE_MAGIC).putInt(CACHE_VERSION).putInt(cacheEntry.length);
+
             try (FileOutputStream fos = new FileOutputStream(cacheFile)) {
+                fos.write(header.array());
                 fos.write(cacheEntry);
+                sCacheWriteCount.incrementAndGet();
             } catch (IOException ioe) {
                 Slog.w(TAG, "Error writing cache entry.", ioe);
                 cacheFile.delete();
@@ -1201,6 +1307,22 @@ public class PackageParser {
         }
     }
 
+    /**
+     * Dumps the package cache hit rate and decode cost since boot.
+     */
+    public static void dumpCacheStats(PrintWriter pw, String prefix) {
+        final int hits = sCacheHitCount.get();
+        pw.print(prefix); pw.print("Package cache: hits="); pw.print(hits);
+        pw.print(" misses="); pw.print(sCacheMissCount.get());
+        pw.print(" rejected="); pw.print(sCacheRejectCount.get());
+        pw.print(" writes="); pw.println(sCacheWriteCount.get());
+        final long decodeNanos = sCacheDecodeNanos.get();
+        pw.print(prefix); pw.print("  decode: total="); pw.print(decodeNanos / 1000000);
+        pw.print("ms avg="); pw.print(hits == 0 ? 0 : decodeNanos / hits / 1000);
+        pw.print("us max="); pw.print(sCacheMaxDecodeNanos.get() / 1000);
+        pw.print("us bytes="); pw.println(sCacheBytesRead.get());
+    }
+
     /**
      * Parse all APKs contained in the given directory, treating them as a
      * single package. This also performs sanity checking, such as requiring
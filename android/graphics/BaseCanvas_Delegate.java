@@ -111,6 +111,17 @@ public class BaseCanvas_Delegate {
     /*package*/ static void nDrawBitmap(long nativeCanvas, int[] colors, int offset, int stride,
             final float x, final float y, int width, int height, boolean hasAlpha,
             long nativePaintOrZero) {
+        // blit the colors directly if possible.
+        BaseCanvas_Delegate canvasDelegate = sManager.getDelegate(nativeCanvas);
+        if (canvasDelegate == null) {
+            return;
+        }
+        if (canvasDelegate.getSnapshot().blit(colors, offset, stride, !hasAlpha, width, height,
+                (int) x, (int) y, Paint_Delegate.getDelegate(nativePaintOrZero),
+                false /*forceSrcMode*/)) {
+            return;
+        }
+
         // create a temp BufferedImage containing the content.
         final BufferedImage image = new BufferedImage(width, height,
                 hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
@@ -324,7 +335,7 @@ public class BaseCanvas_Delegate {
         draw(nativeCanvas, paint, false /*compositeOnly*/, false /*forceSrcMode*/,
                 (graphics, paintDelegate) -> {
                     Shape shape = pathDelegate.getJavaShape();
-                    Rectangle2D bounds = shape.getBounds2D();
+                    Rectangle2D bounds = pathDelegate.getBounds2D();
                     if (bounds.isEmpty()) {
                         // Apple JRE 1.6 doesn't like drawing empty shapes.
                         // http://b.android.com/178278
@@ -616,6 +627,19 @@ public class BaseCanvas_Delegate {
 
         final BufferedImage image = getImageToDraw(bitmap, paintDelegate, sBoolOut);
 
+        // unscaled images, such as most icons, are blitted directly if possible.
+        if (sright - sleft == dright - dleft && sbottom - stop == dbottom - dtop &&
+                sleft >= 0 && stop >= 0 && sright <= image.getWidth() &&
+                sbottom <= image.getHeight() && sleft < sright && stop < sbottom) {
+            int[] pixels = PorterDuffUtility.getIntPixels(image);
+            if (pixels != null && canvasDelegate.getSnapshot().blit(pixels,
+                    stop * image.getWidth() + sleft, image.getWidth(),
+                    image.getType() == BufferedImage.TYPE_INT_RGB, sright - sleft,
+                    sbottom - stop, dleft, dtop, paintDelegate, sBoolOut[0])) {
+                return;
+            }
+        }
+
         draw(nativeCanvas, nativePaintOrZero, true /*compositeOnly*/, sBoolOut[0],
                 (graphics, paint) -> {
                     if (paint != null && paint.isFilterBitmap()) {
@@ -647,13 +671,17 @@ public class BaseCanvas_Delegate {
         // if the bitmap config is alpha_8, then we erase all color value from it
         // before drawing it or apply the texture from the shader if present.
         if (bitmap.getConfig() == Bitmap.Config.ALPHA_8) {
-            Shader_Delegate shader = paint.getShader();
+            Shader_Delegate shader = paint != null ? paint.getShader() : null;
             java.awt.Paint javaPaint = null;
             if (shader instanceof BitmapShader_Delegate) {
                 javaPaint = shader.getJavaPaint();
             }
 
-            fixAlpha8Bitmap(image, javaPaint);
+            // without a texture, the colors only need to be cleared again after a change.
+            if (javaPaint != null || !bitmap.areColorsCleared()) {
+                fixAlpha8Bitmap(image, javaPaint);
+                bitmap.setColorsCleared(javaPaint == null);
+            }
         } else if (!bitmap.hasAlpha()) {
             // hasAlpha is merely a rendering hint. There can in fact be alpha values
             // in the bitmap but it should be ignored at drawing time.
@@ -668,9 +696,9 @@ public class BaseCanvas_Delegate {
                 forceSrcMode[0] = mode == PorterDuff.Mode.SRC_OVER || mode == PorterDuff.Mode.SRC;
             }
 
-            // if we can't force SRC mode, then create a temp bitmap of TYPE_RGB
+            // if we can't force SRC mode, then use a copy of TYPE_RGB
             if (!forceSrcMode[0]) {
-                image = Bitmap_Delegate.createCopy(image, BufferedImage.TYPE_INT_RGB, 0xFF);
+                image = bitmap.getOpaqueImage();
             }
         }
 
@@ -697,8 +725,14 @@ public class BaseCanvas_Delegate {
             texture = context.getRaster(0, 0, w, h).getDataBuffer();
         }
 
-        int[] argb = new int[w * h];
-        image.getRGB(0, 0, image.getWidth(), image.getHeight(), argb, 0, image.getWidth());
+        // int-ARGB images are changed in place.
+        int[] pixels = image.getType() == BufferedImage.TYPE_INT_ARGB ?
+                PorterDuffUtility.getIntPixels(image) : null;
+        int[] argb = pixels;
+        if (argb == null) {
+            argb = new int[w * h];
+            image.getRGB(0, 0, image.getWidth(), image.getHeight(), argb, 0, image.getWidth());
+        }
 
         final int length = argb.length;
         for (int i = 0; i < length; i++) {
@@ -708,7 +742,9 @@ public class BaseCanvas_Delegate {
             }
         }
 
-        image.setRGB(0, 0, w, h, argb, 0, w);
+        if (pixels == null) {
+            image.setRGB(0, 0, w, h, argb, 0, w);
+        }
     }
 
     protected int save(int saveFlags) {
@@ -22,6 +22,7 @@ import com.android.ide.common.rendering.api.ResourceValue;
 import com.android.layoutlib.bridge.Bridge;
 import com.android.layoutlib.bridge.android.BridgeContext;
 import com.android.layoutlib.bridge.impl.DelegateManager;
+import com.android.layoutlib.bridge.impl.PorterDuffUtility;
 import com.android.layoutlib.bridge.impl.RenderAction;
 import com.android.resources.Density;
 import com.android.resources.ResourceType;
@@ -31,6 +32,7 @@ import android.annotation.Nullable;
 import android.graphics.Bitmap.Config;
 import android.os.Parcel;
 
+import java.awt.AlphaComposite;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.File;
@@ -80,6 +82,13 @@ public final class Bitmap_Delegate {
     private boolean mIsPremultiplied = true;
     private int mGenerationId = 0;
 
+    // ---- cached conversions for drawing ----
+    /** copy of the image without alpha, for drawing a bitmap without alpha */
+    private BufferedImage mOpaqueImage;
+    private int mOpaqueImageGenerationId;
+    /** generation of the image when its colors were cleared for drawing as ALPHA_8, or -1 */
+    private int mColorsClearedGenerationId = -1;
+
 
     // ---- Public Helper methods ----
 
@@ -138,7 +147,7 @@ public final class Bitmap_Delegate {
                 }
             }
         }
-        Bitmap_Delegate delegate = new Bitmap_Delegate(image, Config.ARGB_8888);
+        Bitmap_Delegate delegate = new Bitmap_Delegate(toIntArgb(image), Config.ARGB_8888);
 
         return createBitmap(delegate, createFlags, density.getDpiValue());
     }
@@ -171,7 +180,8 @@ public final class Bitmap_Delegate {
     public static Bitmap createBitmap(InputStream input, Set<BitmapCreateFlags> createFlags,
             Density density) throws IOException {
         // create a delegate with the content of the stream.
-        Bitmap_Delegate delegate = new Bitmap_Delegate(ImageIO.read(input), Config.ARGB_8888);
+        Bitmap_Delegate delegate =
+                new Bitmap_Delegate(toIntArgb(ImageIO.read(input)), Config.ARGB_8888);
 
         return createBitmap(delegate, createFlags, density.getDpiValue());
     }
@@ -244,6 +254,33 @@ public final class Bitmap_Delegate {
         mGenerationId++;
     }
 
+    /**
+     * Returns a copy of the image of type {@link BufferedImage#TYPE_INT_RGB}, for drawing a
+     * bitmap whose alpha must be ignored. The copy is kept until the bitmap changes.
+     */
+    /*package*/ BufferedImage getOpaqueImage() {
+        if (mOpaqueImage == null || mOpaqueImageGenerationId != mGenerationId) {
+            mOpaqueImage = createCopy(mImage, BufferedImage.TYPE_INT_RGB, 0xFF);
+            mOpaqueImageGenerationId = mGenerationId;
+        }
+        return mOpaqueImage;
+    }
+
+    /**
+     * Returns whether the color channels of the image were cleared since the bitmap last
+     * changed.
+     */
+    /*package*/ boolean areColorsCleared() {
+        return mColorsClearedGenerationId == mGenerationId;
+    }
+
+    /**
+     * Sets whether the color channels of the image are cleared, until the bitmap changes.
+     */
+    /*package*/ void setColorsCleared(boolean cleared) {
+        mColorsClearedGenerationId = cleared ? mGenerationId : -1;
+    }
+
     // ---- native methods ----
 
     @LayoutlibDelegate
@@ -358,6 +395,7 @@ public final class Bitmap_Delegate {
         } finally {
             g.dispose();
         }
+        delegate.change();
     }
 
     @LayoutlibDelegate
@@ -429,6 +467,7 @@ public final class Bitmap_Delegate {
         }
 
         delegate.getImage().setRGB(x, y, color);
+        delegate.change();
     }
 
     @LayoutlibDelegate
@@ -440,6 +479,7 @@ public final class Bitmap_Delegate {
         }
 
         delegate.getImage().setRGB(x, y, width, height, colors, offset, stride);
+        delegate.change();
     }
 
     @LayoutlibDelegate
@@ -718,19 +758,56 @@ public final class Bitmap_Delegate {
 
         BufferedImage result = new BufferedImage(w, h, imageType);
 
-        int[] argb = new int[w * h];
-        image.getRGB(0, 0, image.getWidth(), image.getHeight(), argb, 0, image.getWidth());
+        // int images are copied directly, as getRGB() and setRGB() convert every pixel
+        // through the color model.
+        int[] argb = PorterDuffUtility.getIntPixels(image);
+        if (argb != null && image.getType() == BufferedImage.TYPE_INT_ARGB) {
+            argb = argb.clone();
+        } else {
+            argb = new int[w * h];
+            image.getRGB(0, 0, image.getWidth(), image.getHeight(), argb, 0, image.getWidth());
+        }
 
         if (alpha != 255) {
             final int length = argb.length;
             for (int i = 0 ; i < length; i++) {
-                int a = (argb[i] >>> 24 * alpha) / 255;
+                int a = ((argb[i] >>> 24) * alpha) / 255;
                 argb[i] = (a << 24) | (argb[i] & 0x00FFFFFF);
             }
         }
 
-        result.setRGB(0, 0, w, h, argb, 0, w);
+        int[] resultPixels = PorterDuffUtility.getIntPixels(result);
+        if (resultPixels == null) {
+            result.setRGB(0, 0, w, h, argb, 0, w);
+        } else if (imageType == BufferedImage.TYPE_INT_RGB) {
+            final int length = argb.length;
+            for (int i = 0 ; i < length; i++) {
+                resultPixels[i] = argb[i] & 0x00FFFFFF;
+            }
+        } else {
+            System.arraycopy(argb, 0, resultPixels, 0, argb.length);
+        }
+
+        return result;
+    }
 
+    /**
+     * Returns a decoded image as an image of type {@link BufferedImage#TYPE_INT_ARGB}, which
+     * can be drawn without converting its pixels.
+     */
+    private static BufferedImage toIntArgb(BufferedImage image) {
+        if (image == null || image.getType() == BufferedImage.TYPE_INT_ARGB) {
+            return image;
+        }
+        BufferedImage result = new BufferedImage(image.getWidth(), image.getHeight(),
+                BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = result.createGraphics();
+        try {
+            g.setComposite(AlphaComposite.Src);
+            g.drawImage(image, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
         return result;
     }
 
@@ -27,6 +27,7 @@ import android.graphics.Bitmap.Config;
 
 import java.awt.Graphics2D;
 import java.awt.Rectangle;
+import java.awt.Shape;
 import java.awt.geom.AffineTransform;
 
 import libcore.util.NativeAllocationRegistry_Delegate;
@@ -450,8 +451,16 @@ public final class Canvas_Delegate extends BaseCanvas_Delegate {
     public static boolean nQuickReject(long nativeCanvas,
                                                      float left, float top,
                                                      float right, float bottom) {
-        // FIXME properly implement quickReject
-        return false;
+        // get the delegate from the native int.
+        Canvas_Delegate canvasDelegate = Canvas_Delegate.getDelegate(nativeCanvas);
+        if (canvasDelegate == null) {
+            return false;
+        }
+
+        // The clip is returned in the current coordinates. Views outside of it, for instance when
+        // only a dirty area is drawn again, are skipped.
+        Shape clip = canvasDelegate.getSnapshot().getClip();
+        return clip != null && !clip.intersects(left, top, right - left, bottom - top);
     }
 
     @LayoutlibDelegate
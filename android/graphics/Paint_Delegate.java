@@ -824,7 +824,7 @@ public class Paint_Delegate {
         }
 
         Stroke stroke = paint.getJavaStroke();
-        Shape strokeShape = stroke.createStrokedShape(srcPath.getJavaShape());
+        Shape strokeShape = srcPath.getStrokedShape(stroke);
 
         dstPath.setJavaShape(strokeShape);
 
@@ -49,20 +49,23 @@ public final class PathMeasure_Delegate {
     private CachedPathIteratorFactory mOriginalPathIterator;
 
     private long mNativePath;
+    private boolean mForceClosed;
 
 
     private PathMeasure_Delegate(long native_path, boolean forceClosed) {
+        setPath(native_path, forceClosed);
+    }
+
+    private void setPath(long native_path, boolean forceClosed) {
         mNativePath = native_path;
+        mForceClosed = forceClosed;
+        mOriginalPathIterator = null;
         if (native_path != 0) {
-            if (forceClosed) {
-                // Copy the path and call close
-                native_path = Path_Delegate.nInit(native_path);
-                Path_Delegate.nClose(native_path);
-            }
-
             Path_Delegate pathDelegate = Path_Delegate.getDelegate(native_path);
-            mOriginalPathIterator = new CachedPathIteratorFactory(pathDelegate.getJavaShape()
-                    .getPathIterator(null));
+            if (pathDelegate != null) {
+                // The segments are shared with the path until it is modified.
+                mOriginalPathIterator = pathDelegate.getPathIteratorFactory(forceClosed);
+            }
         }
     }
 
@@ -105,19 +108,7 @@ public final class PathMeasure_Delegate {
         PathMeasure_Delegate pathMeasure = sManager.getDelegate(native_instance);
         assert pathMeasure != null;
 
-        if (native_path != 0) {
-            if (forceClosed) {
-                // Copy the path and call close
-                native_path = Path_Delegate.nInit(native_path);
-                Path_Delegate.nClose(native_path);
-            }
-
-            Path_Delegate pathDelegate = Path_Delegate.getDelegate(native_path);
-            pathMeasure.mOriginalPathIterator = new CachedPathIteratorFactory(pathDelegate.getJavaShape()
-                    .getPathIterator(null));
-        }
-
-        pathMeasure.mNativePath = native_path;
+        pathMeasure.setPath(native_path, forceClosed);
     }
 
     @LayoutlibDelegate
@@ -141,6 +132,9 @@ public final class PathMeasure_Delegate {
         if (path == null) {
             return false;
         }
+        if (pathMeasure.mForceClosed) {
+            return true;
+        }
 
         int type = 0;
         float segment[] = new float[6];
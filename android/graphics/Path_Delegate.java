@@ -19,6 +19,7 @@ package android.graphics;
 import com.android.ide.common.rendering.api.LayoutLog;
 import com.android.layoutlib.bridge.Bridge;
 import com.android.layoutlib.bridge.impl.DelegateManager;
+import com.android.layoutlib.bridge.util.CachedPathIteratorFactory;
 import com.android.tools.layoutlib.annotations.LayoutlibDelegate;
 
 import android.annotation.NonNull;
@@ -26,6 +27,7 @@ import android.graphics.Path.Direction;
 import android.graphics.Path.FillType;
 
 import java.awt.Shape;
+import java.awt.Stroke;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Arc2D;
 import java.awt.geom.Area;
@@ -36,7 +38,7 @@ import java.awt.geom.PathIterator;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.geom.RoundRectangle2D;
-import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Delegate implementing the native methods of android.graphics.Path
@@ -69,12 +71,25 @@ public final class Path_Delegate {
     // true if the path contains does not contain a curve or line.
     private boolean mCachedIsEmpty = true;
 
+    // Geometry computed from mPath, dropped by invalidate() whenever mPath changes.
+    private Rectangle2D mCachedBounds;
+    private CachedPathIteratorFactory mCachedIteratorFactory;
+    private CachedPathIteratorFactory mCachedClosedIteratorFactory;
+    private float mCachedApproximationError;
+    private float[] mCachedApproximation;
+    private Stroke mCachedStroke;
+    private Shape mCachedStrokedShape;
+
     // ---- Public Helper methods ----
 
     public static Path_Delegate getDelegate(long nPath) {
         return sManager.getDelegate(nPath);
     }
 
+    /**
+     * Returns the Java2D path. It must not be modified, use the methods of this class instead so
+     * that the cached geometry is updated.
+     */
     public Path2D getJavaShape() {
         return mPath;
     }
@@ -85,6 +100,7 @@ public final class Path_Delegate {
     }
 
     public void reset() {
+        invalidate();
         mPath.reset();
         mLastX = 0;
         mLastY = 0;
@@ -344,6 +360,7 @@ public final class Path_Delegate {
             return;
         }
 
+        pathDelegate.invalidate();
         pathDelegate.mPath.append(new Ellipse2D.Float(
                 left, top, right - left, bottom - top), false);
     }
@@ -355,6 +372,7 @@ public final class Path_Delegate {
             return;
         }
 
+        pathDelegate.invalidate();
         // because x/y is the center of the circle, need to offset this by the radius
         pathDelegate.mPath.append(new Ellipse2D.Float(
                 x - radius, y - radius, radius * 2, radius * 2), false);
@@ -368,6 +386,7 @@ public final class Path_Delegate {
             return;
         }
 
+        pathDelegate.invalidate();
         // because x/y is the center of the circle, need to offset this by the radius
         pathDelegate.mPath.append(new Arc2D.Float(
                 left, top, right - left, bottom - top,
@@ -383,6 +402,7 @@ public final class Path_Delegate {
             return;
         }
 
+        pathDelegate.invalidate();
         pathDelegate.mPath.append(new RoundRectangle2D.Float(
                 left, top, right - left, bottom - top, rx * 2, ry * 2), false);
     }
@@ -400,6 +420,7 @@ public final class Path_Delegate {
         for (int i = 0; i < radii.length; i++) {
             cornerDimensions[i] = 2 * radii[i];
         }
+        pathDelegate.invalidate();
         pathDelegate.mPath.append(new RoundRectangle(left, top, right - left, bottom - top,
                 cornerDimensions), false);
     }
@@ -486,54 +507,88 @@ public final class Path_Delegate {
         if (pathDelegate == null) {
             return null;
         }
+
+        if (pathDelegate.mCachedApproximation == null
+                || pathDelegate.mCachedApproximationError != error) {
+            pathDelegate.mCachedApproximation = pathDelegate.approximate(error);
+            pathDelegate.mCachedApproximationError = error;
+        }
+        // The caller owns the returned array.
+        return pathDelegate.mCachedApproximation.clone();
+    }
+
+    // ---- Private helper methods ----
+
+    /**
+     * Drops the geometry computed from the path. Must be called before every change to mPath.
+     */
+    private void invalidate() {
+        mCachedIsEmpty = true;
+        mCachedBounds = null;
+        mCachedIteratorFactory = null;
+        mCachedClosedIteratorFactory = null;
+        mCachedApproximation = null;
+        mCachedStroke = null;
+        mCachedStrokedShape = null;
+    }
+
+    /**
+     * Returns the points of the flattened path, each one preceded by the fraction of the path
+     * length at which it is, as described in {@link Path#approximate(float)}.
+     */
+    @NonNull
+    private float[] approximate(float error) {
         // Get a FlatteningIterator
-        PathIterator iterator = pathDelegate.getJavaShape().getPathIterator(null, error);
+        PathIterator iterator = mPath.getPathIterator(null, error);
 
         float segment[] = new float[6];
         float totalLength = 0;
-        ArrayList<Point2D.Float> points = new ArrayList<Point2D.Float>();
-        Point2D.Float previousPoint = null;
+        int nPoints = 0;
+        float[] points = new float[32];
         while (!iterator.isDone()) {
             int type = iterator.currentSegment(segment);
-            Point2D.Float currentPoint = new Point2D.Float(segment[0], segment[1]);
             // MoveTo shouldn't affect the length
-            if (previousPoint != null && type != PathIterator.SEG_MOVETO) {
-                totalLength += currentPoint.distance(previousPoint);
+            if (nPoints > 0 && type != PathIterator.SEG_MOVETO) {
+                totalLength += Point2D.distance(segment[0], segment[1],
+                        points[nPoints * 2 - 2], points[nPoints * 2 - 1]);
+            }
+            if (nPoints * 2 == points.length) {
+                points = Arrays.copyOf(points, points.length * 2);
             }
-            previousPoint = currentPoint;
-            points.add(currentPoint);
+            points[nPoints * 2] = segment[0];
+            points[nPoints * 2 + 1] = segment[1];
+            nPoints++;
             iterator.next();
         }
 
-        int nPoints = points.size();
         float[] result = new float[nPoints * 3];
-        previousPoint = null;
         // Distance that we've covered so far. Used to calculate the fraction of the path that
         // we've covered up to this point.
         float walkedDistance = .0f;
         for (int i = 0; i < nPoints; i++) {
-            Point2D.Float point = points.get(i);
-            float distance = previousPoint != null ? (float) previousPoint.distance(point) : .0f;
+            float x = points[i * 2];
+            float y = points[i * 2 + 1];
+            float distance = i > 0
+                    ? (float) Point2D.distance(points[i * 2 - 2], points[i * 2 - 1], x, y)
+                    : .0f;
             walkedDistance += distance;
             result[i * 3] = walkedDistance / totalLength;
-            result[i * 3 + 1] = point.x;
-            result[i * 3 + 2] = point.y;
-
-            previousPoint = point;
+            result[i * 3 + 1] = x;
+            result[i * 3 + 2] = y;
         }
 
         return result;
     }
 
-    // ---- Private helper methods ----
-
     private void set(Path_Delegate delegate) {
+        invalidate();
         mPath.reset();
         setFillType(delegate.mFillType);
         mPath.append(delegate.mPath, false /*connect*/);
     }
 
     private void setFillType(FillType fillType) {
+        invalidate();
         mFillType = fillType;
         mPath.setWindingRule(getWindingRule(fillType));
     }
@@ -581,6 +636,7 @@ public final class Path_Delegate {
             return;
         }
 
+        destPathDelegate.invalidate();
         if (transform != null) {
             destPathDelegate.mPath.append(
                     srcPathDelegate.mPath.getPathIterator(transform), false);
@@ -624,12 +680,65 @@ public final class Path_Delegate {
         return true;
     }
 
+    /**
+     * Returns the bounds of the path. The returned rectangle can be modified by the caller.
+     */
+    public Rectangle2D getBounds2D() {
+        return (Rectangle2D) getCachedBounds().clone();
+    }
+
+    private Rectangle2D getCachedBounds() {
+        if (mCachedBounds == null) {
+            mCachedBounds = mPath.getBounds2D();
+        }
+        return mCachedBounds;
+    }
+
+    /**
+     * Returns the segments of the path along with their length. The result is immutable and is
+     * not affected by later changes to the path, so it can be kept by a
+     * {@link android.graphics.PathMeasure}.
+     *
+     * @param forceClosed whether to close the last contour of the path if it is open.
+     */
+    @NonNull
+    public CachedPathIteratorFactory getPathIteratorFactory(boolean forceClosed) {
+        if (!forceClosed) {
+            if (mCachedIteratorFactory == null) {
+                mCachedIteratorFactory =
+                        new CachedPathIteratorFactory(mPath.getPathIterator(null));
+            }
+            return mCachedIteratorFactory;
+        }
+
+        if (mCachedClosedIteratorFactory == null) {
+            Path2D closedPath = (Path2D) mPath.clone();
+            closedPath.closePath();
+            mCachedClosedIteratorFactory =
+                    new CachedPathIteratorFactory(closedPath.getPathIterator(null));
+        }
+        return mCachedClosedIteratorFactory;
+    }
+
+    /**
+     * Returns the outline of the path when drawn with the given stroke. The outline of the last
+     * stroke used is kept until the path changes.
+     */
+    @NonNull
+    public Shape getStrokedShape(@NonNull Stroke stroke) {
+        if (mCachedStrokedShape == null || !stroke.equals(mCachedStroke)) {
+            mCachedStrokedShape = stroke.createStrokedShape(mPath);
+            mCachedStroke = stroke;
+        }
+        return mCachedStrokedShape;
+    }
+
     /**
      * Fills the given {@link RectF} with the path bounds.
      * @param bounds the RectF to be filled.
      */
     public void fillBounds(RectF bounds) {
-        Rectangle2D rect = mPath.getBounds2D();
+        Rectangle2D rect = getCachedBounds();
         bounds.left = (float)rect.getMinX();
         bounds.right = (float)rect.getMaxX();
         bounds.top = (float)rect.getMinY();
@@ -643,6 +752,7 @@ public final class Path_Delegate {
      * @param y The y-coordinate of the start of a new contour
      */
     public void moveTo(float x, float y) {
+        invalidate();
         mPath.moveTo(mLastX = x, mLastY = y);
     }
 
@@ -657,6 +767,7 @@ public final class Path_Delegate {
      *           previous contour, to specify the start of a new contour
      */
     public void rMoveTo(float dx, float dy) {
+        invalidate();
         dx += mLastX;
         dy += mLastY;
         mPath.moveTo(mLastX = dx, mLastY = dy);
@@ -671,6 +782,7 @@ public final class Path_Delegate {
      * @param y The y-coordinate of the end of a line
      */
     public void lineTo(float x, float y) {
+        invalidate();
         if (!hasPoints()) {
             mPath.moveTo(mLastX = 0, mLastY = 0);
         }
@@ -688,6 +800,7 @@ public final class Path_Delegate {
      *           this contour, to specify a line
      */
     public void rLineTo(float dx, float dy) {
+        invalidate();
         if (!hasPoints()) {
             mPath.moveTo(mLastX = 0, mLastY = 0);
         }
@@ -713,6 +826,7 @@ public final class Path_Delegate {
      * @param y2 The y-coordinate of the end point on a quadratic curve
      */
     public void quadTo(float x1, float y1, float x2, float y2) {
+        invalidate();
         mPath.quadTo(x1, y1, mLastX = x2, mLastY = y2);
     }
 
@@ -731,6 +845,7 @@ public final class Path_Delegate {
      *            this contour, for the end point of a quadratic curve
      */
     public void rQuadTo(float dx1, float dy1, float dx2, float dy2) {
+        invalidate();
         if (!hasPoints()) {
             mPath.moveTo(mLastX = 0, mLastY = 0);
         }
@@ -755,6 +870,7 @@ public final class Path_Delegate {
      */
     public void cubicTo(float x1, float y1, float x2, float y2,
                         float x3, float y3) {
+        invalidate();
         if (!hasPoints()) {
             mPath.moveTo(0, 0);
         }
@@ -768,6 +884,7 @@ public final class Path_Delegate {
      */
     public void rCubicTo(float dx1, float dy1, float dx2, float dy2,
                          float dx3, float dy3) {
+        invalidate();
         if (!hasPoints()) {
             mPath.moveTo(mLastX = 0, mLastY = 0);
         }
@@ -799,6 +916,7 @@ public final class Path_Delegate {
     public void arcTo(float left, float top, float right, float bottom, float startAngle,
             float sweepAngle,
             boolean forceMoveTo) {
+        invalidate();
         Arc2D arc = new Arc2D.Float(left, top, right - left, bottom - top, -startAngle,
                 -sweepAngle, Arc2D.OPEN);
         mPath.append(arc, true /*connect*/);
@@ -811,6 +929,7 @@ public final class Path_Delegate {
      * first point of the contour, a line segment is automatically added.
      */
     public void close() {
+        invalidate();
         mPath.closePath();
     }
 
@@ -860,6 +979,7 @@ public final class Path_Delegate {
      * @param dy  The amount in the Y direction to offset the entire path
      */
     public void offset(float dx, float dy) {
+        invalidate();
         GeneralPath newPath = new GeneralPath();
 
         PathIterator iterator = mPath.getPathIterator(new AffineTransform(0, 0, dx, 0, 0, dy));
@@ -891,8 +1011,10 @@ public final class Path_Delegate {
         newPath.append(iterator, false /*connect*/);
 
         if (dst != null) {
+            dst.invalidate();
             dst.mPath = newPath;
         } else {
+            invalidate();
             mPath = newPath;
         }
     }
@@ -81,6 +81,10 @@ public class BaseBundle {
 
     // Invariant - exactly one of mMap / mParcelledData will be null
     // (except inside a call to unparcel)
+    //
+    // A Bundle can also be unparcelled itemwise (see unparcel(boolean)), in which case mMap holds
+    // every key but some values are still Parcel.LazyValue placeholders into mLazyData.  Use
+    // getValue() to look those up; unparcel() decodes whatever is left.
 
     ArrayMap<String, Object> mMap = null;
 
@@ -96,6 +100,18 @@ public class BaseBundle {
      */
     private boolean mParcelledByNative;
 
+    /**
+     * The data that {@link Parcel.LazyValue}s left in {@link #mMap} point into, or null once
+     * all of them have been read.
+     */
+    Parcel mLazyData;
+
+    /**
+     * Upper bound of the {@link Parcel.LazyValue}s still in {@link #mMap}; it can overcount
+     * once a lazy value has been overwritten by a put.
+     */
+    private int mLazyValues;
+
     /**
      * The ClassLoader used when unparcelling data from mParcelledData.
      */
@@ -226,10 +242,24 @@ public class BaseBundle {
      * using the currently assigned class loader.
      */
     /* package */ void unparcel() {
+        unparcel(/* itemwise */ false);
+    }
+
+    /**
+     * If the underlying data are stored as a Parcel, unparcel them.
+     *
+     * @param itemwise if true, only index the keys and leave values that can be skipped over
+     *        cheaply in the Parcel until they are read through {@link #getValue}.  Otherwise
+     *        every value is decoded, including any left by an earlier itemwise call.
+     */
+    /* package */ void unparcel(boolean itemwise) {
         synchronized (this) {
             final Parcel source = mParcelledData;
             if (source != null) {
-                initializeFromParcelLocked(source, /*recycleParcel=*/ true, mParcelledByNative);
+                initializeFromParcelLocked(source, /*recycleParcel=*/ true, mParcelledByNative,
+                        itemwise);
+            } else if (!itemwise && mLazyData != null) {
+                unparcelLazyValuesLocked();
             } else {
                 if (DEBUG) {
                     Log.d(TAG, "unparcel "
@@ -241,12 +271,13 @@ public class BaseBundle {
     }
 
     private void initializeFromParcelLocked(@NonNull Parcel parcelledData, boolean recycleParcel,
-            boolean parcelledByNative) {
+            boolean parcelledByNative, boolean itemwise) {
         if (LOG_DEFUSABLE && sShouldDefuse && (mFlags & FLAG_DEFUSABLE) == 0) {
             Slog.wtf(TAG, "Attempting to unparcel a Bundle while in transit; this may "
                     + "clobber all data inside!", new Throwable());
         }
 
+        dropLazyDataLocked();
         if (isEmptyParcel(parcelledData)) {
             if (DEBUG) {
                 Log.d(TAG, "unparcel "
@@ -277,8 +308,14 @@ public class BaseBundle {
             map.erase();
             map.ensureCapacity(count);
         }
+        // Values can only be left behind in a Parcel that this Bundle owns.
+        boolean keepParcel = false;
         try {
-            if (parcelledByNative) {
+            if (itemwise && recycleParcel) {
+                mLazyValues = parcelledData.readArrayMapLazilyInternal(map, count, mClassLoader,
+                        /* sorted */ !parcelledByNative);
+                keepParcel = mLazyValues > 0;
+            } else if (parcelledByNative) {
                 // If it was parcelled by native code, then the array map keys aren't sorted
                 // by their hash codes, so use the safe (slow) one.
                 parcelledData.readArrayMapSafelyInternal(map, count, mClassLoader);
@@ -291,13 +328,19 @@ public class BaseBundle {
             if (sShouldDefuse) {
                 Log.w(TAG, "Failed to parse Bundle, but defusing quietly", e);
                 map.erase();
+                keepParcel = false;
             } else {
                 throw e;
             }
         } finally {
             mMap = map;
-            if (recycleParcel) {
-                recycleParcel(parcelledData);
+            if (keepParcel) {
+                mLazyData = parcelledData;
+            } else {
+                mLazyValues = 0;
+                if (recycleParcel) {
+                    recycleParcel(parcelledData);
+                }
             }
             mParcelledData = null;
             mParcelledByNative = false;
@@ -308,6 +351,75 @@ public class BaseBundle {
         }
     }
 
+    /**
+     * Decodes the values that an itemwise {@link #unparcel(boolean)} left in {@link #mLazyData}.
+     */
+    private void unparcelLazyValuesLocked() {
+        final ArrayMap<String, Object> map = mMap;
+        for (int i = map.size() - 1; i >= 0 && mLazyData != null; i--) {
+            final Object value = map.valueAt(i);
+            if (value instanceof Parcel.LazyValue) {
+                readLazyValueLocked(i, (Parcel.LazyValue) value);
+            }
+        }
+        dropLazyDataLocked();
+    }
+
+    /**
+     * Decodes the lazy value at {@code index} of {@link #mMap} in place and returns it.
+     */
+    private Object readLazyValueLocked(int index, Parcel.LazyValue lazyValue) {
+        final Parcel source = mLazyData;
+        Object value;
+        try {
+            source.setDataPosition(lazyValue.mPosition);
+            value = source.readValue(mClassLoader);
+        } catch (BadParcelableException e) {
+            if (sShouldDefuse) {
+                Log.w(TAG, "Failed to parse Bundle value, but defusing quietly", e);
+                value = null;
+            } else {
+                throw e;
+            }
+        }
+        mMap.setValueAt(index, value);
+        if (--mLazyValues <= 0) {
+            dropLazyDataLocked();
+        }
+        return value;
+    }
+
+    private void dropLazyDataLocked() {
+        if (mLazyData != null) {
+            recycleParcel(mLazyData);
+            mLazyData = null;
+        }
+        mLazyValues = 0;
+    }
+
+    /**
+     * Returns the value for {@code key} once the map has been unparcelled, at least itemwise,
+     * decoding it first if it is still lazy.
+     */
+    final Object getValue(String key) {
+        final int i = mMap.indexOfKey(key);
+        if (i < 0) {
+            return null;
+        }
+        final Object value = mMap.valueAt(i);
+        if (value instanceof Parcel.LazyValue) {
+            synchronized (this) {
+                // Recheck, another reader may have decoded it meanwhile.
+                final Object current = mMap.valueAt(i);
+                if (current instanceof Parcel.LazyValue) {
+                    return readLazyValueLocked(i, (Parcel.LazyValue) current);
+                }
+                return current;
+            }
+        }
+        return value;
+    }
+
     /**
      * @hide
      */
@@ -347,7 +459,7 @@ public class BaseBundle {
      * @return the number of mappings as an int.
      */
     public int size() {
-        unparcel();
+        unparcel(/* itemwise */ true);
         return mMap.size();
     }
 
@@ -355,7 +467,7 @@ public class BaseBundle {
      * Returns true if the mapping of this Bundle is empty, false otherwise.
      */
     public boolean isEmpty() {
-        unparcel();
+        unparcel(/* itemwise */ true);
         return mMap.isEmpty();
     }
 
@@ -403,6 +515,9 @@ public class BaseBundle {
         } else if (isParcelled()) {
             return mParcelledData.compareData(other.mParcelledData) == 0;
         } else {
+            // Placeholders only compare by identity, so decode any that are left.
+            unparcel();
+            other.unparcel();
             return mMap.equals(other.mMap);
         }
     }
@@ -411,7 +526,10 @@ public class BaseBundle {
      * Removes all elements from the mapping of this Bundle.
      */
     public void clear() {
-        unparcel();
+        unparcel(/* itemwise */ true);
+        synchronized (this) {
+            dropLazyDataLocked();
+        }
         mMap.clear();
     }
 
@@ -433,6 +551,16 @@ public class BaseBundle {
                 mParcelledByNative = false;
             }
 
+            // Lazy values are positions, so they stay valid in a copy of the same data.
+            if (from.mLazyData != null) {
+                mLazyData = Parcel.obtain();
+                mLazyData.appendFrom(from.mLazyData, 0, from.mLazyData.dataSize());
+                mLazyValues = from.mLazyValues;
+            } else {
+                mLazyData = null;
+                mLazyValues = 0;
+            }
+
             if (from.mMap != null) {
                 if (!deep) {
                     mMap = new ArrayMap<>(from.mMap);
@@ -501,7 +629,7 @@ public class BaseBundle {
      * @return true if the key is part of the mapping, false otherwise
      */
     public boolean containsKey(String key) {
-        unparcel();
+        unparcel(/* itemwise */ true);
         return mMap.containsKey(key);
     }
 
@@ -513,8 +641,8 @@ public class BaseBundle {
      */
     @Nullable
     public Object get(String key) {
-        unparcel();
-        return mMap.get(key);
+        unparcel(/* itemwise */ true);
+        return getValue(key);
     }
 
     /**
@@ -523,8 +651,14 @@ public class BaseBundle {
      * @param key a String key
      */
     public void remove(String key) {
-        unparcel();
-        mMap.remove(key);
+        unparcel(/* itemwise */ true);
+        if (mMap.remove(key) instanceof Parcel.LazyValue) {
+            synchronized (this) {
+                if (--mLazyValues <= 0) {
+                    dropLazyDataLocked();
+                }
+            }
+        }
     }
 
     /**
@@ -554,7 +688,7 @@ public class BaseBundle {
      * @return a Set of String keys
      */
     public Set<String> keySet() {
-        unparcel();
+        unparcel(/* itemwise */ true);
         return mMap.keySet();
     }
 
@@ -891,8 +1025,8 @@ public class BaseBundle {
      * @return a boolean value
      */
     public boolean getBoolean(String key, boolean defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -925,8 +1059,8 @@ public class BaseBundle {
      * @return a byte value
      */
     Byte getByte(String key, byte defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -959,8 +1093,8 @@ public class BaseBundle {
      * @return a char value
      */
     char getChar(String key, char defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -993,8 +1127,8 @@ public class BaseBundle {
      * @return a short value
      */
     short getShort(String key, short defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1027,8 +1161,8 @@ public class BaseBundle {
      * @return an int value
      */
    public int getInt(String key, int defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1061,8 +1195,8 @@ public class BaseBundle {
      * @return a long value
      */
     public long getLong(String key, long defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1095,8 +1229,8 @@ public class BaseBundle {
      * @return a float value
      */
     float getFloat(String key, float defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1129,8 +1263,8 @@ public class BaseBundle {
      * @return a double value
      */
     public double getDouble(String key, double defaultValue) {
-        unparcel();
-        Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1152,8 +1286,8 @@ public class BaseBundle {
      */
     @Nullable
     public String getString(@Nullable String key) {
-        unparcel();
-        final Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        final Object o = getValue(key);
         try {
             return (String) o;
         } catch (ClassCastException e) {
@@ -1188,8 +1322,8 @@ public class BaseBundle {
      */
     @Nullable
     CharSequence getCharSequence(@Nullable String key) {
-        unparcel();
-        final Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        final Object o = getValue(key);
         try {
             return (CharSequence) o;
         } catch (ClassCastException e) {
@@ -1224,8 +1358,8 @@ public class BaseBundle {
      */
     @Nullable
     Serializable getSerializable(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1247,8 +1381,8 @@ public class BaseBundle {
      */
     @Nullable
     ArrayList<Integer> getIntegerArrayList(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1270,8 +1404,8 @@ public class BaseBundle {
      */
     @Nullable
     ArrayList<String> getStringArrayList(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1293,8 +1427,8 @@ public class BaseBundle {
      */
     @Nullable
     ArrayList<CharSequence> getCharSequenceArrayList(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1316,8 +1450,8 @@ public class BaseBundle {
      */
     @Nullable
     public boolean[] getBooleanArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1339,8 +1473,8 @@ public class BaseBundle {
      */
     @Nullable
     byte[] getByteArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1362,8 +1496,8 @@ public class BaseBundle {
      */
     @Nullable
     short[] getShortArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1385,8 +1519,8 @@ public class BaseBundle {
      */
     @Nullable
     char[] getCharArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1408,8 +1542,8 @@ public class BaseBundle {
      */
     @Nullable
     public int[] getIntArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1431,8 +1565,8 @@ public class BaseBundle {
      */
     @Nullable
     public long[] getLongArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1454,8 +1588,8 @@ public class BaseBundle {
      */
     @Nullable
     float[] getFloatArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1477,8 +1611,8 @@ public class BaseBundle {
      */
     @Nullable
     public double[] getDoubleArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1500,8 +1634,8 @@ public class BaseBundle {
      */
     @Nullable
     public String[] getStringArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1523,8 +1657,8 @@ public class BaseBundle {
      */
     @Nullable
     CharSequence[] getCharSequenceArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1563,6 +1697,9 @@ public class BaseBundle {
                 }
                 return;
             }
+            if (mLazyData != null) {
+                unparcelLazyValuesLocked();
+            }
             map = mMap;
         }
 
@@ -1599,6 +1736,9 @@ public class BaseBundle {
     }
 
     private void readFromParcelInner(Parcel parcel, int length) {
+        synchronized (this) {
+            dropLazyDataLocked();
+        }
         if (length < 0) {
             throw new RuntimeException("Bad length in parcel: " + length);
 
@@ -1621,7 +1761,8 @@ public class BaseBundle {
             // If the parcel has a read-write helper, then we can't lazily-unparcel it, so just
             // unparcel right away.
             synchronized (this) {
-                initializeFromParcelLocked(parcel, /*recycleParcel=*/ false, isNativeBundle);
+                initializeFromParcelLocked(parcel, /*recycleParcel=*/ false, isNativeBundle,
+                        /* itemwise */ false);
             }
             return;
         }
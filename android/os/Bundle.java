@@ -323,8 +323,12 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
                     fdFound = true;
                 }
             } else {
+                // Values that are still lazy may be Bundles, so go by the data they are in.
+                if (mLazyData != null && mLazyData.hasFileDescriptors()) {
+                    fdFound = true;
+                }
                 // It's been unparcelled, so we need to walk the map
-                for (int i=mMap.size()-1; i>=0; i--) {
+                for (int i=mMap.size()-1; !fdFound && i>=0; i--) {
                     Object obj = mMap.valueAt(i);
                     if (obj instanceof Parcelable) {
                         if ((((Parcelable)obj).describeContents()
@@ -874,8 +878,8 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public Size getSize(@Nullable String key) {
-        unparcel();
-        final Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        final Object o = getValue(key);
         try {
             return (Size) o;
         } catch (ClassCastException e) {
@@ -894,8 +898,8 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public SizeF getSizeF(@Nullable String key) {
-        unparcel();
-        final Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        final Object o = getValue(key);
         try {
             return (SizeF) o;
         } catch (ClassCastException e) {
@@ -914,8 +918,8 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public Bundle getBundle(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -937,8 +941,8 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public <T extends Parcelable> T getParcelable(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -960,8 +964,8 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public Parcelable[] getParcelableArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -983,8 +987,8 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public <T extends Parcelable> ArrayList<T> getParcelableArrayList(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1007,8 +1011,8 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public <T extends Parcelable> SparseArray<T> getSparseParcelableArray(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1156,8 +1160,8 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
      */
     @Nullable
     public IBinder getBinder(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1183,8 +1187,8 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
     @Deprecated
     @Nullable
     public IBinder getIBinder(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1257,6 +1261,8 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
                         mParcelledData.dataSize() + "]";
             }
         }
+        // Decode the values an itemwise unparcel left lazy, so they print as themselves.
+        unparcel();
         return "Bundle[" + mMap.toString() + "]";
     }
 
@@ -1271,6 +1277,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
                 return "mParcelledData.dataSize=" + mParcelledData.dataSize();
             }
         }
+        unparcel();
         return mMap.toString();
     }
 
@@ -1285,6 +1292,7 @@ public final class Bundle extends BaseBundle implements Cloneable, Parcelable {
                 proto.write(BundleProto.PARCELLED_DATA_SIZE, mParcelledData.dataSize());
             }
         } else {
+            unparcel();
             proto.write(BundleProto.MAP_DATA, mMap.toString());
         }
 
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.Rect;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.SparseBooleanArray;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Test that a {@link Bundle} unparcelled itemwise, with some values left as
+ * {@link Parcel.LazyValue}s, behaves like one that was unparcelled all at once.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BundleLazyUnparcelTest {
+
+    @Test
+    public void testValuesMatchEager() {
+        final Bundle source = createBundle();
+        final Bundle lazy = reparcel(source);
+        final Bundle eager = reparcel(source);
+        lazy.unparcel(/* itemwise */ true);
+        eager.unparcel();
+
+        assertEquals(source.mMap.size(), lazy.mMap.size());
+        for (int i = 0; i < lazy.mMap.size(); i++) {
+            final String key = lazy.mMap.keyAt(i);
+            assertEquals(key, isDeferred(key), lazy.mMap.valueAt(i) instanceof Parcel.LazyValue);
+            final Object eagerValue = eager.mMap.get(key);
+            assertFalse(key, eagerValue instanceof Parcel.LazyValue);
+            assertValueEquals(key, source.mMap.get(key), eagerValue);
+            assertValueEquals(key, eagerValue, lazy.get(key));
+        }
+        // Every value was read, so the data is no longer held.
+        assertNull(lazy.mLazyData);
+    }
+
+    @Test
+    public void testUnparcelAfterItemwise() {
+        final Bundle source = createBundle();
+        final Bundle bundle = reparcel(source);
+        bundle.getString("string");
+        assertTrue(bundle.mLazyData != null);
+        bundle.unparcel();
+        assertNull(bundle.mLazyData);
+        assertBundleEquals(source, bundle);
+    }
+
+    @Test
+    public void testHasFileDescriptorsWithLazyValues() throws Exception {
+        final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        try {
+            final Bundle inner = new Bundle();
+            inner.putParcelable("fd", pipe[0]);
+            final Bundle source = new Bundle();
+            source.putBundle("inner", inner);
+            source.putParcelable("fd", pipe[1]);
+
+            final Bundle bundle = reparcel(source);
+            // Removing a value that had a descriptor makes the bundle look at its contents
+            // again, while the inner bundle is still lazy.
+            bundle.remove("fd");
+            assertTrue(bundle.mMap.get("inner") instanceof Parcel.LazyValue);
+            assertTrue(bundle.hasFileDescriptors());
+            assertTrue(bundle.getBundle("inner").hasFileDescriptors());
+        } finally {
+            pipe[0].close();
+            pipe[1].close();
+        }
+    }
+
+    @Test
+    public void testNoFileDescriptorsWithLazyValues() {
+        final Bundle bundle = reparcel(createBundle());
+        bundle.unparcel(/* itemwise */ true);
+        bundle.mFlags &= ~Bundle.FLAG_HAS_FDS_KNOWN;
+        assertTrue(bundle.mLazyData != null);
+        assertFalse(bundle.hasFileDescriptors());
+    }
+
+    @Test
+    public void testCopyPartlyDecoded() {
+        final Bundle source = createBundle();
+        final Bundle bundle = reparcel(source);
+        bundle.getBundle("bundle");
+
+        final Bundle copy = new Bundle(bundle);
+        final Bundle deepCopy = bundle.deepCopy();
+        // Values still lazy in the original are decoded separately by each copy.
+        bundle.getIntArray("intArray")[0] = -1;
+        bundle.putString("string", "changed");
+        assertBundleEquals(source, copy);
+        assertBundleEquals(source, deepCopy);
+
+        // Values already decoded are shared by a shallow copy only.
+        deepCopy.getBundle("bundle").putInt("added", 1);
+        assertFalse(bundle.getBundle("bundle").containsKey("added"));
+        bundle.getBundle("bundle").putInt("added", 1);
+        assertTrue(copy.getBundle("bundle").containsKey("added"));
+    }
+
+    @Test
+    public void testWritePartlyDecoded() {
+        final Bundle source = createBundle();
+        final Bundle bundle = reparcel(source);
+        bundle.getString("string");
+        bundle.getBundle("bundle");
+        assertBundleEquals(source, reparcel(bundle));
+    }
+
+    /**
+     * Returns a bundle with a value of each type, keyed by its type.
+     */
+    private static Bundle createBundle() {
+        final Bundle inner = new Bundle();
+        inner.putString("string", "inner");
+        inner.putInt("int", 2);
+        final PersistableBundle persistable = new PersistableBundle();
+        persistable.putLong("long", 3L);
+        persistable.putStringArray("stringArray", new String[] { "x", null });
+        final SparseBooleanArray sparse = new SparseBooleanArray();
+        sparse.put(4, true);
+        sparse.put(10, false);
+        final ArrayList<String> list = new ArrayList<>();
+        list.add("list");
+
+        final Bundle b = new Bundle();
+        b.putBoolean("boolean", true);
+        b.putInt("int", 1);
+        b.putLong("long", Long.MAX_VALUE);
+        b.putDouble("double", 0.5);
+        b.putString("string", "value");
+        b.putString("null", null);
+        b.putString("emptyString", "");
+        b.putByteArray("byteArray", new byte[] { 1, 2, 3 });
+        b.putIntArray("intArray", new int[] { 4, 5 });
+        b.putLongArray("longArray", new long[] { 6L });
+        b.putDoubleArray("doubleArray", new double[] { 7.0, 8.0 });
+        b.putBooleanArray("booleanArray", new boolean[] { true, false, true });
+        b.putStringArray("stringArray", new String[] { "a", null, "" });
+        b.putBundle("bundle", inner);
+        b.putBundle("emptyBundle", new Bundle());
+        b.putParcelable("persistableBundle", persistable);
+        b.putSerializable("serializable", new Date(9L));
+        b.putParcelable("parcelable", new Rect(1, 2, 3, 4));
+        b.putStringArrayList("list", list);
+        b.putCharSequence("charSequence", new StringBuilder("chars"));
+        b.unparcel();
+        b.mMap.put("sparseBooleanArray", sparse);
+        return b;
+    }
+
+    /**
+     * Returns whether the value written by {@link #createBundle} for {@code key} is one that
+     * {@link Parcel#readArrayMapLazilyInternal} leaves in the parcel.
+     */
+    private static boolean isDeferred(String key) {
+        switch (key) {
+            case "string":
+            case "emptyString":
+            case "byteArray":
+            case "intArray":
+            case "longArray":
+            case "doubleArray":
+            case "booleanArray":
+            case "stringArray":
+            case "bundle":
+            case "emptyBundle":
+            case "persistableBundle":
+            case "serializable":
+            case "sparseBooleanArray":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static Bundle reparcel(Bundle bundle) {
+        final Parcel p = Parcel.obtain();
+        try {
+            p.writeBundle(bundle);
+            p.setDataPosition(0);
+            return p.readBundle();
+        } finally {
+            p.recycle();
+        }
+    }
+
+    private static void assertBundleEquals(BaseBundle expected, BaseBundle actual) {
+        assertEquals(expected.keySet(), actual.keySet());
+        for (String key : expected.keySet()) {
+            assertValueEquals(key, expected.get(key), actual.get(key));
+        }
+    }
+
+    private static void assertValueEquals(String key, Object expected, Object actual) {
+        if (expected instanceof BaseBundle) {
+            assertTrue(key, actual instanceof BaseBundle);
+            assertBundleEquals((BaseBundle) expected, (BaseBundle) actual);
+        } else if (expected instanceof SparseBooleanArray) {
+            assertEquals(key, expected.toString(), String.valueOf(actual));
+        } else if (expected instanceof CharSequence) {
+            assertEquals(key, expected.toString(), String.valueOf(actual));
+        } else {
+            assertTrue(key + ": " + expected + " != " + actual,
+                    Arrays.deepEquals(new Object[] { expected }, new Object[] { actual }));
+        }
+    }
+}
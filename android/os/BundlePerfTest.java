@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.content.Intent;
+import android.graphics.Rect;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Measures reading a few extras out of a freshly received broadcast {@link Intent} whose extras
+ * are large, with itemwise unparcelling and with the whole {@link Bundle} decoded up front.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class BundlePerfTest {
+    private static final String ACTION = "android.os.perftests.LARGE_EXTRAS";
+    private static final String EXTRA_FLAG = "flag";
+    private static final String EXTRA_NAME = "name";
+    private static final String EXTRA_STATE = "state";
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private Parcel mIntentParcel;
+    private Parcel mBundleParcel;
+
+    @Before
+    public void setUp() {
+        final Bundle extras = createLargeExtras();
+        final Intent intent = new Intent(ACTION);
+        intent.putExtras(extras);
+
+        mIntentParcel = Parcel.obtain();
+        intent.writeToParcel(mIntentParcel, 0);
+        mBundleParcel = Parcel.obtain();
+        mBundleParcel.writeBundle(extras);
+    }
+
+    @After
+    public void tearDown() {
+        mIntentParcel.recycle();
+        mIntentParcel = null;
+        mBundleParcel.recycle();
+        mBundleParcel = null;
+    }
+
+    @Test
+    public void timeBroadcastGetBooleanExtra() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mIntentParcel.setDataPosition(0);
+            final Intent intent = Intent.CREATOR.createFromParcel(mIntentParcel);
+            intent.getBooleanExtra(EXTRA_FLAG, false);
+        }
+    }
+
+    @Test
+    public void timeBroadcastGetBooleanExtra_Eager() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mIntentParcel.setDataPosition(0);
+            final Intent intent = Intent.CREATOR.createFromParcel(mIntentParcel);
+            final Bundle extras = intent.getExtras();
+            extras.unparcel();
+            extras.getBoolean(EXTRA_FLAG, false);
+        }
+    }
+
+    @Test
+    public void timeGetFewKeys() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mBundleParcel.setDataPosition(0);
+            final Bundle bundle = mBundleParcel.readBundle();
+            bundle.getBoolean(EXTRA_FLAG);
+            bundle.getString(EXTRA_NAME);
+            bundle.getBundle(EXTRA_STATE);
+        }
+    }
+
+    @Test
+    public void timeGetFewKeys_Eager() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mBundleParcel.setDataPosition(0);
+            final Bundle bundle = mBundleParcel.readBundle();
+            bundle.unparcel();
+            bundle.getBoolean(EXTRA_FLAG);
+            bundle.getString(EXTRA_NAME);
+            bundle.getBundle(EXTRA_STATE);
+        }
+    }
+
+    /** Reads every key, which is the worst case for the lazy index. */
+    @Test
+    public void timeGetAllKeys() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mBundleParcel.setDataPosition(0);
+            final Bundle bundle = mBundleParcel.readBundle();
+            for (String key : bundle.keySet()) {
+                bundle.get(key);
+            }
+        }
+    }
+
+    @Test
+    public void timeGetAllKeys_Eager() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mBundleParcel.setDataPosition(0);
+            final Bundle bundle = mBundleParcel.readBundle();
+            bundle.unparcel();
+            for (String key : bundle.keySet()) {
+                bundle.get(key);
+            }
+        }
+    }
+
+    /** Roughly what a chatty system broadcast carries: a flag next to a lot of bulk. */
+    private static Bundle createLargeExtras() {
+        final Bundle extras = new Bundle();
+        extras.putBoolean(EXTRA_FLAG, true);
+        extras.putString(EXTRA_NAME, "com.android.perftests.core");
+        for (int i = 0; i < 50; i++) {
+            extras.putString("string" + i, "value of extra number " + i);
+            extras.putInt("int" + i, i);
+        }
+
+        final Bundle state = new Bundle();
+        for (int i = 0; i < 200; i++) {
+            state.putLong("long" + i, i);
+            state.putString("string" + i, "nested value " + i);
+        }
+        extras.putBundle(EXTRA_STATE, state);
+
+        extras.putByteArray("blob", new byte[64 * 1024]);
+        extras.putLongArray("longs", new long[1024]);
+        final String[] strings = new String[256];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = "array element " + i;
+        }
+        extras.putStringArray("strings", strings);
+
+        // Parcelables carry no length, so these stay eager either way.
+        final Rect[] rects = new Rect[64];
+        for (int i = 0; i < rects.length; i++) {
+            rects[i] = new Rect(0, 0, i, i);
+        }
+        extras.putParcelableArray("rects", rects);
+        return extras;
+    }
+}
@@ -701,6 +701,33 @@ public class Handler {
         return enqueueMessage(queue, msg, uptimeMillis);
     }
 
+    /**
+     * Enqueue all of {@code msgs} into the message queue after all pending messages before
+     * the absolute time (in milliseconds) <var>uptimeMillis</var>, in array order. Cheaper
+     * than calling {@link #sendMessageAtTime} for each of them.
+     *
+     * @return Returns true if the messages were successfully placed in to the
+     *         message queue.  Returns false on failure, usually because the
+     *         looper processing the message queue is exiting.
+     * @hide
+     */
+    public final boolean sendMessagesAtTime(@NonNull Message[] msgs, long uptimeMillis) {
+        MessageQueue queue = mQueue;
+        if (queue == null) {
+            RuntimeException e = new RuntimeException(
+                    this + " sendMessagesAtTime() called with no mQueue");
+            Log.w("Looper", e.getMessage(), e);
+            return false;
+        }
+        for (Message msg : msgs) {
+            msg.target = this;
+            if (mAsynchronous) {
+                msg.setAsynchronous(true);
+            }
+        }
+        return queue.enqueueMessages(msgs, uptimeMillis);
+    }
+
     /**
      * Enqueue a message at the front of the message queue, to be processed on
      * the next iteration of the message loop.  You will receive it in
@@ -76,6 +76,7 @@ public final class Looper {
 
     private Printer mLogging;
     private long mTraceTag;
+    private Observer mObserver;
 
     /**
      * If set, the looper will show a warning log if a message dispatch takes longer than this.
@@ -176,6 +177,7 @@ public final class Looper {
             }
 
             final long traceTag = me.mTraceTag;
+            final Observer observer = me.mObserver;
             long slowDispatchThresholdMs = me.mSlowDispatchThresholdMs;
             long slowDeliveryThresholdMs = me.mSlowDeliveryThresholdMs;
             if (thresholdOverride > 0) {
@@ -194,15 +196,29 @@ public final class Looper {
 
             final long dispatchStart = needStartTime ? SystemClock.uptimeMillis() : 0;
             final long dispatchEnd;
+            Object token = null;
+            if (observer != null) {
+                token = observer.messageDispatchStarting();
+            }
             try {
                 // 处理消息
                 msg.target.dispatchMessage(msg);
                 dispatchEnd = needEndTime ? SystemClock.uptimeMillis() : 0;
+            } catch (Throwable throwable) {
+                if (observer != null) {
+                    observer.dispatchingThrewException(token, msg, throwable);
+                }
+                throw throwable;
             } finally {
                 if (traceTag != 0) {
                     Trace.traceEnd(traceTag);
                 }
             }
+            // Outside the try, so an observer that throws is not reported as the dispatch
+            // having thrown.
+            if (observer != null) {
+                observer.messageDispatched(token, msg);
+            }
             if (logSlowDelivery) {
                 if (slowDeliveryDetected) {
                     if ((dispatchStart - msg.when) <= 10) {
@@ -301,6 +317,15 @@ public final class Looper {
         mTraceTag = traceTag;
     }
 
+    /**
+     * Set an observer to be called around every message this Looper dispatches, or null to
+     * stop observing.
+     * {@hide}
+     */
+    public void setObserver(@Nullable Observer observer) {
+        mObserver = observer;
+    }
+
     /**
      * Set a thresholds for slow dispatch/delivery log.
      * {@hide}
@@ -402,4 +427,30 @@ public final class Looper {
         return "Looper (" + mThread.getName() + ", tid " + mThread.getId()
                 + ") {" + Integer.toHexString(System.identityHashCode(this)) + "}";
     }
+
+    /**
+     * Gets notified of every message a Looper dispatches. Called on the Looper's thread, so
+     * implementations must be cheap.
+     * {@hide}
+     */
+    public interface Observer {
+        /**
+         * Called right before a message is dispatched.
+         *
+         * @return a token passed to {@link #messageDispatched} or
+         *         {@link #dispatchingThrewException} for the same message.
+         */
+        Object messageDispatchStarting();
+
+        /**
+         * Called after a message was dispatched.
+         */
+        void messageDispatched(Object token, Message msg);
+
+        /**
+         * Called after dispatching a message threw, before the exception or error is rethrown.
+         * {@link #messageDispatched} is not called for that message.
+         */
+        void dispatchingThrewException(Object token, Message msg, Throwable throwable);
+    }
 }
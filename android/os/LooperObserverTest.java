@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+/**
+ * Test the {@link Looper.Observer} callbacks around message dispatch.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class LooperObserverTest {
+    private static final Object TOKEN = new Object();
+
+    @Test
+    public void testDispatched() throws Exception {
+        final RecordingObserver observer = new RecordingObserver();
+        assertNull(loop(observer, () -> {}, () -> {}));
+        // Two runnables and the quit message.
+        assertEquals("start,dispatched,start,dispatched,start,dispatched",
+                observer.getEvents());
+    }
+
+    @Test
+    public void testDispatchThrowsException() throws Exception {
+        final RecordingObserver observer = new RecordingObserver();
+        final RuntimeException exception = new RuntimeException();
+        assertSame(exception, loop(observer, () -> {
+            throw exception;
+        }));
+        assertEquals("start,threw", observer.getEvents());
+        assertSame(exception, observer.mThrown);
+    }
+
+    @Test
+    public void testDispatchThrowsError() throws Exception {
+        final RecordingObserver observer = new RecordingObserver();
+        final Error error = new Error();
+        assertSame(error, loop(observer, () -> {
+            throw error;
+        }));
+        assertEquals("start,threw", observer.getEvents());
+        assertSame(error, observer.mThrown);
+    }
+
+    @Test
+    public void testObserverThrows() throws Exception {
+        final RuntimeException exception = new RuntimeException();
+        final RecordingObserver observer = new RecordingObserver() {
+            @Override
+            public void messageDispatched(Object token, Message msg) {
+                super.messageDispatched(token, msg);
+                throw exception;
+            }
+        };
+        assertSame(exception, loop(observer, () -> {}));
+        // The message dispatched fine, so it is not reported again as having thrown.
+        assertEquals("start,dispatched", observer.getEvents());
+    }
+
+    /**
+     * Runs {@code runnables} on a new Looper observed by {@code observer}, then quits it.
+     *
+     * @return what {@link Looper#loop} threw, if anything.
+     */
+    private static Throwable loop(Looper.Observer observer, Runnable... runnables)
+            throws InterruptedException {
+        final Throwable[] thrown = new Throwable[1];
+        final Thread thread = new Thread(() -> {
+            Looper.prepare();
+            final Looper looper = Looper.myLooper();
+            looper.setObserver(observer);
+            final Handler handler = new Handler(looper);
+            for (Runnable runnable : runnables) {
+                handler.post(runnable);
+            }
+            handler.post(looper::quit);
+            try {
+                Looper.loop();
+            } catch (Throwable t) {
+                thrown[0] = t;
+            }
+        });
+        thread.start();
+        thread.join();
+        return thrown[0];
+    }
+
+    private static class RecordingObserver implements Looper.Observer {
+        private final ArrayList<String> mEvents = new ArrayList<>();
+        Throwable mThrown;
+
+        @Override
+        public Object messageDispatchStarting() {
+            mEvents.add("start");
+            return TOKEN;
+        }
+
+        @Override
+        public void messageDispatched(Object token, Message msg) {
+            assertSame(TOKEN, token);
+            mEvents.add("dispatched");
+        }
+
+        @Override
+        public void dispatchingThrewException(Object token, Message msg, Throwable throwable) {
+            assertSame(TOKEN, token);
+            mEvents.add("threw");
+            mThrown = throwable;
+        }
+
+        String getEvents() {
+            return String.join(",", mEvents);
+        }
+    }
+}
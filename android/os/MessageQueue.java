@@ -19,15 +19,18 @@ package android.os;
 import android.annotation.IntDef;
 import android.annotation.NonNull;
 import android.os.MessageQueueProto;
+import android.util.ArrayMap;
 import android.util.Log;
 import android.util.Printer;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 import android.util.proto.ProtoOutputStream;
 
 import java.io.FileDescriptor;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Low-level class holding the list of messages to be dispatched by a
@@ -60,6 +63,24 @@ public final class MessageQueue {
     // Barriers are indicated by messages with a null target whose arg1 field carries the token.
     private int mNextBarrierToken;
 
+    // When enabled, messages posted for a future time wait in mDelayed, a binary min-heap
+    // ordered by (when, sequence), and are moved into mMessages once due. mMessages then only
+    // holds due messages and barriers, so inserting into it stays cheap with a deep backlog.
+    // See setDelayedMessageHeapEnabled().
+    private boolean mUseDelayedHeap;
+    private Message[] mDelayed;
+    private long[] mDelayedSeq;
+    private int mDelayedCount;
+    private long mNextDelayedSeq;
+
+    // Number of queued messages for each (Handler, what), kept while the delayed heap is
+    // enabled so hasMessages() and removeMessages() can skip the scan when there are none.
+    private ArrayMap<Handler, SparseIntArray> mWhatCounts;
+
+    private static final int MATCH_WHAT = 0;
+    private static final int MATCH_CALLBACK = 1;
+    private static final int MATCH_HANDLER = 2;
+
     private native static long nativeInit();
     private native static void nativeDestroy(long ptr);
     private native void nativePollOnce(long ptr, int timeoutMillis); /*non-static for callbacks*/
@@ -101,7 +122,58 @@ public final class MessageQueue {
     public boolean isIdle() {
         synchronized (this) {
             final long now = SystemClock.uptimeMillis();
-            return mMessages == null || now < mMessages.when;
+            return (mMessages == null || now < mMessages.when)
+                    && (mDelayedCount == 0 || now < mDelayed[0].when);
+        }
+    }
+
+    /**
+     * Keeps messages posted for a future time in a heap instead of the sorted message list,
+     * and counts queued messages by (Handler, what). Meant for loopers that carry thousands of
+     * delayed messages, where inserting into the list and scanning it on every
+     * {@link Handler#removeMessages} dominate. Dispatch order is unchanged.
+     *
+     * <p>This method is safe to call from any thread.
+     *
+     * @hide
+     */
+    public void setDelayedMessageHeapEnabled(boolean enabled) {
+        synchronized (this) {
+            if (enabled == mUseDelayedHeap) {
+                return;
+            }
+            mUseDelayedHeap = enabled;
+            if (enabled) {
+                mWhatCounts = new ArrayMap<>();
+                final long now = SystemClock.uptimeMillis();
+                Message prev = null;
+                Message p = mMessages;
+                while (p != null) {
+                    final Message n = p.next;
+                    if (p.target != null) {
+                        countMessageLocked(p, 1);
+                        if (p.when > now) {
+                            // Move it to the heap, in list order so equal times stay FIFO.
+                            if (prev == null) {
+                                mMessages = n;
+                            } else {
+                                prev.next = n;
+                            }
+                            p.next = null;
+                            pushDelayedLocked(p);
+                            p = n;
+                            continue;
+                        }
+                    }
+                    prev = p;
+                    p = n;
+                }
+            } else {
+                promoteDueMessagesLocked(Long.MAX_VALUE);
+                mDelayed = null;
+                mDelayedSeq = null;
+                mWhatCounts = null;
+            }
         }
     }
 
@@ -329,6 +401,9 @@ public final class MessageQueue {
             synchronized (this) {
                 // Try to retrieve the next message.  Return if found.
                 final long now = SystemClock.uptimeMillis();
+                if (mDelayedCount != 0) {
+                    promoteDueMessagesLocked(now);
+                }
                 Message prevMsg = null;// 缓存前一个消息
                 Message msg = mMessages;// 当前消息
                 // target为空说明该消息是消息屏障，该消息是只能通过Looper的postSyncBarrier传入
@@ -358,6 +433,9 @@ public final class MessageQueue {
                             mMessages = msg.next;
                         }
                         msg.next = null;// 将取出的消息的next赋值为空
+                        if (mWhatCounts != null) {
+                            countMessageLocked(msg, -1);
+                        }
                         if (DEBUG) Log.v(TAG, "Returning message: " + msg);
                         msg.markInUse();// 标记正在使用
                         return msg;
@@ -366,6 +444,14 @@ public final class MessageQueue {
                     // No more messages.
                     nextPollTimeoutMillis = -1;
                 }
+                if (mDelayedCount != 0) {
+                    // Also wake up for the earliest delayed message.
+                    final int delayedTimeoutMillis =
+                            (int) Math.min(mDelayed[0].when - now, Integer.MAX_VALUE);
+                    if (nextPollTimeoutMillis < 0 || delayedTimeoutMillis < nextPollTimeoutMillis) {
+                        nextPollTimeoutMillis = delayedTimeoutMillis;
+                    }
+                }
 
                 // Process the quit message now that all pending messages have been handled.
                 if (mQuitting) {
@@ -572,6 +658,17 @@ public final class MessageQueue {
 
             msg.markInUse();
             msg.when = when;
+            if (mWhatCounts != null) {
+                countMessageLocked(msg, 1);
+            }
+            if (mUseDelayedHeap && when > SystemClock.uptimeMillis()) {
+                pushDelayedLocked(msg);
+                // Only a new earliest delayed message moves the next wake up.
+                if (mBlocked && mDelayed[0] == msg) {
+                    nativeWake(mPtr);
+                }
+                return true;
+            }
             Message p = mMessages;
             boolean needWake;
             // 插入到消息队列前面：p为空说明消息队列为空，插入最前面；when==0表示要立即执行；最后一个是插入的
@@ -614,12 +711,95 @@ public final class MessageQueue {
         return true;
     }
 
+    /**
+     * Enqueues all of {@code msgs} to be delivered at {@code when}, in array order, taking the
+     * queue lock and waking the looper at most once.
+     */
+    boolean enqueueMessages(Message[] msgs, long when) {
+        for (Message msg : msgs) {
+            if (msg.target == null) {
+                throw new IllegalArgumentException("Message must have a target.");
+            }
+            if (msg.isInUse()) {
+                throw new IllegalStateException(msg + " This message is already in use.");
+            }
+        }
+        if (msgs.length == 0) {
+            return true;
+        }
+
+        synchronized (this) {
+            if (mQuitting) {
+                IllegalStateException e = new IllegalStateException(
+                        msgs[0].target + " sending messages to a Handler on a dead thread");
+                Log.w(TAG, e.getMessage(), e);
+                for (Message msg : msgs) {
+                    msg.recycle();
+                }
+                return false;
+            }
+
+            boolean needWake;
+            if (mUseDelayedHeap && when > SystemClock.uptimeMillis()) {
+                final Message oldEarliest = mDelayedCount != 0 ? mDelayed[0] : null;
+                for (Message msg : msgs) {
+                    msg.markInUse();
+                    msg.when = when;
+                    countMessageLocked(msg, 1);
+                    pushDelayedLocked(msg);
+                }
+                needWake = mBlocked && mDelayed[0] != oldEarliest;
+            } else {
+                // Chain the batch, then splice it in after the last message due at or
+                // before when, like enqueueMessage() would one at a time.
+                boolean hasAsync = false;
+                for (int i = 0; i < msgs.length; i++) {
+                    final Message msg = msgs[i];
+                    msg.markInUse();
+                    msg.when = when;
+                    msg.next = i + 1 < msgs.length ? msgs[i + 1] : null;
+                    hasAsync |= msg.isAsynchronous();
+                    if (mWhatCounts != null) {
+                        countMessageLocked(msg, 1);
+                    }
+                }
+                Message prev = null;
+                Message p = mMessages;
+                boolean asyncAhead = false;
+                if (when != 0) {
+                    while (p != null && p.when <= when) {
+                        asyncAhead |= p.isAsynchronous();
+                        prev = p;
+                        p = p.next;
+                    }
+                }
+                msgs[msgs.length - 1].next = p;
+                if (prev == null) {
+                    mMessages = msgs[0];
+                    needWake = mBlocked;
+                } else {
+                    prev.next = msgs[0];
+                    needWake = mBlocked && mMessages.target == null && hasAsync && !asyncAhead;
+                }
+            }
+
+            // We can assume mPtr != 0 because mQuitting is false.
+            if (needWake) {
+                nativeWake(mPtr);
+            }
+        }
+        return true;
+    }
+
     boolean hasMessages(Handler h, int what, Object object) {
         if (h == null) {
             return false;
         }
 
         synchronized (this) {
+            if (mWhatCounts != null && getMessageCountLocked(h, what) == 0) {
+                return false;
+            }
             Message p = mMessages;
             while (p != null) {
                 if (p.target == h && p.what == what && (object == null || p.obj == object)) {
@@ -627,7 +807,7 @@ public final class MessageQueue {
                 }
                 p = p.next;
             }
-            return false;
+            return hasDelayedLocked(h, MATCH_WHAT, what, null, object);
         }
     }
 
@@ -644,7 +824,7 @@ public final class MessageQueue {
                 }
                 p = p.next;
             }
-            return false;
+            return hasDelayedLocked(h, MATCH_CALLBACK, 0, r, object);
         }
     }
 
@@ -661,7 +841,7 @@ public final class MessageQueue {
                 }
                 p = p.next;
             }
-            return false;
+            return hasDelayedLocked(h, MATCH_HANDLER, 0, null, null);
         }
     }
 
@@ -671,6 +851,9 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            if (mWhatCounts != null && getMessageCountLocked(h, what) == 0) {
+                return;
+            }
             Message p = mMessages;
 
             // Remove all messages at front.
@@ -679,7 +862,7 @@ public final class MessageQueue {
                    && (object == null || p.obj == object)) {
                 Message n = p.next;
                 mMessages = n;
-                p.recycleUnchecked();
+                recycleRemovedLocked(p);
                 p = n;
             }
 
@@ -691,13 +874,16 @@ public final class MessageQueue {
                     if (n.target == h && n.what == what
                         && (object == null || n.obj == object)) {
                         Message nn = n.next;
-                        n.recycleUnchecked();
+                        recycleRemovedLocked(n);
                         p.next = nn;
                         continue;
                     }
                 }
                 p = n;
             }
+            if (mDelayedCount != 0) {
+                removeDelayedLocked(h, MATCH_WHAT, what, null, object);
+            }
         }
     }
 
@@ -715,7 +901,7 @@ public final class MessageQueue {
                    && (object == null || p.obj == object)) {
                 Message n = p.next;
                 mMessages = n;
-                p.recycleUnchecked();
+                recycleRemovedLocked(p);
                 p = n;
             }
 
@@ -727,13 +913,16 @@ public final class MessageQueue {
                     if (n.target == h && n.callback == r
                         && (object == null || n.obj == object)) {
                         Message nn = n.next;
-                        n.recycleUnchecked();
+                        recycleRemovedLocked(n);
                         p.next = nn;
                         continue;
                     }
                 }
                 p = n;
             }
+            if (mDelayedCount != 0) {
+                removeDelayedLocked(h, MATCH_CALLBACK, 0, r, object);
+            }
         }
     }
 
@@ -750,7 +939,7 @@ public final class MessageQueue {
                     && (object == null || p.obj == object)) {
                 Message n = p.next;
                 mMessages = n;
-                p.recycleUnchecked();
+                recycleRemovedLocked(p);
                 p = n;
             }
 
@@ -760,13 +949,16 @@ public final class MessageQueue {
                 if (n != null) {
                     if (n.target == h && (object == null || n.obj == object)) {
                         Message nn = n.next;
-                        n.recycleUnchecked();
+                        recycleRemovedLocked(n);
                         p.next = nn;
                         continue;
                     }
                 }
                 p = n;
             }
+            if (mDelayedCount != 0) {
+                removeDelayedLocked(h, MATCH_HANDLER, 0, null, object);
+            }
         }
     }
 
@@ -778,10 +970,22 @@ public final class MessageQueue {
             p = n;
         }
         mMessages = null;
+        for (int i = 0; i < mDelayedCount; i++) {
+            mDelayed[i].recycleUnchecked();
+            mDelayed[i] = null;
+        }
+        mDelayedCount = 0;
+        if (mWhatCounts != null) {
+            mWhatCounts.clear();
+        }
     }
 
     private void removeAllFutureMessagesLocked() {
         final long now = SystemClock.uptimeMillis();
+        if (mDelayedCount != 0) {
+            promoteDueMessagesLocked(now);
+            removeAllDelayedMessagesLocked();
+        }
         Message p = mMessages;
         if (p != null) {
             if (p.when > now) {
@@ -802,12 +1006,216 @@ public final class MessageQueue {
                 do {
                     p = n;
                     n = p.next;
-                    p.recycleUnchecked();
+                    recycleRemovedLocked(p);
                 } while (n != null);
             }
         }
     }
 
+    private void removeAllDelayedMessagesLocked() {
+        // Due messages stay queued, so only the counts of the removed ones go down.
+        for (int i = 0; i < mDelayedCount; i++) {
+            recycleRemovedLocked(mDelayed[i]);
+            mDelayed[i] = null;
+        }
+        mDelayedCount = 0;
+    }
+
+    private void recycleRemovedLocked(Message msg) {
+        if (mWhatCounts != null) {
+            countMessageLocked(msg, -1);
+        }
+        msg.recycleUnchecked();
+    }
+
+    private static boolean matches(Message msg, Handler h, int match, int what, Runnable r,
+            Object object) {
+        if (msg.target != h || (object != null && msg.obj != object)) {
+            return false;
+        }
+        switch (match) {
+            case MATCH_WHAT:
+                return msg.what == what;
+            case MATCH_CALLBACK:
+                return msg.callback == r;
+            default:
+                return true;
+        }
+    }
+
+    private boolean hasDelayedLocked(Handler h, int match, int what, Runnable r, Object object) {
+        for (int i = 0; i < mDelayedCount; i++) {
+            if (matches(mDelayed[i], h, match, what, r, object)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void removeDelayedLocked(Handler h, int match, int what, Runnable r,
+            Object object) {
+        int kept = 0;
+        for (int i = 0; i < mDelayedCount; i++) {
+            final Message msg = mDelayed[i];
+            if (matches(msg, h, match, what, r, object)) {
+                recycleRemovedLocked(msg);
+            } else {
+                mDelayed[kept] = msg;
+                mDelayedSeq[kept] = mDelayedSeq[i];
+                kept++;
+            }
+        }
+        if (kept != mDelayedCount) {
+            Arrays.fill(mDelayed, kept, mDelayedCount, null);
+            mDelayedCount = kept;
+            for (int i = (kept >>> 1) - 1; i >= 0; i--) {
+                siftDownLocked(i, mDelayed[i], mDelayedSeq[i]);
+            }
+        }
+    }
+
+    private void countMessageLocked(Message msg, int delta) {
+        SparseIntArray counts = mWhatCounts.get(msg.target);
+        if (counts == null) {
+            if (delta < 0) {
+                return;
+            }
+            counts = new SparseIntArray();
+            mWhatCounts.put(msg.target, counts);
+        }
+        final int index = counts.indexOfKey(msg.what);
+        final int count = (index >= 0 ? counts.valueAt(index) : 0) + delta;
+        if (count > 0) {
+            counts.put(msg.what, count);
+        } else if (index >= 0) {
+            counts.removeAt(index);
+            if (counts.size() == 0) {
+                // Don't keep the Handler alive once it has nothing queued.
+                mWhatCounts.remove(msg.target);
+            }
+        }
+    }
+
+    private int getMessageCountLocked(Handler h, int what) {
+        final SparseIntArray counts = mWhatCounts.get(h);
+        return counts != null ? counts.get(what) : 0;
+    }
+
+    private void pushDelayedLocked(Message msg) {
+        if (mDelayed == null) {
+            mDelayed = new Message[16];
+            mDelayedSeq = new long[16];
+        } else if (mDelayedCount == mDelayed.length) {
+            mDelayed = Arrays.copyOf(mDelayed, mDelayedCount * 2);
+            mDelayedSeq = Arrays.copyOf(mDelayedSeq, mDelayedCount * 2);
+        }
+        final long seq = mNextDelayedSeq++;
+        int i = mDelayedCount++;
+        while (i > 0) {
+            final int parent = (i - 1) >>> 1;
+            final Message p = mDelayed[parent];
+            if (p.when < msg.when || (p.when == msg.when && mDelayedSeq[parent] < seq)) {
+                break;
+            }
+            mDelayed[i] = p;
+            mDelayedSeq[i] = mDelayedSeq[parent];
+            i = parent;
+        }
+        mDelayed[i] = msg;
+        mDelayedSeq[i] = seq;
+    }
+
+    private Message pollDelayedLocked() {
+        final Message result = mDelayed[0];
+        final int last = --mDelayedCount;
+        final Message msg = mDelayed[last];
+        mDelayed[last] = null;
+        if (last > 0) {
+            siftDownLocked(0, msg, mDelayedSeq[last]);
+        }
+        return result;
+    }
+
+    private void siftDownLocked(int i, Message msg, long seq) {
+        final int count = mDelayedCount;
+        final int half = count >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            final int right = child + 1;
+            if (right < count && (mDelayed[right].when < mDelayed[child].when
+                    || (mDelayed[right].when == mDelayed[child].when
+                            && mDelayedSeq[right] < mDelayedSeq[child]))) {
+                child = right;
+            }
+            final Message c = mDelayed[child];
+            if (msg.when < c.when || (msg.when == c.when && seq < mDelayedSeq[child])) {
+                break;
+            }
+            mDelayed[i] = c;
+            mDelayedSeq[i] = mDelayedSeq[child];
+            i = child;
+        }
+        mDelayed[i] = msg;
+        mDelayedSeq[i] = seq;
+    }
+
+    /**
+     * Moves the delayed messages due by {@code now} into mMessages. Each goes ahead of the
+     * listed messages with the same time: those were all enqueued once that time had come,
+     * so after it.
+     */
+    private void promoteDueMessagesLocked(long now) {
+        Message head = null;
+        Message tail = null;
+        while (mDelayedCount != 0 && mDelayed[0].when <= now) {
+            final Message msg = pollDelayedLocked();
+            msg.next = null;
+            if (tail == null) {
+                head = msg;
+            } else {
+                tail.next = msg;
+            }
+            tail = msg;
+        }
+
+        Message prev = null;
+        Message p = mMessages;
+        while (head != null) {
+            while (p != null && p.when < head.when) {
+                prev = p;
+                p = p.next;
+            }
+            final Message next = head.next;
+            head.next = p;
+            if (prev == null) {
+                mMessages = head;
+            } else {
+                prev.next = head;
+            }
+            prev = head;
+            head = next;
+        }
+    }
+
+    /**
+     * Returns the delayed messages in the order they will be delivered, for dumping.
+     */
+    private Message[] getDelayedMessagesLocked() {
+        final Integer[] order = new Integer[mDelayedCount];
+        for (int i = 0; i < mDelayedCount; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> {
+            final int c = Long.compare(mDelayed[a].when, mDelayed[b].when);
+            return c != 0 ? c : Long.compare(mDelayedSeq[a], mDelayedSeq[b]);
+        });
+        final Message[] messages = new Message[mDelayedCount];
+        for (int i = 0; i < mDelayedCount; i++) {
+            messages[i] = mDelayed[order[i]];
+        }
+        return messages;
+    }
+
     void dump(Printer pw, String prefix, Handler h) {
         synchronized (this) {
             long now = SystemClock.uptimeMillis();
@@ -818,6 +1226,14 @@ public final class MessageQueue {
                 }
                 n++;
             }
+            if (mDelayedCount != 0) {
+                for (Message msg : getDelayedMessagesLocked()) {
+                    if (h == null || h == msg.target) {
+                        pw.println(prefix + "Message " + n + ": " + msg.toString(now));
+                    }
+                    n++;
+                }
+            }
             pw.println(prefix + "(Total messages: " + n + ", polling=" + isPollingLocked()
                     + ", quitting=" + mQuitting + ")");
         }
@@ -829,6 +1245,11 @@ public final class MessageQueue {
             for (Message msg = mMessages; msg != null; msg = msg.next) {
                 msg.writeToProto(proto, MessageQueueProto.MESSAGES);
             }
+            if (mDelayedCount != 0) {
+                for (Message msg : getDelayedMessagesLocked()) {
+                    msg.writeToProto(proto, MessageQueueProto.MESSAGES);
+                }
+            }
             proto.write(MessageQueueProto.IS_POLLING_LOCKED, isPollingLocked());
             proto.write(MessageQueueProto.IS_QUITTING, mQuitting);
         }
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Performance tests for {@link MessageQueue} with a deep backlog of delayed messages, with the
+ * sorted list alone and with the delayed message heap.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class MessageQueuePerfTest {
+    private static final int BACKLOG_SIZE = 5000;
+    private static final int BATCH_SIZE = 100;
+    private static final long HOUR_MS = 60 * 60 * 1000;
+
+    private static final int MSG_BACKLOG = 1;
+    private static final int MSG_DELAYED = 2;
+    private static final int MSG_IMMEDIATE = 3;
+    private static final int MSG_NEVER_SENT = 4;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private volatile CountDownLatch mDispatched;
+
+    @Before
+    public void setUp() {
+        mThread = new HandlerThread("MessageQueuePerfTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_IMMEDIATE) {
+                    mDispatched.countDown();
+                }
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        mThread.quit();
+    }
+
+    @Test
+    public void timeEnqueueDelayed_List() {
+        runEnqueueDelayed(false);
+    }
+
+    @Test
+    public void timeEnqueueDelayed_Heap() {
+        runEnqueueDelayed(true);
+    }
+
+    @Test
+    public void timeRemoveMessagesNotQueued_List() {
+        runRemoveMessagesNotQueued(false);
+    }
+
+    @Test
+    public void timeRemoveMessagesNotQueued_Heap() {
+        runRemoveMessagesNotQueued(true);
+    }
+
+    @Test
+    public void timeDispatchBatch_List() throws Exception {
+        runDispatch(false, false);
+    }
+
+    @Test
+    public void timeDispatchBatch_Heap() throws Exception {
+        runDispatch(true, false);
+    }
+
+    @Test
+    public void timeDispatchBatch_Heap_Bulk() throws Exception {
+        runDispatch(true, true);
+    }
+
+    /** Posts at a random point of the backlog, then removes it again. */
+    private void runEnqueueDelayed(boolean heap) {
+        fillBacklog(heap);
+        final Random random = new Random(0);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mHandler.sendEmptyMessageDelayed(MSG_DELAYED, HOUR_MS + random.nextInt(1000000));
+            mHandler.removeMessages(MSG_DELAYED);
+        }
+    }
+
+    /** The common defensive removeMessages() before posting. */
+    private void runRemoveMessagesNotQueued(boolean heap) {
+        fillBacklog(heap);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mHandler.removeMessages(MSG_NEVER_SENT);
+        }
+    }
+
+    /** Posts a batch of due messages behind the backlog and waits for all to be handled. */
+    private void runDispatch(boolean heap, boolean bulk) throws Exception {
+        fillBacklog(heap);
+        final Message[] batch = new Message[BATCH_SIZE];
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mDispatched = new CountDownLatch(BATCH_SIZE);
+            if (bulk) {
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    batch[i] = Message.obtain(mHandler, MSG_IMMEDIATE);
+                }
+                mHandler.sendMessagesAtTime(batch, SystemClock.uptimeMillis());
+            } else {
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    mHandler.sendEmptyMessage(MSG_IMMEDIATE);
+                }
+            }
+            if (!mDispatched.await(5, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Batch not dispatched");
+            }
+        }
+    }
+
+    private void fillBacklog(boolean heap) {
+        mThread.getLooper().getQueue().setDelayedMessageHeapEnabled(heap);
+        final Random random = new Random(0);
+        for (int i = 0; i < BACKLOG_SIZE; i++) {
+            mHandler.sendEmptyMessageDelayed(MSG_BACKLOG, HOUR_MS + random.nextInt(1000000));
+        }
+    }
+}
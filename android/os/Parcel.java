@@ -3053,6 +3053,148 @@ public final class Parcel {
         }
     }
 
+    /**
+     * Placeholder left in a lazily read {@link BaseBundle} map for a value that has not been
+     * unparcelled yet.  It only records where the value's type tag starts, so it stays valid
+     * in any copy of the bundle's data.
+     */
+    /* package */ static final class LazyValue {
+        final int mPosition;
+
+        LazyValue(int position) {
+            mPosition = position;
+        }
+
+        @Override
+        public String toString() {
+            return "LazyValue{pos=" + mPosition + "}";
+        }
+    }
+
+    /**
+     * Like {@link #readArrayMapInternal}, but values that can be stepped over without decoding
+     * them are left as {@link LazyValue}s for the caller to read later from this parcel.
+     * Everything else (Parcelables, lists, binders, ...) carries no length and is read
+     * eagerly, as are primitives, which are cheaper to read than to defer.
+     *
+     * @param sorted whether the keys are known to be in ArrayMap order, as they are when the
+     *        map was written by Java.
+     * @return the number of {@link LazyValue}s placed in {@code outVal}.
+     */
+    /* package */ int readArrayMapLazilyInternal(ArrayMap outVal, int N,
+        ClassLoader loader, boolean sorted) {
+        if (DEBUG_ARRAY_MAP) {
+            RuntimeException here =  new RuntimeException("here");
+            here.fillInStackTrace();
+            Log.d(TAG, "Reading lazily " + N + " ArrayMap entries", here);
+        }
+        int lazyValues = 0;
+        while (N > 0) {
+            String key = readString();
+            final int valuePos = dataPosition();
+            Object value;
+            if (skipDeferrableValue()) {
+                value = new LazyValue(valuePos);
+                lazyValues++;
+            } else {
+                setDataPosition(valuePos);
+                value = readValue(loader);
+            }
+            if (sorted) {
+                outVal.append(key, value);
+            } else {
+                outVal.put(key, value);
+            }
+            N--;
+        }
+        if (sorted) {
+            outVal.validate();
+        }
+        return lazyValues;
+    }
+
+    /**
+     * Steps over the value at the current position if it is worth deferring and its extent can
+     * be found from length fields alone.
+     *
+     * @return false if the value has to be read now; the position is then undefined.
+     */
+    private boolean skipDeferrableValue() {
+        final int type = readInt();
+        switch (type) {
+            case VAL_STRING:
+                skipString();
+                return true;
+            case VAL_BYTEARRAY:
+                skipArray(1);
+                return true;
+            case VAL_INTARRAY:
+            case VAL_BOOLEANARRAY:
+                skipArray(4);
+                return true;
+            case VAL_LONGARRAY:
+            case VAL_DOUBLEARRAY:
+            case VAL_SPARSEBOOLEANARRAY:
+                skipArray(8);
+                return true;
+            case VAL_STRINGARRAY: {
+                final int n = readInt();
+                if (n > (dataAvail() >> 2)) {
+                    throw new BadParcelableException("Parcel " + this + ": bad array length "
+                            + n + " at offset " + dataPosition());
+                }
+                for (int i = 0; i < n; i++) {
+                    skipString();
+                }
+                return true;
+            }
+            case VAL_BUNDLE:
+            case VAL_PERSISTABLEBUNDLE: {
+                final int length = readInt();
+                if (length > 0) {
+                    // The magic, then the map itself.
+                    skipPadded(4L + length);
+                }
+                return true;
+            }
+            case VAL_SERIALIZABLE: {
+                // The class name, then the serialized bytes unless the name is null.
+                final int nameLength = readInt();
+                if (nameLength >= 0) {
+                    skipPadded((nameLength + 1L) * 2);
+                    skipArray(1);
+                }
+                return true;
+            }
+            default:
+                return false;
+        }
+    }
+
+    private void skipString() {
+        final int length = readInt();
+        if (length >= 0) {
+            // UTF-16 code units plus the terminator.
+            skipPadded((length + 1L) * 2);
+        }
+    }
+
+    private void skipArray(int elementSize) {
+        final int n = readInt();
+        if (n > 0) {
+            skipPadded((long) n * elementSize);
+        }
+    }
+
+    private void skipPadded(long length) {
+        final long padded = (length + 3) & ~3L;
+        if (padded > dataAvail()) {
+            throw new BadParcelableException("Parcel " + this + ": value of " + length
+                    + " bytes overruns the data at offset " + dataPosition());
+        }
+        setDataPosition(dataPosition() + (int) padded);
+    }
+
     /**
      * @hide For testing only.
      */
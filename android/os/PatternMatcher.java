@@ -86,6 +86,12 @@ public class PatternMatcher implements Parcelable {
     private final int mType;
     private final int[] mParsedPattern;
 
+    // Most glob patterns are really a literal or a literal followed by ".*"; those are matched
+    // as PATTERN_LITERAL or PATTERN_PREFIX of mCompiledPattern instead of being interpreted.
+    // mCompiledType is PATTERN_SIMPLE_GLOB or PATTERN_ADVANCED_GLOB otherwise.
+    private final int mCompiledType;
+    private final String mCompiledPattern;
+
 
     private static final int MAX_PATTERN_STORAGE = 2048;
     // workspace to use for building a parsed advanced pattern;
@@ -99,6 +105,8 @@ public class PatternMatcher implements Parcelable {
         } else {
             mParsedPattern = null;
         }
+        mCompiledType = getCompiledType(pattern, mParsedPattern, type);
+        mCompiledPattern = getCompiledPattern(pattern, mParsedPattern, type, mCompiledType);
     }
 
     public final String getPath() {
@@ -110,7 +118,7 @@ public class PatternMatcher implements Parcelable {
     }
     
     public boolean match(String str) {
-        return matchPattern(str, mPattern, mParsedPattern, mType);
+        return matchPattern(str, mCompiledPattern, mParsedPattern, mCompiledType);
     }
 
     public String toString() {
@@ -156,6 +164,8 @@ public class PatternMatcher implements Parcelable {
         mPattern = src.readString();
         mType = src.readInt();
         mParsedPattern = src.createIntArray();
+        mCompiledType = getCompiledType(mPattern, mParsedPattern, mType);
+        mCompiledPattern = getCompiledPattern(mPattern, mParsedPattern, mType, mCompiledType);
     }
     
     public static final Parcelable.Creator<PatternMatcher> CREATOR
@@ -169,6 +179,59 @@ public class PatternMatcher implements Parcelable {
         }
     };
     
+    /**
+     * Returns the type that {@code pattern} is matched as: {@link #PATTERN_LITERAL} or
+     * {@link #PATTERN_PREFIX} for globs that can only ever match like one, {@code type}
+     * otherwise.
+     */
+    private static int getCompiledType(String pattern, int[] parsedPattern, int type) {
+        if (type == PATTERN_SIMPLE_GLOB) {
+            // Without '.', '*' and '\\' every char has to match itself.  A trailing ".*" then
+            // matches everything that follows, or nothing.
+            final int length = pattern.length();
+            final int literalLength = pattern.endsWith(".*") ? length - 2 : length;
+            for (int i = 0; i < literalLength; i++) {
+                final char c = pattern.charAt(i);
+                if (c == '.' || c == '*' || c == '\\') {
+                    return type;
+                }
+            }
+            return literalLength == length ? PATTERN_LITERAL : PATTERN_PREFIX;
+        } else if (type == PATTERN_ADVANCED_GLOB && parsedPattern != null) {
+            // Literal chars are the non-negative entries of the parsed pattern.
+            final int length = parsedPattern.length;
+            final boolean anyTail = length >= 2
+                    && parsedPattern[length - 2] == PARSED_TOKEN_CHAR_ANY
+                    && parsedPattern[length - 1] == PARSED_MODIFIER_ZERO_OR_MORE;
+            final int literalLength = anyTail ? length - 2 : length;
+            for (int i = 0; i < literalLength; i++) {
+                if (parsedPattern[i] < 0) {
+                    return type;
+                }
+            }
+            return anyTail ? PATTERN_PREFIX : PATTERN_LITERAL;
+        }
+        return type;
+    }
+
+    private static String getCompiledPattern(String pattern, int[] parsedPattern, int type,
+            int compiledType) {
+        if (compiledType == type) {
+            return pattern;
+        }
+        if (type == PATTERN_SIMPLE_GLOB) {
+            return compiledType == PATTERN_PREFIX
+                    ? pattern.substring(0, pattern.length() - 2) : pattern;
+        }
+        final int length = compiledType == PATTERN_PREFIX
+                ? parsedPattern.length - 2 : parsedPattern.length;
+        final StringBuilder literal = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            literal.append((char) parsedPattern[i]);
+        }
+        return literal.toString();
+    }
+
     static boolean matchPattern(String match, String pattern, int[] parsedPattern, int type) {
         if (match == null) return false;
         if (type == PATTERN_LITERAL) {
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import static org.junit.Assert.assertEquals;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Test that {@link PatternMatcher}s whose globs are matched as a literal or a prefix give the
+ * same results as interpreting the glob.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PatternMatcherTest {
+    private static final String[] SIMPLE_GLOBS = {
+            "", ".*", "/path", "/path.*", "/path/.*", "/pa.h", "/pa*th", "/pa\\.th", "/path\\.*",
+            "/path.*.*", "*", "/path*", "/p.*th.*" };
+    private static final String[] ADVANCED_GLOBS = {
+            "", ".*", "/path", "/path.*", "/path/.*", "/pa.h", "/pa\\.th", "/path\\.*",
+            "/path.+", "/pa[a-z]h", "/path.*.*", "/path.{2}", "/p.*th.*" };
+    private static final String[] INPUTS = {
+            "", "/", "/p", "/pa", "/path", "/path/", "/path/to", "/pa.h", "/pa.th", "/pa*th",
+            "/pxth", "/pathx", "/path.", "/path..", "/paaath", "/PATH" };
+
+    @Test
+    public void testSimpleGlob() {
+        for (String pattern : SIMPLE_GLOBS) {
+            final PatternMatcher pm =
+                    new PatternMatcher(pattern, PatternMatcher.PATTERN_SIMPLE_GLOB);
+            for (String input : INPUTS) {
+                assertEquals(pattern + " " + input,
+                        PatternMatcher.matchGlobPattern(pattern, input), pm.match(input));
+            }
+        }
+    }
+
+    @Test
+    public void testAdvancedGlob() {
+        for (String pattern : ADVANCED_GLOBS) {
+            final PatternMatcher pm =
+                    new PatternMatcher(pattern, PatternMatcher.PATTERN_ADVANCED_GLOB);
+            final int[] parsed = PatternMatcher.parseAndVerifyAdvancedPattern(pattern);
+            for (String input : INPUTS) {
+                assertEquals(pattern + " " + input,
+                        PatternMatcher.matchAdvancedPattern(parsed, input), pm.match(input));
+            }
+        }
+    }
+
+    @Test
+    public void testParcelled() {
+        for (String pattern : ADVANCED_GLOBS) {
+            final PatternMatcher pm =
+                    new PatternMatcher(pattern, PatternMatcher.PATTERN_ADVANCED_GLOB);
+            final Parcel p = Parcel.obtain();
+            try {
+                pm.writeToParcel(p, 0);
+                p.setDataPosition(0);
+                final PatternMatcher copy = PatternMatcher.CREATOR.createFromParcel(p);
+                for (String input : INPUTS) {
+                    assertEquals(pattern + " " + input, pm.match(input), copy.match(input));
+                }
+            } finally {
+                p.recycle();
+            }
+        }
+    }
+}
@@ -199,8 +199,8 @@ public final class PersistableBundle extends BaseBundle implements Cloneable, Pa
      */
     @Nullable
     public PersistableBundle getPersistableBundle(@Nullable String key) {
-        unparcel();
-        Object o = mMap.get(key);
+        unparcel(/* itemwise */ true);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -308,6 +308,8 @@ public final class PersistableBundle extends BaseBundle implements Cloneable, Pa
                         mParcelledData.dataSize() + "]";
             }
         }
+        // Decode the values an itemwise unparcel left lazy, so they print as themselves.
+        unparcel();
         return "PersistableBundle[" + mMap.toString() + "]";
     }
 
@@ -320,6 +322,7 @@ public final class PersistableBundle extends BaseBundle implements Cloneable, Pa
                 return "mParcelledData.dataSize=" + mParcelledData.dataSize();
             }
         }
+        unparcel();
         return mMap.toString();
     }
 
@@ -334,6 +337,7 @@ public final class PersistableBundle extends BaseBundle implements Cloneable, Pa
                 proto.write(PersistableBundleProto.PARCELLED_DATA_SIZE, mParcelledData.dataSize());
             }
         } else {
+            unparcel();
             proto.write(PersistableBundleProto.MAP_DATA, mMap.toString());
         }
 
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util.perftests;
+
+import static android.util.proto.ProtoOutputStream.FIELD_COUNT_PACKED;
+import static android.util.proto.ProtoOutputStream.FIELD_COUNT_REPEATED;
+import static android.util.proto.ProtoOutputStream.FIELD_COUNT_SINGLE;
+import static android.util.proto.ProtoOutputStream.FIELD_TYPE_BOOL;
+import static android.util.proto.ProtoOutputStream.FIELD_TYPE_INT32;
+import static android.util.proto.ProtoOutputStream.FIELD_TYPE_INT64;
+import static android.util.proto.ProtoOutputStream.FIELD_TYPE_MESSAGE;
+import static android.util.proto.ProtoOutputStream.FIELD_TYPE_STRING;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.proto.ProtoInputStream;
+import android.util.proto.ProtoOutputStream;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Round trips large protos through {@link ProtoOutputStream} and {@link ProtoInputStream}.
+ *
+ * The protos follow the shape of BatteryStats and IntentResolver dumps: many repeated objects
+ * nested a few levels deep, mostly varints with some strings and packed arrays.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ProtoInputStreamPerfTest {
+
+    // BatteryStats-like: Uid { uid, Wakelock { name, Timer { duration, count } },
+    //                          cpu_times (packed) }
+    private static final long BS_UIDS = FIELD_COUNT_REPEATED | FIELD_TYPE_MESSAGE | 1;
+    private static final long UID_UID = FIELD_COUNT_SINGLE | FIELD_TYPE_INT32 | 1;
+    private static final long UID_WAKELOCKS = FIELD_COUNT_REPEATED | FIELD_TYPE_MESSAGE | 2;
+    private static final long UID_CPU_TIMES = FIELD_COUNT_PACKED | FIELD_TYPE_INT64 | 3;
+    private static final long WAKELOCK_NAME = FIELD_COUNT_SINGLE | FIELD_TYPE_STRING | 1;
+    private static final long WAKELOCK_PARTIAL = FIELD_COUNT_SINGLE | FIELD_TYPE_MESSAGE | 2;
+    private static final long TIMER_DURATION_MS = FIELD_COUNT_SINGLE | FIELD_TYPE_INT64 | 1;
+    private static final long TIMER_COUNT = FIELD_COUNT_SINGLE | FIELD_TYPE_INT32 | 2;
+
+    // IntentResolver-like: Filter { identifier, actions, categories, priority, has_partial }
+    private static final long IR_FILTERS = FIELD_COUNT_REPEATED | FIELD_TYPE_MESSAGE | 1;
+    private static final long FILTER_IDENTIFIER = FIELD_COUNT_SINGLE | FIELD_TYPE_STRING | 1;
+    private static final long FILTER_ACTIONS = FIELD_COUNT_REPEATED | FIELD_TYPE_STRING | 2;
+    private static final long FILTER_CATEGORIES = FIELD_COUNT_REPEATED | FIELD_TYPE_STRING | 3;
+    private static final long FILTER_PRIORITY = FIELD_COUNT_SINGLE | FIELD_TYPE_INT32 | 4;
+    private static final long FILTER_HAS_PARTIAL = FIELD_COUNT_SINGLE | FIELD_TYPE_BOOL | 5;
+
+    private static final int NUM_UIDS = 500;
+    private static final int NUM_FILTERS = 2000;
+
+    private static byte[] sBatteryStats;
+    private static byte[] sIntentResolver;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @BeforeClass
+    public static void setUpClass() {
+        sBatteryStats = writeBatteryStats();
+        sIntentResolver = writeIntentResolver();
+    }
+
+    @Test
+    public void timeWriteBatteryStats() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            writeBatteryStats();
+        }
+    }
+
+    @Test
+    public void timeReadBatteryStats_Bytes() throws IOException {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            readBatteryStats(new ProtoInputStream(sBatteryStats));
+        }
+    }
+
+    @Test
+    public void timeReadBatteryStats_ByteBuffer() throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(sBatteryStats.length);
+        buffer.put(sBatteryStats).flip();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            readBatteryStats(new ProtoInputStream(buffer));
+        }
+    }
+
+    @Test
+    public void timeReadBatteryStats_Stream() throws IOException {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            readBatteryStats(new ProtoInputStream(new ByteArrayInputStream(sBatteryStats)));
+        }
+    }
+
+    @Test
+    public void timeWriteIntentResolver() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            writeIntentResolver();
+        }
+    }
+
+    @Test
+    public void timeReadIntentResolver_Bytes() throws IOException {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            readIntentResolver(new ProtoInputStream(sIntentResolver));
+        }
+    }
+
+    @Test
+    public void timeReadIntentResolver_Stream() throws IOException {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            readIntentResolver(new ProtoInputStream(new ByteArrayInputStream(sIntentResolver)));
+        }
+    }
+
+    @Test
+    public void timeSkipIntentResolver() throws IOException {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final ProtoInputStream proto = new ProtoInputStream(sIntentResolver);
+            int count = 0;
+            while (proto.nextField() != ProtoInputStream.NO_MORE_FIELDS) {
+                count++;
+            }
+            if (count != NUM_FILTERS) {
+                throw new IllegalStateException("Read " + count + " filters");
+            }
+        }
+    }
+
+    private static byte[] writeBatteryStats() {
+        final ProtoOutputStream proto = new ProtoOutputStream();
+        final long[] cpuTimes = new long[16];
+        for (int i = 0; i < NUM_UIDS; i++) {
+            final long uidToken = proto.start(BS_UIDS);
+            proto.write(UID_UID, 10000 + i);
+            for (int j = 0; j < 8; j++) {
+                final long wakelockToken = proto.start(UID_WAKELOCKS);
+                proto.write(WAKELOCK_NAME, "*job*/com.example.app" + i + "/.Job" + j);
+                final long timerToken = proto.start(WAKELOCK_PARTIAL);
+                proto.write(TIMER_DURATION_MS, 3600000L * j + i);
+                proto.write(TIMER_COUNT, j * 7 + 1);
+                proto.end(timerToken);
+                proto.end(wakelockToken);
+            }
+            for (int j = 0; j < cpuTimes.length; j++) {
+                cpuTimes[j] = (long) i * j * 1000;
+            }
+            proto.writePackedInt64(UID_CPU_TIMES, cpuTimes);
+            proto.end(uidToken);
+        }
+        return proto.getBytes();
+    }
+
+    private static long readBatteryStats(ProtoInputStream proto) throws IOException {
+        long total = 0;
+        int uids = 0;
+        while (proto.nextField() != ProtoInputStream.NO_MORE_FIELDS) {
+            if (proto.getFieldNumber() != (int) BS_UIDS) {
+                continue;
+            }
+            uids++;
+            final long uidToken = proto.start(BS_UIDS);
+            while (proto.nextField() != ProtoInputStream.NO_MORE_FIELDS) {
+                switch (proto.getFieldNumber()) {
+                    case (int) UID_UID:
+                        total += proto.readInt(UID_UID);
+                        break;
+                    case (int) UID_WAKELOCKS:
+                        total += readWakelock(proto);
+                        break;
+                    case (int) UID_CPU_TIMES:
+                        total += proto.readLong(UID_CPU_TIMES);
+                        break;
+                }
+            }
+            proto.end(uidToken);
+        }
+        if (uids != NUM_UIDS) {
+            throw new IllegalStateException("Read " + uids + " uids");
+        }
+        return total;
+    }
+
+    private static long readWakelock(ProtoInputStream proto) throws IOException {
+        long total = 0;
+        final long wakelockToken = proto.start(UID_WAKELOCKS);
+        while (proto.nextField() != ProtoInputStream.NO_MORE_FIELDS) {
+            switch (proto.getFieldNumber()) {
+                case (int) WAKELOCK_NAME:
+                    total += proto.readString(WAKELOCK_NAME).length();
+                    break;
+                case (int) WAKELOCK_PARTIAL:
+                    final long timerToken = proto.start(WAKELOCK_PARTIAL);
+                    while (proto.nextField() != ProtoInputStream.NO_MORE_FIELDS) {
+                        switch (proto.getFieldNumber()) {
+                            case (int) TIMER_DURATION_MS:
+                                total += proto.readLong(TIMER_DURATION_MS);
+                                break;
+                            case (int) TIMER_COUNT:
+                                total += proto.readInt(TIMER_COUNT);
+                                break;
+                        }
+                    }
+                    proto.end(timerToken);
+                    break;
+            }
+        }
+        proto.end(wakelockToken);
+        return total;
+    }
+
+    private static byte[] writeIntentResolver() {
+        final ProtoOutputStream proto = new ProtoOutputStream();
+        for (int i = 0; i < NUM_FILTERS; i++) {
+            final long filterToken = proto.start(IR_FILTERS);
+            proto.write(FILTER_IDENTIFIER, Integer.toHexString(0x1234567 * i)
+                    + " com.example.app" + (i % 100) + "/.Activity" + i);
+            proto.write(FILTER_ACTIONS, "android.intent.action.VIEW");
+            proto.write(FILTER_ACTIONS, "com.example.action.ACTION_" + i);
+            proto.write(FILTER_CATEGORIES, "android.intent.category.DEFAULT");
+            proto.write(FILTER_CATEGORIES, "android.intent.category.BROWSABLE");
+            proto.write(FILTER_PRIORITY, i % 3);
+            proto.write(FILTER_HAS_PARTIAL, (i & 1) != 0);
+            proto.end(filterToken);
+        }
+        return proto.getBytes();
+    }
+
+    private static int readIntentResolver(ProtoInputStream proto) throws IOException {
+        int total = 0;
+        while (proto.nextField() != ProtoInputStream.NO_MORE_FIELDS) {
+            if (proto.getFieldNumber() != (int) IR_FILTERS) {
+                continue;
+            }
+            final long filterToken = proto.start(IR_FILTERS);
+            while (proto.nextField() != ProtoInputStream.NO_MORE_FIELDS) {
+                switch (proto.getFieldNumber()) {
+                    case (int) FILTER_IDENTIFIER:
+                        total += proto.readString(FILTER_IDENTIFIER).length();
+                        break;
+                    case (int) FILTER_ACTIONS:
+                        total += proto.readString(FILTER_ACTIONS).length();
+                        break;
+                    case (int) FILTER_CATEGORIES:
+                        total += proto.readString(FILTER_CATEGORIES).length();
+                        break;
+                    case (int) FILTER_PRIORITY:
+                        total += proto.readInt(FILTER_PRIORITY);
+                        break;
+                    case (int) FILTER_HAS_PARTIAL:
+                        total += proto.readBoolean(FILTER_HAS_PARTIAL) ? 1 : 0;
+                        break;
+                }
+            }
+            proto.end(filterToken);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,748 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util.proto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Class to read from a protobuf stream, the counterpart of {@link ProtoOutputStream}.
+ *
+ * Fields are pulled one at a time: call {@link #nextField} to move to the next field and get
+ * its number, then one of the read methods with the ID code from the protoc generated classes
+ * to get its value, or {@link #skip} to ignore it. Fields that are not read are skipped by the
+ * next call to {@link #nextField}. To read a nested object, call {@link #start} and keep
+ * calling {@link #nextField} until it returns {@link #NO_MORE_FIELDS}, then call {@link #end}.
+ *
+ * <pre>
+ * final ProtoInputStream proto = new ProtoInputStream(in);
+ * while (proto.nextField() != ProtoInputStream.NO_MORE_FIELDS) {
+ *     switch (proto.getFieldNumber()) {
+ *         case (int) Foo.ID:
+ *             id = proto.readInt(Foo.ID);
+ *             break;
+ *         case (int) Foo.BAR:
+ *             final long token = proto.start(Foo.BAR);
+ *             readBar(proto);
+ *             proto.end(token);
+ *             break;
+ *     }
+ * }
+ * </pre>
+ *
+ * Repeated fields are returned once per value, whether or not they are packed. A packed field
+ * without values is skipped by {@link #isNextField}. {@link #nextField} cannot tell it from an
+ * empty string, bytes or object field, so it returns it, and reading it as a scalar returns
+ * the default value of the type. Apart from
+ * {@link #readString} and {@link #readBytes}, and the buffer grown for deep nesting, reading
+ * does not allocate.
+ *
+ * The ID codes have type information embedded into them, so if you call the incorrect function
+ * you will get an IllegalArgumentException. Malformed data results in a
+ * {@link ProtoParseException}.
+ *
+ * @hide
+ */
+public final class ProtoInputStream {
+
+    public static final String TAG = "ProtoInputStream";
+
+    /**
+     * Returned by {@link #nextField} when the current object, or the whole stream at the top
+     * level, has no more fields.
+     */
+    public static final int NO_MORE_FIELDS = -1;
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /** The longest varint is 10 bytes. */
+    private static final int MAX_VARINT_SIZE = 10;
+
+    private final InputStream mStream;
+    private final ByteBuffer mByteBuffer;
+
+    /**
+     * The bytes being read. The whole input when it was given as an array, otherwise a window
+     * of it that is refilled from {@link #mStream} or {@link #mByteBuffer}.
+     */
+    private final byte[] mBuffer;
+    private int mOffset;
+    private int mEnd;
+    /** Number of bytes of the input that came before mBuffer[0]. */
+    private int mDiscarded;
+
+    private int mFieldNumber;
+    private int mWireType;
+    /** The tag of the current field was read but not its value. */
+    private boolean mValuePending;
+    /** {@link #isNextField} read the tag, so {@link #nextField} should not read another. */
+    private boolean mPeeked;
+    /** End position of the packed repeated field being read, or -1. */
+    private int mPackedEnd = -1;
+
+    /** End positions of the objects entered with {@link #start}. */
+    private int[] mObjectEnds = new int[8];
+    private int mDepth;
+
+    /**
+     * Read from {@code stream}, buffering {@code bufferSize} bytes at a time. The stream is not
+     * read past the end of the proto, but may be read ahead into the internal buffer.
+     */
+    public ProtoInputStream(InputStream stream, int bufferSize) {
+        mStream = stream;
+        mByteBuffer = null;
+        mBuffer = new byte[Math.max(bufferSize, MAX_VARINT_SIZE)];
+    }
+
+    /**
+     * Read from {@code stream}.
+     */
+    public ProtoInputStream(InputStream stream) {
+        this(stream, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Read the whole of {@code buffer}, as returned by {@link ProtoOutputStream#getBytes}.
+     */
+    public ProtoInputStream(byte[] buffer) {
+        this(buffer, 0, buffer.length);
+    }
+
+    /**
+     * Read {@code length} bytes of {@code buffer} starting at {@code offset}.
+     */
+    public ProtoInputStream(byte[] buffer, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > buffer.length) {
+            throw new IllegalArgumentException("Bad range offset=" + offset + " length=" + length
+                    + " for buffer of " + buffer.length + " bytes");
+        }
+        mStream = null;
+        mByteBuffer = null;
+        mBuffer = buffer;
+        mOffset = offset;
+        mEnd = offset + length;
+        mDiscarded = -offset;
+    }
+
+    /**
+     * Read the remaining bytes of {@code buffer}. Heap buffers are read in place, others are
+     * copied out a chunk at a time. Either way the position of {@code buffer} is left alone.
+     */
+    public ProtoInputStream(ByteBuffer buffer) {
+        mStream = null;
+        if (buffer.hasArray()) {
+            mByteBuffer = null;
+            mBuffer = buffer.array();
+            mOffset = buffer.arrayOffset() + buffer.position();
+            mEnd = buffer.arrayOffset() + buffer.limit();
+            mDiscarded = -mOffset;
+        } else {
+            mByteBuffer = buffer.duplicate();
+            mBuffer = new byte[DEFAULT_BUFFER_SIZE];
+        }
+    }
+
+    //
+    // Fields
+    //
+
+    /**
+     * Move to the next field of the current object.
+     *
+     * @return The field number, or {@link #NO_MORE_FIELDS} at the end of the current object
+     *         or of the stream.
+     */
+    public int nextField() throws IOException {
+        if (mPeeked) {
+            mPeeked = false;
+            return mFieldNumber;
+        }
+        if (mPackedEnd >= 0) {
+            if (getOffset() < mPackedEnd) {
+                mValuePending = true;
+                return mFieldNumber;
+            }
+            mPackedEnd = -1;
+            mValuePending = false;
+        }
+        if (mValuePending) {
+            skip();
+        }
+        if (mDepth > 0) {
+            final int objectEnd = mObjectEnds[mDepth - 1];
+            final int pos = getOffset();
+            if (pos >= objectEnd) {
+                if (pos > objectEnd) {
+                    throw new ProtoParseException("Read past the end of the object at depth "
+                            + mDepth + ": " + pos + " > " + objectEnd);
+                }
+                return NO_MORE_FIELDS;
+            }
+        } else if (!ensureAvailable(1)) {
+            return NO_MORE_FIELDS;
+        }
+
+        final long tag = readRawVarint();
+        mFieldNumber = (int) (tag >>> ProtoOutputStream.FIELD_ID_SHIFT);
+        mWireType = (int) tag & ProtoOutputStream.WIRE_TYPE_MASK;
+        if (mFieldNumber <= 0) {
+            throw new ProtoParseException("Invalid field number " + mFieldNumber + " at offset "
+                    + getOffset());
+        }
+        mValuePending = true;
+        return mFieldNumber;
+    }
+
+    /**
+     * Move to the next field if it is {@code fieldId}. If it is not, the next call to
+     * {@link #nextField} returns it instead of moving on. Packed encodings of {@code fieldId}
+     * without any value are skipped.
+     *
+     * @return Whether the next field is {@code fieldId} and ready to be read.
+     */
+    public boolean isNextField(long fieldId) throws IOException {
+        int fieldNumber = nextField();
+        while (fieldNumber == (int) fieldId && skipEmptyPacked(fieldId)) {
+            fieldNumber = nextField();
+        }
+        if (fieldNumber == (int) fieldId) {
+            return true;
+        }
+        mPeeked = fieldNumber != NO_MORE_FIELDS;
+        return false;
+    }
+
+    /**
+     * The number of the field returned by the last call to {@link #nextField}.
+     */
+    public int getFieldNumber() {
+        return mFieldNumber;
+    }
+
+    /**
+     * The wire type of the current field, one of the ProtoOutputStream.WIRE_TYPE_ constants.
+     */
+    public int getWireType() {
+        return mWireType;
+    }
+
+    /**
+     * The number of bytes read so far.
+     */
+    public int getOffset() {
+        return mDiscarded + mOffset;
+    }
+
+    /**
+     * Skip the value of the current field, or what is left of it for a packed field.
+     */
+    public void skip() throws IOException {
+        if (mPackedEnd >= 0) {
+            skipRawBytes(mPackedEnd - getOffset());
+            mPackedEnd = -1;
+            mValuePending = false;
+            return;
+        }
+        if (!mValuePending) {
+            return;
+        }
+        switch (mWireType) {
+            case ProtoOutputStream.WIRE_TYPE_VARINT:
+                readRawVarint();
+                break;
+            case ProtoOutputStream.WIRE_TYPE_FIXED64:
+                skipRawBytes(8);
+                break;
+            case ProtoOutputStream.WIRE_TYPE_LENGTH_DELIMITED:
+                skipRawBytes(readLength());
+                break;
+            case ProtoOutputStream.WIRE_TYPE_FIXED32:
+                skipRawBytes(4);
+                break;
+            default:
+                throw new ProtoParseException("Unsupported wire type " + mWireType
+                        + " for field " + mFieldNumber + " at offset " + getOffset());
+        }
+        mValuePending = false;
+    }
+
+    //
+    // Values
+    //
+
+    /**
+     * Read a double field.
+     */
+    public double readDouble(long fieldId) throws IOException {
+        checkRead(fieldId);
+        if ((fieldId & ProtoOutputStream.FIELD_TYPE_MASK)
+                != ProtoOutputStream.FIELD_TYPE_DOUBLE) {
+            throw wrongType(fieldId, "readDouble");
+        }
+        if (!startValue(ProtoOutputStream.WIRE_TYPE_FIXED64)) {
+            return 0;
+        }
+        final double result = Double.longBitsToDouble(readRawFixed64());
+        endValue();
+        return result;
+    }
+
+    /**
+     * Read a float field.
+     */
+    public float readFloat(long fieldId) throws IOException {
+        checkRead(fieldId);
+        if ((fieldId & ProtoOutputStream.FIELD_TYPE_MASK)
+                != ProtoOutputStream.FIELD_TYPE_FLOAT) {
+            throw wrongType(fieldId, "readFloat");
+        }
+        if (!startValue(ProtoOutputStream.WIRE_TYPE_FIXED32)) {
+            return 0;
+        }
+        final float result = Float.intBitsToFloat(readRawFixed32());
+        endValue();
+        return result;
+    }
+
+    /**
+     * Read an int32, uint32, sint32, fixed32, sfixed32 or enum field.
+     */
+    public int readInt(long fieldId) throws IOException {
+        checkRead(fieldId);
+        final int result;
+        final long fieldType = fieldId & ProtoOutputStream.FIELD_TYPE_MASK;
+        if (fieldType == ProtoOutputStream.FIELD_TYPE_INT32
+                || fieldType == ProtoOutputStream.FIELD_TYPE_UINT32
+                || fieldType == ProtoOutputStream.FIELD_TYPE_ENUM) {
+            if (!startValue(ProtoOutputStream.WIRE_TYPE_VARINT)) {
+                return 0;
+            }
+            result = (int) readRawVarint();
+        } else if (fieldType == ProtoOutputStream.FIELD_TYPE_SINT32) {
+            if (!startValue(ProtoOutputStream.WIRE_TYPE_VARINT)) {
+                return 0;
+            }
+            result = decodeZigZag32((int) readRawVarint());
+        } else if (fieldType == ProtoOutputStream.FIELD_TYPE_FIXED32
+                || fieldType == ProtoOutputStream.FIELD_TYPE_SFIXED32) {
+            if (!startValue(ProtoOutputStream.WIRE_TYPE_FIXED32)) {
+                return 0;
+            }
+            result = readRawFixed32();
+        } else {
+            throw wrongType(fieldId, "readInt");
+        }
+        endValue();
+        return result;
+    }
+
+    /**
+     * Read an int64, uint64, sint64, fixed64 or sfixed64 field, or any of the fields
+     * {@link #readInt} can read.
+     */
+    public long readLong(long fieldId) throws IOException {
+        checkRead(fieldId);
+        final long result;
+        final long fieldType = fieldId & ProtoOutputStream.FIELD_TYPE_MASK;
+        if (fieldType == ProtoOutputStream.FIELD_TYPE_INT64
+                || fieldType == ProtoOutputStream.FIELD_TYPE_UINT64) {
+            if (!startValue(ProtoOutputStream.WIRE_TYPE_VARINT)) {
+                return 0;
+            }
+            result = readRawVarint();
+        } else if (fieldType == ProtoOutputStream.FIELD_TYPE_SINT64) {
+            if (!startValue(ProtoOutputStream.WIRE_TYPE_VARINT)) {
+                return 0;
+            }
+            result = decodeZigZag64(readRawVarint());
+        } else if (fieldType == ProtoOutputStream.FIELD_TYPE_FIXED64
+                || fieldType == ProtoOutputStream.FIELD_TYPE_SFIXED64) {
+            if (!startValue(ProtoOutputStream.WIRE_TYPE_FIXED64)) {
+                return 0;
+            }
+            result = readRawFixed64();
+        } else if (fieldType == ProtoOutputStream.FIELD_TYPE_UINT32
+                || fieldType == ProtoOutputStream.FIELD_TYPE_FIXED32) {
+            // Unsigned, so don't sign extend.
+            return readInt(fieldId) & 0x0ffffffffL;
+        } else {
+            return readInt(fieldId);
+        }
+        endValue();
+        return result;
+    }
+
+    /**
+     * Read a bool field.
+     */
+    public boolean readBoolean(long fieldId) throws IOException {
+        checkRead(fieldId);
+        if ((fieldId & ProtoOutputStream.FIELD_TYPE_MASK) != ProtoOutputStream.FIELD_TYPE_BOOL) {
+            throw wrongType(fieldId, "readBoolean");
+        }
+        if (!startValue(ProtoOutputStream.WIRE_TYPE_VARINT)) {
+            return false;
+        }
+        final boolean result = readRawVarint() != 0;
+        endValue();
+        return result;
+    }
+
+    /**
+     * Read a string field.
+     */
+    public String readString(long fieldId) throws IOException {
+        checkRead(fieldId);
+        if ((fieldId & ProtoOutputStream.FIELD_TYPE_MASK)
+                != ProtoOutputStream.FIELD_TYPE_STRING) {
+            throw wrongType(fieldId, "readString");
+        }
+        checkWireType(ProtoOutputStream.WIRE_TYPE_LENGTH_DELIMITED);
+        final int length = readLength();
+        final String result;
+        if (length <= mBuffer.length && ensureAvailable(length)) {
+            result = new String(mBuffer, mOffset, length, StandardCharsets.UTF_8);
+            mOffset += length;
+        } else {
+            result = new String(readRawBytes(length), StandardCharsets.UTF_8);
+        }
+        mValuePending = false;
+        return result;
+    }
+
+    /**
+     * Read a bytes field, or an object field as raw bytes.
+     */
+    public byte[] readBytes(long fieldId) throws IOException {
+        checkRead(fieldId);
+        final long fieldType = fieldId & ProtoOutputStream.FIELD_TYPE_MASK;
+        if (fieldType != ProtoOutputStream.FIELD_TYPE_BYTES
+                && fieldType != ProtoOutputStream.FIELD_TYPE_MESSAGE) {
+            throw wrongType(fieldId, "readBytes");
+        }
+        checkWireType(ProtoOutputStream.WIRE_TYPE_LENGTH_DELIMITED);
+        final byte[] result = readRawBytes(readLength());
+        mValuePending = false;
+        return result;
+    }
+
+    //
+    // Objects
+    //
+
+    /**
+     * Start reading the object field {@code fieldId}. Until the matching {@link #end},
+     * {@link #nextField} only returns the fields of that object.
+     *
+     * @return A token to pass to {@link #end}.
+     */
+    public long start(long fieldId) throws IOException {
+        checkRead(fieldId);
+        if ((fieldId & ProtoOutputStream.FIELD_TYPE_MASK)
+                != ProtoOutputStream.FIELD_TYPE_MESSAGE) {
+            throw wrongType(fieldId, "start");
+        }
+        checkWireType(ProtoOutputStream.WIRE_TYPE_LENGTH_DELIMITED);
+        final int length = readLength();
+        final int objectEnd = getOffset() + length;
+        if (mDepth > 0 && objectEnd > mObjectEnds[mDepth - 1]) {
+            throw new ProtoParseException("Object field " + mFieldNumber + " of " + length
+                    + " bytes overflows its parent at offset " + getOffset());
+        }
+        if (mDepth == mObjectEnds.length) {
+            mObjectEnds = Arrays.copyOf(mObjectEnds, mDepth * 2);
+        }
+        mObjectEnds[mDepth++] = objectEnd;
+        mValuePending = false;
+        return makeToken(mDepth, objectEnd);
+    }
+
+    /**
+     * Finish reading the object started with {@code token}, skipping whatever is left of it.
+     */
+    public void end(long token) throws IOException {
+        if (mDepth == 0 || token != makeToken(mDepth, mObjectEnds[mDepth - 1])) {
+            throw new ProtoParseException("end() called with " + token2String(token)
+                    + " but the current object is "
+                    + (mDepth == 0 ? "none" : token2String(
+                            makeToken(mDepth, mObjectEnds[mDepth - 1]))));
+        }
+        final int objectEnd = mObjectEnds[mDepth - 1];
+        final int pos = getOffset();
+        if (pos > objectEnd) {
+            throw new ProtoParseException("Read past the end of the object at depth " + mDepth
+                    + ": " + pos + " > " + objectEnd);
+        }
+        skipRawBytes(objectEnd - pos);
+        mDepth--;
+        mValuePending = false;
+        mPeeked = false;
+        mPackedEnd = -1;
+    }
+
+    /**
+     * Token layout: the depth in the upper 32 bits, the end offset of the object in the lower.
+     */
+    private static long makeToken(int depth, int objectEnd) {
+        return (((long) depth) << 32) | (0x0ffffffffL & objectEnd);
+    }
+
+    /**
+     * Return a debugging string of a token.
+     */
+    public static String token2String(long token) {
+        return "Token(depth=" + (int) (token >> 32) + " end=" + (int) token + ")";
+    }
+
+    //
+    // Decoding helpers
+    //
+
+    public static int decodeZigZag32(int n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    public static long decodeZigZag64(long n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private void checkRead(long fieldId) {
+        if ((int) fieldId != mFieldNumber) {
+            throw new IllegalArgumentException("Reading field " + (int) fieldId
+                    + " but the current field is " + mFieldNumber);
+        }
+        if (!mValuePending) {
+            throw new ProtoParseException("Field " + mFieldNumber
+                    + " was already read, call nextField() first");
+        }
+        mPeeked = false;
+    }
+
+    private IllegalArgumentException wrongType(long fieldId, String method) {
+        return new IllegalArgumentException(method + " called for field " + (int) fieldId
+                + " of type " + ProtoOutputStream.getFieldTypeString(
+                        fieldId & ProtoOutputStream.FIELD_TYPE_MASK));
+    }
+
+    private void checkWireType(int wireType) {
+        if (mWireType != wireType || mPackedEnd >= 0) {
+            throw new ProtoParseException("Field " + mFieldNumber + " has wire type " + mWireType
+                    + ", expected " + wireType + " at offset " + getOffset());
+        }
+    }
+
+    /**
+     * Prepare to read one scalar of {@code wireType}, entering the packed encoding of the
+     * current field if that is how it was written.
+     *
+     * @return false if the field is packed and has no values, in which case it was consumed.
+     */
+    private boolean startValue(int wireType) throws IOException {
+        if (mWireType == wireType) {
+            return true;
+        }
+        if (mWireType != ProtoOutputStream.WIRE_TYPE_LENGTH_DELIMITED) {
+            throw new ProtoParseException("Field " + mFieldNumber + " has wire type " + mWireType
+                    + ", expected " + wireType + " at offset " + getOffset());
+        }
+        if (mPackedEnd < 0) {
+            final int length = readLength();
+            if (length == 0) {
+                mValuePending = false;
+                return false;
+            }
+            mPackedEnd = getOffset() + length;
+        }
+        return true;
+    }
+
+    /**
+     * Whether the current field is an empty packed encoding of {@code fieldId}, which has a
+     * scalar type. Consumes the field if it is.
+     */
+    private boolean skipEmptyPacked(long fieldId) throws IOException {
+        final long fieldType = fieldId & ProtoOutputStream.FIELD_TYPE_MASK;
+        if (mWireType != ProtoOutputStream.WIRE_TYPE_LENGTH_DELIMITED || mPackedEnd >= 0
+                || fieldType == ProtoOutputStream.FIELD_TYPE_STRING
+                || fieldType == ProtoOutputStream.FIELD_TYPE_BYTES
+                || fieldType == ProtoOutputStream.FIELD_TYPE_MESSAGE) {
+            return false;
+        }
+        // A zero length is the single byte 0.
+        if (!ensureAvailable(1) || mBuffer[mOffset] != 0) {
+            return false;
+        }
+        mOffset++;
+        mValuePending = false;
+        return true;
+    }
+
+    private void endValue() {
+        if (mPackedEnd >= 0 && getOffset() >= mPackedEnd) {
+            if (getOffset() > mPackedEnd) {
+                throw new ProtoParseException("Read past the end of packed field "
+                        + mFieldNumber + ": " + getOffset() + " > " + mPackedEnd);
+            }
+            mPackedEnd = -1;
+        }
+        mValuePending = false;
+    }
+
+    private int readLength() throws IOException {
+        final long length = readRawVarint();
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new ProtoParseException("Bad length " + length + " for field " + mFieldNumber
+                    + " at offset " + getOffset());
+        }
+        if (mDepth > 0 && getOffset() + length > mObjectEnds[mDepth - 1]) {
+            throw new ProtoParseException("Field " + mFieldNumber + " of " + length
+                    + " bytes overflows its object at offset " + getOffset());
+        }
+        return (int) length;
+    }
+
+    //
+    // Raw reads
+    //
+
+    private long readRawVarint() throws IOException {
+        if (mEnd - mOffset >= MAX_VARINT_SIZE || ensureAvailable(MAX_VARINT_SIZE)) {
+            // Fast path: no bounds check per byte.
+            final byte[] buffer = mBuffer;
+            int offset = mOffset;
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final byte b = buffer[offset++];
+                result |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    mOffset = offset;
+                    return result;
+                }
+            }
+            throw new ProtoParseException("Varint too long at offset " + getOffset());
+        }
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!ensureAvailable(1)) {
+                throw truncated();
+            }
+            final byte b = mBuffer[mOffset++];
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new ProtoParseException("Varint too long at offset " + getOffset());
+    }
+
+    private int readRawFixed32() throws IOException {
+        if (!ensureAvailable(4)) {
+            throw truncated();
+        }
+        final byte[] buffer = mBuffer;
+        final int offset = mOffset;
+        mOffset += 4;
+        return (buffer[offset] & 0xff)
+                | ((buffer[offset + 1] & 0xff) << 8)
+                | ((buffer[offset + 2] & 0xff) << 16)
+                | ((buffer[offset + 3] & 0xff) << 24);
+    }
+
+    private long readRawFixed64() throws IOException {
+        final long low = readRawFixed32() & 0x0ffffffffL;
+        final long high = readRawFixed32() & 0x0ffffffffL;
+        return low | (high << 32);
+    }
+
+    private byte[] readRawBytes(int length) throws IOException {
+        final byte[] result = new byte[length];
+        int copied = 0;
+        while (copied < length) {
+            if (!ensureAvailable(1)) {
+                throw truncated();
+            }
+            final int n = Math.min(length - copied, mEnd - mOffset);
+            System.arraycopy(mBuffer, mOffset, result, copied, n);
+            mOffset += n;
+            copied += n;
+        }
+        return result;
+    }
+
+    private void skipRawBytes(int length) throws IOException {
+        while (length > 0) {
+            if (!ensureAvailable(1)) {
+                throw truncated();
+            }
+            final int n = Math.min(length, mEnd - mOffset);
+            mOffset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Make at least {@code count} bytes available in mBuffer, refilling it from the source.
+     *
+     * @return false if the input ends before that.
+     */
+    private boolean ensureAvailable(int count) throws IOException {
+        if (mEnd - mOffset >= count) {
+            return true;
+        }
+        if (mStream == null && mByteBuffer == null) {
+            return false;
+        }
+        // Move what is left to the front and fill up the rest.
+        final int remaining = mEnd - mOffset;
+        System.arraycopy(mBuffer, mOffset, mBuffer, 0, remaining);
+        mDiscarded += mOffset;
+        mOffset = 0;
+        mEnd = remaining;
+        while (mEnd < count) {
+            final int n;
+            if (mStream != null) {
+                n = mStream.read(mBuffer, mEnd, mBuffer.length - mEnd);
+            } else {
+                n = Math.min(mByteBuffer.remaining(), mBuffer.length - mEnd);
+                if (n > 0) {
+                    mByteBuffer.get(mBuffer, mEnd, n);
+                } else {
+                    return false;
+                }
+            }
+            if (n < 0) {
+                return false;
+            }
+            mEnd += n;
+        }
+        return true;
+    }
+
+    private ProtoParseException truncated() {
+        return new ProtoParseException("Unexpected end of input at offset " + getOffset()
+                + " in field " + mFieldNumber);
+    }
+
+    @Override
+    public String toString() {
+        return "ProtoInputStream{offset=" + getOffset() + " field=" + mFieldNumber
+                + " wireType=" + mWireType + " depth=" + mDepth + "}";
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util.proto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+
+/**
+ * Test {@link ProtoInputStream}.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ProtoInputStreamTest {
+    private static final long INT32 = ProtoOutputStream.FIELD_COUNT_SINGLE
+            | ProtoOutputStream.FIELD_TYPE_INT32 | 1;
+    private static final long SINT64 = ProtoOutputStream.FIELD_COUNT_SINGLE
+            | ProtoOutputStream.FIELD_TYPE_SINT64 | 2;
+    private static final long STRING = ProtoOutputStream.FIELD_COUNT_SINGLE
+            | ProtoOutputStream.FIELD_TYPE_STRING | 3;
+    private static final long MESSAGE = ProtoOutputStream.FIELD_COUNT_SINGLE
+            | ProtoOutputStream.FIELD_TYPE_MESSAGE | 4;
+    private static final long REPEATED_INT32 = ProtoOutputStream.FIELD_COUNT_REPEATED
+            | ProtoOutputStream.FIELD_TYPE_INT32 | 5;
+    private static final long PACKED_INT32 = ProtoOutputStream.FIELD_COUNT_PACKED
+            | ProtoOutputStream.FIELD_TYPE_INT32 | 5;
+    private static final long PACKED_FIXED64 = ProtoOutputStream.FIELD_COUNT_PACKED
+            | ProtoOutputStream.FIELD_TYPE_FIXED64 | 6;
+    private static final long BOOL = ProtoOutputStream.FIELD_COUNT_SINGLE
+            | ProtoOutputStream.FIELD_TYPE_BOOL | 7;
+
+    @Test
+    public void testScalars() throws Exception {
+        final ProtoOutputStream out = new ProtoOutputStream();
+        out.writeInt32(INT32, -3);
+        out.writeSInt64(SINT64, Long.MIN_VALUE);
+        out.writeString(STRING, "proto");
+        out.writeBool(BOOL, true);
+
+        final ProtoInputStream in = new ProtoInputStream(out.getBytes());
+        assertEquals(1, in.nextField());
+        assertEquals(-3, in.readInt(INT32));
+        assertEquals(2, in.nextField());
+        assertEquals(Long.MIN_VALUE, in.readLong(SINT64));
+        assertEquals(3, in.nextField());
+        assertEquals("proto", in.readString(STRING));
+        assertEquals(7, in.nextField());
+        assertTrue(in.readBoolean(BOOL));
+        assertEquals(ProtoInputStream.NO_MORE_FIELDS, in.nextField());
+    }
+
+    @Test
+    public void testPackedAndUnpacked() throws Exception {
+        final ProtoOutputStream out = new ProtoOutputStream();
+        out.writePackedInt32(PACKED_INT32, new int[] { 1, 2, 3 });
+        out.writeRepeatedInt32(REPEATED_INT32, 4);
+        out.writeRepeatedInt32(REPEATED_INT32, 5);
+        out.writePackedFixed64(PACKED_FIXED64, new long[] { 6, 7 });
+
+        final ProtoInputStream in = new ProtoInputStream(out.getBytes());
+        final ArrayList<Long> values = new ArrayList<>();
+        while (in.isNextField(PACKED_INT32)) {
+            values.add((long) in.readInt(PACKED_INT32));
+        }
+        while (in.isNextField(PACKED_FIXED64)) {
+            values.add(in.readLong(PACKED_FIXED64));
+        }
+        assertEquals(ProtoInputStream.NO_MORE_FIELDS, in.nextField());
+        assertArrayEquals(new Long[] { 1L, 2L, 3L, 4L, 5L, 6L, 7L },
+                values.toArray(new Long[values.size()]));
+    }
+
+    @Test
+    public void testEmptyPacked_isNextField() throws Exception {
+        // Field 5 packed with no values, twice, then field 1 = 7.
+        final ProtoInputStream in = new ProtoInputStream(
+                new byte[] { 0x2a, 0x00, 0x2a, 0x00, 0x08, 0x07 });
+        assertFalse(in.isNextField(PACKED_INT32));
+        assertEquals(1, in.nextField());
+        assertEquals(7, in.readInt(INT32));
+        assertEquals(ProtoInputStream.NO_MORE_FIELDS, in.nextField());
+    }
+
+    @Test
+    public void testEmptyPacked_nextField() throws Exception {
+        // Field 5 packed with no values, then field 5 packed with 9, then field 1 = 7.
+        final ProtoInputStream in = new ProtoInputStream(
+                new byte[] { 0x2a, 0x00, 0x2a, 0x01, 0x09, 0x08, 0x07 });
+        assertEquals(5, in.nextField());
+        assertEquals(0, in.readInt(PACKED_INT32));
+        assertEquals(5, in.nextField());
+        assertEquals(9, in.readInt(PACKED_INT32));
+        assertEquals(1, in.nextField());
+        assertEquals(7, in.readInt(INT32));
+        assertEquals(ProtoInputStream.NO_MORE_FIELDS, in.nextField());
+    }
+
+    @Test
+    public void testEmptyPacked_atEndOfObject() throws Exception {
+        // Field 4 of 2 bytes holding field 5 packed with no values, then field 1 = 7.
+        final ProtoInputStream in = new ProtoInputStream(
+                new ByteArrayInputStream(new byte[] { 0x22, 0x02, 0x2a, 0x00, 0x08, 0x07 }), 1);
+        assertEquals(4, in.nextField());
+        final long token = in.start(MESSAGE);
+        assertFalse(in.isNextField(PACKED_INT32));
+        in.end(token);
+        assertEquals(1, in.nextField());
+        assertEquals(7, in.readInt(INT32));
+        assertEquals(ProtoInputStream.NO_MORE_FIELDS, in.nextField());
+    }
+
+    @Test
+    public void testEmptyString() throws Exception {
+        // An empty string has the same encoding as an empty packed field.
+        final ProtoInputStream in = new ProtoInputStream(new byte[] { 0x1a, 0x00 });
+        assertTrue(in.isNextField(STRING));
+        assertEquals("", in.readString(STRING));
+        assertEquals(ProtoInputStream.NO_MORE_FIELDS, in.nextField());
+    }
+
+    @Test
+    public void testNestedObjects() throws Exception {
+        final ProtoOutputStream out = new ProtoOutputStream();
+        final long outer = out.start(MESSAGE);
+        out.writeInt32(INT32, 1);
+        final long inner = out.start(MESSAGE);
+        out.writeString(STRING, "inner");
+        out.end(inner);
+        out.writeInt32(INT32, 2);
+        out.end(outer);
+        out.writeInt32(INT32, 3);
+
+        final ProtoInputStream in = new ProtoInputStream(out.getBytes());
+        assertEquals(4, in.nextField());
+        final long outerToken = in.start(MESSAGE);
+        assertEquals(1, in.nextField());
+        assertEquals(1, in.readInt(INT32));
+        assertEquals(4, in.nextField());
+        final long innerToken = in.start(MESSAGE);
+        assertEquals(3, in.nextField());
+        assertEquals("inner", in.readString(STRING));
+        assertEquals(ProtoInputStream.NO_MORE_FIELDS, in.nextField());
+        in.end(innerToken);
+        assertEquals(1, in.nextField());
+        assertEquals(2, in.readInt(INT32));
+        assertEquals(ProtoInputStream.NO_MORE_FIELDS, in.nextField());
+        in.end(outerToken);
+        assertEquals(1, in.nextField());
+        assertEquals(3, in.readInt(INT32));
+        assertEquals(ProtoInputStream.NO_MORE_FIELDS, in.nextField());
+    }
+
+    @Test
+    public void testSkip() throws Exception {
+        final ProtoOutputStream out = new ProtoOutputStream();
+        out.writePackedInt32(PACKED_INT32, new int[] { 1, 2, 3 });
+        final long token = out.start(MESSAGE);
+        out.writeString(STRING, "skipped");
+        out.end(token);
+        out.writeInt32(INT32, 4);
+
+        final ProtoInputStream in = new ProtoInputStream(out.getBytes());
+        assertEquals(5, in.nextField());
+        assertEquals(1, in.readInt(PACKED_INT32));
+        // The rest of the packed field and the unread object are skipped.
+        assertEquals(5, in.nextField());
+        in.skip();
+        assertEquals(4, in.nextField());
+        assertEquals(1, in.nextField());
+        assertEquals(4, in.readInt(INT32));
+        assertEquals(ProtoInputStream.NO_MORE_FIELDS, in.nextField());
+    }
+}
@@ -2348,7 +2348,7 @@ public final class ProtoOutputStream {
     /**
      * Get the developer-usable name of a field type.
      */
-    private static String getFieldTypeString(long fieldType) {
+    static String getFieldTypeString(long fieldType) {
         int index = ((int)((fieldType & FIELD_TYPE_MASK) >>> FIELD_TYPE_SHIFT)) - 1;
         if (index >= 0 && index < FIELD_TYPE_NAMES.length) {
             return FIELD_TYPE_NAMES[index];
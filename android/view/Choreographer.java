@@ -24,6 +24,7 @@ import android.util.TimeUtils;
 import android.view.animation.AnimationUtils;
 
 import java.io.PrintWriter;
+import java.util.ArrayList;
 
 import static android.view.DisplayEventReceiver.VSYNC_SOURCE_APP;
 import static android.view.DisplayEventReceiver.VSYNC_SOURCE_SURFACE_FLINGER;
@@ -145,6 +146,13 @@ public final class Choreographer {
     private static final int SKIPPED_FRAME_WARNING_LIMIT = SystemProperties.getInt(
             "debug.choreographer.skipwarning", 30);
 
+    // Record the duration of every callback from the start, see ChoreographerStats.
+    private static final boolean RECORD_CALLBACK_STATS = SystemProperties.getBoolean(
+            "debug.choreographer.callbackstats", false);
+
+    // Number of callback classes printed by dump().
+    private static final int DUMP_CALLBACK_STATS_COUNT = 10;
+
     private static final int MSG_DO_FRAME = 0;
     private static final int MSG_DO_SCHEDULE_VSYNC = 1;
     private static final int MSG_DO_SCHEDULE_CALLBACK = 2;
@@ -176,6 +184,10 @@ public final class Choreographer {
     private boolean mDebugPrintNextFrameTimeDelta;
     private int mFPSDivisor = 1;
 
+    // Callback durations, only recorded while not null. Written by the looper thread.
+    private volatile ChoreographerStats mStats;
+    private final ArrayList<FrameStatsObserver> mFrameStatsObservers = new ArrayList<>();
+
     /**
      * Contains information about the current frame for jank-tracking,
      * mainly timings of key events along with a bit of metadata about
@@ -256,6 +268,9 @@ public final class Choreographer {
         }
         // b/68769804: For low FPS experiments.
         setFPSDivisor(SystemProperties.getInt(ThreadedRenderer.DEBUG_FPS_DIVISOR, 1));
+        if (RECORD_CALLBACK_STATS) {
+            mStats = new ChoreographerStats(ChoreographerStats.DEFAULT_FRAME_CAPACITY);
+        }
     }
 
     private static float getRefreshRate() {
@@ -385,6 +400,75 @@ public final class Choreographer {
                 writer.println(mFrameScheduled);
         writer.print(innerPrefix); writer.print("mLastFrameTime=");
                 writer.println(TimeUtils.formatUptime(mLastFrameTimeNanos / 1000000));
+        dumpFrameStats(innerPrefix, writer);
+    }
+
+    /**
+     * Prints the callback durations, if they are recorded.
+     * @hide
+     */
+    public void dumpFrameStats(String prefix, PrintWriter writer) {
+        final ChoreographerStats stats = mStats;
+        if (stats != null) {
+            stats.dump(prefix, writer, DUMP_CALLBACK_STATS_COUNT);
+        }
+    }
+
+    /**
+     * Starts recording the duration of every callback phase and of every posted callback, and
+     * notifies the observer after each frame. Recording stops once the last observer is removed,
+     * unless it was enabled with the debug.choreographer.callbackstats property.
+     * <p>
+     * Must be called on the thread of this Choreographer.
+     * </p>
+     *
+     * @param observer The observer to notify after each frame.
+     *
+     * @see #removeFrameStatsObserver
+     * @hide
+     */
+    public void addFrameStatsObserver(FrameStatsObserver observer) {
+        if (observer == null) {
+            throw new IllegalArgumentException("observer must not be null");
+        }
+        checkLooperThread();
+        if (mStats == null) {
+            mStats = new ChoreographerStats(ChoreographerStats.DEFAULT_FRAME_CAPACITY);
+        }
+        if (!mFrameStatsObservers.contains(observer)) {
+            mFrameStatsObservers.add(observer);
+        }
+    }
+
+    /**
+     * Removes an observer added with {@link #addFrameStatsObserver}.
+     * <p>
+     * Must be called on the thread of this Choreographer.
+     * </p>
+     *
+     * @param observer The observer to remove.
+     * @hide
+     */
+    public void removeFrameStatsObserver(FrameStatsObserver observer) {
+        checkLooperThread();
+        if (mFrameStatsObservers.remove(observer)
+                && mFrameStatsObservers.isEmpty() && !RECORD_CALLBACK_STATS) {
+            mStats = null;
+        }
+    }
+
+    /**
+     * Returns the callback durations recorded so far, or null if they are not recorded.
+     * @hide
+     */
+    public ChoreographerStats getFrameStats() {
+        return mStats;
+    }
+
+    private void checkLooperThread() {
+        if (Looper.myLooper() != mLooper) {
+            throw new IllegalStateException("Must be called on the thread of the Choreographer");
+        }
     }
 
     /**
@@ -716,6 +800,9 @@ public final class Choreographer {
             mLastFrameTimeNanos = frameTimeNanos;
         }
 
+        final ChoreographerStats stats = mStats;
+        final long callbacksStartNanos = stats != null ? System.nanoTime() : 0;
+
         // 按照优先级策略进行画面刷新时间处理
         try {
             Trace.traceBegin(Trace.TRACE_TAG_VIEW, "Choreographer#doFrame");
@@ -738,6 +825,13 @@ public final class Choreographer {
             Trace.traceEnd(Trace.TRACE_TAG_VIEW);
         }
 
+        if (stats != null) {
+            stats.addFrame(System.nanoTime() - callbacksStartNanos);
+            for (int i = mFrameStatsObservers.size() - 1; i >= 0; i--) {
+                mFrameStatsObservers.get(i).onFrameStats(stats, frameTimeNanos);
+            }
+        }
+
         if (DEBUG_FRAMES) {
             final long endNanos = System.nanoTime();
             Log.d(TAG, "Frame " + frame + ": Finished, took "
@@ -790,6 +884,8 @@ public final class Choreographer {
                 }
             }
         }
+        final ChoreographerStats stats = mStats;
+        final long phaseStartNanos = stats != null ? System.nanoTime() : 0;
         try {
             Trace.traceBegin(Trace.TRACE_TAG_VIEW, CALLBACK_TRACE_TITLES[callbackType]);
             for (CallbackRecord c = callbacks; c != null; c = c.next) {
@@ -799,7 +895,17 @@ public final class Choreographer {
                             + ", latencyMillis=" + (SystemClock.uptimeMillis() - c.dueTime));
                 }
                 // 循环遍历，回调所有的任务
-                c.run(frameTimeNanos);
+                if (stats == null) {
+                    c.run(frameTimeNanos);
+                } else {
+                    final long callbackStartNanos = System.nanoTime();
+                    c.run(frameTimeNanos);
+                    stats.addCallback(callbackType, c.action.getClass(),
+                            System.nanoTime() - callbackStartNanos);
+                }
+            }
+            if (stats != null) {
+                stats.addPhase(callbackType, System.nanoTime() - phaseStartNanos);
             }
         } finally {
             synchronized (mLock) {
@@ -875,6 +981,23 @@ public final class Choreographer {
         mCallbackPool = callback;
     }
 
+    /**
+     * Observes the duration of the callbacks of every frame.
+     *
+     * @see Choreographer#addFrameStatsObserver
+     * @hide
+     */
+    public interface FrameStatsObserver {
+        /**
+         * Called on the thread of the Choreographer once the callbacks of a frame have run.
+         *
+         * @param stats The durations recorded so far, including this frame.
+         * @param frameTimeNanos The time at which the frame started, in the
+         * {@link System#nanoTime()} timebase.
+         */
+        void onFrameStats(ChoreographerStats stats, long frameTimeNanos);
+    }
+
     /**
      * Implement this interface to receive a callback when a new display frame is
      * being rendered.  The callback is invoked on the {@link Looper} thread to
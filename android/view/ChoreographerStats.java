@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.view;
+
+import android.util.ArrayMap;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Durations of the callbacks run by a {@link Choreographer}, for finding which of them make
+ * frames miss their deadline.
+ * <p>
+ * For each of the last frames, the time spent in every callback phase (input, animation,
+ * traversal and commit) is kept in a ring buffer. For each class of posted
+ * {@link Choreographer.FrameCallback} or {@link Runnable}, the number of runs, the total and
+ * the maximum duration are kept along with a ring buffer of the last durations. Percentiles are
+ * computed from the ring buffers on request.
+ * <p>
+ * Stats are recorded on the thread of the Choreographer and can be read from any thread.
+ *
+ * @see Choreographer#addFrameStatsObserver(Choreographer.FrameStatsObserver)
+ * @hide
+ */
+public final class ChoreographerStats {
+    /** Number of callback phases, indexed by the Choreographer.CALLBACK_* constants. */
+    public static final int PHASE_COUNT = Choreographer.CALLBACK_COMMIT + 1;
+
+    /** Number of frames kept by default. */
+    public static final int DEFAULT_FRAME_CAPACITY = 120;
+
+    /** Number of durations kept for each callback class. */
+    private static final int CALLBACK_SAMPLE_COUNT = 64;
+
+    private static final String[] PHASE_NAMES = { "input", "animation", "traversal", "commit" };
+
+    private final int mFrameCapacity;
+    // mFrameCapacity rows of PHASE_COUNT durations, the oldest row is overwritten first.
+    private final long[] mPhaseNanos;
+    private final long[] mFrameNanos;
+    // Total number of frames recorded, the next frame goes to row mFrameCount % mFrameCapacity.
+    private long mFrameCount;
+    // Phase durations of the frame in progress.
+    private final long[] mCurrentPhaseNanos = new long[PHASE_COUNT];
+
+    private final ArrayMap<Class<?>, CallbackStats> mCallbackStats = new ArrayMap<>();
+
+    ChoreographerStats(int frameCapacity) {
+        if (frameCapacity <= 0) {
+            throw new IllegalArgumentException("frameCapacity must be positive");
+        }
+        mFrameCapacity = frameCapacity;
+        mPhaseNanos = new long[frameCapacity * PHASE_COUNT];
+        mFrameNanos = new long[frameCapacity];
+    }
+
+    synchronized void addCallback(int phase, Class<?> callbackClass, long durationNanos) {
+        CallbackStats stats = mCallbackStats.get(callbackClass);
+        if (stats == null) {
+            stats = new CallbackStats(callbackClass);
+            mCallbackStats.put(callbackClass, stats);
+        }
+        stats.add(phase, durationNanos);
+    }
+
+    synchronized void addPhase(int phase, long durationNanos) {
+        mCurrentPhaseNanos[phase] += durationNanos;
+    }
+
+    synchronized void addFrame(long durationNanos) {
+        final int row = (int) (mFrameCount % mFrameCapacity);
+        System.arraycopy(mCurrentPhaseNanos, 0, mPhaseNanos, row * PHASE_COUNT, PHASE_COUNT);
+        mFrameNanos[row] = durationNanos;
+        Arrays.fill(mCurrentPhaseNanos, 0);
+        mFrameCount++;
+    }
+
+    /**
+     * Returns the total number of frames recorded, including the ones that are no longer in the
+     * ring buffer.
+     */
+    public synchronized long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Returns the time spent in the callbacks of the given phase during the last frame, or 0 if
+     * no frame was recorded.
+     *
+     * @param phase One of the Choreographer.CALLBACK_* constants.
+     */
+    public synchronized long getLastFramePhaseNanos(int phase) {
+        checkPhase(phase);
+        if (mFrameCount == 0) {
+            return 0;
+        }
+        final int row = (int) ((mFrameCount - 1) % mFrameCapacity);
+        return mPhaseNanos[row * PHASE_COUNT + phase];
+    }
+
+    /**
+     * Returns the time spent running the callbacks of the last frame, or 0 if no frame was
+     * recorded.
+     */
+    public synchronized long getLastFrameNanos() {
+        if (mFrameCount == 0) {
+            return 0;
+        }
+        return mFrameNanos[(int) ((mFrameCount - 1) % mFrameCapacity)];
+    }
+
+    /**
+     * Returns the given percentile of the time spent in the callbacks of a phase, over the frames
+     * in the ring buffer.
+     *
+     * @param phase One of the Choreographer.CALLBACK_* constants.
+     * @param percentile The percentile, between 0 and 100.
+     */
+    public long getPhasePercentileNanos(int phase, float percentile) {
+        checkPhase(phase);
+        final long[] samples;
+        synchronized (this) {
+            samples = getPhaseSamplesLocked(phase);
+        }
+        return percentile(samples, percentile);
+    }
+
+    /**
+     * Returns the given percentile of the time spent running the callbacks of a frame, over the
+     * frames in the ring buffer.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     */
+    public long getFramePercentileNanos(float percentile) {
+        final long[] samples;
+        synchronized (this) {
+            samples = Arrays.copyOf(mFrameNanos, getBufferedFrameCount());
+        }
+        return percentile(samples, percentile);
+    }
+
+    /**
+     * Returns a snapshot of the stats of every callback class, by decreasing total duration.
+     */
+    public List<CallbackStats> getCallbackStats() {
+        final ArrayList<CallbackStats> result;
+        synchronized (this) {
+            final int count = mCallbackStats.size();
+            result = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                result.add(new CallbackStats(mCallbackStats.valueAt(i)));
+            }
+        }
+        result.sort((a, b) -> Long.compare(b.mTotalNanos, a.mTotalNanos));
+        return result;
+    }
+
+    /**
+     * Forgets all the recorded frames and callbacks.
+     */
+    public synchronized void reset() {
+        Arrays.fill(mCurrentPhaseNanos, 0);
+        mFrameCount = 0;
+        mCallbackStats.clear();
+    }
+
+    /**
+     * Prints the percentiles of every phase and the callback classes that took the most time.
+     * Only the copy of the stats is made under the lock, so the recording thread is not held up
+     * by the printing.
+     *
+     * @param maxCallbacks The maximum number of callback classes to print.
+     */
+    public void dump(String prefix, PrintWriter pw, int maxCallbacks) {
+        final long frameCount;
+        final long[] frameSamples;
+        final long[][] phaseSamples = new long[PHASE_COUNT][];
+        synchronized (this) {
+            frameCount = mFrameCount;
+            frameSamples = Arrays.copyOf(mFrameNanos, getBufferedFrameCount());
+            for (int phase = 0; phase < PHASE_COUNT; phase++) {
+                phaseSamples[phase] = getPhaseSamplesLocked(phase);
+            }
+        }
+        final List<CallbackStats> callbacks = getCallbackStats();
+
+        final String innerPrefix = prefix + "  ";
+        pw.print(prefix); pw.print("Choreographer callbacks (");
+                pw.print(frameSamples.length); pw.print(" of ");
+                pw.print(frameCount); pw.println(" frames, p50/p90/p99/max in ms):");
+        pw.print(innerPrefix); pw.printf("%-10s", "frame");
+        dumpPercentiles(pw, frameSamples);
+        for (int phase = 0; phase < PHASE_COUNT; phase++) {
+            pw.print(innerPrefix); pw.printf("%-10s", PHASE_NAMES[phase]);
+            dumpPercentiles(pw, phaseSamples[phase]);
+        }
+
+        final int count = Math.min(maxCallbacks, callbacks.size());
+        for (int i = 0; i < count; i++) {
+            final CallbackStats stats = callbacks.get(i);
+            pw.print(innerPrefix); pw.print(stats.mCallbackClass.getName());
+                    pw.print(" ["); pw.print(stats.getPhaseNames()); pw.print("] runs=");
+                    pw.print(stats.mCount); pw.printf(" total=%.2f", stats.mTotalNanos * 1e-6);
+            dumpPercentiles(pw, stats.getSamples());
+        }
+    }
+
+    // Durations of the phase in the frames of the ring buffer, in no particular order.
+    private long[] getPhaseSamplesLocked(int phase) {
+        final int count = getBufferedFrameCount();
+        final long[] samples = new long[count];
+        for (int i = 0; i < count; i++) {
+            samples[i] = mPhaseNanos[i * PHASE_COUNT + phase];
+        }
+        return samples;
+    }
+
+    private int getBufferedFrameCount() {
+        return (int) Math.min(mFrameCount, mFrameCapacity);
+    }
+
+    private static void dumpPercentiles(PrintWriter pw, long[] samples) {
+        Arrays.sort(samples);
+        pw.printf(" %.2f/%.2f/%.2f/%.2f\n",
+                sortedPercentile(samples, 50) * 1e-6, sortedPercentile(samples, 90) * 1e-6,
+                sortedPercentile(samples, 99) * 1e-6, sortedPercentile(samples, 100) * 1e-6);
+    }
+
+    private static long percentile(long[] samples, float percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        Arrays.sort(samples);
+        return sortedPercentile(samples, percentile);
+    }
+
+    // Nearest-rank percentile of a sorted array, 0 if it is empty.
+    private static long sortedPercentile(long[] sorted, float percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        final int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.max(rank - 1, 0)];
+    }
+
+    private static void checkPhase(int phase) {
+        if (phase < 0 || phase >= PHASE_COUNT) {
+            throw new IllegalArgumentException("Invalid callback phase: " + phase);
+        }
+    }
+
+    /**
+     * Durations of the callbacks of one class.
+     */
+    public static final class CallbackStats {
+        private final Class<?> mCallbackClass;
+        private int mPhases;
+        private long mCount;
+        private long mTotalNanos;
+        private long mMaxNanos;
+        private final long[] mSamples;
+
+        CallbackStats(Class<?> callbackClass) {
+            mCallbackClass = callbackClass;
+            mSamples = new long[CALLBACK_SAMPLE_COUNT];
+        }
+
+        CallbackStats(CallbackStats other) {
+            mCallbackClass = other.mCallbackClass;
+            mPhases = other.mPhases;
+            mCount = other.mCount;
+            mTotalNanos = other.mTotalNanos;
+            mMaxNanos = other.mMaxNanos;
+            mSamples = other.mSamples.clone();
+        }
+
+        void add(int phase, long durationNanos) {
+            mPhases |= 1 << phase;
+            mSamples[(int) (mCount % CALLBACK_SAMPLE_COUNT)] = durationNanos;
+            mCount++;
+            mTotalNanos += durationNanos;
+            mMaxNanos = Math.max(mMaxNanos, durationNanos);
+        }
+
+        /** Returns the class of the posted FrameCallback or Runnable. */
+        public Class<?> getCallbackClass() {
+            return mCallbackClass;
+        }
+
+        /**
+         * Returns whether callbacks of this class ran in the given phase.
+         *
+         * @param phase One of the Choreographer.CALLBACK_* constants.
+         */
+        public boolean ranInPhase(int phase) {
+            checkPhase(phase);
+            return (mPhases & (1 << phase)) != 0;
+        }
+
+        /** Returns the number of callbacks of this class that ran. */
+        public long getCount() {
+            return mCount;
+        }
+
+        /** Returns the time spent in callbacks of this class. */
+        public long getTotalNanos() {
+            return mTotalNanos;
+        }
+
+        /** Returns the duration of the longest callback of this class. */
+        public long getMaxNanos() {
+            return mMaxNanos;
+        }
+
+        /**
+         * Returns the given percentile of the duration of the last callbacks of this class.
+         *
+         * @param percentile The percentile, between 0 and 100.
+         */
+        public long getPercentileNanos(float percentile) {
+            return percentile(getSamples(), percentile);
+        }
+
+        private long[] getSamples() {
+            return Arrays.copyOf(mSamples, (int) Math.min(mCount, CALLBACK_SAMPLE_COUNT));
+        }
+
+        private String getPhaseNames() {
+            final StringBuilder names = new StringBuilder();
+            for (int phase = 0; phase < PHASE_COUNT; phase++) {
+                if ((mPhases & (1 << phase)) != 0) {
+                    if (names.length() > 0) {
+                        names.append(',');
+                    }
+                    names.append(PHASE_NAMES[phase]);
+                }
+            }
+            return names.toString();
+        }
+    }
+}
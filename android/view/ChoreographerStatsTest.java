@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.view;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+
+/**
+ * Test {@link ChoreographerStats}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ChoreographerStatsTest {
+
+    @Test
+    public void testEmpty() {
+        final ChoreographerStats stats = new ChoreographerStats(4);
+        assertEquals(0, stats.getFrameCount());
+        assertEquals(0, stats.getLastFrameNanos());
+        assertEquals(0, stats.getLastFramePhaseNanos(Choreographer.CALLBACK_INPUT));
+        assertEquals(0, stats.getFramePercentileNanos(50));
+        assertEquals(0, stats.getPhasePercentileNanos(Choreographer.CALLBACK_COMMIT, 99));
+        assertTrue(stats.getCallbackStats().isEmpty());
+    }
+
+    @Test
+    public void testFrameRingBufferWraps() {
+        final ChoreographerStats stats = new ChoreographerStats(3);
+        for (int i = 1; i <= 5; i++) {
+            stats.addPhase(Choreographer.CALLBACK_ANIMATION, i * 10);
+            stats.addPhase(Choreographer.CALLBACK_ANIMATION, i);
+            stats.addFrame(i * 100);
+        }
+        assertEquals(5, stats.getFrameCount());
+        assertEquals(500, stats.getLastFrameNanos());
+        assertEquals(55, stats.getLastFramePhaseNanos(Choreographer.CALLBACK_ANIMATION));
+        // Phases of one frame do not carry over to the next.
+        assertEquals(0, stats.getLastFramePhaseNanos(Choreographer.CALLBACK_TRAVERSAL));
+        // Only the last three frames are kept.
+        assertEquals(300, stats.getFramePercentileNanos(0));
+        assertEquals(400, stats.getFramePercentileNanos(50));
+        assertEquals(500, stats.getFramePercentileNanos(100));
+        assertEquals(33, stats.getPhasePercentileNanos(Choreographer.CALLBACK_ANIMATION, 0));
+        assertEquals(55, stats.getPhasePercentileNanos(Choreographer.CALLBACK_ANIMATION, 100));
+    }
+
+    @Test
+    public void testNearestRankPercentile() {
+        final ChoreographerStats stats = new ChoreographerStats(10);
+        // Added out of order, the percentiles are taken over the sorted durations.
+        for (int i = 0; i < 10; i++) {
+            stats.addFrame((i * 7) % 10 + 1);
+        }
+        assertEquals(1, stats.getFramePercentileNanos(0));
+        assertEquals(1, stats.getFramePercentileNanos(10));
+        assertEquals(2, stats.getFramePercentileNanos(11));
+        assertEquals(5, stats.getFramePercentileNanos(50));
+        assertEquals(9, stats.getFramePercentileNanos(90));
+        assertEquals(10, stats.getFramePercentileNanos(99));
+        assertEquals(10, stats.getFramePercentileNanos(100));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPercentile() {
+        new ChoreographerStats(4).getFramePercentileNanos(101);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPhase() {
+        new ChoreographerStats(4).getLastFramePhaseNanos(ChoreographerStats.PHASE_COUNT);
+    }
+
+    @Test
+    public void testCallbackRingBufferWraps() {
+        final ChoreographerStats stats = new ChoreographerStats(4);
+        for (int i = 1; i <= 100; i++) {
+            stats.addCallback(Choreographer.CALLBACK_ANIMATION, Integer.class, i);
+        }
+        stats.addCallback(Choreographer.CALLBACK_INPUT, Long.class, 1000);
+
+        final List<ChoreographerStats.CallbackStats> callbacks = stats.getCallbackStats();
+        assertEquals(2, callbacks.size());
+        // By decreasing total duration.
+        final ChoreographerStats.CallbackStats integers = callbacks.get(0);
+        assertEquals(Integer.class, integers.getCallbackClass());
+        assertEquals(100, integers.getCount());
+        assertEquals(5050, integers.getTotalNanos());
+        assertEquals(100, integers.getMaxNanos());
+        assertTrue(integers.ranInPhase(Choreographer.CALLBACK_ANIMATION));
+        assertFalse(integers.ranInPhase(Choreographer.CALLBACK_INPUT));
+        // Only the last 64 durations are kept.
+        assertEquals(37, integers.getPercentileNanos(0));
+        assertEquals(100, integers.getPercentileNanos(100));
+        assertEquals(Long.class, callbacks.get(1).getCallbackClass());
+    }
+
+    @Test
+    public void testCallbackStatsSnapshot() {
+        final ChoreographerStats stats = new ChoreographerStats(4);
+        stats.addCallback(Choreographer.CALLBACK_ANIMATION, Integer.class, 1);
+        final ChoreographerStats.CallbackStats snapshot = stats.getCallbackStats().get(0);
+        stats.addCallback(Choreographer.CALLBACK_ANIMATION, Integer.class, 2);
+        assertEquals(1, snapshot.getCount());
+        assertEquals(1, snapshot.getTotalNanos());
+    }
+
+    @Test
+    public void testDump() {
+        final ChoreographerStats stats = new ChoreographerStats(2);
+        for (int i = 1; i <= 3; i++) {
+            stats.addPhase(Choreographer.CALLBACK_TRAVERSAL, i * 1000000);
+            stats.addCallback(Choreographer.CALLBACK_TRAVERSAL, Integer.class, i * 1000000);
+            stats.addFrame(i * 1000000);
+        }
+        final StringWriter out = new StringWriter();
+        final PrintWriter pw = new PrintWriter(out);
+        stats.dump("", pw, 1);
+        pw.flush();
+        final String dump = out.toString();
+        assertTrue(dump, dump.contains("(2 of 3 frames"));
+        assertTrue(dump, dump.contains("traversal  2.00/3.00/3.00/3.00"));
+        assertTrue(dump, dump.contains(Integer.class.getName() + " [traversal] runs=3"));
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.view;
+
+import android.annotation.LayoutRes;
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.Context;
+import android.content.res.Resources;
+import android.content.res.XmlResourceParser;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.Trace;
+import android.util.Log;
+import android.util.TypedValue;
+
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Inflates layouts from compiled plans, on the calling thread or on a pool of background
+ * threads.
+ * <p>
+ * The first inflation of a layout file compiles it into a plan that keeps the constructor of
+ * every view class and whether each element needs a theme lookup, so later inflations skip the
+ * class name resolution and most of the style lookups done by {@link LayoutInflater}. Plans are
+ * cached per layout file, so each configuration of a layout has its own plan.
+ * <p>
+ * Layouts that use &lt;include&gt;, &lt;requestFocus&gt;, &lt;tag&gt; or fragments are not
+ * compiled and are inflated by the {@link LayoutInflater} of the context instead, on the thread
+ * of the main Looper when inflated asynchronously.
+ * <p>
+ * Unlike {@link LayoutInflater}, no {@link LayoutInflater.Factory} is called, so views are always
+ * created from their tag.
+ * <p>
+ * Asynchronous inflations run concurrently, one per background thread. For a layout to be
+ * inflated there, the {@link ViewGroup#generateLayoutParams(android.util.AttributeSet)} of the
+ * parent must be thread-safe, and the views must not need a {@link Looper} while they are
+ * constructed, e.g. to create a {@link Handler}. A layout whose views fail to be constructed in
+ * the background is inflated again on the main thread, and is inflated there from then on.
+ *
+ * @hide
+ */
+public final class CompiledLayoutInflater {
+    private static final String TAG = "CompiledLayoutInflater";
+
+    // Marks the layout files that cannot be compiled.
+    private static final Object NO_PLAN = new Object();
+
+    private static ExecutorService sExecutor;
+
+    private final Context mContext;
+    private final Handler mMainHandler;
+    // Plans by layout file, see getPlan().
+    private final ConcurrentHashMap<String, Object> mPlans = new ConcurrentHashMap<>();
+
+    /**
+     * Callback for {@link #inflateAsync}.
+     */
+    public interface OnInflateFinishedListener {
+        /**
+         * Called on the main thread with the inflated view, which is not attached to the parent.
+         *
+         * @param view The root of the inflated hierarchy.
+         * @param resid The layout resource that was inflated.
+         * @param parent The parent given to {@link #inflateAsync}.
+         */
+        void onInflateFinished(@NonNull View view, @LayoutRes int resid,
+                @Nullable ViewGroup parent);
+    }
+
+    public CompiledLayoutInflater(@NonNull Context context) {
+        mContext = context;
+        mMainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Inflates a layout on the calling thread. Same contract as
+     * {@link LayoutInflater#inflate(int, ViewGroup, boolean)}.
+     */
+    public View inflate(@LayoutRes int resource, @Nullable ViewGroup root, boolean attachToRoot) {
+        final LayoutPlan plan = getPlan(resource);
+        if (plan == null) {
+            return LayoutInflater.from(mContext).inflate(resource, root, attachToRoot);
+        }
+        return inflate(plan, resource, root, attachToRoot);
+    }
+
+    /**
+     * Inflates a layout on a background thread, then calls the listener on the main thread. Can
+     * be called from any thread.
+     *
+     * @param resid The layout resource to inflate.
+     * @param parent The future parent of the view, used for its layout params only.
+     * @param listener The listener notified when the view is ready.
+     */
+    public void inflateAsync(@LayoutRes int resid, @Nullable ViewGroup parent,
+            @NonNull OnInflateFinishedListener listener) {
+        if (listener == null) {
+            throw new NullPointerException("listener cannot be null");
+        }
+        getExecutor().execute(() -> {
+            View view = null;
+            LayoutPlan plan = null;
+            try {
+                plan = getPlan(resid);
+                if (plan != null && !plan.mRequiresLooper) {
+                    view = inflate(plan, resid, parent, false);
+                }
+            } catch (RuntimeException e) {
+                // Most likely a view that creates a Handler, retry on the main thread, which
+                // also reports the error if it was not.
+                Log.w(TAG, "Failed to inflate resource in the background! Retrying on the "
+                        + "main thread", e);
+                if (plan != null) {
+                    plan.mRequiresLooper = true;
+                }
+            }
+            final View backgroundView = view;
+            mMainHandler.post(() -> {
+                final View result = backgroundView != null ? backgroundView
+                        : inflate(resid, parent, false);
+                listener.onInflateFinished(result, resid, parent);
+            });
+        });
+    }
+
+    private View inflate(LayoutPlan plan, @LayoutRes int resource, ViewGroup root,
+            boolean attachToRoot) {
+        Trace.traceBegin(Trace.TRACE_TAG_VIEW, "inflateCompiled");
+        final XmlResourceParser parser = mContext.getResources().getLayout(resource);
+        try {
+            return plan.inflate(mContext, parser, root, attachToRoot);
+        } finally {
+            parser.close();
+            Trace.traceEnd(Trace.TRACE_TAG_VIEW);
+        }
+    }
+
+    /**
+     * Returns the plan of the layout file that the resource resolves to in the current
+     * configuration, compiling it the first time. Returns null if it cannot be compiled.
+     */
+    private LayoutPlan getPlan(@LayoutRes int resource) {
+        final Resources res = mContext.getResources();
+        final TypedValue value = new TypedValue();
+        res.getValue(resource, value, true);
+        final String key = value.assetCookie + ":" + value.string;
+
+        Object plan = mPlans.get(key);
+        if (plan == null) {
+            Trace.traceBegin(Trace.TRACE_TAG_VIEW, "compileLayout");
+            final XmlResourceParser parser = res.getLayout(resource);
+            try {
+                plan = LayoutPlan.compile(mContext, parser);
+            } catch (XmlPullParserException | IOException e) {
+                throw new InflateException(parser.getPositionDescription()
+                        + ": " + e.getMessage(), e);
+            } finally {
+                parser.close();
+                Trace.traceEnd(Trace.TRACE_TAG_VIEW);
+            }
+            if (plan == null) {
+                plan = NO_PLAN;
+            }
+            mPlans.putIfAbsent(key, plan);
+        }
+        return plan != NO_PLAN ? (LayoutPlan) plan : null;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            final int threadCount = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+            final AtomicInteger threadId = new AtomicInteger();
+            sExecutor = Executors.newFixedThreadPool(threadCount, runnable -> {
+                final Thread thread = new Thread(() -> {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }, TAG + "-" + threadId.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return sExecutor;
+    }
+}
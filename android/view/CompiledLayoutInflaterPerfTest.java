@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.view;
+
+import android.content.Context;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.widget.FrameLayout;
+
+import com.android.perftests.core.R;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Inflates the layouts of {@link ViewPerfTest} with {@link CompiledLayoutInflater}, one at a
+ * time on the test thread and in batches on the background threads, and with
+ * {@link LayoutInflater} for comparison.
+ */
+@LargeTest
+public class CompiledLayoutInflaterPerfTest {
+    private static final int BATCH_SIZE = 16;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Test
+    public void testSimpleViewInflate() {
+        runInflate(R.layout.test_simple_view);
+    }
+
+    @Test
+    public void testTwelveKeyInflate() {
+        runInflate(R.layout.twelve_key_entry);
+    }
+
+    @Test
+    public void testTwelveKeyInflateBatch() throws InterruptedException {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        final CompiledLayoutInflater inflater = new CompiledLayoutInflater(context);
+        final FrameLayout root = new FrameLayout(context);
+        while (state.keepRunning()) {
+            final CountDownLatch latch = new CountDownLatch(BATCH_SIZE);
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                inflater.inflateAsync(R.layout.twelve_key_entry, root,
+                        (view, resid, parent) -> latch.countDown());
+            }
+            latch.await();
+        }
+    }
+
+    @Test
+    public void testTwelveKeyInflateBatch_LayoutInflater() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        final LayoutInflater inflater = LayoutInflater.from(context);
+        final FrameLayout root = new FrameLayout(context);
+        while (state.keepRunning()) {
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                inflater.inflate(R.layout.twelve_key_entry, root, false);
+            }
+        }
+    }
+
+    private void runInflate(int layout) {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        final CompiledLayoutInflater inflater = new CompiledLayoutInflater(context);
+        final FrameLayout root = new FrameLayout(context);
+        while (state.keepRunning()) {
+            inflater.inflate(layout, root, false);
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.view;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.content.res.XmlResourceParser;
+import android.util.AttributeSet;
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+
+/**
+ * The compiled form of a layout resource, built once and used by every later inflation of the
+ * same layout file.
+ * <p>
+ * Views read their attributes from the binary XML parser, so the parser is still walked when
+ * inflating. The plan removes the work that {@link LayoutInflater} repeats for every element
+ * and that only depends on the file: resolving the tag to a class and a constructor, and
+ * looking up the android:theme attribute, which is skipped for elements that have neither a
+ * theme nor a style attribute.
+ * <p>
+ * Only layouts made of plain view elements, with an optional &lt;merge&gt; root, are compiled.
+ * Elements that need the rest of the inflater (&lt;include&gt;, &lt;requestFocus&gt;,
+ * &lt;tag&gt;, &lt;blink&gt; and fragments) make {@link #compile} return null.
+ * <p>
+ * A plan is immutable and can be used from several threads at once.
+ */
+final class LayoutPlan {
+    private static final String TAG_MERGE = "merge";
+    private static final String TAG_VIEW = "view";
+
+    // Same prefixes as PhoneLayoutInflater, then LayoutInflater's own.
+    private static final String[] CLASS_PREFIXES = {
+            "android.widget.",
+            "android.webkit.",
+            "android.app.",
+            "android.view.",
+    };
+
+    private static final Class<?>[] CONSTRUCTOR_SIGNATURE = LayoutInflater.mConstructorSignature;
+
+    private static final int[] ATTRS_THEME = new int[] {
+            com.android.internal.R.attr.theme };
+
+    /** Set once a view of this layout failed to be constructed on a thread without a Looper. */
+    volatile boolean mRequiresLooper;
+
+    private final boolean mMerge;
+    private final Node[] mRoots;
+
+    private LayoutPlan(boolean merge, Node[] roots) {
+        mMerge = merge;
+        mRoots = roots;
+    }
+
+    /**
+     * Compiles the layout read by the parser.
+     *
+     * @return the plan, or null if the layout uses elements that are not supported.
+     */
+    static LayoutPlan compile(Context context, XmlPullParser parser)
+            throws XmlPullParserException, IOException {
+        int type;
+        while ((type = parser.next()) != XmlPullParser.START_TAG &&
+                type != XmlPullParser.END_DOCUMENT) {
+            // Empty
+        }
+        if (type != XmlPullParser.START_TAG) {
+            throw new InflateException(parser.getPositionDescription()
+                    + ": No start tag found!");
+        }
+
+        final ClassLoader classLoader = context.getClassLoader();
+        if (TAG_MERGE.equals(parser.getName())) {
+            final Node[] children = compileChildren(classLoader, parser);
+            return children != null ? new LayoutPlan(true, children) : null;
+        }
+        final Node root = compileNode(classLoader, parser);
+        return root != null ? new LayoutPlan(false, new Node[] { root }) : null;
+    }
+
+    private static Node[] compileChildren(ClassLoader classLoader, XmlPullParser parser)
+            throws XmlPullParserException, IOException {
+        final ArrayList<Node> children = new ArrayList<>();
+        final int depth = parser.getDepth();
+        int type;
+        while (((type = parser.next()) != XmlPullParser.END_TAG ||
+                parser.getDepth() > depth) && type != XmlPullParser.END_DOCUMENT) {
+            if (type != XmlPullParser.START_TAG) {
+                continue;
+            }
+            final Node child = compileNode(classLoader, parser);
+            if (child == null) {
+                return null;
+            }
+            children.add(child);
+        }
+        return children.toArray(new Node[children.size()]);
+    }
+
+    private static Node compileNode(ClassLoader classLoader, XmlPullParser parser)
+            throws XmlPullParserException, IOException {
+        final String tag = parser.getName();
+        final String className = TAG_VIEW.equals(tag)
+                ? parser.getAttributeValue(null, "class") : tag;
+        if (className == null) {
+            return null;
+        }
+        final Constructor<? extends View> constructor = findConstructor(classLoader, className);
+        if (constructor == null) {
+            return null;
+        }
+
+        final AttributeSet attrs = Xml.asAttributeSet(parser);
+        boolean hasTheme = attrs.getStyleAttribute() != 0;
+        for (int i = attrs.getAttributeCount() - 1; i >= 0 && !hasTheme; i--) {
+            hasTheme = attrs.getAttributeNameResource(i) == ATTRS_THEME[0];
+        }
+
+        final Node[] children = compileChildren(classLoader, parser);
+        return children != null ? new Node(tag, constructor, hasTheme, children) : null;
+    }
+
+    /**
+     * Returns the (Context, AttributeSet) constructor of the view class for a tag, or null if
+     * the tag is not a view class, as for the elements handled by the inflater itself.
+     */
+    private static Constructor<? extends View> findConstructor(ClassLoader classLoader,
+            String name) {
+        if (name.indexOf('.') != -1) {
+            return loadConstructor(classLoader, name);
+        }
+        for (String prefix : CLASS_PREFIXES) {
+            final Constructor<? extends View> constructor =
+                    loadConstructor(classLoader, prefix + name);
+            if (constructor != null) {
+                return constructor;
+            }
+        }
+        return null;
+    }
+
+    private static Constructor<? extends View> loadConstructor(ClassLoader classLoader,
+            String className) {
+        try {
+            final Class<?> clazz = classLoader.loadClass(className);
+            if (!View.class.isAssignableFrom(clazz)) {
+                return null;
+            }
+            final Constructor<? extends View> constructor =
+                    clazz.asSubclass(View.class).getConstructor(CONSTRUCTOR_SIGNATURE);
+            constructor.setAccessible(true);
+            return constructor;
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Inflates the layout read by the parser, which must be the file the plan was compiled from.
+     * Same contract as {@link LayoutInflater#inflate(XmlPullParser, ViewGroup, boolean)}.
+     */
+    View inflate(Context context, XmlResourceParser parser, ViewGroup root,
+            boolean attachToRoot) {
+        final AttributeSet attrs = Xml.asAttributeSet(parser);
+        View result = root;
+        try {
+            int type;
+            while ((type = parser.next()) != XmlPullParser.START_TAG &&
+                    type != XmlPullParser.END_DOCUMENT) {
+                // Empty
+            }
+            if (type != XmlPullParser.START_TAG) {
+                throw new InflateException(parser.getPositionDescription()
+                        + ": No start tag found!");
+            }
+
+            if (mMerge) {
+                if (root == null || !attachToRoot) {
+                    throw new InflateException("<merge /> can be used only with a valid "
+                            + "ViewGroup root and attachToRoot=true");
+                }
+                inflateChildren(parser, root, context, attrs, mRoots, false);
+            } else {
+                final Node node = mRoots[0];
+                final View temp = node.createView(parser, context, attrs);
+
+                ViewGroup.LayoutParams params = null;
+                if (root != null) {
+                    params = root.generateLayoutParams(attrs);
+                    if (!attachToRoot) {
+                        temp.setLayoutParams(params);
+                    }
+                }
+
+                inflateChildren(parser, temp, temp.getContext(), attrs, node.mChildren, true);
+
+                if (root != null && attachToRoot) {
+                    root.addView(temp, params);
+                }
+                if (root == null || !attachToRoot) {
+                    result = temp;
+                }
+            }
+        } catch (XmlPullParserException e) {
+            throw new InflateException(e.getMessage(), e);
+        } catch (InflateException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new InflateException(parser.getPositionDescription()
+                    + ": " + e.getMessage(), e);
+        }
+        return result;
+    }
+
+    private static void inflateChildren(XmlPullParser parser, View parent, Context context,
+            AttributeSet attrs, Node[] nodes, boolean finishInflate)
+            throws XmlPullParserException, IOException, ReflectiveOperationException {
+        final int depth = parser.getDepth();
+        int index = 0;
+        int type;
+        while (((type = parser.next()) != XmlPullParser.END_TAG ||
+                parser.getDepth() > depth) && type != XmlPullParser.END_DOCUMENT) {
+            if (type != XmlPullParser.START_TAG) {
+                continue;
+            }
+            if (index == nodes.length) {
+                throw new InflateException(parser.getPositionDescription()
+                        + ": Layout changed since it was compiled");
+            }
+            final Node node = nodes[index++];
+            final View view = node.createView(parser, context, attrs);
+            final ViewGroup viewGroup = (ViewGroup) parent;
+            final ViewGroup.LayoutParams params = viewGroup.generateLayoutParams(attrs);
+            inflateChildren(parser, view, view.getContext(), attrs, node.mChildren, true);
+            viewGroup.addView(view, params);
+        }
+
+        if (finishInflate) {
+            parent.onFinishInflate();
+        }
+    }
+
+    /**
+     * An element of the layout and the elements it contains.
+     */
+    private static final class Node {
+        final String mTag;
+        final Constructor<? extends View> mConstructor;
+        final boolean mHasTheme;
+        final Node[] mChildren;
+
+        Node(String tag, Constructor<? extends View> constructor, boolean hasTheme,
+                Node[] children) {
+            mTag = tag;
+            mConstructor = constructor;
+            mHasTheme = hasTheme;
+            mChildren = children;
+        }
+
+        View createView(XmlPullParser parser, Context context, AttributeSet attrs)
+                throws ReflectiveOperationException {
+            if (!mTag.equals(parser.getName())) {
+                throw new InflateException(parser.getPositionDescription()
+                        + ": Layout changed since it was compiled");
+            }
+            if (mHasTheme) {
+                final TypedArray ta = context.obtainStyledAttributes(attrs, ATTRS_THEME);
+                final int themeResId = ta.getResourceId(0, 0);
+                if (themeResId != 0) {
+                    context = new ContextThemeWrapper(context, themeResId);
+                }
+                ta.recycle();
+            }
+            return mConstructor.newInstance(context, attrs);
+        }
+    }
+}
@@ -765,6 +765,13 @@ public class View implements Drawable.Callback, KeyEvent.Callback,
      */
     private static boolean sIgnoreMeasureCache = false;
 
+    /**
+     * Use the measure cache of a view that has a layout pending. Its cache only holds the
+     * measurements made since it last requested a layout, so they are reused when a parent
+     * measures it again with the same specs in the same layout pass.
+     */
+    private static boolean sUseMeasureCacheWhenForced = true;
+
     /**
      * Ignore an optimization that skips unnecessary EXACTLY layout passes.
      */
@@ -20497,6 +20504,7 @@ public class View implements Drawable.Callback, KeyEvent.Callback,
         if ((mPrivateFlags3 & PFLAG3_MEASURE_NEEDED_BEFORE_LAYOUT) != 0) {
             onMeasure(mOldWidthMeasureSpec, mOldHeightMeasureSpec);
             mPrivateFlags3 &= ~PFLAG3_MEASURE_NEEDED_BEFORE_LAYOUT;
+            if (mAttachInfo != null) mAttachInfo.mOnMeasureCount++;
         }
 
         int oldL = mLeft;
@@ -22922,12 +22930,41 @@ public class View implements Drawable.Callback, KeyEvent.Callback,
         if (mParent != null && !mParent.isLayoutRequested()) {
             // mParent最终会到ViewRootImpl中
             mParent.requestLayout();
+        } else {
+            // The ancestors already have a layout pending, but they may have been measured
+            // since, with the previous measurement of this view.
+            clearAncestorMeasureCaches();
         }
         if (mAttachInfo != null && mAttachInfo.mViewRequestingLayout == this) {
             mAttachInfo.mViewRequestingLayout = null;
         }
     }
 
+    private void clearAncestorMeasureCaches() {
+        ViewParent parent = mParent;
+        // Nothing was measured since the caches of the last cleared parent and its ancestors
+        // were cleared, so the walk can stop there.
+        final View cleared = mAttachInfo != null ? mAttachInfo.mMeasureCacheClearedParent : null;
+        while (parent instanceof View && parent != cleared) {
+            final View view = (View) parent;
+            if (view.mMeasureCache != null) view.mMeasureCache.clear();
+            parent = view.mParent;
+        }
+        if (mAttachInfo != null && mParent instanceof View) {
+            mAttachInfo.mMeasureCacheClearedParent = (View) mParent;
+        }
+    }
+
+    /**
+     * Enables or disables the reuse of measurements made during the current layout pass by views
+     * that have a layout pending, for testing and benchmarking.
+     *
+     * @hide
+     */
+    public static void setMeasureCacheWhenForcedEnabled(boolean enabled) {
+        sUseMeasureCacheWhenForced = enabled;
+    }
+
     /**
      * Forces this view to be laid out during the next layout pass.
      * This method does not call requestLayout() or forceLayout()
@@ -22980,6 +23017,10 @@ public class View implements Drawable.Callback, KeyEvent.Callback,
         if (mMeasureCache == null) mMeasureCache = new LongSparseLongArray(2);
 
         final boolean forceLayout = (mPrivateFlags & PFLAG_FORCE_LAYOUT) == PFLAG_FORCE_LAYOUT;
+        if (mAttachInfo != null) {
+            mAttachInfo.mMeasureCount++;
+            mAttachInfo.mMeasureCacheClearedParent = null;
+        }
 
         // Optimize layout by avoiding an extra EXACTLY pass when the view is
         // already measured as the correct size. In API 23 and below, this
@@ -23012,7 +23053,10 @@ public class View implements Drawable.Callback, KeyEvent.Callback,
             resolveRtlPropertiesIfNeeded();
 
             // 如果强制绘制，则不取缓存的值，如果不是则去缓存找，如果有返回其索引，如果没有则返回-1
-            int cacheIndex = forceLayout ? -1 : mMeasureCache.indexOfKey(key);
+            // The cache is cleared whenever a layout is requested, so when one is pending it
+            // only holds measurements made since, which are still valid.
+            int cacheIndex = forceLayout && !sUseMeasureCacheWhenForced
+                    ? -1 : mMeasureCache.indexOfKey(key);
             // 如果强制绘制或者忽略缓存则调用onMeasure重新测量自己
             if (cacheIndex < 0 || sIgnoreMeasureCache) {
                 // measure ourselves, this should set the measured dimension flag back
@@ -23021,11 +23065,13 @@ public class View implements Drawable.Callback, KeyEvent.Callback,
                 // onMeasure执行完后，通过位操作，重置View的状态mPrivateFlags，将其标记为在layout之前
                 // 不必再进行测量的状态
                 mPrivateFlags3 &= ~PFLAG3_MEASURE_NEEDED_BEFORE_LAYOUT;
+                if (mAttachInfo != null) mAttachInfo.mOnMeasureCount++;
             } else {// 直接从缓存读取值，不需要再测量
                 long value = mMeasureCache.valueAt(cacheIndex);
                 // Casting a long to int drops the high 32 bits, no mask needed
                 setMeasuredDimensionRaw((int) (value >> 32), (int) value);
                 mPrivateFlags3 |= PFLAG3_MEASURE_NEEDED_BEFORE_LAYOUT;
+                if (mAttachInfo != null) mAttachInfo.mMeasureCacheHitCount++;
             }
 
             // 如果我们自定义的View重写了onMeasure方法，但是没有调用setMeasuredDimension()方法，
@@ -26688,6 +26734,21 @@ public class View implements Drawable.Callback, KeyEvent.Callback,
          */
         View mViewRequestingLayout;
 
+        /**
+         * Number of calls to measure(), to onMeasure() and of measurements read from the
+         * measure cache since the start of the current traversal. onMeasure() calls include
+         * those made by layout() for views whose last measurement came from the cache.
+         */
+        int mMeasureCount;
+        int mOnMeasureCount;
+        int mMeasureCacheHitCount;
+
+        /**
+         * The view from which requestLayout() last cleared the measure caches up to the root,
+         * or null if a view was measured since. See View#clearAncestorMeasureCaches().
+         */
+        View mMeasureCacheClearedParent;
+
         /**
          * Used to track views that need (at least) a partial relayout at their current size
          * during the next traversal.
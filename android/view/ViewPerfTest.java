@@ -23,6 +23,8 @@ import android.perftests.utils.PerfStatusReporter;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.filters.LargeTest;
 import android.widget.FrameLayout;
+import android.widget.RelativeLayout;
+import android.widget.TextView;
 
 import com.android.perftests.core.R;
 
@@ -55,4 +57,50 @@ public class ViewPerfTest {
             inflater.inflate(R.layout.twelve_key_entry, root, false);
         }
     }
+
+    @Test
+    public void testNestedRelayout() {
+        runNestedRelayout(true);
+    }
+
+    @Test
+    public void testNestedRelayout_NoCacheWhenForced() {
+        runNestedRelayout(false);
+    }
+
+    /**
+     * Measures and lays out nested RelativeLayouts after a layout request from the innermost
+     * view. A RelativeLayout measures each child twice, and a child that fills its width and
+     * has no vertical rules gets the same specs both times, so without reuse the leaf is
+     * measured once per combination of passes of its ancestors.
+     */
+    private void runNestedRelayout(boolean useCacheWhenForced) {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        final RelativeLayout root = new RelativeLayout(context);
+        RelativeLayout parent = root;
+        for (int i = 0; i < 6; i++) {
+            final RelativeLayout child = new RelativeLayout(context);
+            parent.addView(child, new RelativeLayout.LayoutParams(
+                    ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+            parent = child;
+        }
+        final TextView leaf = new TextView(context);
+        leaf.setText("Text");
+        parent.addView(leaf, new RelativeLayout.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+
+        final int widthSpec = View.MeasureSpec.makeMeasureSpec(1080, View.MeasureSpec.EXACTLY);
+        final int heightSpec = View.MeasureSpec.makeMeasureSpec(1920, View.MeasureSpec.EXACTLY);
+        View.setMeasureCacheWhenForcedEnabled(useCacheWhenForced);
+        try {
+            while (state.keepRunning()) {
+                leaf.requestLayout();
+                root.measure(widthSpec, heightSpec);
+                root.layout(0, 0, root.getMeasuredWidth(), root.getMeasuredHeight());
+            }
+        } finally {
+            View.setMeasureCacheWhenForcedEnabled(true);
+        }
+    }
 }
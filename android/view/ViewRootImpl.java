@@ -354,6 +354,12 @@ public final class ViewRootImpl implements ViewParent,
 
     public boolean mTraversalScheduled;
     int mTraversalBarrier;
+
+    // Measure counts of the last traversal, see AttachInfo.mMeasureCount.
+    int mLastTraversalMeasureCount;
+    int mLastTraversalOnMeasureCount;
+    int mLastTraversalMeasureCacheHitCount;
+
     boolean mWillDrawSoon;
     /** Set to true while in performTraversals for detecting when die(true) is called from internal
      * callbacks such as onMeasure, onPreDraw, onDraw and deferring doDie() until later. */
@@ -1251,6 +1257,33 @@ public final class ViewRootImpl implements ViewParent,
         }
     }
 
+    /**
+     * Returns the number of calls to {@link View#measure} during the last traversal.
+     * @hide
+     */
+    public int getLastTraversalMeasureCount() {
+        return mLastTraversalMeasureCount;
+    }
+
+    /**
+     * Returns the number of calls to {@link View#onMeasure} during the last traversal. This
+     * includes the calls {@link View#layout} makes for views whose last measurement was read
+     * from the measure cache.
+     * @hide
+     */
+    public int getLastTraversalOnMeasureCount() {
+        return mLastTraversalOnMeasureCount;
+    }
+
+    /**
+     * Returns the number of calls to {@link View#measure} during the last traversal that were
+     * answered from the measure cache of the view.
+     * @hide
+     */
+    public int getLastTraversalMeasureCacheHitCount() {
+        return mLastTraversalMeasureCacheHitCount;
+    }
+
     @Override
     public boolean isLayoutRequested() {
         return mLayoutRequested;
@@ -1490,9 +1523,17 @@ public final class ViewRootImpl implements ViewParent,
                 Debug.startMethodTracing("ViewAncestor");
             }
 
+            mAttachInfo.mMeasureCount = 0;
+            mAttachInfo.mOnMeasureCount = 0;
+            mAttachInfo.mMeasureCacheHitCount = 0;
+
             // 执行View绘制流程
             performTraversals();
 
+            mLastTraversalMeasureCount = mAttachInfo.mMeasureCount;
+            mLastTraversalOnMeasureCount = mAttachInfo.mOnMeasureCount;
+            mLastTraversalMeasureCacheHitCount = mAttachInfo.mMeasureCacheHitCount;
+
             if (mProfile) {
                 Debug.stopMethodTracing();
                 mProfile = false;
@@ -6814,6 +6855,12 @@ public final class ViewRootImpl implements ViewParent,
         } else {
             writer.println();
         }
+        writer.print(innerPrefix); writer.print("mLastTraversalMeasureCount=");
+                writer.print(mLastTraversalMeasureCount);
+                writer.print(" mLastTraversalOnMeasureCount=");
+                writer.print(mLastTraversalOnMeasureCount);
+                writer.print(" mLastTraversalMeasureCacheHitCount=");
+                writer.println(mLastTraversalMeasureCacheHitCount);
         mFirstInputStage.dump(innerPrefix, writer);
 
         mChoreographer.dump(prefix, writer);
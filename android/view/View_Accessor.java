@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.view;
+
+/**
+ * Class allowing access to package-protected methods/fields.
+ */
+public class View_Accessor {
+
+    /**
+     * Clears the layout request of the given view only, so that the next measure pass reuses its
+     * measurement if it gets the same measure specs. Its children keep their own requests.
+     */
+    public static void clearForceLayout(View view) {
+        view.mPrivateFlags &= ~View.PFLAG_FORCE_LAYOUT;
+    }
+}
@@ -578,6 +578,13 @@ public final class WindowManagerGlobal {
                     }
                 }
 
+                // Which callbacks the frames above were spent in, when they are recorded.
+                final Choreographer choreographer = Choreographer.getMainThreadInstance();
+                if (choreographer != null && choreographer.getFrameStats() != null) {
+                    pw.println();
+                    choreographer.dumpFrameStats("\t", pw);
+                }
+
                 pw.println("\nView hierarchy:\n");
 
                 int viewsCount = 0;
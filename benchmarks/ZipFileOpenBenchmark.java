@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package benchmarks;
+
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Param;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Opens the same archive over and over and looks up entries in it, with and without sharing
+ * lookups between open instances of the file. The shared lookups only pay off while another
+ * instance keeps the file open, as the class loaders of a process that share a jar do; the
+ * other cases show what they cost.
+ */
+public class ZipFileOpenBenchmark {
+    private static final int LOOKUPS = 16;
+
+    private File file;
+    private String[] names;
+    @Param({"128", "1024", "8192"}) int numEntries;
+    @Param({"true", "false"}) boolean cached;
+
+    @BeforeExperiment
+    protected void setUp() throws Exception {
+        System.setProperty("java.io.tmpdir", "/data/local/tmp");
+        file = File.createTempFile(getClass().getName(), ".zip");
+        file.deleteOnExit();
+        writeEntries(new ZipOutputStream(new FileOutputStream(file)), numEntries);
+
+        names = new String[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            // Every other lookup misses, like a class loader probing each dex path in turn.
+            names[i] = i % 2 == 0
+                    ? "res/" + Integer.toHexString(i * numEntries / LOOKUPS)
+                    : "classes/Missing" + i + ".class";
+        }
+        ZipFile.setCentralDirectoryCacheEnabled(cached);
+    }
+
+    @AfterExperiment
+    protected void tearDown() {
+        ZipFile.setCentralDirectoryCacheEnabled(true);
+    }
+
+    public void timeOpenClose(int reps) throws Exception {
+        for (int i = 0; i < reps; ++i) {
+            ZipFile zipFile = new ZipFile(file);
+            zipFile.close();
+        }
+    }
+
+    public void timeOpenGetEntriesClose(int reps) throws Exception {
+        for (int i = 0; i < reps; ++i) {
+            ZipFile zipFile = new ZipFile(file);
+            for (String name : names) {
+                zipFile.getEntry(name);
+            }
+            zipFile.close();
+        }
+    }
+
+    /** Opens while another instance keeps the file open, as when several loaders share it. */
+    public void timeOpenGetEntriesCloseWhileOpen(int reps) throws Exception {
+        ZipFile keepOpen = new ZipFile(file);
+        try {
+            for (int i = 0; i < reps; ++i) {
+                ZipFile zipFile = new ZipFile(file);
+                for (String name : names) {
+                    zipFile.getEntry(name);
+                }
+                zipFile.close();
+            }
+        } finally {
+            keepOpen.close();
+        }
+    }
+
+    public void timeGetEntry(int reps) throws Exception {
+        ZipFile zipFile = new ZipFile(file);
+        try {
+            for (int i = 0; i < reps; ++i) {
+                zipFile.getEntry(names[i % LOOKUPS]);
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    private static void writeEntries(ZipOutputStream out, int entryCount) throws IOException {
+        try {
+            for (int entry = 0; entry < entryCount; ++entry) {
+                out.putNextEntry(new ZipEntry("res/" + Integer.toHexString(entry)));
+                out.write(entry);
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
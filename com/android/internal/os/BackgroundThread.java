@@ -42,6 +42,7 @@ public final class BackgroundThread extends HandlerThread {
             looper.setTraceTag(Trace.TRACE_TAG_SYSTEM_SERVER);
             looper.setSlowLogThresholdMs(
                     SLOW_DISPATCH_THRESHOLD_MS, SLOW_DELIVERY_THRESHOLD_MS);
+            looper.getQueue().setDelayedMessageHeapEnabled(true);
             sHandler = new Handler(sInstance.getLooper());
         }
     }
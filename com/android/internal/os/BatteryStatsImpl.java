@@ -140,7 +140,7 @@ public class BatteryStatsImpl extends BatteryStats {
     private static final int MAGIC = 0xBA757475; // 'BATSTATS'
 
     // Current on-disk Parcel version
-    private static final int VERSION = 177 + (USE_OLD_HISTORY ? 1000 : 0);
+    private static final int VERSION = 178 + (USE_OLD_HISTORY ? 1000 : 0);
 
     // Maximum number of items we will record in the history.
     private static final int MAX_HISTORY_ITEMS;
@@ -2179,6 +2179,14 @@ public class BatteryStatsImpl extends BatteryStats {
             recomputeLastDuration(now, true);
         }
 
+        /**
+         * Returns true while the last added duration has not run out, so that the total can
+         * still change without the timer being touched.
+         */
+        boolean isInLastDurationLocked() {
+            return computeOverage(mClocks.elapsedRealtime() * 1000) > 0;
+        }
+
         @Override
         protected int computeCurrentCountLocked() {
             return mCount;
@@ -4740,7 +4748,7 @@ public class BatteryStatsImpl extends BatteryStats {
 
     public void reportExcessiveCpuLocked(int uid, String proc, long overTime, long usedTime) {
         uid = mapUid(uid);
-        Uid u = mUidStats.get(uid);
+        Uid u = getAvailableUidStatsLocked(uid);
         if (u != null) {
             u.reportExcessiveCpuLocked(proc, overTime, usedTime);
         }
@@ -6717,6 +6725,14 @@ public class BatteryStatsImpl extends BatteryStats {
         Counter mBluetoothScanResultBgCounter;
 
         int mProcessState = ActivityManager.PROCESS_STATE_NONEXISTENT;
+
+        /**
+         * Checkpoint section last marshalled for this uid, or null if it has been touched since.
+         * Only valid while mSummaryGeneration matches the generation of the owner's summary
+         * string table.
+         */
+        byte[] mSummarySection;
+        int mSummaryGeneration;
         StopwatchTimer[] mProcessStateTimer;
 
         boolean mInForegroundService = false;
@@ -7234,6 +7250,7 @@ public class BatteryStatsImpl extends BatteryStats {
         }
 
         public void noteResetAudioLocked(long elapsedRealtimeMs) {
+            invalidateSummaryLocked();
             if (mAudioTurnedOnTimer != null) {
                 mAudioTurnedOnTimer.stopAllRunningLocked(elapsedRealtimeMs);
             }
@@ -7258,6 +7275,7 @@ public class BatteryStatsImpl extends BatteryStats {
         }
 
         public void noteResetVideoLocked(long elapsedRealtimeMs) {
+            invalidateSummaryLocked();
             if (mVideoTurnedOnTimer != null) {
                 mVideoTurnedOnTimer.stopAllRunningLocked(elapsedRealtimeMs);
             }
@@ -7282,6 +7300,7 @@ public class BatteryStatsImpl extends BatteryStats {
         }
 
         public void noteResetFlashlightLocked(long elapsedRealtimeMs) {
+            invalidateSummaryLocked();
             if (mFlashlightTurnedOnTimer != null) {
                 mFlashlightTurnedOnTimer.stopAllRunningLocked(elapsedRealtimeMs);
             }
@@ -7306,6 +7325,7 @@ public class BatteryStatsImpl extends BatteryStats {
         }
 
         public void noteResetCameraLocked(long elapsedRealtimeMs) {
+            invalidateSummaryLocked();
             if (mCameraTurnedOnTimer != null) {
                 mCameraTurnedOnTimer.stopAllRunningLocked(elapsedRealtimeMs);
             }
@@ -7372,6 +7392,7 @@ public class BatteryStatsImpl extends BatteryStats {
         }
 
         public void noteResetBluetoothScanLocked(long elapsedRealtimeMs) {
+            invalidateSummaryLocked();
             if (mBluetoothScanTimer != null) {
                 mBluetoothScanTimer.stopAllRunningLocked(elapsedRealtimeMs);
             }
@@ -7859,6 +7880,75 @@ public class BatteryStatsImpl extends BatteryStats {
             mMobileRadioActiveCount = new LongSamplingCounter(mBsi.mOnBatteryTimeBase);
         }
 
+        /**
+         * Drops the checkpoint section of this uid, for changes made without going through
+         * {@link BatteryStatsImpl#getUidStatsLocked}, such as time base changes.
+         */
+        void invalidateSummaryLocked() {
+            mSummarySection = null;
+        }
+
+        /**
+         * Returns true if nothing written to this uid's summary is still accumulating, so
+         * that its marshalled summary stays valid until the uid is touched again.
+         */
+        boolean isSummaryStableLocked() {
+            if (mProcessState != ActivityManager.PROCESS_STATE_NONEXISTENT
+                    || mOnBatteryBackgroundTimeBase.isRunning()
+                    || mOnBatteryScreenOffBackgroundTimeBase.isRunning()) {
+                return false;
+            }
+            if (isRunningLocked(mWifiRunningTimer) || isRunningLocked(mFullWifiLockTimer)
+                    || isRunningLocked(mWifiScanTimer) || isRunningLocked(mWifiMulticastTimer)
+                    || isRunningLocked(mAudioTurnedOnTimer)
+                    || isRunningLocked(mVideoTurnedOnTimer)
+                    || isRunningLocked(mFlashlightTurnedOnTimer)
+                    || isRunningLocked(mCameraTurnedOnTimer)
+                    || isRunningLocked(mForegroundActivityTimer)
+                    || isRunningLocked(mForegroundServiceTimer)
+                    || isRunningLocked(mAggregatedPartialWakelockTimer)
+                    || isRunningLocked(mBluetoothScanTimer)
+                    || isRunningLocked(mBluetoothUnoptimizedScanTimer)
+                    || (mVibratorOnTimer != null && mVibratorOnTimer.isInLastDurationLocked())) {
+                return false;
+            }
+            for (int i = 0; i < NUM_WIFI_BATCHED_SCAN_BINS; i++) {
+                if (isRunningLocked(mWifiBatchedScanTimer[i])) {
+                    return false;
+                }
+            }
+            final ArrayMap<String, Wakelock> wakeStats = mWakelockStats.getMap();
+            for (int i = wakeStats.size() - 1; i >= 0; i--) {
+                final Wakelock wl = wakeStats.valueAt(i);
+                if (isRunningLocked(wl.mTimerFull) || isRunningLocked(wl.mTimerPartial)
+                        || isRunningLocked(wl.mTimerWindow) || isRunningLocked(wl.mTimerDraw)) {
+                    return false;
+                }
+            }
+            final ArrayMap<String, DualTimer> syncStats = mSyncStats.getMap();
+            for (int i = syncStats.size() - 1; i >= 0; i--) {
+                if (isRunningLocked(syncStats.valueAt(i))) {
+                    return false;
+                }
+            }
+            final ArrayMap<String, DualTimer> jobStats = mJobStats.getMap();
+            for (int i = jobStats.size() - 1; i >= 0; i--) {
+                if (isRunningLocked(jobStats.valueAt(i))) {
+                    return false;
+                }
+            }
+            for (int i = mSensorStats.size() - 1; i >= 0; i--) {
+                if (isRunningLocked(mSensorStats.valueAt(i).mTimer)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean isRunningLocked(StopwatchTimer timer) {
+            return timer != null && timer.isRunningLocked();
+        }
+
         /**
          * Clear all stats for this uid.  Returns true if the uid is completely
          * inactive so can be dropped.
@@ -9841,11 +9931,13 @@ public class BatteryStatsImpl extends BatteryStats {
         }
 
         public boolean updateOnBatteryBgTimeBase(long uptimeUs, long realtimeUs) {
+            invalidateSummaryLocked();
             boolean on = mBsi.mOnBatteryTimeBase.isRunning() && isInBackground();
             return mOnBatteryBackgroundTimeBase.setRunning(on, uptimeUs, realtimeUs);
         }
 
         public boolean updateOnBatteryScreenOffBgTimeBase(long uptimeUs, long realtimeUs) {
+            invalidateSummaryLocked();
             boolean on = mBsi.mOnBatteryScreenOffTimeBase.isRunning() && isInBackground();
             return mOnBatteryScreenOffBackgroundTimeBase.setRunning(on, uptimeUs, realtimeUs);
         }
@@ -10890,6 +10982,7 @@ public class BatteryStatsImpl extends BatteryStats {
         mModemActivity.reset(false);
         mNumConnectivityChange = mLoadedNumConnectivityChange = mUnpluggedNumConnectivityChange = 0;
 
+        clearSummaryStringsLocked();
         for (int i=0; i<mUidStats.size(); i++) {
             if (mUidStats.valueAt(i).reset(uptimeMillis * 1000, elapsedRealtimeMillis * 1000)) {
                 mUidStats.remove(mUidStats.keyAt(i));
@@ -13178,6 +13271,9 @@ public class BatteryStatsImpl extends BatteryStats {
         if (u == null) {
             u = new Uid(this, uid);
             mUidStats.put(uid, u);
+        } else {
+            // The caller is about to update it, so its checkpoint section is stale.
+            u.invalidateSummaryLocked();
         }
         return u;
     }
@@ -13188,6 +13284,9 @@ public class BatteryStatsImpl extends BatteryStats {
      */
     public Uid getAvailableUidStatsLocked(int uid) {
         Uid u = mUidStats.get(uid);
+        if (u != null) {
+            u.invalidateSummaryLocked();
+        }
         return u;
     }
 
@@ -13453,6 +13552,27 @@ public class BatteryStatsImpl extends BatteryStats {
     Parcel mPendingWrite = null;
     final ReentrantLock mWriteLock = new ReentrantLock();
 
+    /**
+     * Upper bound on the names kept in the summary string table before it is rebuilt.
+     */
+    static final int MAX_SUMMARY_STRINGS = 20000;
+
+    /**
+     * Table of the names referenced from the per-uid summary sections, in table order.  Indices
+     * stay stable until the table is cleared, which also bumps {@link #mSummaryGeneration} so
+     * that every section cached against the old table is marshalled again.
+     */
+    final ArrayList<String> mSummaryStrings = new ArrayList<>();
+    final HashMap<String, Integer> mSummaryStringIndex = new HashMap<>();
+    int mSummaryGeneration;
+
+    // Cost of the last checkpoint, reported in dumpsys.
+    long mLastSummaryMarshallTimeMs;
+    int mLastSummaryUidsWritten;
+    int mLastSummaryUidsReused;
+    volatile long mLastCommitTimeMs;
+    volatile int mLastCommitBytes;
+
     public void writeAsyncLocked() {
         writeLocked(false);
     }
@@ -13504,14 +13624,17 @@ public class BatteryStatsImpl extends BatteryStats {
         mWriteLock.lock();
         try {
             final long startTime = SystemClock.uptimeMillis();
+            final byte[] data = next.marshall();
             FileOutputStream stream = new FileOutputStream(mFile.chooseForWrite());
-            stream.write(next.marshall());
+            stream.write(data);
             stream.flush();
             FileUtils.sync(stream);
             stream.close();
             mFile.commit();
+            mLastCommitTimeMs = SystemClock.uptimeMillis() - startTime;
+            mLastCommitBytes = data.length;
             com.android.internal.logging.EventLogTags.writeCommitSysConfigFile(
-                    "batterystats", SystemClock.uptimeMillis() - startTime);
+                    "batterystats", mLastCommitTimeMs);
         } catch (IOException e) {
             Slog.w("BatteryStats", "Error writing battery statistics", e);
             mFile.rollback();
@@ -13882,285 +14005,354 @@ public class BatteryStatsImpl extends BatteryStats {
             }
         }
 
+        readUidSummariesFromParcelLocked(in);
+    }
+
+    /**
+     * Reads the per-uid part of the summary written by
+     * {@link #writeUidSummariesToParcelLocked}.  Each uid section is decoded on its own, so a
+     * corrupt section only loses that uid instead of the whole file.  Sections that decode
+     * cleanly are kept as the cached summary of their uid for the next checkpoint.
+     */
+    private void readUidSummariesFromParcelLocked(Parcel in) throws ParcelFormatException {
+        final int NS = in.readInt();
+        if (NS > MAX_SUMMARY_STRINGS) {
+            throw new ParcelFormatException("File corrupt: too many summary strings " + NS);
+        }
+        clearSummaryStringsLocked();
+        final String[] strings = new String[NS];
+        for (int is = 0; is < NS; is++) {
+            strings[is] = in.readString();
+            if (strings[is] == null) {
+                throw new ParcelFormatException("null summary string");
+            }
+            getSummaryStringIndexLocked(strings[is]);
+        }
+        if (mSummaryStrings.size() != NS) {
+            throw new ParcelFormatException("File corrupt: duplicate summary strings");
+        }
+
         final int NU = in.readInt();
         if (NU > 10000) {
             throw new ParcelFormatException("File corrupt: too many uids " + NU);
         }
-        for (int iu = 0; iu < NU; iu++) {
-            int uid = in.readInt();
-            Uid u = new Uid(this, uid);
-            mUidStats.put(uid, u);
-
-            u.mOnBatteryBackgroundTimeBase.readSummaryFromParcel(in);
-            u.mOnBatteryScreenOffBackgroundTimeBase.readSummaryFromParcel(in);
+        final Parcel uidIn = Parcel.obtain();
+        try {
+            for (int iu = 0; iu < NU; iu++) {
+                int uid = in.readInt();
+                byte[] section = in.createByteArray();
+                if (section == null) {
+                    throw new ParcelFormatException("File corrupt: missing section for uid "
+                            + uid);
+                }
+                uidIn.unmarshall(section, 0, section.length);
+                uidIn.setDataPosition(0);
 
-            u.mWifiRunning = false;
-            if (in.readInt() != 0) {
-                u.mWifiRunningTimer.readSummaryFromParcelLocked(in);
-            }
-            u.mFullWifiLockOut = false;
-            if (in.readInt() != 0) {
-                u.mFullWifiLockTimer.readSummaryFromParcelLocked(in);
-            }
-            u.mWifiScanStarted = false;
-            if (in.readInt() != 0) {
-                u.mWifiScanTimer.readSummaryFromParcelLocked(in);
-            }
-            u.mWifiBatchedScanBinStarted = Uid.NO_BATCHED_SCAN_STARTED;
-            for (int i = 0; i < Uid.NUM_WIFI_BATCHED_SCAN_BINS; i++) {
-                if (in.readInt() != 0) {
-                    u.makeWifiBatchedScanBin(i, null);
-                    u.mWifiBatchedScanTimer[i].readSummaryFromParcelLocked(in);
+                Uid u = new Uid(this, uid);
+                try {
+                    readUidSummaryFromParcelLocked(uidIn, u, strings);
+                } catch (RuntimeException e) {
+                    Slog.w(TAG, "Dropping corrupt summary of uid " + uid, e);
+                    // Nothing is running on a freshly read uid, so this detaches it from the
+                    // time bases again.
+                    u.reset(mClocks.uptimeMillis() * 1000, mClocks.elapsedRealtime() * 1000);
+                    continue;
+                }
+                mUidStats.put(uid, u);
+                if (u.isSummaryStableLocked()) {
+                    u.mSummarySection = section;
+                    u.mSummaryGeneration = mSummaryGeneration;
                 }
             }
-            u.mWifiMulticastEnabled = false;
-            if (in.readInt() != 0) {
-                u.mWifiMulticastTimer.readSummaryFromParcelLocked(in);
-            }
-            if (in.readInt() != 0) {
-                u.createAudioTurnedOnTimerLocked().readSummaryFromParcelLocked(in);
-            }
-            if (in.readInt() != 0) {
-                u.createVideoTurnedOnTimerLocked().readSummaryFromParcelLocked(in);
-            }
-            if (in.readInt() != 0) {
-                u.createFlashlightTurnedOnTimerLocked().readSummaryFromParcelLocked(in);
-            }
-            if (in.readInt() != 0) {
-                u.createCameraTurnedOnTimerLocked().readSummaryFromParcelLocked(in);
-            }
-            if (in.readInt() != 0) {
-                u.createForegroundActivityTimerLocked().readSummaryFromParcelLocked(in);
-            }
-            if (in.readInt() != 0) {
-                u.createForegroundServiceTimerLocked().readSummaryFromParcelLocked(in);
-            }
-            if (in.readInt() != 0) {
-                u.createAggregatedPartialWakelockTimerLocked().readSummaryFromParcelLocked(in);
-            }
-            if (in.readInt() != 0) {
-                u.createBluetoothScanTimerLocked().readSummaryFromParcelLocked(in);
-            }
-            if (in.readInt() != 0) {
-                u.createBluetoothUnoptimizedScanTimerLocked().readSummaryFromParcelLocked(in);
-            }
+        } finally {
+            uidIn.recycle();
+        }
+    }
+
+    private static String readSummaryString(Parcel in, String[] strings) {
+        final int index = in.readInt();
+        if (index < 0 || index >= strings.length) {
+            throw new ParcelFormatException("File corrupt: bad summary string index " + index);
+        }
+        return strings[index];
+    }
+
+    /**
+     * Reads the summary section of a single uid written by
+     * {@link #writeUidSummaryToParcelLocked}.
+     */
+    private void readUidSummaryFromParcelLocked(Parcel in, Uid u, String[] strings)
+            throws ParcelFormatException {
+        u.mOnBatteryBackgroundTimeBase.readSummaryFromParcel(in);
+        u.mOnBatteryScreenOffBackgroundTimeBase.readSummaryFromParcel(in);
+
+        u.mWifiRunning = false;
+        if (in.readInt() != 0) {
+            u.mWifiRunningTimer.readSummaryFromParcelLocked(in);
+        }
+        u.mFullWifiLockOut = false;
+        if (in.readInt() != 0) {
+            u.mFullWifiLockTimer.readSummaryFromParcelLocked(in);
+        }
+        u.mWifiScanStarted = false;
+        if (in.readInt() != 0) {
+            u.mWifiScanTimer.readSummaryFromParcelLocked(in);
+        }
+        u.mWifiBatchedScanBinStarted = Uid.NO_BATCHED_SCAN_STARTED;
+        for (int i = 0; i < Uid.NUM_WIFI_BATCHED_SCAN_BINS; i++) {
             if (in.readInt() != 0) {
-                u.createBluetoothScanResultCounterLocked().readSummaryFromParcelLocked(in);
+                u.makeWifiBatchedScanBin(i, null);
+                u.mWifiBatchedScanTimer[i].readSummaryFromParcelLocked(in);
             }
+        }
+        u.mWifiMulticastEnabled = false;
+        if (in.readInt() != 0) {
+            u.mWifiMulticastTimer.readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createAudioTurnedOnTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createVideoTurnedOnTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createFlashlightTurnedOnTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createCameraTurnedOnTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createForegroundActivityTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createForegroundServiceTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createAggregatedPartialWakelockTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createBluetoothScanTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createBluetoothUnoptimizedScanTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createBluetoothScanResultCounterLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createBluetoothScanResultBgCounterLocked().readSummaryFromParcelLocked(in);
+        }
+        u.mProcessState = ActivityManager.PROCESS_STATE_NONEXISTENT;
+        for (int i = 0; i < Uid.NUM_PROCESS_STATE; i++) {
             if (in.readInt() != 0) {
-                u.createBluetoothScanResultBgCounterLocked().readSummaryFromParcelLocked(in);
+                u.makeProcessState(i, null);
+                u.mProcessStateTimer[i].readSummaryFromParcelLocked(in);
             }
-            u.mProcessState = ActivityManager.PROCESS_STATE_NONEXISTENT;
-            for (int i = 0; i < Uid.NUM_PROCESS_STATE; i++) {
-                if (in.readInt() != 0) {
-                    u.makeProcessState(i, null);
-                    u.mProcessStateTimer[i].readSummaryFromParcelLocked(in);
-                }
+        }
+        if (in.readInt() != 0) {
+            u.createVibratorOnTimerLocked().readSummaryFromParcelLocked(in);
+        }
+
+        if (in.readInt() != 0) {
+            if (u.mUserActivityCounters == null) {
+                u.initUserActivityLocked();
             }
-            if (in.readInt() != 0) {
-                u.createVibratorOnTimerLocked().readSummaryFromParcelLocked(in);
+            for (int i=0; i<Uid.NUM_USER_ACTIVITY_TYPES; i++) {
+                u.mUserActivityCounters[i].readSummaryFromParcelLocked(in);
             }
+        }
 
-            if (in.readInt() != 0) {
-                if (u.mUserActivityCounters == null) {
-                    u.initUserActivityLocked();
-                }
-                for (int i=0; i<Uid.NUM_USER_ACTIVITY_TYPES; i++) {
-                    u.mUserActivityCounters[i].readSummaryFromParcelLocked(in);
-                }
+        if (in.readInt() != 0) {
+            if (u.mNetworkByteActivityCounters == null) {
+                u.initNetworkActivityLocked();
             }
-
-            if (in.readInt() != 0) {
-                if (u.mNetworkByteActivityCounters == null) {
-                    u.initNetworkActivityLocked();
-                }
-                for (int i = 0; i < NUM_NETWORK_ACTIVITY_TYPES; i++) {
-                    u.mNetworkByteActivityCounters[i].readSummaryFromParcelLocked(in);
-                    u.mNetworkPacketActivityCounters[i].readSummaryFromParcelLocked(in);
-                }
-                u.mMobileRadioActiveTime.readSummaryFromParcelLocked(in);
-                u.mMobileRadioActiveCount.readSummaryFromParcelLocked(in);
+            for (int i = 0; i < NUM_NETWORK_ACTIVITY_TYPES; i++) {
+                u.mNetworkByteActivityCounters[i].readSummaryFromParcelLocked(in);
+                u.mNetworkPacketActivityCounters[i].readSummaryFromParcelLocked(in);
             }
+            u.mMobileRadioActiveTime.readSummaryFromParcelLocked(in);
+            u.mMobileRadioActiveCount.readSummaryFromParcelLocked(in);
+        }
 
-            u.mUserCpuTime.readSummaryFromParcelLocked(in);
-            u.mSystemCpuTime.readSummaryFromParcelLocked(in);
+        u.mUserCpuTime.readSummaryFromParcelLocked(in);
+        u.mSystemCpuTime.readSummaryFromParcelLocked(in);
 
-            if (in.readInt() != 0) {
-                final int numClusters = in.readInt();
-                if (mPowerProfile != null && mPowerProfile.getNumCpuClusters() != numClusters) {
-                    throw new ParcelFormatException("Incompatible cpu cluster arrangement");
-                }
+        if (in.readInt() != 0) {
+            final int numClusters = in.readInt();
+            if (mPowerProfile != null && mPowerProfile.getNumCpuClusters() != numClusters) {
+                throw new ParcelFormatException("Incompatible cpu cluster arrangement");
+            }
 
-                u.mCpuClusterSpeedTimesUs = new LongSamplingCounter[numClusters][];
-                for (int cluster = 0; cluster < numClusters; cluster++) {
-                    if (in.readInt() != 0) {
-                        final int NSB = in.readInt();
-                        if (mPowerProfile != null &&
-                                mPowerProfile.getNumSpeedStepsInCpuCluster(cluster) != NSB) {
-                            throw new ParcelFormatException("File corrupt: too many speed bins " +
-                                    NSB);
-                        }
+            u.mCpuClusterSpeedTimesUs = new LongSamplingCounter[numClusters][];
+            for (int cluster = 0; cluster < numClusters; cluster++) {
+                if (in.readInt() != 0) {
+                    final int NSB = in.readInt();
+                    if (mPowerProfile != null &&
+                            mPowerProfile.getNumSpeedStepsInCpuCluster(cluster) != NSB) {
+                        throw new ParcelFormatException("File corrupt: too many speed bins " +
+                                NSB);
+                    }
 
-                        u.mCpuClusterSpeedTimesUs[cluster] = new LongSamplingCounter[NSB];
-                        for (int speed = 0; speed < NSB; speed++) {
-                            if (in.readInt() != 0) {
-                                u.mCpuClusterSpeedTimesUs[cluster][speed] = new LongSamplingCounter(
-                                        mOnBatteryTimeBase);
-                                u.mCpuClusterSpeedTimesUs[cluster][speed].readSummaryFromParcelLocked(in);
-                            }
+                    u.mCpuClusterSpeedTimesUs[cluster] = new LongSamplingCounter[NSB];
+                    for (int speed = 0; speed < NSB; speed++) {
+                        if (in.readInt() != 0) {
+                            u.mCpuClusterSpeedTimesUs[cluster][speed] = new LongSamplingCounter(
+                                    mOnBatteryTimeBase);
+                            u.mCpuClusterSpeedTimesUs[cluster][speed].readSummaryFromParcelLocked(in);
                         }
-                    } else {
-                        u.mCpuClusterSpeedTimesUs[cluster] = null;
                     }
+                } else {
+                    u.mCpuClusterSpeedTimesUs[cluster] = null;
                 }
-            } else {
-                u.mCpuClusterSpeedTimesUs = null;
             }
+        } else {
+            u.mCpuClusterSpeedTimesUs = null;
+        }
 
-            u.mCpuFreqTimeMs = LongSamplingCounterArray.readSummaryFromParcelLocked(
-                    in, mOnBatteryTimeBase);
-            u.mScreenOffCpuFreqTimeMs = LongSamplingCounterArray.readSummaryFromParcelLocked(
-                    in, mOnBatteryScreenOffTimeBase);
+        u.mCpuFreqTimeMs = LongSamplingCounterArray.readSummaryFromParcelLocked(
+                in, mOnBatteryTimeBase);
+        u.mScreenOffCpuFreqTimeMs = LongSamplingCounterArray.readSummaryFromParcelLocked(
+                in, mOnBatteryScreenOffTimeBase);
 
-            u.mCpuActiveTimeMs.readSummaryFromParcelLocked(in);
-            u.mCpuClusterTimesMs.readSummaryFromParcelLocked(in);
+        u.mCpuActiveTimeMs.readSummaryFromParcelLocked(in);
+        u.mCpuClusterTimesMs.readSummaryFromParcelLocked(in);
 
-            int length = in.readInt();
-            if (length == Uid.NUM_PROCESS_STATE) {
-                u.mProcStateTimeMs = new LongSamplingCounterArray[length];
-                for (int procState = 0; procState < length; ++procState) {
-                    u.mProcStateTimeMs[procState]
-                            = LongSamplingCounterArray.readSummaryFromParcelLocked(
-                                    in, mOnBatteryTimeBase);
-                }
-            } else {
-                u.mProcStateTimeMs = null;
+        int length = in.readInt();
+        if (length == Uid.NUM_PROCESS_STATE) {
+            u.mProcStateTimeMs = new LongSamplingCounterArray[length];
+            for (int procState = 0; procState < length; ++procState) {
+                u.mProcStateTimeMs[procState]
+                        = LongSamplingCounterArray.readSummaryFromParcelLocked(
+                                in, mOnBatteryTimeBase);
             }
-            length = in.readInt();
-            if (length == Uid.NUM_PROCESS_STATE) {
-                u.mProcStateScreenOffTimeMs = new LongSamplingCounterArray[length];
-                for (int procState = 0; procState < length; ++procState) {
-                    u.mProcStateScreenOffTimeMs[procState]
-                            = LongSamplingCounterArray.readSummaryFromParcelLocked(
-                                    in, mOnBatteryScreenOffTimeBase);
-                }
-            } else {
-                u.mProcStateScreenOffTimeMs = null;
+        } else {
+            u.mProcStateTimeMs = null;
+        }
+        length = in.readInt();
+        if (length == Uid.NUM_PROCESS_STATE) {
+            u.mProcStateScreenOffTimeMs = new LongSamplingCounterArray[length];
+            for (int procState = 0; procState < length; ++procState) {
+                u.mProcStateScreenOffTimeMs[procState]
+                        = LongSamplingCounterArray.readSummaryFromParcelLocked(
+                                in, mOnBatteryScreenOffTimeBase);
             }
+        } else {
+            u.mProcStateScreenOffTimeMs = null;
+        }
 
-            if (in.readInt() != 0) {
-                u.mMobileRadioApWakeupCount = new LongSamplingCounter(mOnBatteryTimeBase);
-                u.mMobileRadioApWakeupCount.readSummaryFromParcelLocked(in);
-            } else {
-                u.mMobileRadioApWakeupCount = null;
-            }
+        if (in.readInt() != 0) {
+            u.mMobileRadioApWakeupCount = new LongSamplingCounter(mOnBatteryTimeBase);
+            u.mMobileRadioApWakeupCount.readSummaryFromParcelLocked(in);
+        } else {
+            u.mMobileRadioApWakeupCount = null;
+        }
 
-            if (in.readInt() != 0) {
-                u.mWifiRadioApWakeupCount = new LongSamplingCounter(mOnBatteryTimeBase);
-                u.mWifiRadioApWakeupCount.readSummaryFromParcelLocked(in);
-            } else {
-                u.mWifiRadioApWakeupCount = null;
-            }
+        if (in.readInt() != 0) {
+            u.mWifiRadioApWakeupCount = new LongSamplingCounter(mOnBatteryTimeBase);
+            u.mWifiRadioApWakeupCount.readSummaryFromParcelLocked(in);
+        } else {
+            u.mWifiRadioApWakeupCount = null;
+        }
 
-            int NW = in.readInt();
-            if (NW > (MAX_WAKELOCKS_PER_UID+1)) {
-                throw new ParcelFormatException("File corrupt: too many wake locks " + NW);
-            }
-            for (int iw = 0; iw < NW; iw++) {
-                String wlName = in.readString();
-                u.readWakeSummaryFromParcelLocked(wlName, in);
-            }
+        int NW = in.readInt();
+        if (NW > (MAX_WAKELOCKS_PER_UID+1)) {
+            throw new ParcelFormatException("File corrupt: too many wake locks " + NW);
+        }
+        for (int iw = 0; iw < NW; iw++) {
+            String wlName = readSummaryString(in, strings);
+            u.readWakeSummaryFromParcelLocked(wlName, in);
+        }
 
-            int NS = in.readInt();
-            if (NS > (MAX_WAKELOCKS_PER_UID+1)) {
-                throw new ParcelFormatException("File corrupt: too many syncs " + NS);
-            }
-            for (int is = 0; is < NS; is++) {
-                String name = in.readString();
-                u.readSyncSummaryFromParcelLocked(name, in);
-            }
+        int NS = in.readInt();
+        if (NS > (MAX_WAKELOCKS_PER_UID+1)) {
+            throw new ParcelFormatException("File corrupt: too many syncs " + NS);
+        }
+        for (int is = 0; is < NS; is++) {
+            String name = readSummaryString(in, strings);
+            u.readSyncSummaryFromParcelLocked(name, in);
+        }
 
-            int NJ = in.readInt();
-            if (NJ > (MAX_WAKELOCKS_PER_UID+1)) {
-                throw new ParcelFormatException("File corrupt: too many job timers " + NJ);
-            }
-            for (int ij = 0; ij < NJ; ij++) {
-                String name = in.readString();
-                u.readJobSummaryFromParcelLocked(name, in);
-            }
+        int NJ = in.readInt();
+        if (NJ > (MAX_WAKELOCKS_PER_UID+1)) {
+            throw new ParcelFormatException("File corrupt: too many job timers " + NJ);
+        }
+        for (int ij = 0; ij < NJ; ij++) {
+            String name = readSummaryString(in, strings);
+            u.readJobSummaryFromParcelLocked(name, in);
+        }
 
-            u.readJobCompletionsFromParcelLocked(in);
+        u.readJobCompletionsFromParcelLocked(in);
 
-            u.mJobsDeferredEventCount.readSummaryFromParcelLocked(in);
-            u.mJobsDeferredCount.readSummaryFromParcelLocked(in);
-            u.mJobsFreshnessTimeMs.readSummaryFromParcelLocked(in);
-            for (int i = 0; i < JOB_FRESHNESS_BUCKETS.length; i++) {
-                if (in.readInt() != 0) {
-                    u.mJobsFreshnessBuckets[i] = new Counter(u.mBsi.mOnBatteryTimeBase);
-                    u.mJobsFreshnessBuckets[i].readSummaryFromParcelLocked(in);
-                }
+        u.mJobsDeferredEventCount.readSummaryFromParcelLocked(in);
+        u.mJobsDeferredCount.readSummaryFromParcelLocked(in);
+        u.mJobsFreshnessTimeMs.readSummaryFromParcelLocked(in);
+        for (int i = 0; i < JOB_FRESHNESS_BUCKETS.length; i++) {
+            if (in.readInt() != 0) {
+                u.mJobsFreshnessBuckets[i] = new Counter(u.mBsi.mOnBatteryTimeBase);
+                u.mJobsFreshnessBuckets[i].readSummaryFromParcelLocked(in);
             }
+        }
 
-            int NP = in.readInt();
-            if (NP > 1000) {
-                throw new ParcelFormatException("File corrupt: too many sensors " + NP);
-            }
-            for (int is = 0; is < NP; is++) {
-                int seNumber = in.readInt();
-                if (in.readInt() != 0) {
-                    u.getSensorTimerLocked(seNumber, true).readSummaryFromParcelLocked(in);
-                }
+        int NP = in.readInt();
+        if (NP > 1000) {
+            throw new ParcelFormatException("File corrupt: too many sensors " + NP);
+        }
+        for (int is = 0; is < NP; is++) {
+            int seNumber = in.readInt();
+            if (in.readInt() != 0) {
+                u.getSensorTimerLocked(seNumber, true).readSummaryFromParcelLocked(in);
             }
+        }
+
+        NP = in.readInt();
+        if (NP > 1000) {
+            throw new ParcelFormatException("File corrupt: too many processes " + NP);
+        }
+        for (int ip = 0; ip < NP; ip++) {
+            String procName = readSummaryString(in, strings);
+            Uid.Proc p = u.getProcessStatsLocked(procName);
+            p.mUserTime = p.mLoadedUserTime = in.readLong();
+            p.mSystemTime = p.mLoadedSystemTime = in.readLong();
+            p.mForegroundTime = p.mLoadedForegroundTime = in.readLong();
+            p.mStarts = p.mLoadedStarts = in.readInt();
+            p.mNumCrashes = p.mLoadedNumCrashes = in.readInt();
+            p.mNumAnrs = p.mLoadedNumAnrs = in.readInt();
+            p.readExcessivePowerFromParcelLocked(in);
+        }
 
-            NP = in.readInt();
-            if (NP > 1000) {
-                throw new ParcelFormatException("File corrupt: too many processes " + NP);
+        NP = in.readInt();
+        if (NP > 10000) {
+            throw new ParcelFormatException("File corrupt: too many packages " + NP);
+        }
+        for (int ip = 0; ip < NP; ip++) {
+            String pkgName = readSummaryString(in, strings);
+            Uid.Pkg p = u.getPackageStatsLocked(pkgName);
+            final int NWA = in.readInt();
+            if (NWA > 1000) {
+                throw new ParcelFormatException("File corrupt: too many wakeup alarms " + NWA);
             }
-            for (int ip = 0; ip < NP; ip++) {
-                String procName = in.readString();
-                Uid.Proc p = u.getProcessStatsLocked(procName);
-                p.mUserTime = p.mLoadedUserTime = in.readLong();
-                p.mSystemTime = p.mLoadedSystemTime = in.readLong();
-                p.mForegroundTime = p.mLoadedForegroundTime = in.readLong();
-                p.mStarts = p.mLoadedStarts = in.readInt();
-                p.mNumCrashes = p.mLoadedNumCrashes = in.readInt();
-                p.mNumAnrs = p.mLoadedNumAnrs = in.readInt();
-                p.readExcessivePowerFromParcelLocked(in);
+            p.mWakeupAlarms.clear();
+            for (int iwa=0; iwa<NWA; iwa++) {
+                String tag = readSummaryString(in, strings);
+                Counter c = new Counter(mOnBatteryScreenOffTimeBase);
+                c.readSummaryFromParcelLocked(in);
+                p.mWakeupAlarms.put(tag, c);
             }
-
-            NP = in.readInt();
-            if (NP > 10000) {
-                throw new ParcelFormatException("File corrupt: too many packages " + NP);
+            NS = in.readInt();
+            if (NS > 1000) {
+                throw new ParcelFormatException("File corrupt: too many services " + NS);
             }
-            for (int ip = 0; ip < NP; ip++) {
-                String pkgName = in.readString();
-                Uid.Pkg p = u.getPackageStatsLocked(pkgName);
-                final int NWA = in.readInt();
-                if (NWA > 1000) {
-                    throw new ParcelFormatException("File corrupt: too many wakeup alarms " + NWA);
-                }
-                p.mWakeupAlarms.clear();
-                for (int iwa=0; iwa<NWA; iwa++) {
-                    String tag = in.readString();
-                    Counter c = new Counter(mOnBatteryScreenOffTimeBase);
-                    c.readSummaryFromParcelLocked(in);
-                    p.mWakeupAlarms.put(tag, c);
-                }
-                NS = in.readInt();
-                if (NS > 1000) {
-                    throw new ParcelFormatException("File corrupt: too many services " + NS);
-                }
-                for (int is = 0; is < NS; is++) {
-                    String servName = in.readString();
-                    Uid.Pkg.Serv s = u.getServiceStatsLocked(pkgName, servName);
-                    s.mStartTime = s.mLoadedStartTime = in.readLong();
-                    s.mStarts = s.mLoadedStarts = in.readInt();
-                    s.mLaunches = s.mLoadedLaunches = in.readInt();
-                }
+            for (int is = 0; is < NS; is++) {
+                String servName = readSummaryString(in, strings);
+                Uid.Pkg.Serv s = u.getServiceStatsLocked(pkgName, servName);
+                s.mStartTime = s.mLoadedStartTime = in.readLong();
+                s.mStarts = s.mLoadedStarts = in.readInt();
+                s.mLaunches = s.mLoadedLaunches = in.readInt();
             }
         }
     }
 
+
     /**
      * Writes a summary of the statistics to a Parcel, in a format suitable to be written to
      * disk.  This format does not allow a lossless round-trip.
@@ -14343,328 +14535,414 @@ public class BatteryStatsImpl extends BatteryStats {
             }
         }
 
+        writeUidSummariesToParcelLocked(out, NOW_SYS, NOWREAL_SYS);
+    }
+
+    /**
+     * Writes the per-uid part of the summary.  The names referenced by the uids (wakelocks,
+     * syncs, jobs, processes, packages...) are written once up front as a string table, followed
+     * by one length-prefixed section per uid.  A uid with nothing still accumulating is
+     * marshalled once and its section bytes are reused by later checkpoints until the uid is
+     * touched again, so a checkpoint only pays for the uids that actually changed.
+     */
+    private void writeUidSummariesToParcelLocked(Parcel out, long NOW_SYS, long NOWREAL_SYS) {
+        final long startTime = SystemClock.uptimeMillis();
+        if (mSummaryStrings.size() > MAX_SUMMARY_STRINGS) {
+            // Names of long gone wakelocks and packages only ever accumulate in the table, so
+            // start over with a fresh one; every uid gets re-marshalled against it.
+            clearSummaryStringsLocked();
+        }
+
         final int NU = mUidStats.size();
+        final byte[][] sections = new byte[NU][];
+        int numReused = 0;
+        Parcel uidOut = null;
+        for (int iu = 0; iu < NU; iu++) {
+            Uid u = mUidStats.valueAt(iu);
+            if (u.mSummarySection != null && u.mSummaryGeneration == mSummaryGeneration
+                    && u.isSummaryStableLocked()) {
+                sections[iu] = u.mSummarySection;
+                numReused++;
+                continue;
+            }
+            if (uidOut == null) {
+                uidOut = Parcel.obtain();
+            } else {
+                uidOut.setDataSize(0);
+                uidOut.setDataPosition(0);
+            }
+            writeUidSummaryToParcelLocked(uidOut, u, NOW_SYS, NOWREAL_SYS);
+            sections[iu] = uidOut.marshall();
+            if (u.isSummaryStableLocked()) {
+                u.mSummarySection = sections[iu];
+                u.mSummaryGeneration = mSummaryGeneration;
+            } else {
+                u.mSummarySection = null;
+            }
+        }
+        if (uidOut != null) {
+            uidOut.recycle();
+        }
+
+        final int NS = mSummaryStrings.size();
+        out.writeInt(NS);
+        for (int is = 0; is < NS; is++) {
+            out.writeString(mSummaryStrings.get(is));
+        }
         out.writeInt(NU);
         for (int iu = 0; iu < NU; iu++) {
             out.writeInt(mUidStats.keyAt(iu));
-            Uid u = mUidStats.valueAt(iu);
+            out.writeByteArray(sections[iu]);
+        }
 
-            u.mOnBatteryBackgroundTimeBase.writeSummaryToParcel(out, NOW_SYS, NOWREAL_SYS);
-            u.mOnBatteryScreenOffBackgroundTimeBase.writeSummaryToParcel(out, NOW_SYS, NOWREAL_SYS);
+        mLastSummaryUidsWritten = NU - numReused;
+        mLastSummaryUidsReused = numReused;
+        mLastSummaryMarshallTimeMs = SystemClock.uptimeMillis() - startTime;
+    }
 
-            if (u.mWifiRunningTimer != null) {
+    /**
+     * Writes the summary section of a single uid.  Names are written as indices into the
+     * summary string table.
+     */
+    private void writeUidSummaryToParcelLocked(Parcel out, Uid u, long NOW_SYS,
+            long NOWREAL_SYS) {
+        u.mOnBatteryBackgroundTimeBase.writeSummaryToParcel(out, NOW_SYS, NOWREAL_SYS);
+        u.mOnBatteryScreenOffBackgroundTimeBase.writeSummaryToParcel(out, NOW_SYS, NOWREAL_SYS);
+
+        if (u.mWifiRunningTimer != null) {
+            out.writeInt(1);
+            u.mWifiRunningTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mFullWifiLockTimer != null) {
+            out.writeInt(1);
+            u.mFullWifiLockTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mWifiScanTimer != null) {
+            out.writeInt(1);
+            u.mWifiScanTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        for (int i = 0; i < Uid.NUM_WIFI_BATCHED_SCAN_BINS; i++) {
+            if (u.mWifiBatchedScanTimer[i] != null) {
                 out.writeInt(1);
-                u.mWifiRunningTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+                u.mWifiBatchedScanTimer[i].writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
-            if (u.mFullWifiLockTimer != null) {
+        }
+        if (u.mWifiMulticastTimer != null) {
+            out.writeInt(1);
+            u.mWifiMulticastTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mAudioTurnedOnTimer != null) {
+            out.writeInt(1);
+            u.mAudioTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mVideoTurnedOnTimer != null) {
+            out.writeInt(1);
+            u.mVideoTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mFlashlightTurnedOnTimer != null) {
+            out.writeInt(1);
+            u.mFlashlightTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mCameraTurnedOnTimer != null) {
+            out.writeInt(1);
+            u.mCameraTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mForegroundActivityTimer != null) {
+            out.writeInt(1);
+            u.mForegroundActivityTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mForegroundServiceTimer != null) {
+            out.writeInt(1);
+            u.mForegroundServiceTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mAggregatedPartialWakelockTimer != null) {
+            out.writeInt(1);
+            u.mAggregatedPartialWakelockTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mBluetoothScanTimer != null) {
+            out.writeInt(1);
+            u.mBluetoothScanTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mBluetoothUnoptimizedScanTimer != null) {
+            out.writeInt(1);
+            u.mBluetoothUnoptimizedScanTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mBluetoothScanResultCounter != null) {
+            out.writeInt(1);
+            u.mBluetoothScanResultCounter.writeSummaryFromParcelLocked(out);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mBluetoothScanResultBgCounter != null) {
+            out.writeInt(1);
+            u.mBluetoothScanResultBgCounter.writeSummaryFromParcelLocked(out);
+        } else {
+            out.writeInt(0);
+        }
+        for (int i = 0; i < Uid.NUM_PROCESS_STATE; i++) {
+            if (u.mProcessStateTimer[i] != null) {
                 out.writeInt(1);
-                u.mFullWifiLockTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+                u.mProcessStateTimer[i].writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
-            if (u.mWifiScanTimer != null) {
-                out.writeInt(1);
-                u.mWifiScanTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
+        }
+        if (u.mVibratorOnTimer != null) {
+            out.writeInt(1);
+            u.mVibratorOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+
+        if (u.mUserActivityCounters == null) {
+            out.writeInt(0);
+        } else {
+            out.writeInt(1);
+            for (int i=0; i<Uid.NUM_USER_ACTIVITY_TYPES; i++) {
+                u.mUserActivityCounters[i].writeSummaryFromParcelLocked(out);
             }
-            for (int i = 0; i < Uid.NUM_WIFI_BATCHED_SCAN_BINS; i++) {
-                if (u.mWifiBatchedScanTimer[i] != null) {
+        }
+
+        if (u.mNetworkByteActivityCounters == null) {
+            out.writeInt(0);
+        } else {
+            out.writeInt(1);
+            for (int i = 0; i < NUM_NETWORK_ACTIVITY_TYPES; i++) {
+                u.mNetworkByteActivityCounters[i].writeSummaryFromParcelLocked(out);
+                u.mNetworkPacketActivityCounters[i].writeSummaryFromParcelLocked(out);
+            }
+            u.mMobileRadioActiveTime.writeSummaryFromParcelLocked(out);
+            u.mMobileRadioActiveCount.writeSummaryFromParcelLocked(out);
+        }
+
+        u.mUserCpuTime.writeSummaryFromParcelLocked(out);
+        u.mSystemCpuTime.writeSummaryFromParcelLocked(out);
+
+        if (u.mCpuClusterSpeedTimesUs != null) {
+            out.writeInt(1);
+            out.writeInt(u.mCpuClusterSpeedTimesUs.length);
+            for (LongSamplingCounter[] cpuSpeeds : u.mCpuClusterSpeedTimesUs) {
+                if (cpuSpeeds != null) {
                     out.writeInt(1);
-                    u.mWifiBatchedScanTimer[i].writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+                    out.writeInt(cpuSpeeds.length);
+                    for (LongSamplingCounter c : cpuSpeeds) {
+                        if (c != null) {
+                            out.writeInt(1);
+                            c.writeSummaryFromParcelLocked(out);
+                        } else {
+                            out.writeInt(0);
+                        }
+                    }
                 } else {
                     out.writeInt(0);
                 }
             }
-            if (u.mWifiMulticastTimer != null) {
-                out.writeInt(1);
-                u.mWifiMulticastTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mAudioTurnedOnTimer != null) {
-                out.writeInt(1);
-                u.mAudioTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mVideoTurnedOnTimer != null) {
-                out.writeInt(1);
-                u.mVideoTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mFlashlightTurnedOnTimer != null) {
-                out.writeInt(1);
-                u.mFlashlightTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mCameraTurnedOnTimer != null) {
-                out.writeInt(1);
-                u.mCameraTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mForegroundActivityTimer != null) {
-                out.writeInt(1);
-                u.mForegroundActivityTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mForegroundServiceTimer != null) {
-                out.writeInt(1);
-                u.mForegroundServiceTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mAggregatedPartialWakelockTimer != null) {
-                out.writeInt(1);
-                u.mAggregatedPartialWakelockTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mBluetoothScanTimer != null) {
-                out.writeInt(1);
-                u.mBluetoothScanTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
+        } else {
+            out.writeInt(0);
+        }
+
+        LongSamplingCounterArray.writeSummaryToParcelLocked(out, u.mCpuFreqTimeMs);
+        LongSamplingCounterArray.writeSummaryToParcelLocked(out, u.mScreenOffCpuFreqTimeMs);
+
+        u.mCpuActiveTimeMs.writeSummaryFromParcelLocked(out);
+        u.mCpuClusterTimesMs.writeSummaryToParcelLocked(out);
+
+        if (u.mProcStateTimeMs != null) {
+            out.writeInt(u.mProcStateTimeMs.length);
+            for (LongSamplingCounterArray counters : u.mProcStateTimeMs) {
+                LongSamplingCounterArray.writeSummaryToParcelLocked(out, counters);
             }
-            if (u.mBluetoothUnoptimizedScanTimer != null) {
-                out.writeInt(1);
-                u.mBluetoothUnoptimizedScanTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mProcStateScreenOffTimeMs != null) {
+            out.writeInt(u.mProcStateScreenOffTimeMs.length);
+            for (LongSamplingCounterArray counters : u.mProcStateScreenOffTimeMs) {
+                LongSamplingCounterArray.writeSummaryToParcelLocked(out, counters);
             }
-            if (u.mBluetoothScanResultCounter != null) {
+        } else {
+            out.writeInt(0);
+        }
+
+        if (u.mMobileRadioApWakeupCount != null) {
+            out.writeInt(1);
+            u.mMobileRadioApWakeupCount.writeSummaryFromParcelLocked(out);
+        } else {
+            out.writeInt(0);
+        }
+
+        if (u.mWifiRadioApWakeupCount != null) {
+            out.writeInt(1);
+            u.mWifiRadioApWakeupCount.writeSummaryFromParcelLocked(out);
+        } else {
+            out.writeInt(0);
+        }
+
+        final ArrayMap<String, Uid.Wakelock> wakeStats = u.mWakelockStats.getMap();
+        int NW = wakeStats.size();
+        out.writeInt(NW);
+        for (int iw=0; iw<NW; iw++) {
+            out.writeInt(getSummaryStringIndexLocked(wakeStats.keyAt(iw)));
+            Uid.Wakelock wl = wakeStats.valueAt(iw);
+            if (wl.mTimerFull != null) {
                 out.writeInt(1);
-                u.mBluetoothScanResultCounter.writeSummaryFromParcelLocked(out);
+                wl.mTimerFull.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
-            if (u.mBluetoothScanResultBgCounter != null) {
+            if (wl.mTimerPartial != null) {
                 out.writeInt(1);
-                u.mBluetoothScanResultBgCounter.writeSummaryFromParcelLocked(out);
+                wl.mTimerPartial.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
-            for (int i = 0; i < Uid.NUM_PROCESS_STATE; i++) {
-                if (u.mProcessStateTimer[i] != null) {
-                    out.writeInt(1);
-                    u.mProcessStateTimer[i].writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
-                }
-            }
-            if (u.mVibratorOnTimer != null) {
+            if (wl.mTimerWindow != null) {
                 out.writeInt(1);
-                u.mVibratorOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+                wl.mTimerWindow.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
-
-            if (u.mUserActivityCounters == null) {
-                out.writeInt(0);
-            } else {
+            if (wl.mTimerDraw != null) {
                 out.writeInt(1);
-                for (int i=0; i<Uid.NUM_USER_ACTIVITY_TYPES; i++) {
-                    u.mUserActivityCounters[i].writeSummaryFromParcelLocked(out);
-                }
-            }
-
-            if (u.mNetworkByteActivityCounters == null) {
-                out.writeInt(0);
-            } else {
-                out.writeInt(1);
-                for (int i = 0; i < NUM_NETWORK_ACTIVITY_TYPES; i++) {
-                    u.mNetworkByteActivityCounters[i].writeSummaryFromParcelLocked(out);
-                    u.mNetworkPacketActivityCounters[i].writeSummaryFromParcelLocked(out);
-                }
-                u.mMobileRadioActiveTime.writeSummaryFromParcelLocked(out);
-                u.mMobileRadioActiveCount.writeSummaryFromParcelLocked(out);
-            }
-
-            u.mUserCpuTime.writeSummaryFromParcelLocked(out);
-            u.mSystemCpuTime.writeSummaryFromParcelLocked(out);
-
-            if (u.mCpuClusterSpeedTimesUs != null) {
-                out.writeInt(1);
-                out.writeInt(u.mCpuClusterSpeedTimesUs.length);
-                for (LongSamplingCounter[] cpuSpeeds : u.mCpuClusterSpeedTimesUs) {
-                    if (cpuSpeeds != null) {
-                        out.writeInt(1);
-                        out.writeInt(cpuSpeeds.length);
-                        for (LongSamplingCounter c : cpuSpeeds) {
-                            if (c != null) {
-                                out.writeInt(1);
-                                c.writeSummaryFromParcelLocked(out);
-                            } else {
-                                out.writeInt(0);
-                            }
-                        }
-                    } else {
-                        out.writeInt(0);
-                    }
-                }
+                wl.mTimerDraw.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
+        }
 
-            LongSamplingCounterArray.writeSummaryToParcelLocked(out, u.mCpuFreqTimeMs);
-            LongSamplingCounterArray.writeSummaryToParcelLocked(out, u.mScreenOffCpuFreqTimeMs);
+        final ArrayMap<String, DualTimer> syncStats = u.mSyncStats.getMap();
+        int NS = syncStats.size();
+        out.writeInt(NS);
+        for (int is=0; is<NS; is++) {
+            out.writeInt(getSummaryStringIndexLocked(syncStats.keyAt(is)));
+            syncStats.valueAt(is).writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        }
 
-            u.mCpuActiveTimeMs.writeSummaryFromParcelLocked(out);
-            u.mCpuClusterTimesMs.writeSummaryToParcelLocked(out);
+        final ArrayMap<String, DualTimer> jobStats = u.mJobStats.getMap();
+        int NJ = jobStats.size();
+        out.writeInt(NJ);
+        for (int ij=0; ij<NJ; ij++) {
+            out.writeInt(getSummaryStringIndexLocked(jobStats.keyAt(ij)));
+            jobStats.valueAt(ij).writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        }
 
-            if (u.mProcStateTimeMs != null) {
-                out.writeInt(u.mProcStateTimeMs.length);
-                for (LongSamplingCounterArray counters : u.mProcStateTimeMs) {
-                    LongSamplingCounterArray.writeSummaryToParcelLocked(out, counters);
-                }
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mProcStateScreenOffTimeMs != null) {
-                out.writeInt(u.mProcStateScreenOffTimeMs.length);
-                for (LongSamplingCounterArray counters : u.mProcStateScreenOffTimeMs) {
-                    LongSamplingCounterArray.writeSummaryToParcelLocked(out, counters);
-                }
-            } else {
-                out.writeInt(0);
-            }
+        u.writeJobCompletionsToParcelLocked(out);
 
-            if (u.mMobileRadioApWakeupCount != null) {
+        u.mJobsDeferredEventCount.writeSummaryFromParcelLocked(out);
+        u.mJobsDeferredCount.writeSummaryFromParcelLocked(out);
+        u.mJobsFreshnessTimeMs.writeSummaryFromParcelLocked(out);
+        for (int i = 0; i < JOB_FRESHNESS_BUCKETS.length; i++) {
+            if (u.mJobsFreshnessBuckets[i] != null) {
                 out.writeInt(1);
-                u.mMobileRadioApWakeupCount.writeSummaryFromParcelLocked(out);
+                u.mJobsFreshnessBuckets[i].writeSummaryFromParcelLocked(out);
             } else {
                 out.writeInt(0);
             }
+        }
 
-            if (u.mWifiRadioApWakeupCount != null) {
+        int NSE = u.mSensorStats.size();
+        out.writeInt(NSE);
+        for (int ise=0; ise<NSE; ise++) {
+            out.writeInt(u.mSensorStats.keyAt(ise));
+            Uid.Sensor se = u.mSensorStats.valueAt(ise);
+            if (se.mTimer != null) {
                 out.writeInt(1);
-                u.mWifiRadioApWakeupCount.writeSummaryFromParcelLocked(out);
+                se.mTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
+        }
 
-            final ArrayMap<String, Uid.Wakelock> wakeStats = u.mWakelockStats.getMap();
-            int NW = wakeStats.size();
-            out.writeInt(NW);
-            for (int iw=0; iw<NW; iw++) {
-                out.writeString(wakeStats.keyAt(iw));
-                Uid.Wakelock wl = wakeStats.valueAt(iw);
-                if (wl.mTimerFull != null) {
-                    out.writeInt(1);
-                    wl.mTimerFull.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
-                }
-                if (wl.mTimerPartial != null) {
-                    out.writeInt(1);
-                    wl.mTimerPartial.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
-                }
-                if (wl.mTimerWindow != null) {
-                    out.writeInt(1);
-                    wl.mTimerWindow.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
-                }
-                if (wl.mTimerDraw != null) {
-                    out.writeInt(1);
-                    wl.mTimerDraw.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
-                }
-            }
-
-            final ArrayMap<String, DualTimer> syncStats = u.mSyncStats.getMap();
-            int NS = syncStats.size();
-            out.writeInt(NS);
-            for (int is=0; is<NS; is++) {
-                out.writeString(syncStats.keyAt(is));
-                syncStats.valueAt(is).writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            }
-
-            final ArrayMap<String, DualTimer> jobStats = u.mJobStats.getMap();
-            int NJ = jobStats.size();
-            out.writeInt(NJ);
-            for (int ij=0; ij<NJ; ij++) {
-                out.writeString(jobStats.keyAt(ij));
-                jobStats.valueAt(ij).writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            }
-
-            u.writeJobCompletionsToParcelLocked(out);
-
-            u.mJobsDeferredEventCount.writeSummaryFromParcelLocked(out);
-            u.mJobsDeferredCount.writeSummaryFromParcelLocked(out);
-            u.mJobsFreshnessTimeMs.writeSummaryFromParcelLocked(out);
-            for (int i = 0; i < JOB_FRESHNESS_BUCKETS.length; i++) {
-                if (u.mJobsFreshnessBuckets[i] != null) {
-                    out.writeInt(1);
-                    u.mJobsFreshnessBuckets[i].writeSummaryFromParcelLocked(out);
-                } else {
-                    out.writeInt(0);
+        int NP = u.mProcessStats.size();
+        out.writeInt(NP);
+        for (int ip=0; ip<NP; ip++) {
+            out.writeInt(getSummaryStringIndexLocked(u.mProcessStats.keyAt(ip)));
+            Uid.Proc ps = u.mProcessStats.valueAt(ip);
+            out.writeLong(ps.mUserTime);
+            out.writeLong(ps.mSystemTime);
+            out.writeLong(ps.mForegroundTime);
+            out.writeInt(ps.mStarts);
+            out.writeInt(ps.mNumCrashes);
+            out.writeInt(ps.mNumAnrs);
+            ps.writeExcessivePowerToParcelLocked(out);
+        }
+
+        NP = u.mPackageStats.size();
+        out.writeInt(NP);
+        if (NP > 0) {
+            for (Map.Entry<String, BatteryStatsImpl.Uid.Pkg> ent
+                : u.mPackageStats.entrySet()) {
+                out.writeInt(getSummaryStringIndexLocked(ent.getKey()));
+                Uid.Pkg ps = ent.getValue();
+                final int NWA = ps.mWakeupAlarms.size();
+                out.writeInt(NWA);
+                for (int iwa=0; iwa<NWA; iwa++) {
+                    out.writeInt(getSummaryStringIndexLocked(ps.mWakeupAlarms.keyAt(iwa)));
+                    ps.mWakeupAlarms.valueAt(iwa).writeSummaryFromParcelLocked(out);
                 }
-            }
-
-            int NSE = u.mSensorStats.size();
-            out.writeInt(NSE);
-            for (int ise=0; ise<NSE; ise++) {
-                out.writeInt(u.mSensorStats.keyAt(ise));
-                Uid.Sensor se = u.mSensorStats.valueAt(ise);
-                if (se.mTimer != null) {
-                    out.writeInt(1);
-                    se.mTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
+                NS = ps.mServiceStats.size();
+                out.writeInt(NS);
+                for (int is=0; is<NS; is++) {
+                    out.writeInt(getSummaryStringIndexLocked(ps.mServiceStats.keyAt(is)));
+                    BatteryStatsImpl.Uid.Pkg.Serv ss = ps.mServiceStats.valueAt(is);
+                    long time = ss.getStartTimeToNowLocked(
+                            mOnBatteryTimeBase.getUptime(NOW_SYS));
+                    out.writeLong(time);
+                    out.writeInt(ss.mStarts);
+                    out.writeInt(ss.mLaunches);
                 }
             }
+        }
+    }
 
-            int NP = u.mProcessStats.size();
-            out.writeInt(NP);
-            for (int ip=0; ip<NP; ip++) {
-                out.writeString(u.mProcessStats.keyAt(ip));
-                Uid.Proc ps = u.mProcessStats.valueAt(ip);
-                out.writeLong(ps.mUserTime);
-                out.writeLong(ps.mSystemTime);
-                out.writeLong(ps.mForegroundTime);
-                out.writeInt(ps.mStarts);
-                out.writeInt(ps.mNumCrashes);
-                out.writeInt(ps.mNumAnrs);
-                ps.writeExcessivePowerToParcelLocked(out);
-            }
-
-            NP = u.mPackageStats.size();
-            out.writeInt(NP);
-            if (NP > 0) {
-                for (Map.Entry<String, BatteryStatsImpl.Uid.Pkg> ent
-                    : u.mPackageStats.entrySet()) {
-                    out.writeString(ent.getKey());
-                    Uid.Pkg ps = ent.getValue();
-                    final int NWA = ps.mWakeupAlarms.size();
-                    out.writeInt(NWA);
-                    for (int iwa=0; iwa<NWA; iwa++) {
-                        out.writeString(ps.mWakeupAlarms.keyAt(iwa));
-                        ps.mWakeupAlarms.valueAt(iwa).writeSummaryFromParcelLocked(out);
-                    }
-                    NS = ps.mServiceStats.size();
-                    out.writeInt(NS);
-                    for (int is=0; is<NS; is++) {
-                        out.writeString(ps.mServiceStats.keyAt(is));
-                        BatteryStatsImpl.Uid.Pkg.Serv ss = ps.mServiceStats.valueAt(is);
-                        long time = ss.getStartTimeToNowLocked(
-                                mOnBatteryTimeBase.getUptime(NOW_SYS));
-                        out.writeLong(time);
-                        out.writeInt(ss.mStarts);
-                        out.writeInt(ss.mLaunches);
-                    }
-                }
-            }
+    /**
+     * Returns the index of the given name in the summary string table, adding it if needed.
+     */
+    private int getSummaryStringIndexLocked(String str) {
+        Integer index = mSummaryStringIndex.get(str);
+        if (index == null) {
+            index = mSummaryStrings.size();
+            mSummaryStrings.add(str);
+            mSummaryStringIndex.put(str, index);
         }
+        return index;
+    }
+
+    /**
+     * Drops the summary string table along with every uid section marshalled against it.
+     */
+    private void clearSummaryStringsLocked() {
+        mSummaryStrings.clear();
+        mSummaryStringIndex.clear();
+        mSummaryGeneration++;
     }
 
     public void readFromParcel(Parcel in) {
@@ -15183,5 +15461,19 @@ public class BatteryStatsImpl extends BatteryStats {
         pw.println(mNumAllUidCpuTimeReads);
         pw.print("UIDs removed since the later of device start or stats reset: ");
         pw.println(mNumUidsRemoved);
+        pw.print("Last checkpoint: ");
+        pw.print(mLastSummaryUidsWritten);
+        pw.print(" uids marshalled, ");
+        pw.print(mLastSummaryUidsReused);
+        pw.print(" reused, in ");
+        pw.print(mLastSummaryMarshallTimeMs);
+        pw.println(" ms");
+        pw.print("Last checkpoint commit: ");
+        pw.print(mLastCommitBytes);
+        pw.print(" bytes in ");
+        pw.print(mLastCommitTimeMs);
+        pw.println(" ms");
+        pw.print("Checkpoint string table size: ");
+        pw.println(mSummaryStrings.size());
     }
 }
@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import static android.util.proto.ProtoOutputStream.FIELD_COUNT_PACKED;
+import static android.util.proto.ProtoOutputStream.FIELD_COUNT_REPEATED;
+import static android.util.proto.ProtoOutputStream.FIELD_COUNT_SINGLE;
+import static android.util.proto.ProtoOutputStream.FIELD_TYPE_INT32;
+import static android.util.proto.ProtoOutputStream.FIELD_TYPE_INT64;
+import static android.util.proto.ProtoOutputStream.FIELD_TYPE_MESSAGE;
+import static android.util.proto.ProtoOutputStream.FIELD_TYPE_STRING;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.proto.ProtoOutputStream;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Collects dispatch statistics of one {@link Looper}, per (Handler class, callback class, what):
+ * dispatch and exception counts, and histograms of the queue delay (delivery time minus the
+ * time the message was due) and of the execution time.
+ *
+ * <p>Histogram buckets are powers of two: bucket 0 holds zero, bucket i holds values in
+ * [2^(i-1), 2^i), and the last bucket holds everything larger. Recording a message does not
+ * allocate once its key has been seen.
+ *
+ * @hide
+ */
+public class LooperStats implements Looper.Observer {
+    /** Execution time buckets, in microseconds. The last one starts at about 4s. */
+    public static final int EXEC_BUCKETS = 24;
+    /** Queue delay buckets, in milliseconds. The last one starts at about 16s. */
+    public static final int DELAY_BUCKETS = 16;
+
+    /** Distinct keys tracked before further ones are merged into a single overflow entry. */
+    private static final int MAX_ENTRIES = 1000;
+
+    // Field ids of the proto written by writeToProto(), schema:
+    // message LooperStatsProto {
+    //     string thread_name = 1;
+    //     repeated Entry entries = 2;
+    //     message Entry {
+    //         string handler_class = 1;
+    //         string callback_class = 2;
+    //         int32 what = 3;
+    //         int64 dispatch_count = 4;
+    //         int64 exception_count = 5;
+    //         int64 total_exec_us = 6;
+    //         int64 max_exec_us = 7;
+    //         int64 total_delay_ms = 8;
+    //         int64 max_delay_ms = 9;
+    //         repeated int64 exec_histogram = 10 [packed = true];
+    //         repeated int64 delay_histogram = 11 [packed = true];
+    //     }
+    // }
+    public static final long THREAD_NAME = FIELD_COUNT_SINGLE | FIELD_TYPE_STRING | 1;
+    public static final long ENTRIES = FIELD_COUNT_REPEATED | FIELD_TYPE_MESSAGE | 2;
+    public static final long ENTRY_HANDLER_CLASS = FIELD_COUNT_SINGLE | FIELD_TYPE_STRING | 1;
+    public static final long ENTRY_CALLBACK_CLASS = FIELD_COUNT_SINGLE | FIELD_TYPE_STRING | 2;
+    public static final long ENTRY_WHAT = FIELD_COUNT_SINGLE | FIELD_TYPE_INT32 | 3;
+    public static final long ENTRY_DISPATCH_COUNT = FIELD_COUNT_SINGLE | FIELD_TYPE_INT64 | 4;
+    public static final long ENTRY_EXCEPTION_COUNT = FIELD_COUNT_SINGLE | FIELD_TYPE_INT64 | 5;
+    public static final long ENTRY_TOTAL_EXEC_US = FIELD_COUNT_SINGLE | FIELD_TYPE_INT64 | 6;
+    public static final long ENTRY_MAX_EXEC_US = FIELD_COUNT_SINGLE | FIELD_TYPE_INT64 | 7;
+    public static final long ENTRY_TOTAL_DELAY_MS = FIELD_COUNT_SINGLE | FIELD_TYPE_INT64 | 8;
+    public static final long ENTRY_MAX_DELAY_MS = FIELD_COUNT_SINGLE | FIELD_TYPE_INT64 | 9;
+    public static final long ENTRY_EXEC_HISTOGRAM = FIELD_COUNT_PACKED | FIELD_TYPE_INT64 | 10;
+    public static final long ENTRY_DELAY_HISTOGRAM = FIELD_COUNT_PACKED | FIELD_TYPE_INT64 | 11;
+
+    @GuardedBy("sInstalled")
+    private static final ArrayList<LooperStats> sInstalled = new ArrayList<>();
+
+    private final String mThreadName;
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final HashMap<Key, Entry> mEntries = new HashMap<>();
+    /** Reused to look up entries without allocating. */
+    @GuardedBy("mLock")
+    private final Key mLookupKey = new Key();
+    @GuardedBy("mLock")
+    private Entry mOverflowEntry;
+    @GuardedBy("mLock")
+    private long mStartTimeMillis = SystemClock.uptimeMillis();
+
+    // Only touched on the looper thread.
+    private long mDispatchStartNanos;
+    private long mDispatchStartMillis;
+
+    public LooperStats(String threadName) {
+        mThreadName = threadName;
+    }
+
+    /**
+     * Starts collecting statistics for {@code looper}, and registers them for
+     * {@link #dumpAll} and {@link #writeAllToProto}.
+     */
+    public static LooperStats install(Looper looper) {
+        final LooperStats stats = new LooperStats(looper.getThread().getName());
+        looper.setObserver(stats);
+        synchronized (sInstalled) {
+            sInstalled.add(stats);
+        }
+        return stats;
+    }
+
+    @Override
+    public Object messageDispatchStarting() {
+        mDispatchStartNanos = SystemClock.elapsedRealtimeNanos();
+        mDispatchStartMillis = SystemClock.uptimeMillis();
+        return null;
+    }
+
+    @Override
+    public void messageDispatched(Object token, Message msg) {
+        record(msg, false);
+    }
+
+    @Override
+    public void dispatchingThrewException(Object token, Message msg, Throwable throwable) {
+        record(msg, true);
+    }
+
+    private void record(Message msg, boolean threw) {
+        final long execUs = (SystemClock.elapsedRealtimeNanos() - mDispatchStartNanos) / 1000;
+        // Messages sent to the front of the queue have no due time.
+        final long delayMs = msg.getWhen() > 0
+                ? Math.max(0, mDispatchStartMillis - msg.getWhen()) : 0;
+        synchronized (mLock) {
+            final Entry entry = getEntryLocked(msg);
+            entry.dispatchCount++;
+            if (threw) {
+                entry.exceptionCount++;
+            }
+            entry.totalExecUs += execUs;
+            entry.maxExecUs = Math.max(entry.maxExecUs, execUs);
+            entry.execHistogram[getBucket(execUs, EXEC_BUCKETS)]++;
+            entry.totalDelayMs += delayMs;
+            entry.maxDelayMs = Math.max(entry.maxDelayMs, delayMs);
+            entry.delayHistogram[getBucket(delayMs, DELAY_BUCKETS)]++;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private Entry getEntryLocked(Message msg) {
+        final Handler target = msg.getTarget();
+        final Key key = mLookupKey;
+        key.handlerClass = target != null ? target.getClass() : null;
+        key.callbackClass = msg.getCallback() != null ? msg.getCallback().getClass() : null;
+        key.what = msg.getCallback() != null ? 0 : msg.what;
+        Entry entry = mEntries.get(key);
+        if (entry != null) {
+            return entry;
+        }
+        if (mEntries.size() >= MAX_ENTRIES) {
+            if (mOverflowEntry == null) {
+                mOverflowEntry = new Entry(new Key());
+            }
+            return mOverflowEntry;
+        }
+        entry = new Entry(key.copy());
+        mEntries.put(entry.key, entry);
+        return entry;
+    }
+
+    @VisibleForTesting
+    public static int getBucket(long value, int buckets) {
+        return Math.min(buckets - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    /** Clears the collected statistics. */
+    public void reset() {
+        synchronized (mLock) {
+            mEntries.clear();
+            mOverflowEntry = null;
+            mStartTimeMillis = SystemClock.uptimeMillis();
+        }
+    }
+
+    @GuardedBy("mLock")
+    private ArrayList<Entry> getSortedEntriesLocked() {
+        final ArrayList<Entry> entries = new ArrayList<>(mEntries.values());
+        if (mOverflowEntry != null) {
+            entries.add(mOverflowEntry);
+        }
+        // Most expensive first.
+        Collections.sort(entries, (a, b) -> Long.compare(b.totalExecUs, a.totalExecUs));
+        return entries;
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.print(prefix); pw.print("Looper stats for "); pw.print(mThreadName);
+            pw.print(", since "); pw.print(SystemClock.uptimeMillis() - mStartTimeMillis);
+            pw.println("ms:");
+            for (Entry entry : getSortedEntriesLocked()) {
+                pw.print(prefix); pw.print("  "); entry.key.dump(pw);
+                pw.print(": count="); pw.print(entry.dispatchCount);
+                if (entry.exceptionCount != 0) {
+                    pw.print(" exceptions="); pw.print(entry.exceptionCount);
+                }
+                pw.print(" exec(us) total="); pw.print(entry.totalExecUs);
+                pw.print(" max="); pw.print(entry.maxExecUs);
+                pw.print(" delay(ms) total="); pw.print(entry.totalDelayMs);
+                pw.print(" max="); pw.println(entry.maxDelayMs);
+                pw.print(prefix); pw.print("    exec histogram: ");
+                dumpHistogram(pw, entry.execHistogram);
+                pw.print(prefix); pw.print("    delay histogram: ");
+                dumpHistogram(pw, entry.delayHistogram);
+            }
+        }
+    }
+
+    private static void dumpHistogram(PrintWriter pw, long[] histogram) {
+        for (int i = 0; i < histogram.length; i++) {
+            if (i > 0) {
+                pw.print(',');
+            }
+            pw.print(histogram[i]);
+        }
+        pw.println();
+    }
+
+    public void writeToProto(ProtoOutputStream proto, long fieldId) {
+        final long token = proto.start(fieldId);
+        synchronized (mLock) {
+            proto.write(THREAD_NAME, mThreadName);
+            for (Entry entry : getSortedEntriesLocked()) {
+                final long entryToken = proto.start(ENTRIES);
+                if (entry.key.handlerClass != null) {
+                    proto.write(ENTRY_HANDLER_CLASS, entry.key.handlerClass.getName());
+                }
+                if (entry.key.callbackClass != null) {
+                    proto.write(ENTRY_CALLBACK_CLASS, entry.key.callbackClass.getName());
+                }
+                proto.write(ENTRY_WHAT, entry.key.what);
+                proto.write(ENTRY_DISPATCH_COUNT, entry.dispatchCount);
+                proto.write(ENTRY_EXCEPTION_COUNT, entry.exceptionCount);
+                proto.write(ENTRY_TOTAL_EXEC_US, entry.totalExecUs);
+                proto.write(ENTRY_MAX_EXEC_US, entry.maxExecUs);
+                proto.write(ENTRY_TOTAL_DELAY_MS, entry.totalDelayMs);
+                proto.write(ENTRY_MAX_DELAY_MS, entry.maxDelayMs);
+                proto.writePackedInt64(ENTRY_EXEC_HISTOGRAM, entry.execHistogram);
+                proto.writePackedInt64(ENTRY_DELAY_HISTOGRAM, entry.delayHistogram);
+                proto.end(entryToken);
+            }
+        }
+        proto.end(token);
+    }
+
+    /** Dumps the statistics of every installed looper. */
+    public static void dumpAll(PrintWriter pw, String prefix) {
+        synchronized (sInstalled) {
+            if (sInstalled.isEmpty()) {
+                pw.print(prefix); pw.println("No loopers are observed.");
+            }
+            for (int i = 0; i < sInstalled.size(); i++) {
+                sInstalled.get(i).dump(pw, prefix);
+            }
+        }
+    }
+
+    /** Writes the statistics of every installed looper as repeated {@code fieldId}. */
+    public static void writeAllToProto(ProtoOutputStream proto, long fieldId) {
+        synchronized (sInstalled) {
+            for (int i = 0; i < sInstalled.size(); i++) {
+                sInstalled.get(i).writeToProto(proto, fieldId);
+            }
+        }
+    }
+
+    private static final class Key {
+        Class<?> handlerClass;
+        Class<?> callbackClass;
+        int what;
+
+        Key copy() {
+            final Key key = new Key();
+            key.handlerClass = handlerClass;
+            key.callbackClass = callbackClass;
+            key.what = what;
+            return key;
+        }
+
+        void dump(PrintWriter pw) {
+            if (handlerClass == null && callbackClass == null) {
+                pw.print("(other)");
+                return;
+            }
+            pw.print(handlerClass != null ? handlerClass.getName() : "null");
+            if (callbackClass != null) {
+                pw.print(" callback="); pw.print(callbackClass.getName());
+            } else {
+                pw.print(" what="); pw.print(what);
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return handlerClass == other.handlerClass && callbackClass == other.callbackClass
+                    && what == other.what;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = System.identityHashCode(handlerClass);
+            result = 31 * result + System.identityHashCode(callbackClass);
+            return 31 * result + what;
+        }
+    }
+
+    private static final class Entry {
+        final Key key;
+        long dispatchCount;
+        long exceptionCount;
+        long totalExecUs;
+        long maxExecUs;
+        long totalDelayMs;
+        long maxDelayMs;
+        final long[] execHistogram = new long[EXEC_BUCKETS];
+        final long[] delayHistogram = new long[DELAY_BUCKETS];
+
+        Entry(Key key) {
+            this.key = key;
+        }
+    }
+}
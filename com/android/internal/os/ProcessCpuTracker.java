@@ -22,26 +22,36 @@ import android.os.FileUtils;
 import android.os.Process;
 import android.os.StrictMode;
 import android.os.SystemClock;
+import android.system.ErrnoException;
 import android.system.Os;
 import android.system.OsConstants;
 import android.util.Slog;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.FastPrintWriter;
 
 import libcore.io.IoUtils;
 import libcore.io.Libcore;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
 import java.util.StringTokenizer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class ProcessCpuTracker {
     private static final String TAG = "ProcessCpuTracker";
@@ -136,6 +146,34 @@ public class ProcessCpuTracker {
 
     private final boolean mIncludeThreads;
 
+    /** Root of the proc filesystem; only differs from {@code /proc} in tests. */
+    private final String mProcRoot;
+
+    /**
+     * Parsers for the pooled update path, one per parsing thread, or null to read every stat
+     * file through {@link Process#readProcFile}.
+     */
+    private final StatReader[] mStatReaders;
+
+    /** Runs all but the first share of the per-process stat parsing; created on first use. */
+    private ExecutorService mParseExecutor;
+
+    /** Per-pid stat values read ahead of the process and thread bookkeeping passes. */
+    private final StatSnapshot mProcSnapshot = new StatSnapshot();
+    private final StatSnapshot mThreadSnapshot = new StatSnapshot();
+
+    /** Processes below this count are parsed on the updating thread only. */
+    private static final int MIN_PIDS_PER_PARSE_THREAD = 32;
+
+    // Cost of update(), reported by printUpdateCost().
+    private long mLastUpdateDuration;
+    private long mTotalUpdateDuration;
+    private int mUpdateCount;
+    private int mLastUpdateStatReads;
+    private int mLastUpdateRecycledPids;
+    private int mStatReads;
+    private int mRecycledPids;
+
     // How long a CPU jiffy is in milliseconds.
     private final long mJiffyMillis;
 
@@ -240,15 +278,21 @@ public class ProcessCpuTracker {
         public int rel_minfaults;
         public int rel_majfaults;
 
+        /**
+         * Start time of the process in jiffies since boot, as read by the pooled update path;
+         * tells a recycled pid apart from the process that used it before.
+         */
+        long starttime;
+
         public boolean active;
         public boolean working;
         public boolean added;
         public boolean removed;
 
-        Stats(int _pid, int parentPid, boolean includeThreads) {
+        Stats(String procRoot, int _pid, int parentPid, boolean includeThreads) {
             pid = _pid;
             if (parentPid < 0) {
-                final File procDir = new File("/proc", Integer.toString(pid));
+                final File procDir = new File(procRoot, Integer.toString(pid));
                 statFile = new File(procDir, "stat").toString();
                 cmdlineFile = new File(procDir, "cmdline").toString();
                 threadsDir = (new File(procDir, "task")).toString();
@@ -260,7 +304,7 @@ public class ProcessCpuTracker {
                     workingThreads = null;
                 }
             } else {
-                final File procDir = new File("/proc", Integer.toString(
+                final File procDir = new File(procRoot, Integer.toString(
                         parentPid));
                 final File taskDir = new File(
                         new File(procDir, "task"), Integer.toString(pid));
@@ -294,9 +338,36 @@ public class ProcessCpuTracker {
 
 
     public ProcessCpuTracker(boolean includeThreads) {
+        this("/proc", includeThreads, 0);
+    }
+
+    /**
+     * Creates a tracker that parses the stat files itself into reused buffers instead of going
+     * through {@link Process#readProcFile} for every process, spreading the per-process parsing
+     * over up to {@code parseThreads} threads.  It also notices when a pid has been recycled for
+     * a new process between two updates, which the default path reports as one process.
+     *
+     * @param parseThreads number of threads parsing process stats, including the one calling
+     *         {@link #update()}; 0 keeps the default {@link Process#readProcFile} path.
+     */
+    public ProcessCpuTracker(boolean includeThreads, int parseThreads) {
+        this("/proc", includeThreads, parseThreads);
+    }
+
+    @VisibleForTesting
+    ProcessCpuTracker(String procRoot, boolean includeThreads, int parseThreads) {
+        mProcRoot = procRoot;
         mIncludeThreads = includeThreads;
         long jiffyHz = Os.sysconf(OsConstants._SC_CLK_TCK);
         mJiffyMillis = 1000/jiffyHz;
+        if (parseThreads > 0) {
+            mStatReaders = new StatReader[parseThreads];
+            for (int i = 0; i < parseThreads; i++) {
+                mStatReaders[i] = new StatReader();
+            }
+        } else {
+            mStatReaders = null;
+        }
     }
 
     public void onLoadChanged(float load1, float load5, float load15) {
@@ -320,7 +391,7 @@ public class ProcessCpuTracker {
         final long nowWallTime = System.currentTimeMillis();
 
         final long[] sysCpu = mSystemCpuData;
-        if (Process.readProcFile("/proc/stat", SYSTEM_CPU_FORMAT,
+        if (Process.readProcFile(mProcRoot + "/stat", SYSTEM_CPU_FORMAT,
                 null, sysCpu, null)) {
             // Total user time is user + nice time.
             final long usertime = (sysCpu[0]+sysCpu[1]) * mJiffyMillis;
@@ -383,15 +454,17 @@ public class ProcessCpuTracker {
         mLastSampleWallTime = mCurrentSampleWallTime;
         mCurrentSampleWallTime = nowWallTime;
 
+        mStatReads = 0;
+        mRecycledPids = 0;
         final StrictMode.ThreadPolicy savedPolicy = StrictMode.allowThreadDiskReads();
         try {
-            mCurPids = collectStats("/proc", -1, mFirst, mCurPids, mProcStats);
+            mCurPids = collectStats(mProcRoot, -1, mFirst, mCurPids, mProcStats);
         } finally {
             StrictMode.setThreadPolicy(savedPolicy);
         }
 
         final float[] loadAverages = mLoadAverageData;
-        if (Process.readProcFile("/proc/loadavg", LOAD_AVERAGE_FORMAT,
+        if (Process.readProcFile(mProcRoot + "/loadavg", LOAD_AVERAGE_FORMAT,
                 null, null, loadAverages)) {
             float load1 = loadAverages[0];
             float load5 = loadAverages[1];
@@ -407,6 +480,12 @@ public class ProcessCpuTracker {
         if (DEBUG) Slog.i(TAG, "*** TIME TO COLLECT STATS: "
                 + (SystemClock.uptimeMillis()-mCurrentSampleTime));
 
+        mLastUpdateDuration = SystemClock.uptimeMillis() - nowUptime;
+        mTotalUpdateDuration += mLastUpdateDuration;
+        mUpdateCount++;
+        mLastUpdateStatReads = mStatReads;
+        mLastUpdateRecycledPids = mRecycledPids;
+
         mWorkingProcsSorted = false;
         mFirst = false;
     }
@@ -418,6 +497,13 @@ public class ProcessCpuTracker {
         int NP = (pids == null) ? 0 : pids.length;
         int NS = allProcs.size();
         int curStatsIndex = 0;
+
+        StatSnapshot snapshot = null;
+        if (mStatReaders != null) {
+            snapshot = parentPid < 0 ? mProcSnapshot : mThreadSnapshot;
+            readStats(snapshot, statsFile, pids, NP, allProcs, parentPid < 0);
+        }
+
         for (int i=0; i<NP; i++) {
             int pid = pids[i];
             if (pid < 0) {
@@ -426,7 +512,15 @@ public class ProcessCpuTracker {
             }
             Stats st = curStatsIndex < NS ? allProcs.get(curStatsIndex) : null;
 
-            if (st != null && st.pid == pid) {
+            // A recycled pid is handled as the old process going away, followed by
+            // the new one being added on the next pass over the same pid.
+            final boolean recycled = st != null && st.pid == pid && snapshot != null
+                    && snapshot.isRecycled(i, st);
+            if (recycled) {
+                mRecycledPids++;
+            }
+
+            if (st != null && st.pid == pid && !recycled) {
                 // Update an existing process...
                 st.added = false;
                 st.working = false;
@@ -439,9 +533,16 @@ public class ProcessCpuTracker {
                     final long uptime = SystemClock.uptimeMillis();
 
                     final long[] procStats = mProcessStatsData;
-                    if (!Process.readProcFile(st.statFile.toString(),
-                            PROCESS_STATS_FORMAT, null, procStats, null)) {
-                        continue;
+                    if (snapshot != null) {
+                        if (!snapshot.getStats(i, procStats)) {
+                            continue;
+                        }
+                    } else {
+                        mStatReads++;
+                        if (!Process.readProcFile(st.statFile.toString(),
+                                PROCESS_STATS_FORMAT, null, procStats, null)) {
+                            continue;
+                        }
                     }
 
                     final long minfaults = procStats[PROCESS_STAT_MINOR_FAULTS];
@@ -496,7 +597,7 @@ public class ProcessCpuTracker {
 
             if (st == null || st.pid > pid) {
                 // We have a new process!
-                st = new Stats(pid, parentPid, mIncludeThreads);
+                st = new Stats(mProcRoot, pid, parentPid, mIncludeThreads);
                 allProcs.add(curStatsIndex, st);
                 curStatsIndex++;
                 NS++;
@@ -509,8 +610,16 @@ public class ProcessCpuTracker {
                 st.base_uptime = SystemClock.uptimeMillis();
                 String path = st.statFile.toString();
                 //Slog.d(TAG, "Reading proc file: " + path);
-                if (Process.readProcFile(path, PROCESS_FULL_STATS_FORMAT, procStatsString,
-                        procStats, null)) {
+                final boolean haveStats;
+                if (snapshot != null) {
+                    haveStats = snapshot.getFullStats(i, procStatsString, procStats);
+                    st.starttime = snapshot.mStartTimes[i];
+                } else {
+                    mStatReads++;
+                    haveStats = Process.readProcFile(path, PROCESS_FULL_STATS_FORMAT,
+                            procStatsString, procStats, null);
+                }
+                if (haveStats) {
                     // This is a possible way to filter out processes that
                     // are actually kernel threads...  do we want to?  Some
                     // of them do use CPU, but there can be a *lot* that are
@@ -596,6 +705,252 @@ public class ProcessCpuTracker {
         return pids;
     }
 
+    /**
+     * Reads the stat file of every pid in {@code pids} into {@code snapshot}.  Process stats
+     * are split across the parsing threads once there are enough of them; thread stats of a
+     * single process are always read on the calling thread.
+     */
+    private void readStats(StatSnapshot snapshot, String statsFile, int[] pids, int NP,
+            ArrayList<Stats> allProcs, boolean processes) {
+        int count = 0;
+        while (count < NP && pids[count] >= 0) {
+            count++;
+        }
+        snapshot.prepare(count);
+
+        // Walk the pids alongside the known stats, both sorted by pid, so that known processes
+        // reuse their stat file path and only new or recycled pids get their name parsed.
+        final int NS = allProcs.size();
+        int curStatsIndex = 0;
+        for (int i = 0; i < count; i++) {
+            final int pid = pids[i];
+            while (curStatsIndex < NS && allProcs.get(curStatsIndex).pid < pid) {
+                curStatsIndex++;
+            }
+            final Stats st = curStatsIndex < NS ? allProcs.get(curStatsIndex) : null;
+            if (st != null && st.pid == pid) {
+                snapshot.mPaths[i] = st.statFile;
+                snapshot.mKnownStartTimes[i] = st.starttime;
+            } else {
+                snapshot.mPaths[i] = statsFile + "/" + pid + "/stat";
+                snapshot.mKnownStartTimes[i] = -1;
+            }
+        }
+        mStatReads += count;
+
+        int threads = processes ? Math.min(mStatReaders.length,
+                count / MIN_PIDS_PER_PARSE_THREAD) : 1;
+        if (threads <= 1) {
+            mStatReaders[0].readRange(snapshot, 0, count);
+            return;
+        }
+
+        if (mParseExecutor == null) {
+            mParseExecutor = Executors.newFixedThreadPool(mStatReaders.length - 1, r -> {
+                final Thread t = new Thread(r, "ProcessCpuTracker");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        final Future<?>[] futures = new Future<?>[threads - 1];
+        for (int t = 1; t < threads; t++) {
+            final StatReader reader = mStatReaders[t];
+            final int start = (int) ((long) count * t / threads);
+            final int end = (int) ((long) count * (t + 1) / threads);
+            futures[t - 1] = mParseExecutor.submit(() -> reader.readRange(snapshot, start, end));
+        }
+        mStatReaders[0].readRange(snapshot, 0, count / threads);
+        boolean interrupted = false;
+        for (int i = 0; i < futures.length; ) {
+            try {
+                futures[i].get();
+                i++;
+            } catch (InterruptedException e) {
+                // The workers write into the snapshot, so keep waiting for them.
+                interrupted = true;
+            } catch (ExecutionException e) {
+                // Leave that share marked as unreadable; it is picked up by the next update.
+                Slog.w(TAG, "Failed parsing process stats", e);
+                i++;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stat values of the pids of one directory listing, indexed by position in the listing.
+     * Arrays only grow, so a steady number of processes reads without allocating.
+     */
+    static final class StatSnapshot {
+        String[] mPaths = new String[0];
+        long[] mKnownStartTimes = EMPTY_LONGS;
+        boolean[] mValid = new boolean[0];
+        String[] mNames = new String[0];
+        long[] mMinFaults = EMPTY_LONGS;
+        long[] mMajFaults = EMPTY_LONGS;
+        long[] mUtimes = EMPTY_LONGS;
+        long[] mStimes = EMPTY_LONGS;
+        long[] mStartTimes = EMPTY_LONGS;
+        long[] mVsizes = EMPTY_LONGS;
+
+        private static final long[] EMPTY_LONGS = new long[0];
+
+        void prepare(int count) {
+            if (mValid.length < count) {
+                final int size = count + (count >> 2) + 16;
+                mPaths = new String[size];
+                mKnownStartTimes = new long[size];
+                mValid = new boolean[size];
+                mNames = new String[size];
+                mMinFaults = new long[size];
+                mMajFaults = new long[size];
+                mUtimes = new long[size];
+                mStimes = new long[size];
+                mStartTimes = new long[size];
+                mVsizes = new long[size];
+            } else {
+                // A share whose task fails leaves its entries untouched, they must not keep the
+                // values of the previous cycle.
+                Arrays.fill(mValid, false);
+                Arrays.fill(mNames, null);
+            }
+        }
+
+        boolean isRecycled(int i, Stats st) {
+            return mValid[i] && st.starttime != 0 && mStartTimes[i] != st.starttime;
+        }
+
+        /** Fills {@code out} the way {@link #PROCESS_STATS_FORMAT} would. */
+        boolean getStats(int i, long[] out) {
+            if (!mValid[i]) {
+                return false;
+            }
+            out[PROCESS_STAT_MINOR_FAULTS] = mMinFaults[i];
+            out[PROCESS_STAT_MAJOR_FAULTS] = mMajFaults[i];
+            out[PROCESS_STAT_UTIME] = mUtimes[i];
+            out[PROCESS_STAT_STIME] = mStimes[i];
+            return true;
+        }
+
+        /**
+         * Fills {@code outStrings} and {@code out} the way {@link #PROCESS_FULL_STATS_FORMAT}
+         * would.
+         */
+        boolean getFullStats(int i, String[] outStrings, long[] out) {
+            if (!mValid[i] || mNames[i] == null) {
+                return false;
+            }
+            outStrings[0] = mNames[i];
+            out[PROCESS_FULL_STAT_MINOR_FAULTS] = mMinFaults[i];
+            out[PROCESS_FULL_STAT_MAJOR_FAULTS] = mMajFaults[i];
+            out[PROCESS_FULL_STAT_UTIME] = mUtimes[i];
+            out[PROCESS_FULL_STAT_STIME] = mStimes[i];
+            out[PROCESS_FULL_STAT_VSIZE] = mVsizes[i];
+            return true;
+        }
+    }
+
+    /**
+     * Parses {@code stat} files into a buffer that is reused across files.  The process name is
+     * the only field turned into an object, and only for pids the tracker does not know yet.
+     */
+    static final class StatReader {
+        // Field numbers in proc(5), counting from 1.
+        private static final int FIELD_STATE = 3;
+        private static final int FIELD_MINFLT = 10;
+        private static final int FIELD_MAJFLT = 12;
+        private static final int FIELD_UTIME = 14;
+        private static final int FIELD_STIME = 15;
+        private static final int FIELD_STARTTIME = 22;
+        private static final int FIELD_VSIZE = 23;
+
+        private final byte[] mBuffer = new byte[1024];
+
+        void readRange(StatSnapshot snapshot, int start, int end) {
+            for (int i = start; i < end; i++) {
+                snapshot.mValid[i] = read(snapshot, i);
+            }
+        }
+
+        private boolean read(StatSnapshot snapshot, int i) {
+            final byte[] buf = mBuffer;
+            int len = 0;
+            FileDescriptor fd = null;
+            try {
+                fd = Os.open(snapshot.mPaths[i], OsConstants.O_RDONLY, 0);
+                int read;
+                while (len < buf.length
+                        && (read = Os.read(fd, buf, len, buf.length - len)) > 0) {
+                    len += read;
+                }
+            } catch (ErrnoException | InterruptedIOException e) {
+                // The process went away.
+                return false;
+            } finally {
+                IoUtils.closeQuietly(fd);
+            }
+
+            // The name may itself contain spaces and parentheses, so it runs from the first
+            // '(' to the last ')'.
+            int open = -1;
+            int close = -1;
+            for (int p = 0; p < len; p++) {
+                if (buf[p] == '(') {
+                    if (open < 0) open = p;
+                } else if (buf[p] == ')') {
+                    close = p;
+                }
+            }
+            if (open < 0 || close < open) {
+                return false;
+            }
+
+            int field = FIELD_STATE;
+            int p = close + 2;
+            while (p < len && field <= FIELD_VSIZE) {
+                long value = 0;
+                boolean negative = false;
+                if (buf[p] == '-') {
+                    negative = true;
+                    p++;
+                }
+                while (p < len && buf[p] >= '0' && buf[p] <= '9') {
+                    value = value * 10 + (buf[p] - '0');
+                    p++;
+                }
+                if (negative) {
+                    value = -value;
+                }
+                switch (field) {
+                    case FIELD_MINFLT: snapshot.mMinFaults[i] = value; break;
+                    case FIELD_MAJFLT: snapshot.mMajFaults[i] = value; break;
+                    case FIELD_UTIME: snapshot.mUtimes[i] = value; break;
+                    case FIELD_STIME: snapshot.mStimes[i] = value; break;
+                    case FIELD_STARTTIME: snapshot.mStartTimes[i] = value; break;
+                    case FIELD_VSIZE: snapshot.mVsizes[i] = value; break;
+                }
+                // Skip the rest of the field (e.g. the state letter) and the separator.
+                while (p < len && buf[p] != ' ' && buf[p] != '\n') {
+                    p++;
+                }
+                p++;
+                field++;
+            }
+            if (field <= FIELD_VSIZE) {
+                return false;
+            }
+
+            final long knownStartTime = snapshot.mKnownStartTimes[i];
+            if (knownStartTime < 0 || knownStartTime != snapshot.mStartTimes[i]) {
+                snapshot.mNames[i] = new String(buf, open + 1, close - open - 1,
+                        StandardCharsets.UTF_8);
+            }
+            return true;
+        }
+    }
+
     /**
      * Returns the total time (in milliseconds) spent executing in
      * both user and system code.  Safe to call without lock held.
@@ -736,6 +1091,34 @@ public class ProcessCpuTracker {
         return sw.toString();
     }
 
+    /**
+     * Returns a one line summary of how much the last and average calls to {@link #update()}
+     * cost.
+     */
+    final public String printUpdateCost() {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new FastPrintWriter(sw, false, 128);
+        pw.print("Update cost: last ");
+        pw.print(mLastUpdateDuration);
+        pw.print("ms (");
+        pw.print(mLastUpdateStatReads);
+        pw.print(" stat reads, ");
+        pw.print(mLastUpdateRecycledPids);
+        pw.print(" recycled pids), avg ");
+        pw.print(mUpdateCount > 0 ? mTotalUpdateDuration / mUpdateCount : 0);
+        pw.print("ms over ");
+        pw.print(mUpdateCount);
+        pw.print(" updates");
+        if (mStatReaders != null) {
+            pw.print(", pooled parsing on ");
+            pw.print(mStatReaders.length);
+            pw.print(mStatReaders.length == 1 ? " thread" : " threads");
+        }
+        pw.println();
+        pw.flush();
+        return sw.toString();
+    }
+
     final public String printCurrentState(long now) {
         final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
 
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.os.FileUtils;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.system.Os;
+import android.system.OsConstants;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Runs {@link ProcessCpuTracker} against fixture proc trees, comparing the pooled parsing path
+ * with the default {@link android.os.Process#readProcFile} one.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ProcessCpuTrackerTest {
+    private File mProcRoot;
+    private long mJiffyMillis;
+
+    @Before
+    public void setUp() {
+        mProcRoot = new File(InstrumentationRegistry.getContext().getCacheDir(), "fake_proc");
+        FileUtils.deleteContentsAndDir(mProcRoot);
+        mProcRoot.mkdirs();
+        mJiffyMillis = 1000 / Os.sysconf(OsConstants._SC_CLK_TCK);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContentsAndDir(mProcRoot);
+    }
+
+    @Test
+    public void testPooledMatchesDefault() throws Exception {
+        writeSystemFiles(1000);
+        writeProcess(100, "init", 10, 5, 1);
+        writeProcess(200, "system_server", 300, 100, 50);
+        writeProcess(300, "com.example worker", 20, 10, 400);
+
+        final ProcessCpuTracker reference = new ProcessCpuTracker(
+                mProcRoot.getPath(), false, 0);
+        final ProcessCpuTracker pooled = new ProcessCpuTracker(mProcRoot.getPath(), false, 2);
+        reference.init();
+        pooled.init();
+
+        writeSystemFiles(2000);
+        writeProcess(100, "init", 10, 5, 1);
+        writeProcess(200, "system_server", 450, 130, 50);
+        writeProcess(300, "com.example worker", 25, 10, 400);
+        reference.update();
+        pooled.update();
+
+        assertEquals(reference.countStats(), pooled.countStats());
+        for (int i = 0; i < reference.countStats(); i++) {
+            final ProcessCpuTracker.Stats expected = reference.getStats(i);
+            final ProcessCpuTracker.Stats actual = pooled.getStats(i);
+            assertEquals(expected.pid, actual.pid);
+            assertEquals(expected.baseName, actual.baseName);
+            assertEquals(expected.rel_utime, actual.rel_utime);
+            assertEquals(expected.rel_stime, actual.rel_stime);
+            assertEquals(expected.rel_minfaults, actual.rel_minfaults);
+            assertEquals(expected.working, actual.working);
+        }
+        assertEquals(150 * mJiffyMillis, findStats(pooled, 200).rel_utime);
+        assertEquals("com.example worker", findStats(pooled, 300).baseName);
+    }
+
+    @Test
+    public void testRecycledPidIsReportedAsNewProcess() throws Exception {
+        writeSystemFiles(1000);
+        writeProcess(200, "old_process", 300, 100, 50);
+
+        final ProcessCpuTracker pooled = new ProcessCpuTracker(mProcRoot.getPath(), false, 1);
+        pooled.init();
+        assertEquals("old_process", findStats(pooled, 200).baseName);
+
+        // Same pid, later start time: a different process that happens to reuse the pid.
+        writeSystemFiles(2000);
+        writeProcess(200, "new_process", 5, 2, 900);
+        pooled.update();
+
+        final ProcessCpuTracker.Stats st = findStats(pooled, 200);
+        assertEquals("new_process", st.baseName);
+        assertTrue(st.added);
+        assertEquals(0, st.rel_utime);
+        assertEquals(5 * mJiffyMillis, st.base_utime);
+    }
+
+    @Test
+    public void testVanishedProcessIsRemoved() throws Exception {
+        writeSystemFiles(1000);
+        writeProcess(100, "init", 10, 5, 1);
+        writeProcess(200, "short_lived", 30, 10, 50);
+
+        final ProcessCpuTracker pooled = new ProcessCpuTracker(mProcRoot.getPath(), false, 2);
+        pooled.init();
+        assertEquals(2, pooled.countStats());
+
+        FileUtils.deleteContentsAndDir(new File(mProcRoot, "200"));
+        writeSystemFiles(2000);
+        pooled.update();
+
+        assertEquals(1, pooled.countStats());
+        assertNull(findStats(pooled, 200));
+        assertFalse(pooled.printUpdateCost().isEmpty());
+    }
+
+    @Test
+    public void testManyProcessesSplitAcrossThreads() throws Exception {
+        writeSystemFiles(1000);
+        for (int pid = 1000; pid < 1200; pid++) {
+            writeProcess(pid, "proc" + pid, pid, 1, pid);
+        }
+
+        final ProcessCpuTracker pooled = new ProcessCpuTracker(mProcRoot.getPath(), false, 4);
+        pooled.init();
+
+        writeSystemFiles(2000);
+        for (int pid = 1000; pid < 1200; pid++) {
+            writeProcess(pid, "proc" + pid, pid + 7, 1, pid);
+        }
+        pooled.update();
+
+        assertEquals(200, pooled.countStats());
+        for (int pid = 1000; pid < 1200; pid++) {
+            final ProcessCpuTracker.Stats st = findStats(pooled, pid);
+            assertNotNull(st);
+            assertEquals("proc" + pid, st.baseName);
+            assertEquals(7 * mJiffyMillis, st.rel_utime);
+        }
+    }
+
+    private static ProcessCpuTracker.Stats findStats(ProcessCpuTracker tracker, int pid) {
+        for (int i = 0; i < tracker.countStats(); i++) {
+            if (tracker.getStats(i).pid == pid) {
+                return tracker.getStats(i);
+            }
+        }
+        return null;
+    }
+
+    private void writeSystemFiles(long idle) throws IOException {
+        writeFile(new File(mProcRoot, "stat"), "cpu  100 0 100 " + idle + " 0 0 0 0 0 0\n");
+        writeFile(new File(mProcRoot, "loadavg"), "0.50 0.40 0.30 1/100 1234\n");
+    }
+
+    private void writeProcess(int pid, String name, long utime, long stime, long starttime)
+            throws IOException {
+        final File dir = new File(mProcRoot, Integer.toString(pid));
+        dir.mkdirs();
+        // Fields 1 through 23 of proc(5), then a few trailing ones.
+        final String stat = pid + " (" + name + ") S 1 " + pid + " " + pid
+                + " 0 -1 4194560 " + (utime * 3) + " 0 " + (stime / 2) + " 0 "
+                + utime + " " + stime + " 0 0 20 0 12 0 " + starttime + " 1048576 200 "
+                + "18446744073709551615 0 0 0 0\n";
+        writeFile(new File(dir, "stat"), stat);
+        writeFile(new File(dir, "cmdline"), name + "\0");
+    }
+
+    private static void writeFile(File file, String contents) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(contents.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -45,6 +45,7 @@ import android.system.OsConstants;
 import android.system.StructCapUserData;
 import android.system.StructCapUserHeader;
 import android.text.Hyphenator;
+import android.util.ArrayMap;
 import android.util.EventLog;
 import android.util.Log;
 import android.util.Slog;
@@ -70,6 +71,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.security.Provider;
 import java.security.Security;
+import java.util.ArrayList;
 
 /**
  * Startup class for the zygote process.
@@ -88,6 +90,7 @@ public class ZygoteInit {
 
     private static final String PROPERTY_DISABLE_OPENGL_PRELOADING = "ro.zygote.disable_gl_preload";
     private static final String PROPERTY_GFX_DRIVER = "ro.gfx.driver.0";
+    private static final String PROPERTY_PARALLEL_PRELOAD = "ro.zygote.parallel_preload";
 
     private static final int LOG_BOOT_PROGRESS_PRELOAD_START = 3020;
     private static final int LOG_BOOT_PROGRESS_PRELOAD_END = 3030;
@@ -118,19 +121,34 @@ public class ZygoteInit {
     private static final int ROOT_UID = 0;
     private static final int ROOT_GID = 0;
 
+    /** Upper bound of the extra threads that load classes in parallel preload. */
+    private static final int MAX_PRELOAD_LOADER_THREADS = 4;
+
+    /** Preloaded classes that take longer than this get their own timing log line. */
+    private static final long SLOW_PRELOAD_CLASS_MS = 10;
+
     private static boolean sPreloadComplete;
 
+    /** Whether main() currently has thread creation turned into an error. */
+    private static boolean sNoThreadCreation;
+
     static void preload(TimingsTraceLog bootTimingsTraceLog) {
         Log.d(TAG, "begin preload");
         bootTimingsTraceLog.traceBegin("BeginIcuCachePinning");
         beginIcuCachePinning();
         bootTimingsTraceLog.traceEnd(); // BeginIcuCachePinning
-        bootTimingsTraceLog.traceBegin("PreloadClasses");
-        preloadClasses();
-        bootTimingsTraceLog.traceEnd(); // PreloadClasses
-        bootTimingsTraceLog.traceBegin("PreloadResources");
-        preloadResources();
-        bootTimingsTraceLog.traceEnd(); // PreloadResources
+        if (SystemProperties.getBoolean(PROPERTY_PARALLEL_PRELOAD, false)) {
+            bootTimingsTraceLog.traceBegin("PreloadClassesAndResources");
+            preloadClasses(bootTimingsTraceLog, /* parallel */ true);
+            bootTimingsTraceLog.traceEnd(); // PreloadClassesAndResources
+        } else {
+            bootTimingsTraceLog.traceBegin("PreloadClasses");
+            preloadClasses(bootTimingsTraceLog, /* parallel */ false);
+            bootTimingsTraceLog.traceEnd(); // PreloadClasses
+            bootTimingsTraceLog.traceBegin("PreloadResources");
+            preloadResources();
+            bootTimingsTraceLog.traceEnd(); // PreloadResources
+        }
         Trace.traceBegin(Trace.TRACE_TAG_DALVIK, "PreloadAppProcessHALs");
         nativePreloadAppProcessHALs();
         Trace.traceEnd(Trace.TRACE_TAG_DALVIK);
@@ -236,15 +254,21 @@ public class ZygoteInit {
      *
      * Most classes only cause a few hundred bytes to be allocated, but
      * a few will allocate a dozen Kbytes (in one case, 500+K).
+     *
+     * In parallel mode, a few extra threads load and link the classes, without initializing
+     * them, while this thread preloads resources and then initializes the classes in list
+     * order. Static initializers only ever run on this thread, so two of them can't deadlock
+     * on each other's class init locks, and the extra threads are gone again before the first
+     * fork.
      */
-    private static void preloadClasses() {
+    private static void preloadClasses(TimingsTraceLog timingsTraceLog, boolean parallel) {
         final VMRuntime runtime = VMRuntime.getRuntime();
 
-        InputStream is;
-        try {
-            is = new FileInputStream(PRELOADED_CLASSES);
-        } catch (FileNotFoundException e) {
-            Log.e(TAG, "Couldn't find " + PRELOADED_CLASSES + ".");
+        final ArrayList<String> classNames = readPreloadedClasses();
+        if (classNames == null) {
+            if (parallel) {
+                preloadResources();
+            }
             return;
         }
 
@@ -275,24 +299,26 @@ public class ZygoteInit {
         float defaultUtilization = runtime.getTargetHeapUtilization();
         runtime.setTargetHeapUtilization(0.8f);
 
+        Thread[] loaders = null;
         try {
-            BufferedReader br
-                = new BufferedReader(new InputStreamReader(is), 256);
+            if (parallel) {
+                // The loaders are started after dropping root, so they never hold it.
+                loaders = startClassLoaders(classNames);
+                timingsTraceLog.traceBegin("PreloadResources");
+                preloadResources();
+                timingsTraceLog.traceEnd(); // PreloadResources
+                timingsTraceLog.traceBegin("InitializeClasses");
+            }
 
             int count = 0;
-            String line;
-            while ((line = br.readLine()) != null) {
-                // Skip comments and blank lines.
-                line = line.trim();
-                if (line.startsWith("#") || line.equals("")) {
-                    continue;
-                }
-
+            for (int i = 0; i < classNames.size(); i++) {
+                final String line = classNames.get(i);
                 Trace.traceBegin(Trace.TRACE_TAG_DALVIK, line);
                 try {
                     if (false) {
                         Log.v(TAG, "Preloading " + line + "...");
                     }
+                    final long classStartTime = SystemClock.uptimeMillis();
                     // Load and explicitly initialize the given class. Use
                     // Class.forName(String, boolean, ClassLoader) to avoid repeated stack lookups
                     // (to derive the caller's class-loader). Use true to force initialization, and
@@ -300,6 +326,10 @@ public class ZygoteInit {
                     // class-loader of this class in a variable).
                     Class.forName(line, true, null);
                     count++;
+                    final long classTime = SystemClock.uptimeMillis() - classStartTime;
+                    if (classTime >= SLOW_PRELOAD_CLASS_MS) {
+                        timingsTraceLog.logDuration("PreloadClass " + line, classTime);
+                    }
                 } catch (ClassNotFoundException e) {
                     Log.w(TAG, "Class not found for preloading: " + line);
                 } catch (UnsatisfiedLinkError e) {
@@ -316,13 +346,17 @@ public class ZygoteInit {
                 }
                 Trace.traceEnd(Trace.TRACE_TAG_DALVIK);
             }
+            if (parallel) {
+                timingsTraceLog.traceEnd(); // InitializeClasses
+            }
 
             Log.i(TAG, "...preloaded " + count + " classes in "
                     + (SystemClock.uptimeMillis()-startTime) + "ms.");
-        } catch (IOException e) {
-            Log.e(TAG, "Error reading " + PRELOADED_CLASSES + ".", e);
         } finally {
-            IoUtils.closeQuietly(is);
+            if (loaders != null) {
+                joinClassLoaders(loaders);
+            }
+
             // Restore default.
             runtime.setTargetHeapUtilization(defaultUtilization);
 
@@ -343,6 +377,141 @@ public class ZygoteInit {
         }
     }
 
+    /**
+     * Reads the names in {@link #PRELOADED_CLASSES}, skipping comments and blank lines.
+     *
+     * @return the class names in file order, or null if the list can't be read.
+     */
+    private static ArrayList<String> readPreloadedClasses() {
+        InputStream is;
+        try {
+            is = new FileInputStream(PRELOADED_CLASSES);
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "Couldn't find " + PRELOADED_CLASSES + ".");
+            return null;
+        }
+
+        try {
+            BufferedReader br
+                = new BufferedReader(new InputStreamReader(is), 256);
+
+            final ArrayList<String> classNames = new ArrayList<>();
+            String line;
+            while ((line = br.readLine()) != null) {
+                // Skip comments and blank lines.
+                line = line.trim();
+                if (line.startsWith("#") || line.equals("")) {
+                    continue;
+                }
+                classNames.add(line);
+            }
+            return classNames;
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading " + PRELOADED_CLASSES + ".", e);
+            return null;
+        } finally {
+            IoUtils.closeQuietly(is);
+        }
+    }
+
+    /**
+     * Starts the threads that load and link, but don't initialize, the preloaded classes.
+     *
+     * The list is split by package, so that a class and the package private supertypes and
+     * nested classes it drags in are mostly loaded by the same thread instead of several
+     * threads waiting on each other for them.
+     */
+    private static Thread[] startClassLoaders(ArrayList<String> classNames) {
+        final ArrayMap<String, ArrayList<String>> packages = new ArrayMap<>();
+        for (int i = 0; i < classNames.size(); i++) {
+            final String className = classNames.get(i);
+            final int lastDot = className.lastIndexOf('.');
+            final String packageName = lastDot > 0 ? className.substring(0, lastDot) : "";
+            ArrayList<String> group = packages.get(packageName);
+            if (group == null) {
+                group = new ArrayList<>();
+                packages.put(packageName, group);
+            }
+            group.add(className);
+        }
+
+        final ArrayList<ArrayList<String>> groups = new ArrayList<>(packages.values());
+        // Hand out the biggest packages first so that the threads finish at about the same time.
+        groups.sort((a, b) -> Integer.compare(b.size(), a.size()));
+
+        final int threadCount = Math.max(1, Math.min(MAX_PRELOAD_LOADER_THREADS,
+                Runtime.getRuntime().availableProcessors() - 1));
+        @SuppressWarnings("unchecked")
+        final ArrayList<String>[] partitions = new ArrayList[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            partitions[i] = new ArrayList<>();
+        }
+        for (int i = 0; i < groups.size(); i++) {
+            ArrayList<String> smallest = partitions[0];
+            for (int j = 1; j < threadCount; j++) {
+                if (partitions[j].size() < smallest.size()) {
+                    smallest = partitions[j];
+                }
+            }
+            smallest.addAll(groups.get(i));
+        }
+
+        // Thread creation is normally an error in the zygote before the first fork.
+        final boolean noThreadCreation = sNoThreadCreation;
+        if (noThreadCreation) {
+            ZygoteHooks.stopZygoteNoThreadCreation();
+        }
+        final Thread[] loaders = new Thread[threadCount];
+        try {
+            for (int i = 0; i < threadCount; i++) {
+                final ArrayList<String> partition = partitions[i];
+                final String name = "ZygotePreload-" + i;
+                loaders[i] = new Thread(() -> loadClasses(name, partition), name);
+                loaders[i].start();
+            }
+        } finally {
+            if (noThreadCreation) {
+                ZygoteHooks.startZygoteNoThreadCreation();
+            }
+        }
+        return loaders;
+    }
+
+    private static void loadClasses(String name, ArrayList<String> classNames) {
+        final TimingsTraceLog timingsTraceLog = new TimingsTraceLog("ZygoteTimingAsync",
+                Trace.TRACE_TAG_DALVIK);
+        timingsTraceLog.traceBegin(name);
+        for (int i = 0; i < classNames.size(); i++) {
+            try {
+                Class.forName(classNames.get(i), false, null);
+            } catch (ClassNotFoundException | LinkageError e) {
+                // Reported when the class gets initialized.
+            }
+        }
+        timingsTraceLog.traceEnd();
+    }
+
+    private static void joinClassLoaders(Thread[] loaders) {
+        for (Thread loader : loaders) {
+            if (loader == null) {
+                continue;
+            }
+            // They must all be gone before the zygote can fork.
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    loader.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     /**
      * Load in commonly used resources, so they can be shared across
      * processes.
@@ -753,6 +922,7 @@ public class ZygoteInit {
         // Mark zygote start. This ensures that thread creation will throw
         // an error.
         ZygoteHooks.startZygoteNoThreadCreation();
+        sNoThreadCreation = true;
 
         // Zygote goes into its own process group.
         try {
@@ -828,6 +998,7 @@ public class ZygoteInit {
             Zygote.nativeUnmountStorageOnInit();
 
             ZygoteHooks.stopZygoteNoThreadCreation();
+            sNoThreadCreation = false;
 
             if (startSystemServer) {
                 Runnable r = forkSystemServer(abiList, socketName, zygoteServer);
@@ -24,7 +24,9 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -50,20 +52,42 @@ public class ConcurrentUtils {
     public static ExecutorService newFixedThreadPool(int nThreads, String poolName,
             int linuxThreadPriority) {
         return Executors.newFixedThreadPool(nThreads,
-                new ThreadFactory() {
-                    private final AtomicInteger threadNum = new AtomicInteger(0);
+                newThreadFactory(poolName, linuxThreadPriority));
+    }
 
+    /**
+     * Creates a thread pool of {@code nThreads} threads with an unbounded queue, like
+     * {@link #newFixedThreadPool}, that can be grown later with
+     * {@link ThreadPoolExecutor#setCorePoolSize}.  With an unbounded queue the pool never grows
+     * past its core size by itself, so the core size is the only one that matters.
+     *
+     * @param nThreads the initial number of threads in the pool
+     * @param maxThreads the largest core size the caller will set
+     * @param poolName base name of the threads in the pool
+     * @param linuxThreadPriority a Linux priority level. see {@link Process#setThreadPriority(int)}
+     * @return the newly created thread pool
+     */
+    public static ThreadPoolExecutor newResizableThreadPool(int nThreads, int maxThreads,
+            String poolName, int linuxThreadPriority) {
+        return new ThreadPoolExecutor(nThreads, maxThreads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), newThreadFactory(poolName, linuxThreadPriority));
+    }
+
+    private static ThreadFactory newThreadFactory(String poolName, int linuxThreadPriority) {
+        return new ThreadFactory() {
+            private final AtomicInteger threadNum = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(poolName + threadNum.incrementAndGet()) {
                     @Override
-                    public Thread newThread(final Runnable r) {
-                        return new Thread(poolName + threadNum.incrementAndGet()) {
-                            @Override
-                            public void run() {
-                                Process.setThreadPriority(linuxThreadPriority);
-                                r.run();
-                            }
-                        };
+                    public void run() {
+                        Process.setThreadPriority(linuxThreadPriority);
+                        r.run();
                     }
-                });
+                };
+            }
+        };
     }
 
     /**
@@ -39,6 +39,7 @@ public class NotificationMessagingUtil {
     private static final String DEFAULT_SMS_APP_SETTING = Settings.Secure.SMS_DEFAULT_APPLICATION;
     private final Context mContext;
     private ArrayMap<Integer, String> mDefaultSmsApp = new ArrayMap<>();
+    private volatile int mDefaultSmsAppGeneration;
 
     public NotificationMessagingUtil(Context context) {
         mContext = context;
@@ -68,10 +69,23 @@ public class NotificationMessagingUtil {
         return Objects.equals(mDefaultSmsApp.get(userId), sbn.getPackageName());
     }
 
+    /**
+     * Changes whenever the cached default SMS app of a user changes, so that callers that
+     * ordered notifications with {@link #isImportantMessaging} know to redo it.
+     */
+    public int getDefaultSmsAppGeneration() {
+        return mDefaultSmsAppGeneration;
+    }
+
     private void cacheDefaultSmsApp(int userId) {
-        mDefaultSmsApp.put(userId, Settings.Secure.getStringForUser(
+        final String smsApp = Settings.Secure.getStringForUser(
                 mContext.getContentResolver(),
-                Settings.Secure.SMS_DEFAULT_APPLICATION, userId));
+                Settings.Secure.SMS_DEFAULT_APPLICATION, userId);
+        final boolean cached = mDefaultSmsApp.containsKey(userId);
+        final String previous = mDefaultSmsApp.put(userId, smsApp);
+        if (cached && !Objects.equals(previous, smsApp)) {
+            mDefaultSmsAppGeneration++;
+        }
     }
 
     private final ContentObserver mSmsContentObserver = new ContentObserver(
@@ -116,6 +116,24 @@ public class BridgeRenderSession extends RenderSession {
         return mLastResult;
     }
 
+    @Override
+    public Result setProperty(Object objectView, String propertyName, String propertyValue) {
+        if (mSession != null) {
+            try {
+                Bridge.prepareThread();
+                mLastResult = mSession.acquire(mSession.getTimeout());
+                if (mLastResult.isSuccess()) {
+                    mLastResult = mSession.setProperty(objectView, propertyName, propertyValue);
+                }
+            } finally {
+                mSession.release();
+                Bridge.cleanupThread();
+            }
+        }
+
+        return mLastResult;
+    }
+
     @Override
     public void setSystemTimeNanos(long nanos) {
         System_Delegate.setNanosTime(nanos);
@@ -64,6 +64,22 @@ public final class RenderParamsFlags {
      */
     public static final Key<String> FLAG_KEY_ADAPTIVE_ICON_MASK_PATH =
             new Key<>("adaptiveIconMaskPath", String.class);
+    /**
+     * To tell LayoutLib to measure the subtrees of the layout that have a fixed size concurrently.
+     * <p/>
+     * Default is false.
+     */
+    public static final Key<Boolean> FLAG_KEY_PARALLEL_MEASURE =
+            new Key<>("parallelMeasure", Boolean.class);
+    /**
+     * To tell LayoutLib to check every concurrent measure pass against a serial one, and to go
+     * back to serial measure passes if they differ. Only used with
+     * {@link #FLAG_KEY_PARALLEL_MEASURE}.
+     * <p/>
+     * Default is false.
+     */
+    public static final Key<Boolean> FLAG_KEY_PARALLEL_MEASURE_CHECK =
+            new Key<>("parallelMeasureCheck", Boolean.class);
 
     // Disallow instances.
     private RenderParamsFlags() {}
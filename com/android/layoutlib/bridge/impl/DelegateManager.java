@@ -17,16 +17,17 @@
 package com.android.layoutlib.bridge.impl;
 
 import com.android.layoutlib.bridge.util.Debug;
-import com.android.layoutlib.bridge.util.SparseWeakArray;
 
+import android.annotation.NonNull;
 import android.annotation.Nullable;
-import android.util.SparseArray;
 
 import java.io.PrintStream;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Manages native delegates.
@@ -60,29 +61,38 @@ import java.util.concurrent.atomic.AtomicLong;
  * the Java object needs to count as a reference (even though it only holds an int), we use the
  * following mechanism:
  *
- * - {@link #addNewDelegate(Object)} and {@link #removeJavaReferenceFor(long)} adds and removes
- *   the delegate to/from a set. This set holds the reference and prevents the GC from reclaiming
- *   the delegate.
+ * - {@link #addNewDelegate(Object)} stores the delegate in a {@link DelegateRef}, a
+ *   {@link WeakReference} that also holds a strong reference to the delegate until
+ *   {@link #removeJavaReferenceFor(long)} drops it. This prevents the GC from reclaiming the
+ *   delegate while its main Java object is alive.
  *
- * - {@link #addNewDelegate(Object)} also adds the delegate to a {@link SparseArray} that holds a
- *   {@link WeakReference} to the delegate. This allows the delegate to be deleted automatically
- *   when nothing references it. This means that any class that holds a delegate (except for the
+ * - Once the strong reference is dropped, the delegate is deleted automatically when nothing
+ *   else references it. This means that any class that holds a delegate (except for the
  *   Java main class) must not use the int but the Delegate class instead. The integers must
  *   only be used in the API between the main Java class and the Delegate.
  *
+ * Delegates are looked up on every native call, from every thread rendering a layout, so the
+ * registry takes no lock on that path. Native ints are handed out sequentially, so the
+ * registry is a directory of fixed size chunks indexed directly by the int. Reclaimed
+ * references are removed in batches, and chunks whose delegates are all gone are dropped.
+ *
  * @param <T> the delegate class to manage
  */
 public final class DelegateManager<T> {
+    /** Each chunk holds the delegates for 2^CHUNK_SHIFT consecutive native ints. */
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    /** Reclaimed references are expunged every this many new delegates. */
+    private static final int EXPUNGE_INTERVAL = 256;
+
     @SuppressWarnings("FieldCanBeLocal")
     private final Class<T> mClass;
-    private static final SparseWeakArray<Object> sDelegates = new SparseWeakArray<>();
-    /** Set used to store delegates when their main object holds a reference to them.
-     * This is to ensure that the WeakReference in the SparseWeakArray doesn't get GC'ed
-     * @see #addNewDelegate(Object)
-     * @see #removeJavaReferenceFor(long)
-     */
-    private static final Set<Object> sJavaReferences = new HashSet<>();
     private static final AtomicLong sDelegateCounter = new AtomicLong(1);
+    private static final ReferenceQueue<Object> sReclaimed = new ReferenceQueue<>();
+    private static final AtomicBoolean sExpunging = new AtomicBoolean();
+    /** Guards the replacement of {@link #sDirectory} and writes to its chunk array. */
+    private static final Object sDirectoryLock = new Object();
+    private static volatile Directory sDirectory = new Directory(0, new Chunk[16]);
 
     public DelegateManager(Class<T> theClass) {
         mClass = theClass;
@@ -101,10 +111,8 @@ public final class DelegateManager<T> {
     @Nullable
     public T getDelegate(long native_object) {
         if (native_object > 0) {
-            Object delegate;
-            synchronized (DelegateManager.class) {
-                delegate = sDelegates.get(native_object);
-            }
+            DelegateRef ref = getRef(native_object);
+            Object delegate = ref != null ? ref.get() : null;
 
             if (Debug.DEBUG) {
                 if (delegate == null) {
@@ -127,11 +135,8 @@ public final class DelegateManager<T> {
      */
     public long addNewDelegate(T newDelegate) {
         long native_object = sDelegateCounter.getAndIncrement();
-        synchronized (DelegateManager.class) {
-            sDelegates.put(native_object, newDelegate);
-            // Only for development: assert !sJavaReferences.contains(newDelegate);
-            sJavaReferences.add(newDelegate);
-        }
+        DelegateRef ref = new DelegateRef(native_object, newDelegate);
+        getChunkForWrite(native_object).mRefs.set(slotOf(native_object), ref);
 
         if (Debug.DEBUG) {
             System.out.println(
@@ -140,6 +145,10 @@ public final class DelegateManager<T> {
                             native_object);
         }
 
+        if ((native_object % EXPUNGE_INTERVAL) == 0) {
+            expungeReclaimed();
+        }
+
         return native_object;
     }
 
@@ -148,23 +157,171 @@ public final class DelegateManager<T> {
      * @param native_object the native integer representing the delegate.
      */
     public void removeJavaReferenceFor(long native_object) {
-        synchronized (DelegateManager.class) {
-            T delegate = getDelegate(native_object);
+        if (Debug.DEBUG) {
+            System.out.println("Removing main Java ref on " + mClass.getSimpleName() +
+                    " with int " + native_object);
+        }
 
-            if (Debug.DEBUG) {
-                System.out.println("Removing main Java ref on " + mClass.getSimpleName() +
-                        " with int " + native_object);
+        if (native_object > 0) {
+            DelegateRef ref = getRef(native_object);
+            if (ref != null) {
+                ref.mJavaReference = null;
+            }
+        }
+    }
+
+    public static void dump(PrintStream out) {
+        int count = 0;
+        Directory directory = sDirectory;
+        for (int i = 0; i < directory.mChunks.length; i++) {
+            Chunk chunk = directory.mChunks[i];
+            if (chunk == null || chunk == Chunk.RETIRED) {
+                continue;
+            }
+            for (int slot = 0; slot < CHUNK_SIZE; slot++) {
+                DelegateRef ref = chunk.mRefs.get(slot);
+                Object reference = ref != null ? ref.mJavaReference : null;
+                if (reference != null) {
+                    out.printf("[%d] %s\n", ref.mNativeObject,
+                            reference.getClass().getSimpleName());
+                    count++;
+                }
             }
+        }
+        out.printf("\nTotal number of objects: %d\n", count);
+    }
+
+    private static int slotOf(long native_object) {
+        return (int) (native_object & (CHUNK_SIZE - 1));
+    }
 
-            sJavaReferences.remove(delegate);
+    @Nullable
+    private static DelegateRef getRef(long native_object) {
+        Chunk chunk = sDirectory.getChunk(native_object >>> CHUNK_SHIFT);
+        return chunk != null ? chunk.mRefs.get(slotOf(native_object)) : null;
+    }
+
+    @NonNull
+    private static Chunk getChunkForWrite(long native_object) {
+        long index = native_object >>> CHUNK_SHIFT;
+        Chunk chunk = sDirectory.getChunk(index);
+        if (chunk != null) {
+            return chunk;
+        }
+        // Once every CHUNK_SIZE delegates, or when a racing writer is creating the chunk.
+        synchronized (sDirectoryLock) {
+            Directory directory = sDirectory;
+            chunk = directory.getChunk(index);
+            if (chunk == null) {
+                // Native int 0 is never handed out.
+                chunk = new Chunk(index == 0 ? CHUNK_SIZE - 1 : CHUNK_SIZE);
+                if (index - directory.mBase >= directory.mChunks.length) {
+                    directory = directory.grow(index);
+                    sDirectory = directory;
+                }
+                directory.mChunks[(int) (index - directory.mBase)] = chunk;
+            }
+            return chunk;
         }
     }
 
-    public synchronized static void dump(PrintStream out) {
-        for (Object reference : sJavaReferences) {
-            int idx = sDelegates.indexOfValue(reference);
-            out.printf("[%d] %s\n", sDelegates.keyAt(idx), reference.getClass().getSimpleName());
+    /**
+     * Clears the slots of every delegate reclaimed since the last call. Only one thread does
+     * this at a time; others skip it, as the next interval will pick up what they would have.
+     */
+    private static void expungeReclaimed() {
+        if (!sExpunging.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            DelegateRef ref;
+            while ((ref = (DelegateRef) sReclaimed.poll()) != null) {
+                long index = ref.mNativeObject >>> CHUNK_SHIFT;
+                Chunk chunk = sDirectory.getChunk(index);
+                if (chunk == null) {
+                    continue;
+                }
+                chunk.mRefs.compareAndSet(slotOf(ref.mNativeObject), ref, null);
+                if (chunk.mRemaining.decrementAndGet() == 0) {
+                    // Every native int of this chunk was handed out and its delegate reclaimed.
+                    synchronized (sDirectoryLock) {
+                        Directory directory = sDirectory;
+                        if (directory.getChunk(index) == chunk) {
+                            directory.mChunks[(int) (index - directory.mBase)] = Chunk.RETIRED;
+                        }
+                    }
+                }
+            }
+        } finally {
+            sExpunging.set(false);
+        }
+    }
+
+    /**
+     * The weak reference to a delegate, which also holds it strongly while its main Java object
+     * references it.
+     */
+    private static final class DelegateRef extends WeakReference<Object> {
+        private final long mNativeObject;
+        private volatile Object mJavaReference;
+
+        private DelegateRef(long nativeObject, Object delegate) {
+            super(delegate, sReclaimed);
+            mNativeObject = nativeObject;
+            mJavaReference = delegate;
+        }
+    }
+
+    private static final class Chunk {
+        /**
+         * Stands for a chunk whose delegates were all reclaimed. Unlike a chunk that was not
+         * created yet, which is null, it can be dropped from the directory.
+         */
+        private static final Chunk RETIRED = new Chunk(0);
+
+        private final AtomicReferenceArray<DelegateRef> mRefs =
+                new AtomicReferenceArray<>(CHUNK_SIZE);
+        /** Number of slots whose delegate has not been reclaimed yet, or not added yet. */
+        private final AtomicInteger mRemaining;
+
+        private Chunk(int size) {
+            mRemaining = new AtomicInteger(size);
+        }
+    }
+
+    /**
+     * The chunks for the native ints from {@code mBase << CHUNK_SHIFT} on. Replaced as a whole
+     * when it needs to grow, which also drops the leading chunks that were emptied.
+     */
+    private static final class Directory {
+        private final long mBase;
+        private final Chunk[] mChunks;
+
+        private Directory(long base, Chunk[] chunks) {
+            mBase = base;
+            mChunks = chunks;
+        }
+
+        @Nullable
+        private Chunk getChunk(long index) {
+            long offset = index - mBase;
+            Chunk chunk = offset >= 0 && offset < mChunks.length ? mChunks[(int) offset] : null;
+            return chunk != Chunk.RETIRED ? chunk : null;
+        }
+
+        /** Returns a directory that can hold the chunk at {@code index}. */
+        @NonNull
+        private Directory grow(long index) {
+            int first = 0;
+            while (first < mChunks.length && mChunks[first] == Chunk.RETIRED) {
+                first++;
+            }
+            long base = mBase + first;
+            int used = mChunks.length - first;
+            int length = Math.max(used * 2, (int) (index - base) + 1);
+            Chunk[] chunks = new Chunk[Math.max(length, 16)];
+            System.arraycopy(mChunks, first, chunks, 0, used);
+            return new Directory(base, chunks);
         }
-        out.printf("\nTotal number of objects: %d\n", sJavaReferences.size());
     }
 }
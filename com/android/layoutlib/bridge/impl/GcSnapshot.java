@@ -39,12 +39,14 @@ import java.awt.Graphics2D;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.Shape;
+import java.awt.Transparency;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Area;
 import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
+import java.util.Iterator;
 
 /**
  * Class representing a graphics context snapshot, as well as a context stack as a linked list.
@@ -59,6 +61,10 @@ import java.util.ArrayList;
  * a list of Graphics2D for each layers. The class actually maintains a list of {@link Layer}
  * for each layer. Doing a save() will duplicate this list so that each graphics2D object
  * ({@link Layer#getGraphics()}) is configured only for the new snapshot.
+ * <p>
+ * The image of a layer only covers the layer bounds, and each layer tracks the area that was
+ * drawn into it, so restoring a layer only copies and composites the pixels that can have
+ * changed. Layer images are recycled through a pool shared by all renders.
  */
 public class GcSnapshot {
 
@@ -81,7 +87,11 @@ public class GcSnapshot {
      */
     private final Layer mLocalLayer;
     private final Paint_Delegate mLocalLayerPaint;
+    /** the bounds of the local layer in the base layer, clipped to it */
     private final Rect mLayerBounds;
+    private boolean mLocalLayerRecycled;
+
+    private static final ImagePool sImagePool = new ImagePool();
 
     public interface Drawable {
         void draw(Graphics2D graphics, Paint_Delegate paint);
@@ -96,6 +106,12 @@ public class GcSnapshot {
         private final Graphics2D mGraphics;
         private final Bitmap_Delegate mBitmap;
         private final BufferedImage mImage;
+        /** position of the image in the base layer */
+        private final int mOffsetX;
+        private final int mOffsetY;
+        /** the part of the image drawn into, in image coordinates. Shared by all copies of the
+         * layer. Null for the base layer, which doesn't need it. */
+        private final Rectangle mDirty;
         /** the flags that were used to configure the layer. This is never changed, and passed
          * as is when {@link #makeCopy()} is called */
         private final int mFlags;
@@ -115,6 +131,9 @@ public class GcSnapshot {
             mGraphics = graphics;
             mBitmap = bitmap;
             mImage = mBitmap.getImage();
+            mOffsetX = 0;
+            mOffsetY = 0;
+            mDirty = null;
             mFlags = 0;
         }
 
@@ -125,12 +144,19 @@ public class GcSnapshot {
          *
          * @param graphics the graphics the new graphics for this layer
          * @param image the image the image from which the graphics came
+         * @param offsetX the left of the image in the base layer
+         * @param offsetY the top of the image in the base layer
+         * @param dirty the area of the image drawn into so far
          * @param flags the flags that were used to save this layer
          */
-        Layer(Graphics2D graphics, BufferedImage image, int flags) {
+        Layer(Graphics2D graphics, BufferedImage image, int offsetX, int offsetY,
+                Rectangle dirty, int flags) {
             mGraphics = graphics;
             mBitmap = null;
             mImage = image;
+            mOffsetX = offsetX;
+            mOffsetY = offsetY;
+            mDirty = dirty;
             mFlags = flags;
         }
 
@@ -158,7 +184,8 @@ public class GcSnapshot {
                 return new Layer((Graphics2D) mGraphics.create(), mBitmap);
             }
 
-            return new Layer((Graphics2D) mGraphics.create(), mImage, mFlags);
+            return new Layer((Graphics2D) mGraphics.create(), mImage, mOffsetX, mOffsetY, mDirty,
+                    mFlags);
         }
 
         /** sets an optional copy of the original content to be used during restore */
@@ -170,10 +197,97 @@ public class GcSnapshot {
             return mOriginalCopy;
         }
 
-        void change() {
+        /**
+         * Records a drawing done with the given graphics, which must be the graphics of this
+         * layer or derived from it.
+         */
+        void change(Graphics2D graphics) {
+            if (mBitmap != null) {
+                mBitmap.change();
+            }
+            if (mDirty != null) {
+                Shape clip = graphics.getClip();
+                if (clip == null) {
+                    markDirty(0, 0, mImage.getWidth(), mImage.getHeight());
+                } else {
+                    Rectangle bounds =
+                            graphics.getTransform().createTransformedShape(clip).getBounds();
+                    markDirty(bounds.x, bounds.y, bounds.width, bounds.height);
+                }
+            }
+        }
+
+        /** Adds a rectangle, in image coordinates, to the area drawn into. */
+        void change(Rectangle rect) {
+            if (mBitmap != null) {
+                mBitmap.change();
+            }
+            if (mDirty != null) {
+                markDirty(rect.x, rect.y, rect.width, rect.height);
+            }
+        }
+
+        /** Adds a rectangle, in base layer coordinates, to the area drawn into. */
+        void changeInBase(Rect rect) {
             if (mBitmap != null) {
                 mBitmap.change();
             }
+            if (mDirty != null) {
+                markDirty(rect.left - mOffsetX, rect.top - mOffsetY, rect.width(), rect.height());
+            }
+        }
+
+        private void markDirty(int x, int y, int width, int height) {
+            Rectangle area = new Rectangle(x, y, width, height).intersection(
+                    new Rectangle(0, 0, mImage.getWidth(), mImage.getHeight()));
+            if (area.isEmpty()) {
+                return;
+            }
+            if (mDirty.isEmpty()) {
+                mDirty.setBounds(area);
+            } else {
+                mDirty.add(area);
+            }
+        }
+
+        /** Returns the area drawn into, in base layer coordinates, or null for the base layer. */
+        Rect getDirtyInBase() {
+            if (mDirty == null) {
+                return null;
+            }
+            Rect dirty = new Rect();
+            if (!mDirty.isEmpty()) {
+                dirty.set(mDirty.x + mOffsetX, mDirty.y + mOffsetY,
+                        mDirty.x + mDirty.width + mOffsetX, mDirty.y + mDirty.height + mOffsetY);
+            }
+            return dirty;
+        }
+
+        /**
+         * Sets the transform for the graphics2D object associated with the layer, accounting
+         * for the position of the layer image.
+         * This should be used over the normal Graphics2D setTransform method.
+         */
+        void setTransform(AffineTransform transform) {
+            if (mOffsetX == 0 && mOffsetY == 0) {
+                mGraphics.setTransform(transform);
+            } else {
+                AffineTransform offsetTransform =
+                        AffineTransform.getTranslateInstance(-mOffsetX, -mOffsetY);
+                offsetTransform.concatenate(transform);
+                mGraphics.setTransform(offsetTransform);
+            }
+        }
+
+        /** Returns the layer image, and the original copy if any, to the pool. */
+        void recycleImages() {
+            if (mBitmap == null) {
+                sImagePool.release(mImage, mDirty);
+            }
+            if (mOriginalCopy != null) {
+                sImagePool.release(mOriginalCopy, null);
+                mOriginalCopy = null;
+            }
         }
 
         /**
@@ -299,10 +413,18 @@ public class GcSnapshot {
             // get the base layer (always at index 0)
             Layer baseLayer = mLayers.get(0);
 
-            // create the image for the layer
-            BufferedImage layerImage = new BufferedImage(
-                    baseLayer.getImage().getWidth(),
-                    baseLayer.getImage().getHeight(),
+            // nothing outside of the base layer is ever restored, so the layer image only
+            // needs to cover the part of the bounds inside of it.
+            if (!mLayerBounds.intersect(0, 0, baseLayer.getImage().getWidth(),
+                    baseLayer.getImage().getHeight())) {
+                mLayerBounds.setEmpty();
+            }
+
+            // create the image for the layer. Keep a pixel for empty bounds so that the
+            // drawing code doesn't need to special case it.
+            BufferedImage layerImage = sImagePool.acquire(
+                    Math.max(mLayerBounds.width(), 1),
+                    Math.max(mLayerBounds.height(), 1),
                     (mFlags & Canvas.HAS_ALPHA_LAYER_SAVE_FLAG) != 0 ?
                             BufferedImage.TYPE_INT_ARGB :
                                 BufferedImage.TYPE_INT_RGB);
@@ -310,13 +432,21 @@ public class GcSnapshot {
             // create a graphics for it so that drawing can be done.
             Graphics2D layerGraphics = layerImage.createGraphics();
 
+            // create a new layer for this new layer and add it to the list at the end.
+            // The undrawn pixels of an opaque layer are black, and some modes change the
+            // destination even where the layer is transparent. In both cases the whole layer
+            // has to be composited, so count all of it as drawn into.
+            Rectangle dirty = layerImage.getTransparency() == Transparency.OPAQUE ||
+                    !keepsDestinationUnderTransparent(paint) ?
+                    new Rectangle(0, 0, layerImage.getWidth(), layerImage.getHeight()) :
+                    new Rectangle();
+            mLayers.add(mLocalLayer = new Layer(layerGraphics, layerImage,
+                    mLayerBounds.left, mLayerBounds.top, dirty, flags));
+
             // because this layer inherits the current context for transform and clip,
             // set them to one from the base layer.
             AffineTransform currentMtx = baseLayer.getGraphics().getTransform();
-            layerGraphics.setTransform(currentMtx);
-
-            // create a new layer for this new layer and add it to the list at the end.
-            mLayers.add(mLocalLayer = new Layer(layerGraphics, layerImage, flags));
+            mLocalLayer.setTransform(currentMtx);
 
             // set the clip on it.
             Shape currentClip = baseLayer.getGraphics().getClip();
@@ -327,17 +457,19 @@ public class GcSnapshot {
             // be drawn, so we create as small bitmaps as we can.
             // This is so that we can erase the drawing that goes in the layers below that will
             // be coming from the layer itself.
-            if ((mFlags & Canvas.CLIP_TO_LAYER_SAVE_FLAG) == 0) {
+            if ((mFlags & Canvas.CLIP_TO_LAYER_SAVE_FLAG) == 0 && !mLayerBounds.isEmpty()) {
                 int w = mLayerBounds.width();
                 int h = mLayerBounds.height();
                 for (int i = 0 ; i < mLayers.size() - 1 ; i++) {
                     Layer layer = mLayers.get(i);
-                    BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+                    BufferedImage image =
+                            sImagePool.acquire(w, h, BufferedImage.TYPE_INT_ARGB);
                     Graphics2D graphics = image.createGraphics();
                     graphics.drawImage(layer.getImage(),
                             0, 0, w, h,
-                            mLayerBounds.left, mLayerBounds.top,
-                                    mLayerBounds.right, mLayerBounds.bottom,
+                            mLayerBounds.left - layer.mOffsetX, mLayerBounds.top - layer.mOffsetY,
+                            mLayerBounds.right - layer.mOffsetX,
+                            mLayerBounds.bottom - layer.mOffsetY,
                             null);
                     graphics.dispose();
                     layer.setOriginalCopy(image);
@@ -355,6 +487,7 @@ public class GcSnapshot {
         for (Layer layer : mLayers) {
             layer.getGraphics().dispose();
         }
+        recycleLayerImages();
 
         if (mPrevious != null) {
             mPrevious.dispose();
@@ -473,7 +606,7 @@ public class GcSnapshot {
     public void setTransform(AffineTransform transform) {
         if (mLayers.size() > 0) {
             for (Layer layer : mLayers) {
-                layer.getGraphics().setTransform(transform);
+                layer.setTransform(transform);
             }
         } else {
             if (mTransform == null) {
@@ -602,6 +735,120 @@ public class GcSnapshot {
         }
     }
 
+    /**
+     * Composites pixels at an integer position, without scaling, directly into the images of
+     * the layers, which is much cheaper than drawing an image through a {@link Graphics2D} for
+     * small images such as icons.
+     * <p/>
+     * This is only possible when every layer to draw into has an int-ARGB image, an integer
+     * translation for transform and a rectangle with integer bounds for clip, and when the
+     * paint has no color filter and a mode supported by
+     * {@link PorterDuffUtility#isBlendSupported(Mode)}. Otherwise nothing is drawn and the
+     * pixels must be drawn with {@link #draw(Drawable, Paint_Delegate, boolean, boolean)}.
+     *
+     * @param pixels the non premultiplied ARGB pixels
+     * @param offset the index of the top left pixel
+     * @param stride the number of entries between two rows of pixels
+     * @param opaque whether the alpha of the pixels must be ignored
+     * @param width the width of the pixels
+     * @param height the height of the pixels
+     * @param x the left of the pixels in the current coordinates
+     * @param y the top of the pixels in the current coordinates
+     * @param paint the paint, used for its alpha and mode only. Can be null
+     * @param forceSrcMode if true, this overrides the mode of the paint to be SRC
+     * @return whether the pixels were drawn
+     */
+    public boolean blit(int[] pixels, int offset, int stride, boolean opaque, int width,
+            int height, int x, int y, Paint_Delegate paint, boolean forceSrcMode) {
+        Mode mode = Mode.SRC_OVER;
+        int alpha = 0xFF;
+        if (paint != null) {
+            ColorFilter_Delegate filter = paint.getColorFilter();
+            if (filter != null && filter.isSupported()) {
+                return false;
+            }
+            mode = forceSrcMode ? Mode.SRC : PorterDuff.intToMode(paint.getPorterDuffMode());
+            alpha = paint.getAlpha();
+        }
+        if (!PorterDuffUtility.isBlendSupported(mode)) {
+            return false;
+        }
+
+        // same layers as draw(), all of them must accept the blit before drawing in any.
+        int first = mLayers.size() - 1;
+        while (first > 0 &&
+                (mLayers.get(first).getFlags() & Canvas.CLIP_TO_LAYER_SAVE_FLAG) == 0) {
+            first--;
+        }
+        Rectangle[] areas = new Rectangle[mLayers.size()];
+        for (int i = mLayers.size() - 1; i >= first; i--) {
+            areas[i] = getBlitArea(mLayers.get(i), pixels, x, y, width, height);
+            if (areas[i] == null) {
+                return false;
+            }
+        }
+
+        for (int i = mLayers.size() - 1; i >= first; i--) {
+            Layer layer = mLayers.get(i);
+            Rectangle area = areas[i];
+            if (area.isEmpty()) {
+                continue;
+            }
+            AffineTransform transform = layer.getGraphics().getTransform();
+            int left = x + (int) transform.getTranslateX();
+            int top = y + (int) transform.getTranslateY();
+            int imageWidth = layer.getImage().getWidth();
+            PorterDuffUtility.blend(mode, alpha,
+                    pixels, offset + (area.y - top) * stride + area.x - left, stride, opaque,
+                    PorterDuffUtility.getIntPixels(layer.getImage()),
+                    area.y * imageWidth + area.x, imageWidth,
+                    area.width, area.height);
+            layer.change(area);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the area of the layer image covered by pixels blitted at the given position, or
+     * null if they cannot be blitted in the layer, which includes drawing the layer image into
+     * itself.
+     */
+    private static Rectangle getBlitArea(Layer layer, int[] pixels, int x, int y, int width,
+            int height) {
+        BufferedImage image = layer.getImage();
+        int[] imagePixels = image.getType() == BufferedImage.TYPE_INT_ARGB ?
+                PorterDuffUtility.getIntPixels(image) : null;
+        if (imagePixels == null || imagePixels == pixels) {
+            return null;
+        }
+        Graphics2D graphics = layer.getGraphics();
+        AffineTransform transform = graphics.getTransform();
+        double tx = transform.getTranslateX();
+        double ty = transform.getTranslateY();
+        if ((transform.getType() & ~AffineTransform.TYPE_TRANSLATION) != 0 ||
+                tx != (int) tx || ty != (int) ty) {
+            return null;
+        }
+
+        Rectangle area = new Rectangle(x + (int) tx, y + (int) ty, width, height)
+                .intersection(new Rectangle(0, 0, image.getWidth(), image.getHeight()));
+        Shape clip = graphics.getClip();
+        if (clip != null) {
+            if (clip instanceof Area && !((Area) clip).isRectangular() ||
+                    !(clip instanceof Area) && !(clip instanceof Rectangle2D)) {
+                return null;
+            }
+            Rectangle2D bounds = clip.getBounds2D();
+            Rectangle clipBounds = bounds.getBounds();
+            if (!clipBounds.equals(bounds)) {
+                return null;
+            }
+            clipBounds.translate((int) tx, (int) ty);
+            area = area.intersection(clipBounds);
+        }
+        return area;
+    }
+
     private void drawInLayer(Layer layer, Drawable drawable, Paint_Delegate paint,
             boolean compositeOnly, int forceMode) {
         Graphics2D originalGraphics = layer.getGraphics();
@@ -667,7 +914,7 @@ public class GcSnapshot {
                 // Draw the tinted image on the main layer using as start point the clipping
                 // upper left coordinates.
                 configuredGraphics.drawImage(image, x, y, null);
-                layer.change();
+                layer.change(configuredGraphics);
             } finally {
                 // dispose Graphics2D objects
                 imageGraphics.dispose();
@@ -681,7 +928,7 @@ public class GcSnapshot {
             Layer layer) {
         try {
             drawable.draw(g, paint);
-            layer.change();
+            layer.change(g);
         } finally {
             g.dispose();
         }
@@ -711,7 +958,7 @@ public class GcSnapshot {
             if ((mFlags & Canvas.MATRIX_SAVE_FLAG) == 0) {
                 AffineTransform mtx = getTransform();
                 for (Layer layer : mPrevious.mLayers) {
-                    layer.getGraphics().setTransform(mtx);
+                    layer.setTransform(mtx);
                 }
             }
 
@@ -727,11 +974,49 @@ public class GcSnapshot {
         for (Layer layer : mLayers) {
             layer.getGraphics().dispose();
         }
+        recycleLayerImages();
 
         return mPrevious;
     }
 
+    /**
+     * Returns the images only this snapshot uses to the pool: the local layer image and the
+     * original copies made when it was created.
+     */
+    private void recycleLayerImages() {
+        if (mLocalLayer == null) {
+            return;
+        }
+        for (Layer layer : mLayers) {
+            if (layer != mLocalLayer) {
+                BufferedImage originalCopy = layer.getOriginalCopy();
+                if (originalCopy != null) {
+                    sImagePool.release(originalCopy, null);
+                    layer.setOriginalCopy(null);
+                }
+            }
+        }
+        if (!mLocalLayerRecycled) {
+            mLocalLayerRecycled = true;
+            mLocalLayer.recycleImages();
+        }
+    }
+
     private void restoreLayer(Layer dstLayer) {
+        // only the part of the layer that was drawn into can differ from what's underneath.
+        Rect area = mLocalLayer.getDirtyInBase();
+        if (!area.intersect(mLayerBounds)) {
+            return;
+        }
+        // offsets of the area in the layer beneath, in the local layer and in the original copy
+        int dstX = area.left - dstLayer.mOffsetX;
+        int dstY = area.top - dstLayer.mOffsetY;
+        int srcX = area.left - mLocalLayer.mOffsetX;
+        int srcY = area.top - mLocalLayer.mOffsetY;
+        int copyX = area.left - mLayerBounds.left;
+        int copyY = area.top - mLayerBounds.top;
+        int w = area.width();
+        int h = area.height();
 
         Graphics2D baseGfx = dstLayer.getImage().createGraphics();
 
@@ -745,8 +1030,8 @@ public class GcSnapshot {
             g.setComposite(AlphaComposite.Src);
 
             g.drawImage(originalCopy,
-                    mLayerBounds.left, mLayerBounds.top, mLayerBounds.right, mLayerBounds.bottom,
-                    0, 0, mLayerBounds.width(), mLayerBounds.height(),
+                    dstX, dstY, dstX + w, dstY + h,
+                    copyX, copyY, copyX + w, copyY + h,
                     null);
             g.dispose();
         }
@@ -757,12 +1042,13 @@ public class GcSnapshot {
                 true /*alphaOnly*/, 0 /*forceMode*/);
 
         g.drawImage(mLocalLayer.getImage(),
-                mLayerBounds.left, mLayerBounds.top, mLayerBounds.right, mLayerBounds.bottom,
-                mLayerBounds.left, mLayerBounds.top, mLayerBounds.right, mLayerBounds.bottom,
+                dstX, dstY, dstX + w, dstY + h,
+                srcX, srcY, srcX + w, srcY + h,
                 null);
         g.dispose();
 
         baseGfx.dispose();
+        dstLayer.changeInBase(area);
     }
 
     /**
@@ -833,6 +1119,29 @@ public class GcSnapshot {
         g.setComposite(composite);
     }
 
+    /**
+     * Returns whether compositing a fully transparent pixel with the given paint leaves the
+     * destination pixel unchanged.
+     */
+    private static boolean keepsDestinationUnderTransparent(Paint_Delegate paint) {
+        if (paint == null) {
+            return true;
+        }
+        switch (PorterDuff.intToMode(paint.getPorterDuffMode())) {
+            case SRC_OVER:
+            case DST:
+            case DST_OVER:
+            case DST_OUT:
+            case SRC_ATOP:
+            case XOR:
+            case ADD:
+            case SCREEN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
     private void mapRect(AffineTransform matrix, RectF dst, RectF src) {
         // array with 4 corners
         float[] corners = new float[] {
@@ -882,4 +1191,66 @@ public class GcSnapshot {
         return bounds;
     }
 
+    /**
+     * Recycles layer images across snapshots and renders. Re-rendering the same layout creates
+     * layers of the same sizes over and over, so images are only reused for an exact match.
+     * Images are cleared when released, only over the area that was drawn into.
+     */
+    private static class ImagePool {
+        /** Upper bound on the pixels held by the pool, 64MB worth of int pixels. */
+        private static final long MAX_POOLED_PIXELS = 16 * 1024 * 1024;
+
+        /** Least recently released first. */
+        private final ArrayList<BufferedImage> mImages = new ArrayList<>();
+        private long mPooledPixels;
+
+        /** Returns a cleared image of the given size and type. */
+        BufferedImage acquire(int width, int height, int type) {
+            synchronized (mImages) {
+                for (int i = mImages.size() - 1; i >= 0; i--) {
+                    BufferedImage image = mImages.get(i);
+                    if (image.getWidth() == width && image.getHeight() == height &&
+                            image.getType() == type) {
+                        mImages.remove(i);
+                        mPooledPixels -= (long) width * height;
+                        return image;
+                    }
+                }
+            }
+            return new BufferedImage(width, height, type);
+        }
+
+        /**
+         * Takes back an image that is no longer used.
+         *
+         * @param dirty the only area of the image that may not be cleared, or null if that may
+         *          be any part of it
+         */
+        void release(BufferedImage image, Rectangle dirty) {
+            long pixels = (long) image.getWidth() * image.getHeight();
+            if (pixels > MAX_POOLED_PIXELS) {
+                return;
+            }
+            if (dirty == null || !dirty.isEmpty()) {
+                Graphics2D g = image.createGraphics();
+                g.setComposite(AlphaComposite.Clear);
+                if (dirty != null) {
+                    g.fill(dirty);
+                } else {
+                    g.fillRect(0, 0, image.getWidth(), image.getHeight());
+                }
+                g.dispose();
+            }
+            synchronized (mImages) {
+                mImages.add(image);
+                mPooledPixels += pixels;
+                Iterator<BufferedImage> iterator = mImages.iterator();
+                while (mPooledPixels > MAX_POOLED_PIXELS && iterator.hasNext()) {
+                    BufferedImage oldest = iterator.next();
+                    iterator.remove();
+                    mPooledPixels -= (long) oldest.getWidth() * oldest.getHeight();
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.layoutlib.bridge.impl;
+
+import com.android.ide.common.rendering.api.LayoutLog;
+import com.android.layoutlib.bridge.Bridge;
+import com.android.layoutlib.bridge.android.RenderParamsFlags;
+import com.android.layoutlib.bridge.android.support.RecyclerViewUtil;
+import com.android.tools.layoutlib.annotations.VisibleForTesting;
+
+import android.annotation.NonNull;
+import android.view.View;
+import android.view.View.MeasureSpec;
+import android.view.ViewGroup;
+import android.view.ViewGroup.LayoutParams;
+import android.view.View_Accessor;
+import android.widget.AdapterView;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static com.android.layoutlib.bridge.util.ReflectionUtils.isInstanceOf;
+
+/**
+ * Measures the independent subtrees of a view hierarchy concurrently, ahead of the regular
+ * measure pass.
+ * <p/>
+ * A child with a fixed width and height in its layout params gets exact measure specs of that
+ * size from almost every parent, so it can be measured before its parent is. Such subtrees are
+ * measured on a fork-join pool and their layout request is then cleared. The regular pass that
+ * follows reuses their measurement when the parent passes the expected specs, and measures them
+ * again otherwise, so the result does not depend on the guess being right.
+ * <p/>
+ * Subtrees with an adapter view or a RecyclerView are always measured serially: those inflate
+ * their items while they are measured, through the session's {@code BridgeContext}, whose parser
+ * stack and caches are not thread safe.
+ * <p/>
+ * Layoutlib has no UI thread, but views are not written to be measured from several threads, so
+ * this is only used with {@link RenderParamsFlags#FLAG_KEY_PARALLEL_MEASURE}. With
+ * {@link RenderParamsFlags#FLAG_KEY_PARALLEL_MEASURE_CHECK}, every pass is compared with a serial
+ * one and the session goes back to serial passes on the first difference.
+ */
+final class ParallelMeasure {
+
+    /** Subtrees smaller than this are measured faster than they are handed to another thread. */
+    private static final int MIN_SUBTREE_SIZE = 16;
+
+    private static ForkJoinPool sPool;
+
+    private final boolean mCheck;
+    private boolean mDisabled;
+
+    ParallelMeasure(boolean check) {
+        mCheck = check;
+    }
+
+    /**
+     * Measures the root with the given specs, measuring its independent subtrees concurrently
+     * first.
+     */
+    void measure(@NonNull ViewGroup root, int widthMeasureSpec, int heightMeasureSpec) {
+        if (mDisabled) {
+            root.measure(widthMeasureSpec, heightMeasureSpec);
+            return;
+        }
+
+        preMeasure(root);
+        root.measure(widthMeasureSpec, heightMeasureSpec);
+        if (mCheck) {
+            check(root, widthMeasureSpec, heightMeasureSpec);
+        }
+    }
+
+    private static void preMeasure(@NonNull ViewGroup root) {
+        List<View> subtrees = findSubtrees(root);
+        if (subtrees.size() < 2) {
+            return;
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>(subtrees.size());
+        for (View view : subtrees) {
+            LayoutParams params = view.getLayoutParams();
+            int widthMeasureSpec = MeasureSpec.makeMeasureSpec(params.width, MeasureSpec.EXACTLY);
+            int heightMeasureSpec =
+                    MeasureSpec.makeMeasureSpec(params.height, MeasureSpec.EXACTLY);
+            tasks.add(() -> {
+                view.measure(widthMeasureSpec, heightMeasureSpec);
+                return null;
+            });
+        }
+
+        List<Future<Void>> results;
+        try {
+            results = getPool().invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                results.get(i).get();
+                View_Accessor.clearForceLayout(subtrees.get(i));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                // The subtree still requests a layout, so the serial pass measures it again and
+                // reports the error if there is one.
+            }
+        }
+    }
+
+    /**
+     * Returns the subtrees of the root that {@link #measure} measures concurrently.
+     */
+    @VisibleForTesting
+    @NonNull
+    static List<View> findSubtrees(@NonNull ViewGroup root) {
+        Set<View> inflating = Collections.newSetFromMap(new IdentityHashMap<>());
+        findInflatingViews(root, inflating);
+        List<View> subtrees = new ArrayList<>();
+        collectSubtrees(root, inflating, subtrees);
+        return subtrees;
+    }
+
+    /**
+     * Adds to the list the topmost subtrees that have a fixed size, need to be measured, are
+     * large enough to be worth measuring on another thread and do not inflate views.
+     *
+     * @param inflating the views that inflate views while measured, and their ancestors.
+     */
+    private static void collectSubtrees(@NonNull ViewGroup group, @NonNull Set<View> inflating,
+            @NonNull List<View> out) {
+        for (int i = 0; i < group.getChildCount(); i++) {
+            View child = group.getChildAt(i);
+            if (!(child instanceof ViewGroup) || child.getVisibility() == View.GONE
+                    || inflatesWhenMeasured(child)) {
+                continue;
+            }
+
+            LayoutParams params = child.getLayoutParams();
+            if (params != null && params.width >= 0 && params.height >= 0
+                    && child.isLayoutRequested() && !inflating.contains(child)
+                    && countViews(child, MIN_SUBTREE_SIZE) >= MIN_SUBTREE_SIZE) {
+                out.add(child);
+            } else {
+                collectSubtrees((ViewGroup) child, inflating, out);
+            }
+        }
+    }
+
+    /**
+     * Adds to the set the views of the subtree that inflate views while measured, and their
+     * ancestors.
+     *
+     * @return whether any view was added.
+     */
+    private static boolean findInflatingViews(@NonNull View view, @NonNull Set<View> out) {
+        boolean found = inflatesWhenMeasured(view);
+        if (!found && view instanceof ViewGroup) {
+            ViewGroup group = (ViewGroup) view;
+            for (int i = 0; i < group.getChildCount(); i++) {
+                found |= findInflatingViews(group.getChildAt(i), out);
+            }
+        }
+        if (found) {
+            out.add(view);
+        }
+        return found;
+    }
+
+    /**
+     * Returns whether the view may create its children while it is measured, as views that
+     * get their items from an adapter do.
+     */
+    private static boolean inflatesWhenMeasured(@NonNull View view) {
+        return view instanceof AdapterView
+                || isInstanceOf(view, RecyclerViewUtil.CN_RECYCLER_VIEW);
+    }
+
+    /**
+     * Returns the number of views in the subtree, stopping the count at the given limit.
+     */
+    private static int countViews(@NonNull View view, int limit) {
+        int count = 1;
+        if (view instanceof ViewGroup) {
+            ViewGroup group = (ViewGroup) view;
+            for (int i = 0; i < group.getChildCount() && count < limit; i++) {
+                count += countViews(group.getChildAt(i), limit - count);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Measures the whole tree again serially and compares the result with the concurrent pass.
+     * The tree is left with the serial measurements either way.
+     */
+    private void check(@NonNull ViewGroup root, int widthMeasureSpec, int heightMeasureSpec) {
+        Map<View, Long> concurrent = new IdentityHashMap<>();
+        recordMeasurements(root, concurrent);
+        forceLayout(root);
+        root.measure(widthMeasureSpec, heightMeasureSpec);
+
+        Map<View, Long> serial = new IdentityHashMap<>();
+        recordMeasurements(root, serial);
+        for (Map.Entry<View, Long> entry : serial.entrySet()) {
+            if (!entry.getValue().equals(concurrent.get(entry.getKey()))) {
+                mDisabled = true;
+                Bridge.getLog().warning(LayoutLog.TAG_INFO, String.format(
+                        "Concurrent measure pass gave a different size for %s, using serial " +
+                                "passes for this session.", entry.getKey()), null);
+                return;
+            }
+        }
+    }
+
+    private static void recordMeasurements(@NonNull View view, @NonNull Map<View, Long> out) {
+        out.put(view, ((long) view.getMeasuredWidthAndState() << 32)
+                | (view.getMeasuredHeightAndState() & 0xffffffffL));
+        if (view instanceof ViewGroup) {
+            ViewGroup group = (ViewGroup) view;
+            for (int i = 0; i < group.getChildCount(); i++) {
+                recordMeasurements(group.getChildAt(i), out);
+            }
+        }
+    }
+
+    private static void forceLayout(@NonNull View view) {
+        view.forceLayout();
+        if (view instanceof ViewGroup) {
+            ViewGroup group = (ViewGroup) view;
+            for (int i = 0; i < group.getChildCount(); i++) {
+                forceLayout(group.getChildAt(i));
+            }
+        }
+    }
+
+    @NonNull
+    private static synchronized ForkJoinPool getPool() {
+        if (sPool == null) {
+            sPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return sPool;
+    }
+}
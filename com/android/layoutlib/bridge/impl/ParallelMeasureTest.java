@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.layoutlib.bridge.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.view.View;
+import android.view.View.MeasureSpec;
+import android.view.ViewGroup;
+import android.view.ViewGroup.LayoutParams;
+import android.widget.ArrayAdapter;
+import android.widget.FrameLayout;
+import android.widget.LinearLayout;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test the subtrees that {@link ParallelMeasure} measures concurrently, for a layout with a
+ * {@link ListView}, which inflates its items while it is measured.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ParallelMeasureTest {
+    private static final int COLUMN_COUNT = 3;
+    private static final int VIEWS_PER_COLUMN = 20;
+    private static final int WIDTH_SPEC = MeasureSpec.makeMeasureSpec(900, MeasureSpec.EXACTLY);
+    private static final int HEIGHT_SPEC = MeasureSpec.makeMeasureSpec(1600, MeasureSpec.EXACTLY);
+
+    @Test
+    public void testSkipsListView() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+            final ViewGroup root = createLayout(InstrumentationRegistry.getContext());
+            final List<View> subtrees = ParallelMeasure.findSubtrees(root);
+            // The column with the list is measured serially, with everything in it.
+            assertEquals(2, subtrees.size());
+            assertSame(root.getChildAt(0), subtrees.get(0));
+            assertSame(root.getChildAt(2), subtrees.get(1));
+        });
+    }
+
+    @Test
+    public void testMatchesSerialMeasure() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+            final Context context = InstrumentationRegistry.getContext();
+            final ViewGroup concurrent = createLayout(context);
+            final ViewGroup serial = createLayout(context);
+            new ParallelMeasure(false).measure(concurrent, WIDTH_SPEC, HEIGHT_SPEC);
+            serial.measure(WIDTH_SPEC, HEIGHT_SPEC);
+            assertEquals(getMeasurements(serial), getMeasurements(concurrent));
+        });
+    }
+
+    /**
+     * Returns three fixed-size columns of text views, the middle one with a list below them.
+     */
+    private static ViewGroup createLayout(Context context) {
+        final FrameLayout root = new FrameLayout(context);
+        for (int column = 0; column < COLUMN_COUNT; column++) {
+            final LinearLayout layout = new LinearLayout(context);
+            layout.setOrientation(LinearLayout.VERTICAL);
+            for (int i = 0; i < VIEWS_PER_COLUMN; i++) {
+                final TextView text = new TextView(context);
+                text.setText("Item " + column + "." + i);
+                layout.addView(text);
+            }
+            if (column == 1) {
+                final List<String> items = new ArrayList<>();
+                for (int i = 0; i < VIEWS_PER_COLUMN; i++) {
+                    items.add("List item " + i);
+                }
+                final ListView list = new ListView(context);
+                list.setAdapter(new ArrayAdapter<>(context,
+                        android.R.layout.simple_list_item_1, items));
+                layout.addView(list, new LinearLayout.LayoutParams(
+                        LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT));
+            }
+            final FrameLayout.LayoutParams params = new FrameLayout.LayoutParams(300, 1600);
+            params.leftMargin = column * 300;
+            root.addView(layout, params);
+        }
+        return root;
+    }
+
+    private static List<String> getMeasurements(ViewGroup root) {
+        final List<String> out = new ArrayList<>();
+        addMeasurements(root, out);
+        return out;
+    }
+
+    private static void addMeasurements(View view, List<String> out) {
+        out.add(view.getClass().getSimpleName() + " " + view.getMeasuredWidthAndState() + "x"
+                + view.getMeasuredHeightAndState());
+        if (view instanceof ViewGroup) {
+            final ViewGroup group = (ViewGroup) view;
+            for (int i = 0; i < group.getChildCount(); i++) {
+                addMeasurements(group.getChildAt(i), out);
+            }
+        }
+    }
+}
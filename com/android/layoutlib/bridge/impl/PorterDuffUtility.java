@@ -18,6 +18,7 @@ package com.android.layoutlib.bridge.impl;
 
 import com.android.ide.common.rendering.api.LayoutLog;
 import com.android.layoutlib.bridge.Bridge;
+import com.android.tools.layoutlib.annotations.VisibleForTesting;
 
 import android.graphics.BlendComposite;
 import android.graphics.BlendComposite.BlendingMode;
@@ -27,9 +28,14 @@ import android.graphics.PorterDuffColorFilter_Delegate;
 
 import java.awt.AlphaComposite;
 import java.awt.Composite;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
 
 /**
- * Provides various utility methods for {@link PorterDuffColorFilter_Delegate}.
+ * Provides various utility methods for {@link PorterDuffColorFilter_Delegate}, and the
+ * compositing of int-ARGB pixels for the most common modes.
  */
 public final class PorterDuffUtility {
 
@@ -104,4 +110,132 @@ public final class PorterDuffUtility {
                 return AlphaComposite.getInstance(AlphaComposite.SRC_OVER, alpha1);
         }
     }
+
+    /**
+     * Returns whether {@link #blend} supports the given mode.
+     */
+    public static boolean isBlendSupported(Mode mode) {
+        return mode == Mode.SRC_OVER || mode == Mode.SRC || mode == Mode.DST_IN;
+    }
+
+    /**
+     * Returns the pixels of an image of type {@link BufferedImage#TYPE_INT_ARGB} or
+     * {@link BufferedImage#TYPE_INT_RGB} stored as one int per pixel, row after row, or null
+     * if the image is of another type or shares its buffer with another image.
+     * <p/>
+     * Java2D no longer caches an accelerated copy of the image once its buffer has been
+     * accessed, which doesn't matter for the software rendering of layoutlib.
+     */
+    public static int[] getIntPixels(BufferedImage image) {
+        int type = image.getType();
+        if (type != BufferedImage.TYPE_INT_ARGB && type != BufferedImage.TYPE_INT_RGB) {
+            return null;
+        }
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        if (!(buffer instanceof DataBufferInt) || buffer.getNumBanks() != 1 ||
+                buffer.getOffset() != 0 || image.getRaster().getParent() != null ||
+                !(image.getSampleModel() instanceof SinglePixelPackedSampleModel) ||
+                ((SinglePixelPackedSampleModel) image.getSampleModel()).getScanlineStride() !=
+                        image.getWidth()) {
+            return null;
+        }
+        return ((DataBufferInt) buffer).getData();
+    }
+
+    /**
+     * Composites a block of non premultiplied ARGB pixels onto another, like a
+     * {@link Composite} returned by {@link #getComposite(Mode, int)} does for images of type
+     * {@link BufferedImage#TYPE_INT_ARGB}, within rounding. The mode must be supported, see
+     * {@link #isBlendSupported(Mode)}.
+     *
+     * @param mode the PorterDuff mode
+     * @param alpha255 the alpha applied to the source pixels
+     * @param src the source pixels
+     * @param srcOffset the index of the top left source pixel
+     * @param srcStride the number of entries between two rows of source pixels
+     * @param srcOpaque whether the alpha of the source pixels must be ignored and read as 0xFF
+     * @param dst the destination pixels
+     * @param dstOffset the index of the top left destination pixel
+     * @param dstStride the number of entries between two rows of destination pixels
+     * @param width the width of the block
+     * @param height the height of the block
+     */
+    public static void blend(Mode mode, int alpha255, int[] src, int srcOffset, int srcStride,
+            boolean srcOpaque, int[] dst, int dstOffset, int dstStride, int width, int height) {
+        for (int y = 0; y < height; y++) {
+            int srcIndex = srcOffset + y * srcStride;
+            int dstIndex = dstOffset + y * dstStride;
+            switch (mode) {
+                case SRC_OVER:
+                    blendSrcOverRow(alpha255, src, srcIndex, srcOpaque, dst, dstIndex, width);
+                    break;
+                case SRC:
+                    blendSrcRow(alpha255, src, srcIndex, srcOpaque, dst, dstIndex, width);
+                    break;
+                case DST_IN:
+                    blendDstInRow(alpha255, src, srcIndex, srcOpaque, dst, dstIndex, width);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported PorterDuff Mode: " + mode);
+            }
+        }
+    }
+
+    private static void blendSrcOverRow(int alpha255, int[] src, int srcIndex,
+            boolean srcOpaque, int[] dst, int dstIndex, int width) {
+        for (int x = 0; x < width; x++) {
+            int s = src[srcIndex + x];
+            int sa = mul8(alpha255, srcOpaque ? 0xFF : s >>> 24);
+            if (sa == 0xFF) {
+                dst[dstIndex + x] = s | 0xFF000000;
+            } else if (sa != 0) {
+                int d = dst[dstIndex + x];
+                int da = mul8(0xFF - sa, d >>> 24);
+                int ra = sa + da;
+                int r = mul8(sa, (s >> 16) & 0xFF) + mul8(da, (d >> 16) & 0xFF);
+                int g = mul8(sa, (s >> 8) & 0xFF) + mul8(da, (d >> 8) & 0xFF);
+                int b = mul8(sa, s & 0xFF) + mul8(da, d & 0xFF);
+                if (ra < 0xFF) {
+                    r = div8(r, ra);
+                    g = div8(g, ra);
+                    b = div8(b, ra);
+                }
+                dst[dstIndex + x] = ra << 24 | r << 16 | g << 8 | b;
+            }
+        }
+    }
+
+    private static void blendSrcRow(int alpha255, int[] src, int srcIndex, boolean srcOpaque,
+            int[] dst, int dstIndex, int width) {
+        for (int x = 0; x < width; x++) {
+            int s = src[srcIndex + x];
+            int sa = mul8(alpha255, srcOpaque ? 0xFF : s >>> 24);
+            dst[dstIndex + x] = sa != 0 ? sa << 24 | (s & 0x00FFFFFF) : 0;
+        }
+    }
+
+    private static void blendDstInRow(int alpha255, int[] src, int srcIndex, boolean srcOpaque,
+            int[] dst, int dstIndex, int width) {
+        for (int x = 0; x < width; x++) {
+            int sa = mul8(alpha255, srcOpaque ? 0xFF : src[srcIndex + x] >>> 24);
+            if (sa != 0xFF) {
+                int d = dst[dstIndex + x];
+                int ra = mul8(sa, d >>> 24);
+                dst[dstIndex + x] = ra != 0 ? ra << 24 | (d & 0x00FFFFFF) : 0;
+            }
+        }
+    }
+
+    /** Returns a * b / 255, rounded, for a and b between 0 and 255. */
+    @VisibleForTesting
+    static int mul8(int a, int b) {
+        int t = a * b + 0x80;
+        return (t + (t >> 8)) >> 8;
+    }
+
+    /** Returns a * 255 / b, rounded and clamped to 255, for a premultiplied component a. */
+    @VisibleForTesting
+    static int div8(int a, int b) {
+        return Math.min(0xFF, (a * 0xFF + (b >> 1)) / b);
+    }
 }
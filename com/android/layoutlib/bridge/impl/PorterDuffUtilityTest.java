@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.layoutlib.bridge.impl;
+
+import android.graphics.PorterDuff.Mode;
+
+import org.junit.Test;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test that {@link PorterDuffUtility#blend} gives the same pixels as drawing through the
+ * {@link java.awt.Composite} returned by {@link PorterDuffUtility#getComposite}.
+ */
+public class PorterDuffUtilityTest {
+    private static final int WIDTH = 37;
+    private static final int HEIGHT = 29;
+    private static final int SRC_STRIDE = WIDTH + 3;
+    private static final int SRC_OFFSET = 2 * SRC_STRIDE + 1;
+    private static final int DST_STRIDE = WIDTH + 8;
+    private static final int DST_OFFSET = DST_STRIDE + 4;
+    private static final int[] ALPHAS = { 0xFF, 0xC0, 0x80, 0x40, 0x01, 0x00 };
+
+    @Test
+    public void testMul8() {
+        for (int a = 0; a <= 0xFF; a++) {
+            for (int b = 0; b <= 0xFF; b++) {
+                assertEquals(a + " * " + b, Math.round(a * b / 255.0),
+                        PorterDuffUtility.mul8(a, b));
+            }
+        }
+    }
+
+    @Test
+    public void testDiv8() {
+        for (int b = 1; b <= 0xFF; b++) {
+            for (int a = 0; a <= 0xFF; a++) {
+                assertEquals(a + " / " + b, Math.min(0xFF, Math.round(a * 255.0 / b)),
+                        PorterDuffUtility.div8(a, b));
+            }
+        }
+    }
+
+    @Test
+    public void testSrcOver() {
+        testBlend(Mode.SRC_OVER);
+    }
+
+    @Test
+    public void testSrc() {
+        testBlend(Mode.SRC);
+    }
+
+    @Test
+    public void testDstIn() {
+        testBlend(Mode.DST_IN);
+    }
+
+    private static void testBlend(Mode mode) {
+        assertTrue(PorterDuffUtility.isBlendSupported(mode));
+        final Random random = new Random(1);
+        for (int alpha : ALPHAS) {
+            for (int i = 0; i < 4; i++) {
+                assertBlend(mode, alpha, false, random);
+                assertBlend(mode, alpha, true, random);
+            }
+        }
+    }
+
+    /**
+     * Blends random pixels with {@code mode} into a block in the middle of a larger buffer, and
+     * compares the block with what Java2D draws. Java2D goes through premultiplied values, which
+     * loses up to 255 / (2 * alpha) in the color channels of a pixel of the given alpha.
+     */
+    private static void assertBlend(Mode mode, int alpha255, boolean srcOpaque, Random random) {
+        final int[] src = createPixels(SRC_OFFSET + HEIGHT * SRC_STRIDE, random);
+        final int[] dst = createPixels(DST_OFFSET + HEIGHT * DST_STRIDE, random);
+        final int[] blended = dst.clone();
+        PorterDuffUtility.blend(mode, alpha255, src, SRC_OFFSET, SRC_STRIDE, srcOpaque, blended,
+                DST_OFFSET, DST_STRIDE, WIDTH, HEIGHT);
+
+        final BufferedImage srcImage = new BufferedImage(WIDTH, HEIGHT,
+                srcOpaque ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+        srcImage.setRGB(0, 0, WIDTH, HEIGHT, src, SRC_OFFSET, SRC_STRIDE);
+        final BufferedImage dstImage = new BufferedImage(WIDTH, HEIGHT,
+                BufferedImage.TYPE_INT_ARGB);
+        dstImage.setRGB(0, 0, WIDTH, HEIGHT, dst, DST_OFFSET, DST_STRIDE);
+        final Graphics2D g = dstImage.createGraphics();
+        g.setComposite(PorterDuffUtility.getComposite(mode, alpha255));
+        g.drawImage(srcImage, 0, 0, null);
+        g.dispose();
+        final int[] expected = dstImage.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH);
+
+        for (int i = 0; i < dst.length; i++) {
+            final int x = (i - DST_OFFSET) % DST_STRIDE;
+            final int y = (i - DST_OFFSET) / DST_STRIDE;
+            if (i < DST_OFFSET || x >= WIDTH || y >= HEIGHT) {
+                assertEquals("outside of the block at " + i, dst[i], blended[i]);
+                continue;
+            }
+            final int expectedPixel = expected[y * WIDTH + x];
+            final int actualPixel = blended[i];
+            final String message = String.format("%s alpha=%d srcOpaque=%b at %d,%d: %08x over "
+                    + "%08x, expected %08x but was %08x", mode, alpha255, srcOpaque, x, y,
+                    src[SRC_OFFSET + y * SRC_STRIDE + x], dst[i], expectedPixel, actualPixel);
+            final int alpha = expectedPixel >>> 24;
+            assertEquals(message, alpha, actualPixel >>> 24);
+            if (alpha == 0) {
+                // The colors of transparent pixels do not matter.
+                continue;
+            }
+            final int tolerance = 1 + 0xFF / (2 * alpha);
+            for (int shift = 0; shift < 24; shift += 8) {
+                final int expectedColor = (expectedPixel >> shift) & 0xFF;
+                final int actualColor = (actualPixel >> shift) & 0xFF;
+                assertTrue(message, Math.abs(expectedColor - actualColor) <= tolerance);
+            }
+        }
+    }
+
+    /**
+     * Returns random pixels, a quarter of them fully transparent and a quarter opaque.
+     */
+    private static int[] createPixels(int count, Random random) {
+        final int[] pixels = new int[count];
+        for (int i = 0; i < count; i++) {
+            final int alpha;
+            switch (random.nextInt(4)) {
+                case 0:
+                    alpha = 0;
+                    break;
+                case 1:
+                    alpha = 0xFF;
+                    break;
+                default:
+                    alpha = random.nextInt(0x100);
+                    break;
+            }
+            pixels[i] = alpha << 24 | random.nextInt(0x1000000);
+        }
+        return pixels;
+    }
+}
@@ -57,6 +57,7 @@ import android.app.Fragment_Delegate;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap_Delegate;
 import android.graphics.Canvas;
+import android.graphics.Rect;
 import android.os.Looper;
 import android.preference.Preference_Delegate;
 import android.view.AttachInfo_Accessor;
@@ -86,12 +87,18 @@ import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
 import static com.android.ide.common.rendering.api.Result.Status.ERROR_INFLATION;
 import static com.android.ide.common.rendering.api.Result.Status.ERROR_NOT_INFLATED;
 import static com.android.ide.common.rendering.api.Result.Status.ERROR_UNKNOWN;
+import static com.android.ide.common.rendering.api.Result.Status.NOT_IMPLEMENTED;
 import static com.android.ide.common.rendering.api.Result.Status.SUCCESS;
 import static com.android.layoutlib.bridge.util.ReflectionUtils.isInstanceOf;
 
@@ -104,6 +111,16 @@ import static com.android.layoutlib.bridge.util.ReflectionUtils.isInstanceOf;
  */
 public class RenderSessionImpl extends RenderAction<SessionParams> {
 
+    /**
+     * Keys of the {@code Map<String, Long>} set as the {@link Result#getData()} of
+     * {@link #inflate()}, {@link #render(boolean)} and {@link #measure()}. The values are the time
+     * spent in each phase, in nanoseconds, or 0 if the phase did not run.
+     */
+    public static final String TIMING_INFLATE_NANOS = "inflateNanos";
+    public static final String TIMING_MEASURE_NANOS = "measureNanos";
+    public static final String TIMING_LAYOUT_NANOS = "layoutNanos";
+    public static final String TIMING_DRAW_NANOS = "drawNanos";
+
     private static final Canvas NOP_CANVAS = new NopCanvas();
 
     // scene state
@@ -127,6 +144,23 @@ public class RenderSessionImpl extends RenderAction<SessionParams> {
     private List<ViewInfo> mSystemViewInfoList;
     private Layout.Builder mLayoutBuilder;
     private boolean mNewRenderSize;
+    /** Measures fixed-size subtrees concurrently, or null for serial measure passes. */
+    private ParallelMeasure mParallelMeasure;
+
+    // pending property changes
+    /** Where each view was drawn before the first pending {@link #setProperty} call, or null. */
+    private Map<View, Rect> mBoundsBeforeEdit;
+    /** The views changed by the pending {@link #setProperty} calls. */
+    private final Set<View> mEditedViews = Collections.newSetFromMap(new IdentityHashMap<>());
+    /** The views whose layout params were changed by the pending {@link #setProperty} calls. */
+    private final Set<View> mLayoutEditedViews =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // time spent in each phase of the last call
+    private long mInflateNanos;
+    private long mMeasureNanos;
+    private long mLayoutNanos;
+    private long mDrawNanos;
 
     private static final class PostInflateException extends Exception {
         private static final long serialVersionUID = 1L;
@@ -182,6 +216,11 @@ public class RenderSessionImpl extends RenderAction<SessionParams> {
 
         mBlockParser = new BridgeXmlBlockParser(params.getLayoutDescription(), context, false);
 
+        if (Boolean.TRUE.equals(params.getFlag(RenderParamsFlags.FLAG_KEY_PARALLEL_MEASURE))) {
+            mParallelMeasure = new ParallelMeasure(Boolean.TRUE.equals(
+                    params.getFlag(RenderParamsFlags.FLAG_KEY_PARALLEL_MEASURE_CHECK)));
+        }
+
         return SUCCESS.createResult();
     }
 
@@ -284,7 +323,12 @@ public class RenderSessionImpl extends RenderAction<SessionParams> {
     public Result inflate() {
         checkLock();
 
+        resetTimings();
+        mBoundsBeforeEdit = null;
+        mEditedViews.clear();
+        mLayoutEditedViews.clear();
         try {
+            long start = System.nanoTime();
             mViewRoot = new Layout(mLayoutBuilder);
             mLayoutBuilder = null;  // Done with the builder.
             mContentRoot = ((Layout) mViewRoot).getContentRoot();
@@ -338,19 +382,22 @@ public class RenderSessionImpl extends RenderAction<SessionParams> {
             mInflater.onDoneInflation();
 
             setActiveToolbar(view, context, params);
+            long inflated = System.nanoTime();
 
             measureLayout(params);
-            measureView(mViewRoot, null /*measuredView*/,
-                    mMeasuredScreenWidth, MeasureSpec.EXACTLY,
-                    mMeasuredScreenHeight, MeasureSpec.EXACTLY);
+            measureRoot();
+            long measured = System.nanoTime();
             mViewRoot.layout(0, 0, mMeasuredScreenWidth, mMeasuredScreenHeight);
+            mInflateNanos = inflated - start;
+            mMeasureNanos = measured - inflated;
+            mLayoutNanos = System.nanoTime() - measured;
             mSystemViewInfoList =
                     visitAllChildren(mViewRoot, 0, 0, params.getExtendedViewInfoMode(),
                     false);
 
             Choreographer_Delegate.clearFrames();
 
-            return SUCCESS.createResult();
+            return setTimings(SUCCESS.createResult());
         } catch (PostInflateException e) {
             return ERROR_INFLATION.createResult(e.getMessage(), e);
         } catch (Throwable e) {
@@ -373,19 +420,37 @@ public class RenderSessionImpl extends RenderAction<SessionParams> {
     }
 
     /**
-     * Runs a layout pass for the given view root
+     * Runs a layout pass for the view root. Views that did not request a layout since the last
+     * pass and whose measure specs did not change are skipped by the framework.
      */
-    private static void doLayout(@NonNull BridgeContext context, @NonNull ViewGroup viewRoot,
-            int width, int height) {
+    private void doLayout() {
+        long start = System.nanoTime();
         // measure again with the size we need
         // This must always be done before the call to layout
-        measureView(viewRoot, null /*measuredView*/,
-                width, MeasureSpec.EXACTLY,
-                height, MeasureSpec.EXACTLY);
+        measureRoot();
+        long measured = System.nanoTime();
 
         // now do the layout.
-        viewRoot.layout(0, 0, width, height);
-        handleScrolling(context, viewRoot);
+        mViewRoot.layout(0, 0, mMeasuredScreenWidth, mMeasuredScreenHeight);
+        handleScrolling(getContext(), mViewRoot);
+        mMeasureNanos += measured - start;
+        mLayoutNanos += System.nanoTime() - measured;
+    }
+
+    /**
+     * Measures the view root with the rendering size, concurrently if
+     * {@link RenderParamsFlags#FLAG_KEY_PARALLEL_MEASURE} is set.
+     */
+    private void measureRoot() {
+        if (mParallelMeasure != null) {
+            mParallelMeasure.measure(mViewRoot,
+                    MeasureSpec.makeMeasureSpec(mMeasuredScreenWidth, MeasureSpec.EXACTLY),
+                    MeasureSpec.makeMeasureSpec(mMeasuredScreenHeight, MeasureSpec.EXACTLY));
+        } else {
+            measureView(mViewRoot, null /*measuredView*/,
+                    mMeasuredScreenWidth, MeasureSpec.EXACTLY,
+                    mMeasuredScreenHeight, MeasureSpec.EXACTLY);
+        }
     }
 
     /**
@@ -459,6 +524,8 @@ public class RenderSessionImpl extends RenderAction<SessionParams> {
 
         SessionParams params = getParams();
 
+        resetTimings();
+        boolean edited = mBoundsBeforeEdit != null;
         try {
             if (mViewRoot == null) {
                 return ERROR_NOT_INFLATED.createResult();
@@ -472,7 +539,7 @@ public class RenderSessionImpl extends RenderAction<SessionParams> {
                 // delete the canvas and image to reset them on the next full rendering
                 mImage = null;
                 mCanvas = null;
-                doLayout(getContext(), mViewRoot, mMeasuredScreenWidth, mMeasuredScreenHeight);
+                doLayout();
             } else {
                 // draw the views
                 // create the BufferedImage into which the layout will be rendered.
@@ -484,7 +551,8 @@ public class RenderSessionImpl extends RenderAction<SessionParams> {
                 // it doesn't get cached.
                 boolean disableBitmapCaching = Boolean.TRUE.equals(params.getFlag(
                     RenderParamsFlags.FLAG_KEY_DISABLE_BITMAP_CACHING));
-                if (mNewRenderSize || mCanvas == null || disableBitmapCaching) {
+                boolean reuseImage = !mNewRenderSize && mCanvas != null && !disableBitmapCaching;
+                if (!reuseImage) {
                     mNewRenderSize = false;
                     if (params.getImageFactory() != null) {
                         mImage = params.getImageFactory().getImage(
@@ -521,7 +589,23 @@ public class RenderSessionImpl extends RenderAction<SessionParams> {
                     mCanvas.setDensity(hardwareConfig.getDensity().getDpiValue());
                 }
 
-                if (freshRender && !newImage) {
+                doLayout();
+
+                // After property changes, only the views that moved or changed are drawn again
+                // into the previous image, when they can be found.
+                Rect dirty = null;
+                if (edited && reuseImage && mElapsedFrameTimeNanos < 0) {
+                    dirty = computeDirtyRect();
+                }
+
+                if (dirty != null) {
+                    Graphics2D gc = mImage.createGraphics();
+                    gc.setComposite(AlphaComposite.Src);
+                    gc.setColor(new Color(
+                            params.isBgColorOverridden() ? params.getOverrideBgColor() : 0, true));
+                    gc.fillRect(dirty.left, dirty.top, dirty.width(), dirty.height());
+                    gc.dispose();
+                } else if ((freshRender || edited) && !newImage) {
                     Graphics2D gc = mImage.createGraphics();
                     gc.setComposite(AlphaComposite.Src);
 
@@ -533,7 +617,6 @@ public class RenderSessionImpl extends RenderAction<SessionParams> {
                     gc.dispose();
                 }
 
-                doLayout(getContext(), mViewRoot, mMeasuredScreenWidth, mMeasuredScreenHeight);
                 if (mElapsedFrameTimeNanos >= 0) {
                     long initialTime = System_Delegate.nanoTime();
                     if (!mFirstFrameExecuted) {
@@ -547,7 +630,16 @@ public class RenderSessionImpl extends RenderAction<SessionParams> {
                     // Second frame will move the animations
                     Choreographer_Delegate.doFrame(initialTime + mElapsedFrameTimeNanos);
                 }
-                renderResult = renderAndBuildResult(mViewRoot, mCanvas);
+                long drawStart = System.nanoTime();
+                if (dirty == null) {
+                    renderResult = renderAndBuildResult(mViewRoot, mCanvas);
+                } else if (!dirty.isEmpty()) {
+                    int saveCount = mCanvas.save();
+                    mCanvas.clipRect(dirty);
+                    renderResult = renderAndBuildResult(mViewRoot, mCanvas);
+                    mCanvas.restoreToCount(saveCount);
+                }
+                mDrawNanos = System.nanoTime() - drawStart;
             }
 
             mSystemViewInfoList =
@@ -555,7 +647,7 @@ public class RenderSessionImpl extends RenderAction<SessionParams> {
                     false);
 
             // success!
-            return renderResult;
+            return setTimings(renderResult);
         } catch (Throwable e) {
             // get the real cause of the exception.
             Throwable t = e;
@@ -564,9 +656,203 @@ public class RenderSessionImpl extends RenderAction<SessionParams> {
             }
 
             return ERROR_UNKNOWN.createResult(t.getMessage(), t);
+        } finally {
+            mBoundsBeforeEdit = null;
+            mEditedViews.clear();
+            mLayoutEditedViews.clear();
         }
     }
 
+    /**
+     * Sets an attribute on a view of the current tree, without inflating the layout again.
+     * <p>
+     * The next {@link #render(boolean)} only measures and lays out the views affected by the
+     * change, and only draws again the part of the image they cover.
+     * <p>
+     * {@link #acquire(long)} must have been called before this.
+     *
+     * @param viewCookie the cookie of the view, as returned in its {@link ViewInfo}.
+     * @param name the name of the attribute, e.g. "android:text".
+     * @param value the new value of the attribute.
+     * @return a {@link Result.Status#NOT_IMPLEMENTED} result if the attribute cannot be changed in
+     *      place, in which case the layout must be inflated again.
+     *
+     * @throws IllegalStateException if the current context is different than the one owned by
+     *      the scene, or if {@link #acquire(long)} was not called.
+     */
+    public Result setProperty(@NonNull Object viewCookie, @NonNull String name,
+            @Nullable String value) {
+        checkLock();
+
+        if (mViewRoot == null) {
+            return ERROR_NOT_INFLATED.createResult();
+        }
+
+        View view = findViewByKey(mViewRoot, viewCookie);
+        if (view == null) {
+            return ERROR_UNKNOWN.createResult("No view found for " + viewCookie);
+        }
+
+        if (mBoundsBeforeEdit == null) {
+            mBoundsBeforeEdit = new IdentityHashMap<>();
+            captureBounds(mViewRoot, 0, 0, false, mBoundsBeforeEdit);
+        }
+
+        try {
+            if (!ViewPropertyUpdater.apply(getContext(), view, name, value)) {
+                return NOT_IMPLEMENTED.createResult();
+            }
+        } catch (Throwable e) {
+            // get the real cause of the exception.
+            Throwable t = e;
+            while (t.getCause() != null) {
+                t = t.getCause();
+            }
+
+            return ERROR_UNKNOWN.createResult(t.getMessage(), t);
+        }
+        mEditedViews.add(view);
+        if (ViewPropertyUpdater.isLayoutParam(name)) {
+            mLayoutEditedViews.add(view);
+        }
+
+        return SUCCESS.createResult();
+    }
+
+    @Nullable
+    private View findViewByKey(@NonNull View view, @NonNull Object viewCookie) {
+        if (viewCookie.equals(getViewKey(view))) {
+            return view;
+        }
+
+        if (view instanceof ViewGroup) {
+            ViewGroup group = (ViewGroup) view;
+            for (int i = 0; i < group.getChildCount(); i++) {
+                View found = findViewByKey(group.getChildAt(i), viewCookie);
+                if (found != null) {
+                    return found;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Records the area where each view is drawn, in root coordinates.
+     * <p>
+     * The area of views below a transformed view is recorded as null, since it cannot be told
+     * without the full transformation.
+     */
+    private static void captureBounds(@NonNull View view, int left, int top, boolean transformed,
+            @NonNull Map<View, Rect> out) {
+        boolean identity = view.getMatrix().isIdentity();
+        Rect bounds = null;
+        if (!transformed) {
+            bounds = new Rect();
+            if (view.getVisibility() == View.VISIBLE) {
+                view.getHitRect(bounds);
+                bounds.offset(left, top);
+                if (!identity) {
+                    // leave room for the anti-aliased edges
+                    bounds.inset(-1, -1);
+                }
+            }
+        }
+        out.put(view, bounds);
+
+        if (view instanceof ViewGroup) {
+            ViewGroup group = (ViewGroup) view;
+            int childLeft = left + view.getLeft() - view.getScrollX();
+            int childTop = top + view.getTop() - view.getScrollY();
+            for (int i = 0; i < group.getChildCount(); i++) {
+                captureBounds(group.getChildAt(i), childLeft, childTop, transformed || !identity,
+                        out);
+            }
+        }
+    }
+
+    /**
+     * Returns the part of the image covered by the views that moved or were changed since
+     * {@link #mBoundsBeforeEdit} was recorded, and by the parents of those that moved or got new
+     * layout params, or null if the whole image must be drawn again.
+     */
+    @Nullable
+    private Rect computeDirtyRect() {
+        Map<View, Rect> boundsAfterEdit = new IdentityHashMap<>();
+        captureBounds(mViewRoot, 0, 0, false, boundsAfterEdit);
+        if (boundsAfterEdit.size() != mBoundsBeforeEdit.size()) {
+            return null;
+        }
+
+        Rect dirty = new Rect();
+        for (Map.Entry<View, Rect> entry : boundsAfterEdit.entrySet()) {
+            View view = entry.getKey();
+            if (!mBoundsBeforeEdit.containsKey(view)) {
+                return null;
+            }
+            Rect before = mBoundsBeforeEdit.get(view);
+            Rect after = entry.getValue();
+            if (Objects.equals(before, after) && !mEditedViews.contains(view)) {
+                continue;
+            }
+            if (before == null || after == null || !isDrawnInBounds(view)) {
+                return null;
+            }
+            dirty.union(before);
+            dirty.union(after);
+
+            // The parent may draw around or between its children, like the dividers of a
+            // LinearLayout, scrollbars or a foreground, which follow their layout.
+            ViewParent parent = view.getParent();
+            if ((!before.equals(after) || mLayoutEditedViews.contains(view))
+                    && boundsAfterEdit.containsKey(parent)) {
+                Rect parentBefore = mBoundsBeforeEdit.get(parent);
+                Rect parentAfter = boundsAfterEdit.get(parent);
+                if (parentBefore == null || parentAfter == null) {
+                    return null;
+                }
+                dirty.union(parentBefore);
+                dirty.union(parentAfter);
+            }
+        }
+
+        if (!dirty.intersect(0, 0, mMeasuredScreenWidth, mMeasuredScreenHeight)) {
+            dirty.setEmpty();
+        }
+        return dirty;
+    }
+
+    /**
+     * Returns whether everything the view draws is within its bounds. Elevation shadows and
+     * children of a parent that does not clip them can be drawn anywhere.
+     */
+    private static boolean isDrawnInBounds(@NonNull View view) {
+        if (view.getZ() != 0) {
+            return false;
+        }
+        ViewParent parent = view.getParent();
+        return !(parent instanceof ViewGroup) || ((ViewGroup) parent).getClipChildren();
+    }
+
+    private void resetTimings() {
+        mInflateNanos = mMeasureNanos = mLayoutNanos = mDrawNanos = 0;
+    }
+
+    /**
+     * Sets the time spent in each phase as the data of the given result.
+     */
+    @NonNull
+    private Result setTimings(@NonNull Result result) {
+        Map<String, Long> timings = new HashMap<>();
+        timings.put(TIMING_INFLATE_NANOS, mInflateNanos);
+        timings.put(TIMING_MEASURE_NANOS, mMeasureNanos);
+        timings.put(TIMING_LAYOUT_NANOS, mLayoutNanos);
+        timings.put(TIMING_DRAW_NANOS, mDrawNanos);
+        result.setData(Collections.unmodifiableMap(timings));
+        return result;
+    }
+
     /**
      * Executes {@link View#measure(int, int)} on a given view with the given parameters (used
      * to create measure specs with {@link MeasureSpec#makeMeasureSpec(int, int)}.
@@ -1102,6 +1388,13 @@ public class RenderSessionImpl extends RenderAction<SessionParams> {
         return getContext().getDefaultProperties();
     }
 
+    /**
+     * Returns the time to wait for the lock in the calls that do not pass their own timeout.
+     */
+    public long getTimeout() {
+        return getParams().getTimeout();
+    }
+
     public void setScene(RenderSession session) {
         mScene = session;
     }
@@ -1133,6 +1426,9 @@ public class RenderSessionImpl extends RenderAction<SessionParams> {
         mImage = null;
         mViewRoot = null;
         mContentRoot = null;
+        mBoundsBeforeEdit = null;
+        mEditedViews.clear();
+        mLayoutEditedViews.clear();
 
         if (createdLooper) {
             Choreographer_Delegate.dispose();
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.layoutlib.bridge.impl;
+
+import com.android.ide.common.rendering.api.RenderResources;
+import com.android.ide.common.rendering.api.ResourceValue;
+import com.android.layoutlib.bridge.android.BridgeContext;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.res.ColorStateList;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.TypedValue;
+import android.view.View;
+import android.view.ViewGroup.LayoutParams;
+import android.view.ViewGroup.MarginLayoutParams;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+
+/**
+ * Applies a single XML attribute to a view that has already been inflated.
+ * <p/>
+ * Only the attributes that the IDE commonly edits in place and that map directly to a setter are
+ * supported. The setters take care of requesting a layout or an invalidate on the view, so only
+ * the affected part of the tree is measured and drawn again. For anything else the layout has to
+ * be inflated again.
+ */
+final class ViewPropertyUpdater {
+
+    private static final String ANDROID_PREFIX = "android:";
+
+    private ViewPropertyUpdater() {}
+
+    /**
+     * Sets the given attribute on the view.
+     *
+     * @param name the attribute name, with or without the "android:" prefix.
+     * @param value the new value of the attribute. It can be a resource reference.
+     * @return false if the attribute or its value is not supported, in which case the view is left
+     *      untouched.
+     */
+    static boolean apply(@NonNull BridgeContext context, @NonNull View view, @NonNull String name,
+            @Nullable String value) {
+        if (value == null) {
+            // The default value of a removed attribute is only known to the view constructor.
+            return false;
+        }
+        if (name.startsWith(ANDROID_PREFIX)) {
+            name = name.substring(ANDROID_PREFIX.length());
+        } else if (name.indexOf(':') != -1) {
+            return false;
+        }
+
+        ResourceValue resValue = null;
+        if (value.startsWith("@") || value.startsWith("?")) {
+            RenderResources res = context.getRenderResources();
+            resValue = res.resolveResValue(res.findResValue(value, false));
+            if (resValue == null || resValue.getValue() == null) {
+                return false;
+            }
+            value = resValue.getValue();
+        }
+
+        try {
+            if (isLayoutParam(name)) {
+                return applyLayoutParam(context, view, name, value);
+            }
+            switch (name) {
+                case "visibility":
+                    return applyVisibility(view, value);
+                case "alpha":
+                    view.setAlpha(Float.parseFloat(value));
+                    return true;
+                case "enabled":
+                    view.setEnabled(Boolean.parseBoolean(value));
+                    return true;
+                case "translationX":
+                    view.setTranslationX(getDimension(context, name, value));
+                    return true;
+                case "translationY":
+                    view.setTranslationY(getDimension(context, name, value));
+                    return true;
+                case "rotation":
+                    view.setRotation(Float.parseFloat(value));
+                    return true;
+                case "scaleX":
+                    view.setScaleX(Float.parseFloat(value));
+                    return true;
+                case "scaleY":
+                    view.setScaleY(Float.parseFloat(value));
+                    return true;
+                case "minWidth":
+                    if (view instanceof TextView) {
+                        ((TextView) view).setMinWidth(getPixelSize(context, name, value));
+                    } else {
+                        view.setMinimumWidth(getPixelSize(context, name, value));
+                    }
+                    return true;
+                case "minHeight":
+                    if (view instanceof TextView) {
+                        ((TextView) view).setMinHeight(getPixelSize(context, name, value));
+                    } else {
+                        view.setMinimumHeight(getPixelSize(context, name, value));
+                    }
+                    return true;
+                case "background":
+                    Drawable background = resValue != null
+                            ? ResourceHelper.getDrawable(resValue, context)
+                            : new ColorDrawable(ResourceHelper.getColor(value));
+                    if (background == null) {
+                        return false;
+                    }
+                    view.setBackground(background);
+                    return true;
+                default:
+                    if (name.startsWith("padding")) {
+                        return applyPadding(context, view, name, value);
+                    }
+                    if (view instanceof TextView) {
+                        return applyTextViewProperty(context, (TextView) view, name, value,
+                                resValue);
+                    }
+                    return false;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns whether the attribute is one of the view's layout params, with or without the
+     * "android:" prefix.
+     */
+    static boolean isLayoutParam(@NonNull String name) {
+        return name.startsWith("layout_") || name.startsWith(ANDROID_PREFIX + "layout_");
+    }
+
+    private static boolean applyVisibility(@NonNull View view, @NonNull String value) {
+        switch (value) {
+            case "visible":
+                view.setVisibility(View.VISIBLE);
+                return true;
+            case "invisible":
+                view.setVisibility(View.INVISIBLE);
+                return true;
+            case "gone":
+                view.setVisibility(View.GONE);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean applyPadding(@NonNull BridgeContext context, @NonNull View view,
+            @NonNull String name, @NonNull String value) {
+        int size = getPixelSize(context, name, value);
+        switch (name) {
+            case "padding":
+                view.setPadding(size, size, size, size);
+                return true;
+            case "paddingLeft":
+                view.setPadding(size, view.getPaddingTop(), view.getPaddingRight(),
+                        view.getPaddingBottom());
+                return true;
+            case "paddingTop":
+                view.setPadding(view.getPaddingLeft(), size, view.getPaddingRight(),
+                        view.getPaddingBottom());
+                return true;
+            case "paddingRight":
+                view.setPadding(view.getPaddingLeft(), view.getPaddingTop(), size,
+                        view.getPaddingBottom());
+                return true;
+            case "paddingBottom":
+                view.setPadding(view.getPaddingLeft(), view.getPaddingTop(),
+                        view.getPaddingRight(), size);
+                return true;
+            case "paddingStart":
+                view.setPaddingRelative(size, view.getPaddingTop(), view.getPaddingEnd(),
+                        view.getPaddingBottom());
+                return true;
+            case "paddingEnd":
+                view.setPaddingRelative(view.getPaddingStart(), view.getPaddingTop(), size,
+                        view.getPaddingBottom());
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean applyLayoutParam(@NonNull BridgeContext context, @NonNull View view,
+            @NonNull String name, @NonNull String value) {
+        LayoutParams params = view.getLayoutParams();
+        if (params == null) {
+            return false;
+        }
+
+        switch (name) {
+            case "layout_width":
+                params.width = getLayoutSize(context, name, value);
+                break;
+            case "layout_height":
+                params.height = getLayoutSize(context, name, value);
+                break;
+            case "layout_weight":
+                if (!(params instanceof LinearLayout.LayoutParams)) {
+                    return false;
+                }
+                ((LinearLayout.LayoutParams) params).weight = Float.parseFloat(value);
+                break;
+            default:
+                if (!name.startsWith("layout_margin")
+                        || !(params instanceof MarginLayoutParams)) {
+                    return false;
+                }
+                if (!applyMargin(context, (MarginLayoutParams) params, name, value)) {
+                    return false;
+                }
+                break;
+        }
+
+        // Reassigning the params requests a layout of the view and of its parents.
+        view.setLayoutParams(params);
+        return true;
+    }
+
+    private static boolean applyMargin(@NonNull BridgeContext context,
+            @NonNull MarginLayoutParams params, @NonNull String name, @NonNull String value) {
+        int size = getPixelSize(context, name, value);
+        switch (name) {
+            case "layout_margin":
+                params.setMargins(size, size, size, size);
+                return true;
+            case "layout_marginLeft":
+                params.leftMargin = size;
+                return true;
+            case "layout_marginTop":
+                params.topMargin = size;
+                return true;
+            case "layout_marginRight":
+                params.rightMargin = size;
+                return true;
+            case "layout_marginBottom":
+                params.bottomMargin = size;
+                return true;
+            case "layout_marginStart":
+                params.setMarginStart(size);
+                return true;
+            case "layout_marginEnd":
+                params.setMarginEnd(size);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean applyTextViewProperty(@NonNull BridgeContext context,
+            @NonNull TextView view, @NonNull String name, @NonNull String value,
+            @Nullable ResourceValue resValue) {
+        switch (name) {
+            case "text":
+                view.setText(value);
+                return true;
+            case "hint":
+                view.setHint(value);
+                return true;
+            case "textSize":
+                view.setTextSize(TypedValue.COMPLEX_UNIT_PX, getDimension(context, name, value));
+                return true;
+            case "textColor":
+                if (resValue != null) {
+                    ColorStateList colors =
+                            ResourceHelper.getColorStateList(resValue, context, null);
+                    if (colors == null) {
+                        return false;
+                    }
+                    view.setTextColor(colors);
+                } else {
+                    view.setTextColor(ResourceHelper.getColor(value));
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static int getLayoutSize(@NonNull BridgeContext context, @NonNull String name,
+            @NonNull String value) {
+        switch (value) {
+            case "match_parent":
+            case "fill_parent":
+                return LayoutParams.MATCH_PARENT;
+            case "wrap_content":
+                return LayoutParams.WRAP_CONTENT;
+            default:
+                return getPixelSize(context, name, value);
+        }
+    }
+
+    private static float getDimension(@NonNull BridgeContext context, @NonNull String name,
+            @NonNull String value) {
+        return parseDimension(name, value).getDimension(context.getMetrics());
+    }
+
+    private static int getPixelSize(@NonNull BridgeContext context, @NonNull String name,
+            @NonNull String value) {
+        return TypedValue.complexToDimensionPixelSize(parseDimension(name, value).data,
+                context.getMetrics());
+    }
+
+    @NonNull
+    private static TypedValue parseDimension(@NonNull String name, @NonNull String value) {
+        TypedValue typedValue = new TypedValue();
+        if (!ResourceHelper.parseFloatAttribute(name, value, typedValue, true /*requireUnit*/)
+                || typedValue.type != TypedValue.TYPE_DIMENSION) {
+            throw new NumberFormatException(value);
+        }
+        return typedValue;
+    }
+}
@@ -22,104 +22,111 @@ import java.awt.geom.CubicCurve2D;
 import java.awt.geom.PathIterator;
 import java.awt.geom.Point2D;
 import java.awt.geom.QuadCurve2D;
-import java.util.ArrayList;
-
-import com.google.android.collect.Lists;
+import java.util.Arrays;
 
 /**
  * Class that returns iterators for a given path. These iterators are lightweight and can be reused
  * multiple times to iterate over the path.
+ * <p/>
+ * Instances are immutable once created, so they can be shared by every user of a path until the
+ * path changes.
  */
 public class CachedPathIteratorFactory {
     /*
      * A few conventions used in the code:
      * Coordinates or coords arrays store segment coordinates. They use the same format as
-     * PathIterator#currentSegment coordinates array.
+     * PathIterator#currentSegment coordinates array. The coordinates of all the segments are
+     * stored in a single array, COORDS_PER_SEGMENT entries per segment.
      * float arrays store always points where the first element is X and the second is Y.
      */
 
     // This governs how accurate the approximation of the Path is.
     private static final float PRECISION = 0.002f;
 
+    private static final int COORDS_PER_SEGMENT = 6;
+
     private final int mWindingRule;
     private final int[] mTypes;
-    private final float[][] mCoordinates;
+    private final float[] mCoordinates;
     private final float[] mSegmentsLength;
+    /** Length of the path up to the end of each segment. */
+    private final float[] mSegmentsEnd;
     private final float mTotalLength;
 
     public CachedPathIteratorFactory(@NonNull PathIterator iterator) {
         mWindingRule = iterator.getWindingRule();
 
-        ArrayList<Integer> typesArray = Lists.newArrayList();
-        ArrayList<float[]> pointsArray = Lists.newArrayList();
-        float[] points = new float[6];
+        int count = 0;
+        int[] types = new int[16];
+        float[] coordinates = new float[types.length * COORDS_PER_SEGMENT];
+        float[] points = new float[COORDS_PER_SEGMENT];
         while (!iterator.isDone()) {
+            if (count == types.length) {
+                types = Arrays.copyOf(types, count * 2);
+                coordinates = Arrays.copyOf(coordinates, count * 2 * COORDS_PER_SEGMENT);
+            }
             int type = iterator.currentSegment(points);
-            int nPoints = getNumberOfPoints(type) * 2; // 2 coordinates per point
-
-            typesArray.add(type);
-            float[] itemPoints = new float[nPoints];
-            System.arraycopy(points, 0, itemPoints, 0, nPoints);
-            pointsArray.add(itemPoints);
+            types[count] = type;
+            System.arraycopy(points, 0, coordinates, count * COORDS_PER_SEGMENT,
+                    getNumberOfPoints(type) * 2);
+            count++;
             iterator.next();
         }
 
-        mTypes = new int[typesArray.size()];
-        mCoordinates = new float[mTypes.length][];
-        for (int i = 0; i < typesArray.size(); i++) {
-            mTypes[i] = typesArray.get(i);
-            mCoordinates[i] = pointsArray.get(i);
-        }
+        mTypes = Arrays.copyOf(types, count);
+        mCoordinates = Arrays.copyOf(coordinates, count * COORDS_PER_SEGMENT);
 
         // Do measurement
-        mSegmentsLength = new float[mTypes.length];
+        mSegmentsLength = new float[count];
+        mSegmentsEnd = new float[count];
 
         // Curves that we can reuse to estimate segments length
         CubicCurve2D.Float cubicCurve = new CubicCurve2D.Float();
         QuadCurve2D.Float quadCurve = new QuadCurve2D.Float();
+        float[] scratch = new float[COORDS_PER_SEGMENT];
+        float[] c = mCoordinates;
         float lastX = 0;
         float lastY = 0;
         float totalLength = 0;
-        for (int i = 0; i < mTypes.length; i++) {
+        for (int i = 0; i < count; i++) {
+            int o = i * COORDS_PER_SEGMENT;
             switch (mTypes[i]) {
                 case PathIterator.SEG_CUBICTO:
                     cubicCurve.setCurve(lastX, lastY,
-                            mCoordinates[i][0], mCoordinates[i][1], mCoordinates[i][2],
-                            mCoordinates[i][3], lastX = mCoordinates[i][4],
-                            lastY = mCoordinates[i][5]);
-                    mSegmentsLength[i] =
-                            getFlatPathLength(cubicCurve.getPathIterator(null, PRECISION));
+                            c[o], c[o + 1], c[o + 2], c[o + 3],
+                            lastX = c[o + 4], lastY = c[o + 5]);
+                    mSegmentsLength[i] = getFlatPathLength(
+                            cubicCurve.getPathIterator(null, PRECISION), scratch);
                     break;
                 case PathIterator.SEG_QUADTO:
-                    quadCurve.setCurve(lastX, lastY, mCoordinates[i][0], mCoordinates[i][1],
-                            lastX = mCoordinates[i][2], lastY = mCoordinates[i][3]);
-                    mSegmentsLength[i] =
-                            getFlatPathLength(quadCurve.getPathIterator(null, PRECISION));
+                    quadCurve.setCurve(lastX, lastY, c[o], c[o + 1],
+                            lastX = c[o + 2], lastY = c[o + 3]);
+                    mSegmentsLength[i] = getFlatPathLength(
+                            quadCurve.getPathIterator(null, PRECISION), scratch);
                     break;
                 case PathIterator.SEG_CLOSE:
                     mSegmentsLength[i] = (float) Point2D.distance(lastX, lastY,
-                            lastX = mCoordinates[0][0],
-                            lastY = mCoordinates[0][1]);
-                    mCoordinates[i] = new float[2];
+                            lastX = c[0],
+                            lastY = c[1]);
                     // We convert a SEG_CLOSE segment to a SEG_LINETO so we do not have to worry
                     // about this special case in the rest of the code.
                     mTypes[i] = PathIterator.SEG_LINETO;
-                    mCoordinates[i][0] = mCoordinates[0][0];
-                    mCoordinates[i][1] = mCoordinates[0][1];
+                    c[o] = c[0];
+                    c[o + 1] = c[1];
                     break;
                 case PathIterator.SEG_MOVETO:
                     mSegmentsLength[i] = 0;
-                    lastX = mCoordinates[i][0];
-                    lastY = mCoordinates[i][1];
+                    lastX = c[o];
+                    lastY = c[o + 1];
                     break;
                 case PathIterator.SEG_LINETO:
-                    mSegmentsLength[i] = (float) Point2D.distance(lastX, lastY, mCoordinates[i][0],
-                            mCoordinates[i][1]);
-                    lastX = mCoordinates[i][0];
-                    lastY = mCoordinates[i][1];
+                    mSegmentsLength[i] = (float) Point2D.distance(lastX, lastY, c[o], c[o + 1]);
+                    lastX = c[o];
+                    lastY = c[o + 1];
                 default:
             }
             totalLength += mSegmentsLength[i];
+            mSegmentsEnd[i] = totalLength;
         }
 
         mTotalLength = totalLength;
@@ -188,8 +195,21 @@ public class CachedPathIteratorFactory {
      */
     private static void getShapeEndPoint(int type, @NonNull float[] coords, @NonNull float[]
             point) {
+        getShapeEndPoint(type, coords, 0, point);
+    }
+
+    /**
+     * Returns the end point of a given segment
+     *
+     * @param type the segment type
+     * @param coords the array holding the segment coordinates
+     * @param offset the index of the segment coordinates in the coords array
+     * @param point the return array where the point will be stored
+     */
+    private static void getShapeEndPoint(int type, @NonNull float[] coords, int offset,
+            @NonNull float[] point) {
         // start index of the end point for the segment type
-        int pointIndex = (getNumberOfPoints(type) - 1) * 2;
+        int pointIndex = offset + (getNumberOfPoints(type) - 1) * 2;
         point[0] = coords[pointIndex];
         point[1] = coords[pointIndex + 1];
     }
@@ -215,10 +235,11 @@ public class CachedPathIteratorFactory {
      * segment that is not {@link PathIterator#SEG_CLOSE}, {@link PathIterator#SEG_MOVETO} or {@link
      * PathIterator#SEG_LINETO} this method will fail.
      */
-    private static float getFlatPathLength(@NonNull PathIterator iterator) {
-        float segment[] = new float[6];
+    private static float getFlatPathLength(@NonNull PathIterator iterator,
+            @NonNull float[] segment) {
         float totalLength = 0;
-        float[] previousPoint = new float[2];
+        float previousX = 0;
+        float previousY = 0;
         boolean isFirstPoint = true;
 
         while (!iterator.isDone()) {
@@ -228,13 +249,12 @@ public class CachedPathIteratorFactory {
 
             // MoveTo shouldn't affect the length
             if (!isFirstPoint && type != PathIterator.SEG_MOVETO) {
-                totalLength += Point2D.distance(previousPoint[0], previousPoint[1], segment[0],
-                        segment[1]);
+                totalLength += Point2D.distance(previousX, previousY, segment[0], segment[1]);
             } else {
                 isFirstPoint = false;
             }
-            previousPoint[0] = segment[0];
-            previousPoint[1] = segment[1];
+            previousX = segment[0];
+            previousY = segment[1];
             iterator.next();
         }
 
@@ -244,11 +264,11 @@ public class CachedPathIteratorFactory {
     /**
      * Returns the estimated position along a path of the given length.
      */
-    private void getPointAtLength(int type, @NonNull float[] coords, float lastX, float
-            lastY, float t, @NonNull float[] point) {
+    private void getPointAtLength(int type, @NonNull float[] coords, int offset, float lastX,
+            float lastY, float t, @NonNull float[] point) {
         if (type == PathIterator.SEG_LINETO) {
-            point[0] = lastX + (coords[0] - lastX) * t;
-            point[1] = lastY + (coords[1] - lastY) * t;
+            point[0] = lastX + (coords[offset] - lastX) * t;
+            point[1] = lastY + (coords[offset + 1] - lastY) * t;
             // Return here, since we do not need a shape to estimate
             return;
         }
@@ -256,7 +276,7 @@ public class CachedPathIteratorFactory {
         float[] curve = new float[8];
         int lastPointIndex = (getNumberOfPoints(type) - 1) * 2;
 
-        System.arraycopy(coords, 0, curve, 2, coords.length);
+        System.arraycopy(coords, offset, curve, 2, lastPointIndex + 2);
         curve[0] = lastX;
         curve[1] = lastY;
         if (type == PathIterator.SEG_CUBICTO) {
@@ -344,6 +364,8 @@ public class CachedPathIteratorFactory {
             mCurrentType = mTypes[mNextIndex];
             mCurrentSegmentLength = mSegmentsLength[mNextIndex] - mOffsetLength;
 
+            int offset = mNextIndex * COORDS_PER_SEGMENT;
+            int coordsCount = getNumberOfPoints(mCurrentType) * 2;
             if (mOffsetLength > 0f && (mCurrentType == SEG_CUBICTO || mCurrentType == SEG_QUADTO)) {
                 // We need to skip part of the start of the current segment (because
                 // mOffsetLength > 0)
@@ -352,11 +374,11 @@ public class CachedPathIteratorFactory {
                 if (mNextIndex < 1) {
                     points[0] = points[1] = 0f;
                 } else {
-                    getShapeEndPoint(mTypes[mNextIndex - 1], mCoordinates[mNextIndex - 1], points);
+                    getShapeEndPoint(mTypes[mNextIndex - 1], mCoordinates,
+                            offset - COORDS_PER_SEGMENT, points);
                 }
 
-                System.arraycopy(mCoordinates[mNextIndex], 0, points, 2,
-                        mCoordinates[mNextIndex].length);
+                System.arraycopy(mCoordinates, offset, points, 2, coordsCount);
                 float t0 = (mSegmentsLength[mNextIndex] - mCurrentSegmentLength) /
                         mSegmentsLength[mNextIndex];
                 if (mCurrentType == SEG_CUBICTO) {
@@ -364,10 +386,9 @@ public class CachedPathIteratorFactory {
                 } else {
                     quadCurveSegment(points, t0, 1f);
                 }
-                System.arraycopy(points, 2, mCurrentCoords, 0, mCoordinates[mNextIndex].length);
+                System.arraycopy(points, 2, mCurrentCoords, 0, coordsCount);
             } else {
-                System.arraycopy(mCoordinates[mNextIndex], 0, mCurrentCoords, 0,
-                        mCoordinates[mNextIndex].length);
+                System.arraycopy(mCoordinates, offset, mCurrentCoords, 0, coordsCount);
             }
 
             mOffsetLength = 0f;
@@ -403,33 +424,67 @@ public class CachedPathIteratorFactory {
                 return;
             }
 
-            float accLength = 0;
+            mNextIndex = findSegmentEndingAfter(length);
+            if (mNextIndex == mTypes.length) {
+                return;
+            }
+
+            float accLength = mNextIndex > 0 ? mSegmentsEnd[mNextIndex - 1] : 0f;
+            float segmentLength = mSegmentsLength[mNextIndex];
             float lastPoint[] = new float[2];
-            for (mNextIndex = 0; mNextIndex < mTypes.length; mNextIndex++) {
-                float segmentLength = mSegmentsLength[mNextIndex];
-                if (accLength + segmentLength >= length && mTypes[mNextIndex] != SEG_MOVETO) {
-                    float[] estimatedPoint = new float[2];
-                    getPointAtLength(mTypes[mNextIndex],
-                            mCoordinates[mNextIndex], lastPoint[0], lastPoint[1],
-                            (length - accLength) / segmentLength,
-                            estimatedPoint);
-
-                    // This segment makes us go further than length so we go back one step,
-                    // set a moveto and offset the length of the next segment by the length
-                    // of this segment that we've already used.
-                    mCurrentType = PathIterator.SEG_MOVETO;
-                    mCurrentCoords[0] = estimatedPoint[0];
-                    mCurrentCoords[1] = estimatedPoint[1];
-                    mCurrentSegmentLength = 0;
-
-                    // We need to offset next path length to account for the segment we've just
-                    // skipped.
-                    mOffsetLength = length - accLength;
-                    return;
+            if (mNextIndex > 0) {
+                getShapeEndPoint(mTypes[mNextIndex - 1], mCoordinates,
+                        (mNextIndex - 1) * COORDS_PER_SEGMENT, lastPoint);
+            }
+
+            float[] estimatedPoint = new float[2];
+            getPointAtLength(mTypes[mNextIndex], mCoordinates, mNextIndex * COORDS_PER_SEGMENT,
+                    lastPoint[0], lastPoint[1], (length - accLength) / segmentLength,
+                    estimatedPoint);
+
+            // This segment makes us go further than length so we go back one step,
+            // set a moveto and offset the length of the next segment by the length
+            // of this segment that we've already used.
+            mCurrentType = PathIterator.SEG_MOVETO;
+            mCurrentCoords[0] = estimatedPoint[0];
+            mCurrentCoords[1] = estimatedPoint[1];
+            mCurrentSegmentLength = 0;
+
+            // We need to offset next path length to account for the segment we've just
+            // skipped.
+            mOffsetLength = length - accLength;
+        }
+
+        /**
+         * Returns the index of the first segment, other than a moveto, that ends at or after the
+         * given length, or the number of segments if there is none.
+         */
+        private int findSegmentEndingAfter(float length) {
+            if (Float.isNaN(mTotalLength)) {
+                // The lengths are not ordered past a NaN, so look at them in order.
+                for (int i = 0; i < mSegmentsEnd.length; i++) {
+                    if (mSegmentsEnd[i] >= length && mTypes[i] != SEG_MOVETO) {
+                        return i;
+                    }
                 }
-                accLength += segmentLength;
-                getShapeEndPoint(mTypes[mNextIndex], mCoordinates[mNextIndex], lastPoint);
+                return mSegmentsEnd.length;
+            }
+
+            int low = 0;
+            int high = mSegmentsEnd.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (mSegmentsEnd[mid] >= length) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            // Movetos have no length, so the segments that follow also end after length.
+            while (low < mTypes.length && mTypes[low] == SEG_MOVETO) {
+                low++;
             }
+            return low;
         }
 
         /**
@@ -467,7 +522,7 @@ public class CachedPathIteratorFactory {
                     break;
                 default:
                     float[] point = new float[2];
-                    getPointAtLength(type, coords, mLastPoint[0], mLastPoint[1], t, point);
+                    getPointAtLength(type, coords, 0, mLastPoint[0], mLastPoint[1], t, point);
                     coords[0] = point[0];
                     coords[1] = point[1];
             }
@@ -94,6 +94,8 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static android.app.AppOpsManager._NUM_UID_STATE;
 import static android.app.AppOpsManager.UID_STATE_BACKGROUND;
@@ -198,6 +200,34 @@ public class AppOpsService extends IAppOpsService.Stub {
     @VisibleForTesting
     final SparseArray<UidState> mUidStates = new SparseArray<>();
 
+    /**
+     * checkOperation() and noteOperation() decisions, looked up without the service lock.
+     * Direct mapped on (code, uid, package); a slot is simply overwritten on collision.
+     * Entries are immutable and only valid while {@link #mDecisionGeneration} is unchanged,
+     * which is bumped with the lock held whenever modes, restrictions or the Ops/Op objects
+     * they were computed from change.
+     */
+    private static final int DECISION_CACHE_SIZE = 512;
+    private final OpDecision[] mCheckDecisions = new OpDecision[DECISION_CACHE_SIZE];
+    private final OpDecision[] mNoteDecisions = new OpDecision[DECISION_CACHE_SIZE];
+    private volatile int mDecisionGeneration;
+    private volatile boolean mDecisionCacheEnabled = true;
+
+    /** How long notes taken without the lock may sit in {@link #mPendingNoteOps}. */
+    static final long NOTE_FLUSH_DELAY = 1000;
+
+    /** Ops with notes recorded by the lock-free path, not yet folded into their times. */
+    private final ConcurrentLinkedQueue<Op> mPendingNoteOps = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean mNoteFlushScheduled = new AtomicBoolean();
+    private final Runnable mNoteFlushRunner = new Runnable() {
+        public void run() {
+            synchronized (AppOpsService.this) {
+                mNoteFlushScheduled.set(false);
+                flushPendingNotesLocked();
+            }
+        }
+    };
+
     long mLastUptime;
 
     /*
@@ -218,6 +248,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         private static final String KEY_FG_SERVICE_STATE_SETTLE_TIME
                 = "fg_service_state_settle_time";
         private static final String KEY_BG_STATE_SETTLE_TIME = "bg_state_settle_time";
+        private static final String KEY_DECISION_CACHE_ENABLED = "decision_cache_enabled";
 
         /**
          * How long we want for a drop in uid state from top to settle before applying it.
@@ -240,6 +271,13 @@ public class AppOpsService extends IAppOpsService.Stub {
          */
         public long BG_STATE_SETTLE_TIME;
 
+        /**
+         * Whether checks and notes may be answered from the lock-free decision cache.
+         * @see Settings.Global#APP_OPS_CONSTANTS
+         * @see #KEY_DECISION_CACHE_ENABLED
+         */
+        public boolean DECISION_CACHE_ENABLED;
+
         private final KeyValueListParser mParser = new KeyValueListParser(',');
         private ContentResolver mResolver;
 
@@ -279,6 +317,10 @@ public class AppOpsService extends IAppOpsService.Stub {
                         KEY_FG_SERVICE_STATE_SETTLE_TIME, 10 * 1000L);
                 BG_STATE_SETTLE_TIME = mParser.getDurationMillis(
                         KEY_BG_STATE_SETTLE_TIME, 1 * 1000L);
+                DECISION_CACHE_ENABLED = mParser.getBoolean(
+                        KEY_DECISION_CACHE_ENABLED, true);
+                mDecisionCacheEnabled = DECISION_CACHE_ENABLED;
+                invalidateDecisionsLocked();
             }
         }
 
@@ -294,6 +336,8 @@ public class AppOpsService extends IAppOpsService.Stub {
             pw.print("    "); pw.print(KEY_BG_STATE_SETTLE_TIME); pw.print("=");
             TimeUtils.formatDuration(BG_STATE_SETTLE_TIME, pw);
             pw.println();
+            pw.print("    "); pw.print(KEY_DECISION_CACHE_ENABLED); pw.print("=");
+            pw.println(DECISION_CACHE_ENABLED);
         }
     }
 
@@ -409,6 +453,16 @@ public class AppOpsService extends IAppOpsService.Stub {
         int startNesting;
         long startRealtime;
 
+        // Notes taken without the service lock, folded into time/rejectTime by
+        // flushPendingNotesLocked(). Guarded by the Op itself. A pendingRejectTime of -1
+        // means the last note in that state was allowed and clears the reject time.
+        boolean notePending;
+        long pendingTime[];
+        long pendingRejectTime[];
+        boolean pendingProxySet;
+        int pendingProxyUid;
+        String pendingProxyPackageName;
+
         Op(UidState _uidState, String _packageName, int _op) {
             uidState = _uidState;
             uid = _uidState.uid;
@@ -434,6 +488,30 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
     }
 
+    /** An immutable checkOperation() or noteOperation() decision, see {@link #mCheckDecisions}. */
+    static final class OpDecision {
+        final int generation;
+        final int code;
+        final int uid;
+        final String packageName;
+        /** The result for checks; for notes the mode still to go through evalMode(). */
+        final int mode;
+        final boolean restricted;
+        /** For notes, the op whose times are updated. */
+        final Op op;
+
+        OpDecision(int _generation, int _code, int _uid, String _packageName, int _mode,
+                boolean _restricted, Op _op) {
+            generation = _generation;
+            code = _code;
+            uid = _uid;
+            packageName = _packageName;
+            mode = _mode;
+            restricted = _restricted;
+            op = _op;
+        }
+    }
+
     final SparseArray<ArraySet<ModeCallback>> mOpModeWatchers = new SparseArray<>();
     final ArrayMap<String, ArraySet<ModeCallback>> mPackageModeWatchers = new ArrayMap<>();
     final ArrayMap<IBinder, ModeCallback> mModeWatchers = new ArrayMap<>();
@@ -591,6 +669,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         mConstants.startMonitoring(mContext.getContentResolver());
 
         synchronized (this) {
+            invalidateDecisionsLocked();
             boolean changed = false;
             for (int i = mUidStates.size() - 1; i >= 0; i--) {
                 UidState uidState = mUidStates.valueAt(i);
@@ -689,6 +768,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             if (uidState == null) {
                 return;
             }
+            invalidateDecisionsLocked();
 
             Ops ops = null;
 
@@ -743,6 +823,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         synchronized (this) {
             if (mUidStates.indexOfKey(uid) >= 0) {
                 mUidStates.remove(uid);
+                invalidateDecisionsLocked();
                 scheduleFastWriteLocked();
             }
         }
@@ -795,6 +876,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         Slog.w(TAG, "Writing app ops before shutdown...");
         boolean doWrite = false;
         synchronized (this) {
+            flushPendingNotesLocked();
             if (mWriteScheduled) {
                 mWriteScheduled = false;
                 doWrite = true;
@@ -869,6 +951,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 Binder.getCallingPid(), Binder.getCallingUid(), null);
         ArrayList<AppOpsManager.PackageOps> res = null;
         synchronized (this) {
+            flushPendingNotesLocked();
             final int uidStateCount = mUidStates.size();
             for (int i = 0; i < uidStateCount; i++) {
                 UidState uidState = mUidStates.valueAt(i);
@@ -948,6 +1031,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                     false /* uidMismatchExpected */);
             if (ops != null) {
                 ops.remove(op.op);
+                invalidateDecisionsLocked();
                 if (ops.size() <= 0) {
                     UidState uidState = ops.uidState;
                     ArrayMap<String, Ops> pkgOps = uidState.pkgOps;
@@ -990,6 +1074,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         code = AppOpsManager.opToSwitch(code);
 
         synchronized (this) {
+            invalidateDecisionsLocked();
             final int defaultMode = AppOpsManager.opToDefaultMode(code);
 
             UidState uidState = getUidStateLocked(uid, false);
@@ -1098,6 +1183,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             if (op != null) {
                 if (op.mode != mode) {
                     op.mode = mode;
+                    invalidateDecisionsLocked();
                     if (uidState != null) {
                         uidState.evalForegroundOps(mOpModeWatchers);
                     }
@@ -1224,6 +1310,8 @@ public class AppOpsService extends IAppOpsService.Stub {
 
         HashMap<ModeCallback, ArrayList<ChangeRec>> callbacks = null;
         synchronized (this) {
+            flushPendingNotesLocked();
+            invalidateDecisionsLocked();
             boolean changed = false;
             for (int i = mUidStates.size() - 1; i >= 0; i--) {
                 UidState uidState = mUidStates.valueAt(i);
@@ -1419,22 +1507,65 @@ public class AppOpsService extends IAppOpsService.Stub {
         if (resolvedPackageName == null) {
             return AppOpsManager.MODE_IGNORED;
         }
+        final OpDecision cached = getCachedDecision(mCheckDecisions, code, uid,
+                resolvedPackageName);
+        if (cached != null) {
+            return cached.mode;
+        }
         synchronized (this) {
-            if (isOpRestrictedLocked(uid, code, resolvedPackageName)) {
-                return AppOpsManager.MODE_IGNORED;
-            }
-            code = AppOpsManager.opToSwitch(code);
-            UidState uidState = getUidStateLocked(uid, false);
-            if (uidState != null && uidState.opModes != null
-                    && uidState.opModes.indexOfKey(code) >= 0) {
-                return uidState.opModes.get(code);
-            }
-            Op op = getOpLocked(code, uid, resolvedPackageName, false);
-            if (op == null) {
-                return AppOpsManager.opToDefaultMode(code);
-            }
-            return op.mode;
+            final int mode = checkOperationLocked(code, uid, resolvedPackageName);
+            putCachedDecisionLocked(mCheckDecisions, new OpDecision(mDecisionGeneration, code,
+                    uid, resolvedPackageName, mode, false, null));
+            return mode;
+        }
+    }
+
+    private int checkOperationLocked(int code, int uid, String resolvedPackageName) {
+        if (isOpRestrictedLocked(uid, code, resolvedPackageName)) {
+            return AppOpsManager.MODE_IGNORED;
+        }
+        code = AppOpsManager.opToSwitch(code);
+        UidState uidState = getUidStateLocked(uid, false);
+        if (uidState != null && uidState.opModes != null
+                && uidState.opModes.indexOfKey(code) >= 0) {
+            return uidState.opModes.get(code);
+        }
+        Op op = getOpLocked(code, uid, resolvedPackageName, false);
+        if (op == null) {
+            return AppOpsManager.opToDefaultMode(code);
         }
+        return op.mode;
+    }
+
+    private OpDecision getCachedDecision(OpDecision[] cache, int code, int uid,
+            String packageName) {
+        if (!mDecisionCacheEnabled) {
+            return null;
+        }
+        final OpDecision decision = cache[decisionIndex(code, uid, packageName)];
+        if (decision != null && decision.generation == mDecisionGeneration
+                && decision.code == code && decision.uid == uid
+                && decision.packageName.equals(packageName)) {
+            return decision;
+        }
+        return null;
+    }
+
+    private void putCachedDecisionLocked(OpDecision[] cache, OpDecision decision) {
+        if (mDecisionCacheEnabled) {
+            cache[decisionIndex(decision.code, decision.uid, decision.packageName)] = decision;
+        }
+    }
+
+    private static int decisionIndex(int code, int uid, String packageName) {
+        int hash = (uid * 31 + code) * 31 + packageName.hashCode();
+        hash ^= hash >>> 16;
+        return hash & (DECISION_CACHE_SIZE - 1);
+    }
+
+    /** Drops every cached decision. Call with the lock held after changing what they read. */
+    private void invalidateDecisionsLocked() {
+        mDecisionGeneration++;
     }
 
     @Override
@@ -1564,6 +1695,20 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     private int noteOperationUnchecked(int code, int uid, String packageName,
             int proxyUid, String proxyPackageName) {
+        final OpDecision cached = getCachedDecision(mNoteDecisions, code, uid, packageName);
+        if (cached != null) {
+            if (cached.restricted) {
+                return AppOpsManager.MODE_IGNORED;
+            }
+            // A pending uid state change is only committed with the lock held.
+            final UidState uidState = cached.op.uidState;
+            if (uidState.pendingStateCommitTime == 0) {
+                final int mode = uidState.evalMode(cached.mode);
+                notePendingLocklessly(cached.op, uidState.state, mode == AppOpsManager.MODE_ALLOWED,
+                        proxyUid, proxyPackageName);
+                return mode;
+            }
+        }
         synchronized (this) {
             final Ops ops = getOpsRawLocked(uid, packageName, true /* edit */,
                     false /* uidMismatchExpected */);
@@ -1574,6 +1719,8 @@ public class AppOpsService extends IAppOpsService.Stub {
             }
             final Op op = getOpLocked(ops, code, true);
             if (isOpRestrictedLocked(uid, code, packageName)) {
+                putCachedDecisionLocked(mNoteDecisions, new OpDecision(mDecisionGeneration, code,
+                        uid, packageName, AppOpsManager.MODE_IGNORED, true, op));
                 return AppOpsManager.MODE_IGNORED;
             }
             final UidState uidState = ops.uidState;
@@ -1587,6 +1734,8 @@ public class AppOpsService extends IAppOpsService.Stub {
             // If there is a non-default per UID policy (we set UID op mode only if
             // non-default) it takes over, otherwise use the per package policy.
             if (uidState.opModes != null && uidState.opModes.indexOfKey(switchCode) >= 0) {
+                putCachedDecisionLocked(mNoteDecisions, new OpDecision(mDecisionGeneration, code,
+                        uid, packageName, uidState.opModes.get(switchCode), false, op));
                 final int uidMode = uidState.evalMode(uidState.opModes.get(switchCode));
                 if (uidMode != AppOpsManager.MODE_ALLOWED) {
                     if (DEBUG) Slog.d(TAG, "noteOperation: uid reject #" + uidMode + " for code "
@@ -1597,6 +1746,8 @@ public class AppOpsService extends IAppOpsService.Stub {
                 }
             } else {
                 final Op switchOp = switchCode != code ? getOpLocked(ops, switchCode, true) : op;
+                putCachedDecisionLocked(mNoteDecisions, new OpDecision(mDecisionGeneration, code,
+                        uid, packageName, switchOp.mode, false, op));
                 final int mode = switchOp.getMode();
                 if (mode != AppOpsManager.MODE_ALLOWED) {
                     if (DEBUG) Slog.d(TAG, "noteOperation: reject #" + mode + " for code "
@@ -1616,6 +1767,73 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
     }
 
+    /**
+     * Records a note decided from the cache, to be applied to {@code op} by
+     * {@link #flushPendingNotesLocked}, which must run before anything reads the op's times.
+     */
+    private void notePendingLocklessly(Op op, int uidState, boolean allowed, int proxyUid,
+            String proxyPackageName) {
+        final long now = System.currentTimeMillis();
+        synchronized (op) {
+            if (op.pendingTime == null) {
+                op.pendingTime = new long[_NUM_UID_STATE];
+                op.pendingRejectTime = new long[_NUM_UID_STATE];
+            }
+            if (allowed) {
+                op.pendingTime[uidState] = now;
+                op.pendingRejectTime[uidState] = -1;
+                op.pendingProxySet = true;
+                op.pendingProxyUid = proxyUid;
+                op.pendingProxyPackageName = proxyPackageName;
+            } else {
+                op.pendingRejectTime[uidState] = now;
+            }
+            if (op.notePending) {
+                return;
+            }
+            op.notePending = true;
+            mPendingNoteOps.add(op);
+        }
+        if (mNoteFlushScheduled.compareAndSet(false, true)) {
+            mHandler.postDelayed(mNoteFlushRunner, NOTE_FLUSH_DELAY);
+        }
+    }
+
+    /** Folds the notes taken without the lock into the times of their ops. */
+    private void flushPendingNotesLocked() {
+        if (mPendingNoteOps.isEmpty()) {
+            return;
+        }
+        Op op;
+        while ((op = mPendingNoteOps.poll()) != null) {
+            synchronized (op) {
+                if (op.duration == -1) {
+                    Slog.w(TAG, "Noting op not finished: uid " + op.uid + " pkg "
+                            + op.packageName + " code " + op.op + " duration=" + op.duration);
+                }
+                op.duration = 0;
+                for (int i = 0; i < _NUM_UID_STATE; i++) {
+                    if (op.pendingTime[i] != 0) {
+                        op.time[i] = op.pendingTime[i];
+                        op.pendingTime[i] = 0;
+                    }
+                    if (op.pendingRejectTime[i] != 0) {
+                        op.rejectTime[i] = Math.max(op.pendingRejectTime[i], 0);
+                        op.pendingRejectTime[i] = 0;
+                    }
+                }
+                if (op.pendingProxySet) {
+                    op.proxyUid = op.pendingProxyUid;
+                    op.proxyPackageName = op.pendingProxyPackageName;
+                    op.pendingProxySet = false;
+                    op.pendingProxyPackageName = null;
+                }
+                op.notePending = false;
+            }
+        }
+        scheduleWriteLocked();
+    }
+
     @Override
     public void startWatchingActive(int[] ops, IAppOpsActiveCallback callback) {
         int watchedUid = -1;
@@ -1834,6 +2052,7 @@ public class AppOpsService extends IAppOpsService.Stub {
     }
 
     void finishOperationLocked(Op op, boolean finishNested) {
+        flushPendingNotesLocked();
         if (op.startNesting <= 1 || finishNested) {
             if (op.startNesting == 1 || finishNested) {
                 op.duration = (int)(SystemClock.elapsedRealtime() - op.startRealtime);
@@ -1936,6 +2155,7 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     private Ops getOpsRawLocked(int uid, String packageName, boolean edit,
             boolean uidMismatchExpected) {
+        flushPendingNotesLocked();
         UidState uidState = getUidStateLocked(uid, edit);
         if (uidState == null) {
             return null;
@@ -2077,6 +2297,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 }
                 boolean success = false;
                 mUidStates.clear();
+                invalidateDecisionsLocked();
                 try {
                     XmlPullParser parser = Xml.newPullParser();
                     parser.setInput(stream, StandardCharsets.UTF_8.name());
@@ -2139,6 +2360,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
         synchronized (this) {
             upgradeLocked(oldVersion);
+            invalidateDecisionsLocked();
         }
     }
 
@@ -3035,8 +3257,10 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
 
         synchronized (this) {
+            flushPendingNotesLocked();
             pw.println("Current AppOps Service state:");
             mConstants.dump(pw);
+            pw.print("  Decision generation: "); pw.println(mDecisionGeneration);
             pw.println();
             final long now = System.currentTimeMillis();
             final long nowElapsed = SystemClock.elapsedRealtime();
@@ -3476,6 +3700,7 @@ public class AppOpsService extends IAppOpsService.Stub {
     private void setUserRestrictionNoCheck(int code, boolean restricted, IBinder token,
             int userHandle, String[] exceptionPackages) {
         synchronized (AppOpsService.this) {
+            invalidateDecisionsLocked();
             ClientRestrictionState restrictionState = mOpUserRestrictions.get(token);
 
             if (restrictionState == null) {
@@ -3516,6 +3741,7 @@ public class AppOpsService extends IAppOpsService.Stub {
     public void removeUser(int userHandle) throws RemoteException {
         checkSystemUid("removeUser");
         synchronized (AppOpsService.this) {
+            invalidateDecisionsLocked();
             final int tokenCount = mOpUserRestrictions.size();
             for (int i = tokenCount - 1; i >= 0; i--) {
                 ClientRestrictionState opRestrictions = mOpUserRestrictions.valueAt(i);
@@ -3734,6 +3960,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         public void binderDied() {
             synchronized (AppOpsService.this) {
                 mOpUserRestrictions.remove(token);
+                invalidateDecisionsLocked();
                 if (perUserRestrictions == null) {
                     return;
                 }
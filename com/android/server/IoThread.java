@@ -37,6 +37,7 @@ public final class IoThread extends ServiceThread {
             sInstance = new IoThread();
             sInstance.start();
             sInstance.getLooper().setTraceTag(Trace.TRACE_TAG_SYSTEM_SERVER);
+            sInstance.getLooper().getQueue().setDelayedMessageHeapEnabled(true);
             sHandler = new Handler(sInstance.getLooper());
         }
     }
@@ -19,6 +19,9 @@ package com.android.server;
 import android.os.HandlerThread;
 import android.os.Process;
 import android.os.StrictMode;
+import android.os.SystemProperties;
+
+import com.android.internal.os.LooperStats;
 
 /**
  * Special handler thread that we create for system services that require their own loopers.
@@ -26,6 +29,10 @@ import android.os.StrictMode;
 public class ServiceThread extends HandlerThread {
     private static final String TAG = "ServiceThread";
 
+    /** Collect {@link LooperStats} on every service thread, see "dumpsys activity looper-stats". */
+    private static final boolean LOOPER_STATS_ENABLED =
+            SystemProperties.getBoolean("persist.debug.looper_stats", false);
+
     private final boolean mAllowIo;
 
     public ServiceThread(String name, int priority, boolean allowIo) {
@@ -43,4 +50,11 @@ public class ServiceThread extends HandlerThread {
 
         super.run();
     }
+
+    @Override
+    protected void onLooperPrepared() {
+        if (LOOPER_STATS_ENABLED) {
+            LooperStats.install(getLooper());
+        }
+    }
 }
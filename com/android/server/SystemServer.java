@@ -439,6 +439,8 @@ public final class SystemServer {
             startBootstrapServices();// 启动引导服务
             startCoreServices(); // 启动核心服务
             startOtherServices();// 启动其他服务
+            // Services that start concurrently must be done before their threads go away.
+            mSystemServiceManager.awaitServiceStarts();
             SystemServerInitThreadPool.shutdown();
         } catch (Throwable ex) {
             Slog.e("System", "******************************************");
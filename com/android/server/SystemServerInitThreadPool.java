@@ -72,6 +72,14 @@ public class SystemServerInitThreadPool {
         return mService.submit(runnable);
     }
 
+    /**
+     * @return whether tasks can still be submitted, that is the pool has been created and not
+     * shut down yet.
+     */
+    static synchronized boolean isRunning() {
+        return sInstance != null && sInstance.mService != null;
+    }
+
     static synchronized void shutdown() {
         if (sInstance != null && sInstance.mService != null) {
             sInstance.mService.shutdown();
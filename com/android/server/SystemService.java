@@ -24,6 +24,8 @@ import android.os.IBinder;
 import android.os.ServiceManager;
 import android.os.UserManager;
 
+import java.util.List;
+
 /**
  * The base class for services running in the system process. Override and implement
  * the lifecycle event callback methods as needed.
@@ -144,6 +146,23 @@ public abstract class SystemService {
      */
     public void onBootPhase(int phase) {}
 
+    /**
+     * Returns the services that this service's {@link #onStart()} and {@link #onBootPhase(int)}
+     * depend on, or null to have them called on the main thread in start order.
+     * <p>
+     * A service that returns a list, even an empty one, has those callbacks run on
+     * {@link SystemServerInitThreadPool} concurrently with other services, once the same
+     * callback has returned for each listed service that was started before it.  Its
+     * {@link #onStart()} may still be running when {@code startService()} returns; the next
+     * boot phase waits for it.  Nothing on the main thread may rely on one of its callbacks
+     * having run before the phase is over.
+     *
+     * @return the services to wait for, or null (the default) to run on the main thread.
+     */
+    public List<Class<? extends SystemService>> getBootDependencies() {
+        return null;
+    }
+
     /**
      * Called when a new user is starting, for system services to initialize any per-user
      * state they maintain for running users.
@@ -19,12 +19,18 @@ package com.android.server;
 import android.annotation.NonNull;
 import android.content.Context;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.Trace;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Slog;
 
+import com.android.internal.annotations.GuardedBy;
+
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Manages creating, starting, and other lifecycle events of
@@ -36,6 +42,12 @@ public class SystemServiceManager {
     private static final String TAG = "SystemServiceManager";
     private static final int SERVICE_CALL_WARN_TIME_MS = 50;
 
+    /** Set to false to call every service on the main thread, whatever it declares. */
+    private static final String PROPERTY_PARALLEL_BOOT = "persist.sys.parallel_service_boot";
+
+    /** The phase of the {@link CallRound} of onStart() calls. */
+    private static final int PHASE_NONE = -1;
+
     private final Context mContext;
     private boolean mSafeMode;
     private boolean mRuntimeRestarted;
@@ -47,8 +59,23 @@ public class SystemServiceManager {
 
     private int mCurrentPhase = -1;
 
+    private final boolean mParallelBoot;
+
+    // The onStart() calls since the last boot phase, or null if there were none.
+    private CallRound mStartRound;
+
+    // Every onStart() and onBootPhase() call, for the boot timeline.
+    @GuardedBy("mBootTimeline")
+    private final ArrayList<BootCall> mBootTimeline = new ArrayList<>();
+
+    // The last call on the main thread, and the call that ends the longest chain of calls
+    // that the last wait for a round had to wait for.
+    private BootCall mLastMainThreadCall;
+    private BootCall mLastRoundEnd;
+
     SystemServiceManager(Context context) {
         mContext = context;
+        mParallelBoot = SystemProperties.getBoolean(PROPERTY_PARALLEL_BOOT, true);
     }
 
     /**
@@ -121,14 +148,24 @@ public class SystemServiceManager {
         // Register it.
         mServices.add(service);
         // Start it.
-        long time = SystemClock.elapsedRealtime();
-        try {
-            service.onStart();
-        } catch (RuntimeException ex) {
-            throw new RuntimeException("Failed to start service " + service.getClass().getName()
-                    + ": onStart threw an exception", ex);
+        if (mStartRound == null) {
+            mStartRound = new CallRound(PHASE_NONE);
+        }
+        mStartRound.call(service);
+    }
+
+    /**
+     * Waits for the onStart() calls of services that start concurrently, see
+     * {@link SystemService#getBootDependencies()}.  Boot phases do this implicitly.
+     *
+     * @throws RuntimeException or Error if one of them failed.
+     */
+    public void awaitServiceStarts() {
+        if (mStartRound != null) {
+            final CallRound round = mStartRound;
+            mStartRound = null;
+            round.await();
         }
-        warnIfTooLong(SystemClock.elapsedRealtime() - time, service, "onStart");
     }
 
     /**
@@ -141,30 +178,25 @@ public class SystemServiceManager {
         if (phase <= mCurrentPhase) {
             throw new IllegalArgumentException("Next phase must be larger than previous");
         }
+        awaitServiceStarts();
         mCurrentPhase = phase;
 
         Slog.i(TAG, "Starting phase " + mCurrentPhase);
         try {
             Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "OnBootPhase " + phase);
+            final CallRound round = new CallRound(phase);
             final int serviceLen = mServices.size();
             for (int i = 0; i < serviceLen; i++) {
-                final SystemService service = mServices.get(i);
-                long time = SystemClock.elapsedRealtime();
-                Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, service.getClass().getName());
-                try {
-                    service.onBootPhase(mCurrentPhase);
-                } catch (Exception ex) {
-                    throw new RuntimeException("Failed to boot service "
-                            + service.getClass().getName()
-                            + ": onBootPhase threw an exception during phase "
-                            + mCurrentPhase, ex);
-                }
-                warnIfTooLong(SystemClock.elapsedRealtime() - time, service, "onBootPhase");
-                Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                round.call(mServices.get(i));
             }
+            round.await();
         } finally {
             Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
         }
+
+        if (phase == SystemService.PHASE_BOOT_COMPLETED) {
+            Slog.i(TAG, getBootTimeline());
+        }
     }
 
     /**
@@ -317,6 +349,47 @@ public class SystemServiceManager {
         }
     }
 
+    /**
+     * Summarizes the onStart() and onBootPhase() calls so far: the total time spent in them,
+     * and the longest chain of calls that had to run one after the other, which is what
+     * bounds boot when everything else runs concurrently.
+     */
+    String getBootTimeline() {
+        long totalTime = 0;
+        BootCall last = null;
+        final int callLen;
+        synchronized (mBootTimeline) {
+            callLen = mBootTimeline.size();
+            for (int i = 0; i < callLen; i++) {
+                final BootCall call = mBootTimeline.get(i);
+                totalTime += call.getDuration();
+                if (last == null || call.mCriticalTime > last.mCriticalTime) {
+                    last = call;
+                }
+            }
+        }
+        final StringBuilder builder = new StringBuilder();
+        builder.append("Boot timeline: ").append(callLen)
+                .append(" calls, total ").append(totalTime).append(" ms");
+        if (last == null) {
+            return builder.toString();
+        }
+        builder.append(", critical path ").append(last.mCriticalTime).append(" ms:");
+        final ArrayList<BootCall> path = new ArrayList<>();
+        for (BootCall call = last; call != null; call = call.mCriticalPredecessor) {
+            path.add(call);
+        }
+        for (int i = path.size() - 1; i >= 0; i--) {
+            final BootCall call = path.get(i);
+            // Leave out the short calls to keep the line readable.
+            if (call.getDuration() >= SERVICE_CALL_WARN_TIME_MS || i == 0) {
+                builder.append(' ').append(call).append('=').append(call.getDuration())
+                        .append("ms");
+            }
+        }
+        return builder.toString();
+    }
+
     /**
      * Outputs the state of this manager to the System log.
      */
@@ -331,7 +404,251 @@ public class SystemServiceManager {
                     .append(service.getClass().getSimpleName())
                     .append("\n");
         }
+        builder.append(getBootTimeline()).append("\n");
 
         Slog.e(TAG, builder.toString());
     }
+
+    /**
+     * One onStart() or onBootPhase() call.  Calls are linked to the call that ends the longest
+     * chain they had to wait for, to find the critical path of boot.
+     */
+    private static final class BootCall {
+        final SystemService mService;
+        final int mPhase;
+        final long mStartTime;
+        long mEndTime;
+        BootCall mCriticalPredecessor;
+        long mCriticalTime;
+
+        BootCall(SystemService service, int phase) {
+            mService = service;
+            mPhase = phase;
+            mStartTime = SystemClock.elapsedRealtime();
+        }
+
+        long getDuration() {
+            return mEndTime - mStartTime;
+        }
+
+        void finish(BootCall... predecessors) {
+            mEndTime = SystemClock.elapsedRealtime();
+            for (BootCall predecessor : predecessors) {
+                if (predecessor != null && (mCriticalPredecessor == null
+                        || predecessor.mCriticalTime > mCriticalPredecessor.mCriticalTime)) {
+                    mCriticalPredecessor = predecessor;
+                }
+            }
+            mCriticalTime = getDuration()
+                    + (mCriticalPredecessor != null ? mCriticalPredecessor.mCriticalTime : 0);
+        }
+
+        @Override
+        public String toString() {
+            return mService.getClass().getSimpleName()
+                    + (mPhase == PHASE_NONE ? ".onStart" : ".onBootPhase(" + mPhase + ")");
+        }
+    }
+
+    /**
+     * The calls of one boot phase, or the onStart() calls between two phases.  Services that
+     * declare {@link SystemService#getBootDependencies() dependencies} are called on
+     * {@link SystemServerInitThreadPool} once those have been called, everything else is called
+     * on the main thread right away.
+     */
+    private final class CallRound {
+        private final int mPhase;
+
+        // The services of this round that were called or are waiting to be.
+        @GuardedBy("this")
+        private final ArraySet<Class<?>> mServiceClasses = new ArraySet<>();
+
+        @GuardedBy("this")
+        private final ArrayMap<Class<?>, BootCall> mFinished = new ArrayMap<>();
+
+        @GuardedBy("this")
+        private final ArrayList<SystemService> mWaiting = new ArrayList<>();
+
+        @GuardedBy("this")
+        private int mRunning;
+
+        // The first exception or error a concurrent call threw.
+        @GuardedBy("this")
+        private Throwable mFailure;
+
+        @GuardedBy("this")
+        private BootCall mLongestCall;
+
+        CallRound(int phase) {
+            mPhase = phase;
+        }
+
+        void call(SystemService service) {
+            final List<Class<? extends SystemService>> dependencies =
+                    service.getBootDependencies();
+            if (dependencies == null || !mParallelBoot
+                    || !SystemServerInitThreadPool.isRunning()) {
+                synchronized (this) {
+                    mServiceClasses.add(service.getClass());
+                }
+                final BootCall call = invoke(service);
+                call.finish(mLastMainThreadCall, mLastRoundEnd);
+                mLastMainThreadCall = call;
+                recordCall(service, call);
+                onFinished(service, call, null, /* concurrent */ false);
+                return;
+            }
+            synchronized (this) {
+                mServiceClasses.add(service.getClass());
+                mWaiting.add(service);
+                scheduleReadyLocked();
+            }
+        }
+
+        /**
+         * Waits for every call of this round to have returned.
+         *
+         * @throws RuntimeException or Error if one of them failed.
+         */
+        void await() {
+            synchronized (this) {
+                while (mRunning > 0 || !mWaiting.isEmpty()) {
+                    if (mRunning == 0) {
+                        if (mFailure != null) {
+                            // The services waiting for the one that failed are never called.
+                            break;
+                        }
+                        throw new IllegalStateException("Dependency cycle between " + mWaiting);
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted waiting for services");
+                    }
+                }
+                if (mFailure instanceof RuntimeException) {
+                    throw (RuntimeException) mFailure;
+                } else if (mFailure instanceof Error) {
+                    throw (Error) mFailure;
+                } else if (mFailure != null) {
+                    throw new RuntimeException(mFailure);
+                }
+                if (mLongestCall != null && (mLastRoundEnd == null
+                        || mLongestCall.mCriticalTime > mLastRoundEnd.mCriticalTime)) {
+                    mLastRoundEnd = mLongestCall;
+                }
+            }
+        }
+
+        private BootCall invoke(SystemService service) {
+            final String name = service.getClass().getName();
+            final BootCall call = new BootCall(service, mPhase);
+            if (mPhase == PHASE_NONE) {
+                try {
+                    service.onStart();
+                } catch (RuntimeException ex) {
+                    throw new RuntimeException("Failed to start service " + name
+                            + ": onStart threw an exception", ex);
+                }
+            } else {
+                Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, name);
+                try {
+                    service.onBootPhase(mPhase);
+                } catch (Exception ex) {
+                    throw new RuntimeException("Failed to boot service " + name
+                            + ": onBootPhase threw an exception during phase " + mPhase, ex);
+                } finally {
+                    Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+                }
+            }
+            return call;
+        }
+
+        private void invokeConcurrently(SystemService service, BootCall[] predecessors) {
+            BootCall call = null;
+            Throwable failure = null;
+            try {
+                call = invoke(service);
+                call.finish(predecessors);
+                recordCall(service, call);
+            } catch (Throwable t) {
+                failure = t;
+            } finally {
+                // Always, or await() would wait for this call forever.
+                onFinished(service, call, failure, /* concurrent */ true);
+            }
+        }
+
+        private void recordCall(SystemService service, BootCall call) {
+            warnIfTooLong(call.getDuration(), service,
+                    mPhase == PHASE_NONE ? "onStart" : "onBootPhase");
+            synchronized (mBootTimeline) {
+                mBootTimeline.add(call);
+            }
+        }
+
+        private void onFinished(SystemService service, BootCall call, Throwable failure,
+                boolean concurrent) {
+            synchronized (this) {
+                if (concurrent) {
+                    mRunning--;
+                }
+                if (failure != null) {
+                    if (mFailure == null) {
+                        mFailure = failure;
+                    }
+                } else {
+                    mFinished.put(service.getClass(), call);
+                    if (mLongestCall == null || call.mCriticalTime > mLongestCall.mCriticalTime) {
+                        mLongestCall = call;
+                    }
+                }
+                if (mFailure == null) {
+                    scheduleReadyLocked();
+                }
+                notifyAll();
+            }
+        }
+
+        private void scheduleReadyLocked() {
+            for (int i = 0; i < mWaiting.size(); ) {
+                final SystemService service = mWaiting.get(i);
+                final BootCall[] predecessors = getPredecessorsLocked(service);
+                if (predecessors == null) {
+                    i++;
+                    continue;
+                }
+                mWaiting.remove(i);
+                mRunning++;
+                SystemServerInitThreadPool.get().submit(
+                        () -> invokeConcurrently(service, predecessors),
+                        service.getClass().getSimpleName()
+                                + (mPhase == PHASE_NONE ? ".onStart" : ".onBootPhase"));
+            }
+        }
+
+        /**
+         * @return the calls that {@code service} waited for, or null if it has to wait longer.
+         */
+        private BootCall[] getPredecessorsLocked(SystemService service) {
+            final List<Class<? extends SystemService>> dependencies =
+                    service.getBootDependencies();
+            final BootCall[] predecessors = new BootCall[dependencies.size() + 1];
+            predecessors[0] = mLastRoundEnd;
+            for (int i = 0; i < dependencies.size(); i++) {
+                final Class<?> dependency = dependencies.get(i);
+                if (!mServiceClasses.contains(dependency)) {
+                    // Not started, or started before this round.
+                    continue;
+                }
+                final BootCall call = mFinished.get(dependency);
+                if (call == null) {
+                    return null;
+                }
+                predecessors[i + 1] = call;
+            }
+            return predecessors;
+        }
+    }
 }
@@ -220,6 +220,7 @@ import com.android.internal.os.BatteryStatsImpl;
 import com.android.internal.os.BinderInternal;
 import com.android.internal.os.ByteTransferPipe;
 import com.android.internal.os.IResultReceiver;
+import com.android.internal.os.LooperStats;
 import com.android.internal.os.ProcessCpuTracker;
 import com.android.internal.os.TransferPipe;
 import com.android.internal.os.Zygote;
@@ -562,6 +563,10 @@ public class ActivityManagerService extends IActivityManager.Stub
     static final long MONITOR_CPU_MAX_TIME = 0x0fffffff;
     static final boolean MONITOR_THREAD_CPU_USAGE = false;
 
+    // Threads parsing /proc/<pid>/stat files when updating process cpu stats; see
+    // ProcessCpuTracker(boolean, int).
+    static final int PROCESS_CPU_PARSE_THREADS = 2;
+
     // The flags that are set for all calls we make to the package manager.
     static final int STOCK_PM_FLAGS = PackageManager.GET_SHARED_LIBRARY_FILES;
 
@@ -1835,7 +1840,7 @@ public class ActivityManagerService extends IActivityManager.Stub
      * any critical paths such as when holding the main activity manager lock.
      */
     final ProcessCpuTracker mProcessCpuTracker = new ProcessCpuTracker(
-            MONITOR_THREAD_CPU_USAGE);
+            MONITOR_THREAD_CPU_USAGE, PROCESS_CPU_PARSE_THREADS);
     final AtomicLong mLastCpuTime = new AtomicLong(0);
     final AtomicBoolean mProcessCpuMutexFree = new AtomicBoolean(true);
     final CountDownLatch mProcessCpuInitLatch = new CountDownLatch(1);
@@ -2860,6 +2865,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                     pw.print(mActivityManagerService.mProcessCpuTracker.printCurrentLoad());
                     pw.print(mActivityManagerService.mProcessCpuTracker.printCurrentState(
                             SystemClock.uptimeMillis()));
+                    pw.print(mActivityManagerService.mProcessCpuTracker.printUpdateCost());
                 }
             }
         };
@@ -16139,6 +16145,11 @@ public class ActivityManagerService extends IActivityManager.Stub
             } else if ("service".equals(cmd)) {
                 // output proto is ActivityManagerServiceDumpServicesProto
                 mServices.writeToProto(proto, ActivityManagerServiceDumpServicesProto.ACTIVE_SERVICES);
+            } else if ("looper-stats".equals(cmd)) {
+                // output proto is repeated LooperStatsProto, field 1
+                LooperStats.writeAllToProto(proto,
+                        ProtoOutputStream.FIELD_COUNT_REPEATED
+                                | ProtoOutputStream.FIELD_TYPE_MESSAGE | 1);
             } else if ("processes".equals(cmd) || "p".equals(cmd)) {
                 if (opti < args.length) {
                     dumpPackage = args[opti];
@@ -16201,6 +16212,8 @@ public class ActivityManagerService extends IActivityManager.Stub
                         mRecentTasks.dump(pw, true /* dumpAll */, dumpPackage);
                     }
                 }
+            } else if ("looper-stats".equals(cmd)) {
+                LooperStats.dumpAll(pw, "");
             } else if ("binder-proxies".equals(cmd)) {
                 if (opti >= args.length) {
                     dumpBinderProxiesCounts(pw, BinderInternal.nGetBinderProxyPerUidCounts(),
@@ -1996,6 +1996,7 @@ public class SyncManager {
         final SyncAdapterStateFetcher buckets = new SyncAdapterStateFetcher();
 
         dumpSyncState(ipw, buckets);
+        mSyncStorageEngine.dumpWriteStats(ipw);
         mConstants.dump(pw, "");
         dumpSyncAdapters(ipw);
 
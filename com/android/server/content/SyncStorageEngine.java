@@ -42,6 +42,7 @@ import android.os.Message;
 import android.os.Parcel;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.util.ArrayMap;
 import android.util.AtomicFile;
@@ -52,9 +53,11 @@ import android.util.Slog;
 import android.util.SparseArray;
 import android.util.Xml;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.FastXmlSerializer;
+import com.android.server.IoThread;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -63,6 +66,7 @@ import org.xmlpull.v1.XmlSerializer;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -153,6 +157,12 @@ public class SyncStorageEngine {
     private static final int MSG_WRITE_STATISTICS = 2;
     private static final long WRITE_STATISTICS_DELAY = 1000*60*30; // 1/2 hour
 
+    // Files written by the write-behind task, indexes into the mWrite* statistics.
+    private static final int FILE_ACCOUNTS = 0;
+    private static final int FILE_STATUS = 1;
+    private static final int FILE_STATISTICS = 2;
+    private static final String[] FILE_NAMES = {"accounts", "status", "statistics"};
+
     private static final boolean SYNC_ENABLED_DEFAULT = false;
 
     // the version of the accounts xml file format
@@ -486,8 +496,40 @@ public class SyncStorageEngine {
     private final MyHandler mHandler;
     private final SyncLogger mLogger;
 
+    /**
+     * Files are not written with {@link #mAuthorities} held. The write*Locked methods copy the
+     * state they need into the mPending* snapshots, and a task on {@link #mWriteHandler}
+     * writes whatever is pending, so a burst of changes is written once. Held only briefly.
+     */
+    private final Object mPendingWriteLock = new Object();
+    @GuardedBy("mPendingWriteLock")
+    private AccountInfoSnapshot mPendingAccountInfo;
+    @GuardedBy("mPendingWriteLock")
+    private SyncStatusInfo[] mPendingStatus;
+    @GuardedBy("mPendingWriteLock")
+    private DayStats[] mPendingStatistics;
+    @GuardedBy("mPendingWriteLock")
+    private boolean mWriteScheduled;
+
+    /** Held across the actual file writes, so they happen one at a time and in order. */
+    private final Object mFileWriteLock = new Object();
+    @GuardedBy("mFileWriteLock")
+    private final long[] mWriteCounts = new long[FILE_NAMES.length];
+    @GuardedBy("mFileWriteLock")
+    private final long[] mWriteTotalMs = new long[FILE_NAMES.length];
+    @GuardedBy("mFileWriteLock")
+    private final long[] mWriteMaxMs = new long[FILE_NAMES.length];
+    @GuardedBy("mFileWriteLock")
+    private final long[] mWriteLastBytes = new long[FILE_NAMES.length];
+    @GuardedBy("mPendingWriteLock")
+    private final long[] mWritesCoalesced = new long[FILE_NAMES.length];
+
+    private final Handler mWriteHandler;
+    private final Runnable mWritePendingRunnable = this::writePendingFiles;
+
     private SyncStorageEngine(Context context, File dataDir, Looper looper) {
         mHandler = new MyHandler(looper);
+        mWriteHandler = IoThread.getHandler();
         mContext = context;
         sSyncStorageEngine = this;
         mLogger = SyncLogger.getInstance();
@@ -1561,6 +1603,8 @@ public class SyncStorageEngine {
             writeStatusLocked();
             writeStatisticsLocked();
         }
+        // Callers expect the state to be on disk when this returns, e.g. before shutdown.
+        writePendingFiles();
     }
 
     public boolean shouldGrantSyncAdaptersAccountAccess() {
@@ -1572,6 +1616,8 @@ public class SyncStorageEngine {
      */
     public void clearAndReadState() {
         synchronized (mAuthorities) {
+            // Make sure the files reflect the latest state before reading them back.
+            writePendingFiles();
             mAuthorities.clear();
             mAccounts.clear();
             mServices.clear();
@@ -1942,9 +1988,34 @@ public class SyncStorageEngine {
     }
 
     /**
-     * Write all account information to the account file.
+     * Snapshot all account information to be written to the account file.
      */
     private void writeAccountInfoLocked() {
+        final AccountInfoSnapshot snapshot = new AccountInfoSnapshot(mAuthorities.size());
+        snapshot.nextAuthorityId = mNextAuthorityId;
+        snapshot.syncRandomOffset = mSyncRandomOffset;
+        snapshot.masterSyncAutomatically = mMasterSyncAutomatically.clone();
+        final int N = mAuthorities.size();
+        for (int i = 0; i < N; i++) {
+            AuthorityInfo authority = mAuthorities.valueAt(i);
+            snapshot.idents[i] = authority.ident;
+            snapshot.targets[i] = authority.target;
+            snapshot.enabled[i] = authority.enabled;
+            snapshot.syncable[i] = authority.syncable;
+        }
+        synchronized (mPendingWriteLock) {
+            if (mPendingAccountInfo != null) {
+                mWritesCoalesced[FILE_ACCOUNTS]++;
+            }
+            mPendingAccountInfo = snapshot;
+            scheduleWriteLocked();
+        }
+    }
+
+    /**
+     * Write all account information to the account file.
+     */
+    private void writeAccountInfoFile(AccountInfoSnapshot snapshot) {
         if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
             Slog.v(TAG_FILE, "Writing new " + mAccountInfoFile.getBaseFile());
         }
@@ -1959,37 +2030,39 @@ public class SyncStorageEngine {
 
             out.startTag(null, "accounts");
             out.attribute(null, "version", Integer.toString(ACCOUNTS_VERSION));
-            out.attribute(null, XML_ATTR_NEXT_AUTHORITY_ID, Integer.toString(mNextAuthorityId));
-            out.attribute(null, XML_ATTR_SYNC_RANDOM_OFFSET, Integer.toString(mSyncRandomOffset));
+            out.attribute(null, XML_ATTR_NEXT_AUTHORITY_ID,
+                    Integer.toString(snapshot.nextAuthorityId));
+            out.attribute(null, XML_ATTR_SYNC_RANDOM_OFFSET,
+                    Integer.toString(snapshot.syncRandomOffset));
 
             // Write the Sync Automatically flags for each user
-            final int M = mMasterSyncAutomatically.size();
+            final int M = snapshot.masterSyncAutomatically.size();
             for (int m = 0; m < M; m++) {
-                int userId = mMasterSyncAutomatically.keyAt(m);
-                Boolean listen = mMasterSyncAutomatically.valueAt(m);
+                int userId = snapshot.masterSyncAutomatically.keyAt(m);
+                Boolean listen = snapshot.masterSyncAutomatically.valueAt(m);
                 out.startTag(null, XML_TAG_LISTEN_FOR_TICKLES);
                 out.attribute(null, XML_ATTR_USER, Integer.toString(userId));
                 out.attribute(null, XML_ATTR_ENABLED, Boolean.toString(listen));
                 out.endTag(null, XML_TAG_LISTEN_FOR_TICKLES);
             }
 
-            final int N = mAuthorities.size();
+            final int N = snapshot.idents.length;
             for (int i = 0; i < N; i++) {
-                AuthorityInfo authority = mAuthorities.valueAt(i);
-                EndPoint info = authority.target;
+                EndPoint info = snapshot.targets[i];
                 out.startTag(null, "authority");
-                out.attribute(null, "id", Integer.toString(authority.ident));
+                out.attribute(null, "id", Integer.toString(snapshot.idents[i]));
                 out.attribute(null, XML_ATTR_USER, Integer.toString(info.userId));
-                out.attribute(null, XML_ATTR_ENABLED, Boolean.toString(authority.enabled));
+                out.attribute(null, XML_ATTR_ENABLED, Boolean.toString(snapshot.enabled[i]));
                 out.attribute(null, "account", info.account.name);
                 out.attribute(null, "type", info.account.type);
                 out.attribute(null, "authority", info.provider);
-                out.attribute(null, "syncable", Integer.toString(authority.syncable));
+                out.attribute(null, "syncable", Integer.toString(snapshot.syncable[i]));
                 out.endTag(null, "authority");
             }
             out.endTag(null, "accounts");
             out.endDocument();
             mAccountInfoFile.finishWrite(fos);
+            mWriteLastBytes[FILE_ACCOUNTS] = mAccountInfoFile.getBaseFile().length();
         } catch (java.io.IOException e1) {
             Slog.w(TAG, "Error writing accounts", e1);
             if (fos != null) {
@@ -1998,6 +2071,105 @@ public class SyncStorageEngine {
         }
     }
 
+    /** The parts of the live state that end up in the account file. */
+    private static class AccountInfoSnapshot {
+        int nextAuthorityId;
+        int syncRandomOffset;
+        SparseArray<Boolean> masterSyncAutomatically;
+        final int[] idents;
+        final EndPoint[] targets;
+        final boolean[] enabled;
+        final int[] syncable;
+
+        AccountInfoSnapshot(int size) {
+            idents = new int[size];
+            targets = new EndPoint[size];
+            enabled = new boolean[size];
+            syncable = new int[size];
+        }
+    }
+
+    @GuardedBy("mPendingWriteLock")
+    private void scheduleWriteLocked() {
+        if (!mWriteScheduled) {
+            mWriteScheduled = true;
+            mWriteHandler.post(mWritePendingRunnable);
+        }
+    }
+
+    /**
+     * Writes the pending snapshots, if any. Runs on {@link #mWriteHandler}, and on the calling
+     * thread when the files have to be up to date before returning.
+     */
+    private void writePendingFiles() {
+        synchronized (mFileWriteLock) {
+            final AccountInfoSnapshot accountInfo;
+            final SyncStatusInfo[] status;
+            final DayStats[] statistics;
+            synchronized (mPendingWriteLock) {
+                accountInfo = mPendingAccountInfo;
+                status = mPendingStatus;
+                statistics = mPendingStatistics;
+                mPendingAccountInfo = null;
+                mPendingStatus = null;
+                mPendingStatistics = null;
+                mWriteScheduled = false;
+                mWriteHandler.removeCallbacks(mWritePendingRunnable);
+            }
+            if (accountInfo != null) {
+                final long startTime = SystemClock.uptimeMillis();
+                writeAccountInfoFile(accountInfo);
+                noteFileWrittenLocked(FILE_ACCOUNTS, startTime);
+            }
+            if (status != null) {
+                final long startTime = SystemClock.uptimeMillis();
+                writeStatusFile(status);
+                noteFileWrittenLocked(FILE_STATUS, startTime);
+            }
+            if (statistics != null) {
+                final long startTime = SystemClock.uptimeMillis();
+                writeStatisticsFile(statistics);
+                noteFileWrittenLocked(FILE_STATISTICS, startTime);
+            }
+        }
+    }
+
+    @GuardedBy("mFileWriteLock")
+    private void noteFileWrittenLocked(int file, long startTime) {
+        final long durationMs = SystemClock.uptimeMillis() - startTime;
+        mWriteCounts[file]++;
+        mWriteTotalMs[file] += durationMs;
+        if (durationMs > mWriteMaxMs[file]) {
+            mWriteMaxMs[file] = durationMs;
+        }
+    }
+
+    /**
+     * Dumps how often each file was written, how long the writes took and how many snapshots
+     * were superseded before they made it to disk.
+     */
+    public void dumpWriteStats(PrintWriter pw) {
+        synchronized (mFileWriteLock) {
+            synchronized (mPendingWriteLock) {
+                pw.println("File writes:");
+                for (int i = 0; i < FILE_NAMES.length; i++) {
+                    pw.print("  ");
+                    pw.print(FILE_NAMES[i]);
+                    pw.print(": count=");
+                    pw.print(mWriteCounts[i]);
+                    pw.print(" coalesced=");
+                    pw.print(mWritesCoalesced[i]);
+                    pw.print(" totalMs=");
+                    pw.print(mWriteTotalMs[i]);
+                    pw.print(" maxMs=");
+                    pw.print(mWriteMaxMs[i]);
+                    pw.print(" lastBytes=");
+                    pw.println(mWriteLastBytes[i]);
+                }
+            }
+        }
+    }
+
     static int getIntColumn(Cursor c, String name) {
         return c.getInt(c.getColumnIndex(name));
     }
@@ -2176,29 +2348,48 @@ public class SyncStorageEngine {
     }
 
     /**
-     * Write all sync status to the sync status file.
+     * Snapshot all sync status to be written to the sync status file.
      */
     private void writeStatusLocked() {
-        if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
-            Slog.v(TAG_FILE, "Writing new " + mStatusFile.getBaseFile());
-        }
-
         // The file is being written, so we don't need to have a scheduled
         // write until the next change.
         mHandler.removeMessages(MSG_WRITE_STATUS);
 
+        final int N = mSyncStatus.size();
+        final SyncStatusInfo[] snapshot = new SyncStatusInfo[N];
+        for (int i=0; i<N; i++) {
+            snapshot[i] = new SyncStatusInfo(mSyncStatus.valueAt(i));
+        }
+        synchronized (mPendingWriteLock) {
+            if (mPendingStatus != null) {
+                mWritesCoalesced[FILE_STATUS]++;
+            }
+            mPendingStatus = snapshot;
+            scheduleWriteLocked();
+        }
+    }
+
+    /**
+     * Write all sync status to the sync status file.
+     */
+    private void writeStatusFile(SyncStatusInfo[] snapshot) {
+        if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
+            Slog.v(TAG_FILE, "Writing new " + mStatusFile.getBaseFile());
+        }
+
         FileOutputStream fos = null;
         try {
             fos = mStatusFile.startWrite();
             Parcel out = Parcel.obtain();
-            final int N = mSyncStatus.size();
+            final int N = snapshot.length;
             for (int i=0; i<N; i++) {
-                SyncStatusInfo status = mSyncStatus.valueAt(i);
+                SyncStatusInfo status = snapshot[i];
                 out.writeInt(STATUS_FILE_ITEM);
                 status.writeToParcel(out, 0);
             }
             out.writeInt(STATUS_FILE_END);
             fos.write(out.marshall());
+            mWriteLastBytes[FILE_STATUS] = out.dataSize();
             out.recycle();
 
             mStatusFile.finishWrite(fos);
@@ -2285,24 +2476,50 @@ public class SyncStorageEngine {
     }
 
     /**
-     * Write all sync statistics to the sync status file.
+     * Snapshot all sync statistics to be written to the sync statistics file.
      */
     private void writeStatisticsLocked() {
-        if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
-            Slog.v(TAG, "Writing new " + mStatisticsFile.getBaseFile());
-        }
-
         // The file is being written, so we don't need to have a scheduled
         // write until the next change.
         mHandler.removeMessages(MSG_WRITE_STATISTICS);
 
+        final int N = mDayStats.length;
+        final DayStats[] snapshot = new DayStats[N];
+        for (int i=0; i<N; i++) {
+            DayStats ds = mDayStats[i];
+            if (ds == null) {
+                break;
+            }
+            snapshot[i] = new DayStats(ds.day);
+            snapshot[i].successCount = ds.successCount;
+            snapshot[i].successTime = ds.successTime;
+            snapshot[i].failureCount = ds.failureCount;
+            snapshot[i].failureTime = ds.failureTime;
+        }
+        synchronized (mPendingWriteLock) {
+            if (mPendingStatistics != null) {
+                mWritesCoalesced[FILE_STATISTICS]++;
+            }
+            mPendingStatistics = snapshot;
+            scheduleWriteLocked();
+        }
+    }
+
+    /**
+     * Write all sync statistics to the sync status file.
+     */
+    private void writeStatisticsFile(DayStats[] snapshot) {
+        if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
+            Slog.v(TAG, "Writing new " + mStatisticsFile.getBaseFile());
+        }
+
         FileOutputStream fos = null;
         try {
             fos = mStatisticsFile.startWrite();
             Parcel out = Parcel.obtain();
-            final int N = mDayStats.length;
+            final int N = snapshot.length;
             for (int i=0; i<N; i++) {
-                DayStats ds = mDayStats[i];
+                DayStats ds = snapshot[i];
                 if (ds == null) {
                     break;
                 }
@@ -2315,6 +2532,7 @@ public class SyncStorageEngine {
             }
             out.writeInt(STATISTICS_FILE_END);
             fos.write(out.marshall());
+            mWriteLastBytes[FILE_STATISTICS] = out.dataSize();
             out.recycle();
 
             mStatisticsFile.finishWrite(fos);
@@ -72,4 +72,10 @@ public class BadgeExtractor implements NotificationSignalExtractor {
     @Override
     public void setZenHelper(ZenModeHelper helper) {
     }
+
+    @Override
+    public int getDependencies() {
+        // reads the interception and suppressed effects set from the zen state
+        return CHANGE_NOTIFICATION | CHANGE_CONFIG | CHANGE_ZEN;
+    }
 }
@@ -55,4 +55,9 @@ public class ImportanceExtractor implements NotificationSignalExtractor {
     public void setZenHelper(ZenModeHelper helper) {
 
     }
+
+    @Override
+    public int getDependencies() {
+        return CHANGE_NOTIFICATION | CHANGE_CONFIG;
+    }
 }
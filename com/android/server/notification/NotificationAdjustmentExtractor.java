@@ -49,4 +49,9 @@ public class NotificationAdjustmentExtractor implements NotificationSignalExtrac
     public void setZenHelper(ZenModeHelper helper) {
 
     }
+
+    @Override
+    public int getDependencies() {
+        return CHANGE_NOTIFICATION | CHANGE_ADJUSTMENT;
+    }
 }
@@ -37,6 +37,7 @@ public class NotificationComparator
     private final Context mContext;
     private final NotificationMessagingUtil mMessagingUtil;
     private String mDefaultPhoneApp;
+    private volatile int mGeneration;
 
     public NotificationComparator(Context context) {
         mContext = context;
@@ -117,6 +118,15 @@ public class NotificationComparator
         return -1 * Long.compare(left.getRankingTimeMs(), right.getRankingTimeMs());
     }
 
+    /**
+     * Changes whenever state outside of the records that affects the order changes, meaning
+     * lists sorted with an older generation have to be sorted again from scratch.
+     */
+    public int getGeneration() {
+        // Both only ever grow, so the sum changes whenever either does.
+        return mGeneration + mMessagingUtil.getDefaultSmsAppGeneration();
+    }
+
     private boolean isImportantColorized(NotificationRecord record) {
         if (record.getImportance() < NotificationManager.IMPORTANCE_LOW) {
             return false;
@@ -178,6 +188,7 @@ public class NotificationComparator
         public void onReceive(Context context, Intent intent) {
             mDefaultPhoneApp =
                     intent.getStringExtra(TelecomManager.EXTRA_CHANGE_DEFAULT_DIALER_PACKAGE_NAME);
+            mGeneration++;
         }
     };
 }
@@ -90,4 +90,10 @@ public class NotificationIntrusivenessExtractor implements NotificationSignalExt
     public void setZenHelper(ZenModeHelper helper) {
 
     }
+
+    @Override
+    public int getDependencies() {
+        // reads the importance, which follows the channel
+        return CHANGE_NOTIFICATION | CHANGE_CONFIG;
+    }
 }
@@ -1409,13 +1409,13 @@ public class NotificationManagerService extends SystemService {
                 synchronized (mNotificationLock) {
                     updateInterruptionFilterLocked();
                 }
-                mRankingHandler.requestSort();
+                mRankingHandler.requestSort(NotificationSignalExtractor.CHANGE_ZEN);
             }
 
             @Override
             void onPolicyChanged() {
                 sendRegisteredOnlyBroadcast(NotificationManager.ACTION_NOTIFICATION_POLICY_CHANGED);
-                mRankingHandler.requestSort();
+                mRankingHandler.requestSort(NotificationSignalExtractor.CHANGE_ZEN);
             }
         });
         mRankingHelper = new RankingHelper(getContext(),
@@ -3435,7 +3435,7 @@ public class NotificationManagerService extends SystemService {
                     NotificationRecord n = mNotificationsByKey.get(adjustment.getKey());
                     applyAdjustment(n, adjustment);
                 }
-                mRankingHandler.requestSort();
+                mRankingHandler.requestSort(NotificationSignalExtractor.CHANGE_ADJUSTMENT);
             } finally {
                 Binder.restoreCallingIdentity(identity);
             }
@@ -3454,7 +3454,7 @@ public class NotificationManagerService extends SystemService {
                         applyAdjustment(n, adjustment);
                     }
                 }
-                mRankingHandler.requestSort();
+                mRankingHandler.requestSort(NotificationSignalExtractor.CHANGE_ADJUSTMENT);
             } finally {
                 Binder.restoreCallingIdentity(identity);
             }
@@ -3558,7 +3558,7 @@ public class NotificationManagerService extends SystemService {
         if (r.sbn.getOverrideGroupKey() == null) {
             addAutoGroupAdjustment(r, GroupHelper.AUTOGROUP_KEY);
             EventLogTags.writeNotificationAutogrouped(key);
-            mRankingHandler.requestSort();
+            mRankingHandler.requestSort(NotificationSignalExtractor.CHANGE_ADJUSTMENT);
         }
     }
 
@@ -3571,7 +3571,7 @@ public class NotificationManagerService extends SystemService {
         if (r.sbn.getOverrideGroupKey() != null) {
             addAutoGroupAdjustment(r, null);
             EventLogTags.writeNotificationUnautogrouped(key);
-            mRankingHandler.requestSort();
+            mRankingHandler.requestSort(NotificationSignalExtractor.CHANGE_ADJUSTMENT);
         }
     }
 
@@ -4465,7 +4465,7 @@ public class NotificationManagerService extends SystemService {
                     }
 
                     applyZenModeLocked(r);
-                    mRankingHelper.sort(mNotificationList);
+                    mRankingHelper.sortAfterPost(mNotificationList, r, old);
 
                     if (notification.getSmallIcon() != null) {
                         StatusBarNotification oldSbn = (old != null) ? old.sbn : null;
@@ -5167,6 +5167,10 @@ public class NotificationManagerService extends SystemService {
     }
 
     void handleRankingSort() {
+        handleRankingSort(NotificationSignalExtractor.CHANGE_ALL);
+    }
+
+    void handleRankingSort(int changes) {
         if (mRankingHelper == null) return;
         synchronized (mNotificationLock) {
             final int N = mNotificationList.size();
@@ -5191,7 +5195,7 @@ public class NotificationManagerService extends SystemService {
                 snoozeCriteriaBefore.add(r.getSnoozeCriteria());
                 userSentimentBefore.add(r.getUserSentiment());
                 suppressVisuallyBefore.add(r.getSuppressedVisualEffects());
-                mRankingHelper.extractSignals(r);
+                mRankingHelper.extractSignals(r, changes);
             }
             mRankingHelper.sort(mNotificationList);
             for (int i = 0; i < N; i++) {
@@ -5311,6 +5315,10 @@ public class NotificationManagerService extends SystemService {
 
     private final class RankingHandlerWorker extends Handler implements RankingHandler
     {
+        // Changes to re-extract signals for on the next MESSAGE_RANKING_SORT.
+        @GuardedBy("this")
+        private int mPendingSortChanges;
+
         public RankingHandlerWorker(Looper looper) {
             super(looper);
         }
@@ -5322,12 +5330,24 @@ public class NotificationManagerService extends SystemService {
                     handleRankingReconsideration(msg);
                     break;
                 case MESSAGE_RANKING_SORT:
-                    handleRankingSort();
+                    final int changes;
+                    synchronized (this) {
+                        changes = mPendingSortChanges;
+                        mPendingSortChanges = 0;
+                    }
+                    handleRankingSort(changes);
                     break;
             }
         }
 
         public void requestSort() {
+            requestSort(NotificationSignalExtractor.CHANGE_ALL);
+        }
+
+        public void requestSort(int changes) {
+            synchronized (this) {
+                mPendingSortChanges |= changes;
+            }
             removeMessages(MESSAGE_RANKING_SORT);
             Message msg = Message.obtain();
             msg.what = MESSAGE_RANKING_SORT;
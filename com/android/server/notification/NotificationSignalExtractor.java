@@ -27,6 +27,17 @@ import android.content.Context;
  */
 public interface NotificationSignalExtractor {
 
+    /** The notification itself was posted or updated. */
+    int CHANGE_NOTIFICATION = 1 << 0;
+    /** Something in the {@link RankingConfig} changed: a channel, or an app level setting. */
+    int CHANGE_CONFIG = 1 << 1;
+    /** The zen mode or the notification policy changed. */
+    int CHANGE_ZEN = 1 << 2;
+    /** An adjustment (including an autogroup adjustment) was attached to the notification. */
+    int CHANGE_ADJUSTMENT = 1 << 3;
+    /** Every signal has to be recomputed. */
+    int CHANGE_ALL = CHANGE_NOTIFICATION | CHANGE_CONFIG | CHANGE_ZEN | CHANGE_ADJUSTMENT;
+
     /** One-time initialization. */
     public void initialize(Context context, NotificationUsageStats usageStats);
 
@@ -52,4 +63,16 @@ public interface NotificationSignalExtractor {
      *               DND.
      */
     void setZenHelper(ZenModeHelper helper);
+
+    /**
+     * Which kinds of change can alter the signals produced by {@link #process}, as a mask of
+     * the {@code CHANGE_} constants. Signals read from other extractors count as well: an
+     * extractor that looks at the importance also depends on {@link #CHANGE_CONFIG}.
+     *
+     * {@link RankingHelper} skips the extractor when re-ranking for other kinds of change, so
+     * only declare less than {@link #CHANGE_ALL} when that is safe.
+     */
+    default int getDependencies() {
+        return CHANGE_ALL;
+    }
 }
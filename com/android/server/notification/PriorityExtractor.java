@@ -58,4 +58,9 @@ public class PriorityExtractor implements NotificationSignalExtractor {
     public void setZenHelper(ZenModeHelper helper) {
 
     }
+
+    @Override
+    public int getDependencies() {
+        return CHANGE_NOTIFICATION | CHANGE_CONFIG;
+    }
 }
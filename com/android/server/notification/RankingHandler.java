@@ -17,5 +17,10 @@ package com.android.server.notification;
 
 public interface RankingHandler {
     public void requestSort();
+    /**
+     * Like {@link #requestSort()}, but only re-extracts the signals that depend on
+     * {@code changes}, a mask of the {@code NotificationSignalExtractor.CHANGE_} constants.
+     */
+    public void requestSort(int changes);
     public void requestReconsideration(RankingReconsideration recon);
 }
\ No newline at end of file
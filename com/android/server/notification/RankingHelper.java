@@ -30,6 +30,7 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.ParceledListSlice;
 import android.metrics.LogMaker;
 import android.os.Build;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.Settings.Secure;
 import android.service.notification.NotificationListenerService.Ranking;
@@ -106,12 +107,27 @@ public class RankingHelper implements RankingConfig {
     }
 
     private final NotificationSignalExtractor[] mSignalExtractors;
+    private final int[] mExtractorDependencies;
+    // Per extractor, indexed like mSignalExtractors. Only touched with mNotificationLock held.
+    private final long[] mExtractorRunCounts;
+    private final long[] mExtractorSkipCounts;
+    private final long[] mExtractorTimeNs;
     private final NotificationComparator mPreliminaryComparator;
     private final GlobalSortKeyComparator mFinalComparator = new GlobalSortKeyComparator();
 
     private final ArrayMap<String, Record> mRecords = new ArrayMap<>(); // pkg|uid => Record
+    // Group key => proxy from the last sort, used to tell which groups an incremental sort moves.
+    private final ArrayMap<String, NotificationRecord> mProxyByGroup = new ArrayMap<>();
     private final ArrayMap<String, NotificationRecord> mProxyByGroupTmp = new ArrayMap<>();
     private final ArrayMap<String, Record> mRestoredWithoutUids = new ArrayMap<>(); // pkg => Record
+    private final StringBuilder mSortKeyBuilder = new StringBuilder();
+    // Size of the list and comparator generation as of the last sort, or -1 to force a full one.
+    private int mSortedCount = -1;
+    private int mSortedGeneration;
+    private long mFullSortCount;
+    private long mFullSortTimeNs;
+    private long mIncrementalSortCount;
+    private long mIncrementalSortTimeNs;
 
     private final Context mContext;
     private final RankingHandler mRankingHandler;
@@ -134,6 +150,10 @@ public class RankingHelper implements RankingConfig {
 
         final int N = extractorNames.length;
         mSignalExtractors = new NotificationSignalExtractor[N];
+        mExtractorDependencies = new int[N];
+        mExtractorRunCounts = new long[N];
+        mExtractorSkipCounts = new long[N];
+        mExtractorTimeNs = new long[N];
         for (int i = 0; i < N; i++) {
             try {
                 Class<?> extractorClass = mContext.getClassLoader().loadClass(extractorNames[i]);
@@ -143,6 +163,7 @@ public class RankingHelper implements RankingConfig {
                 extractor.setConfig(this);
                 extractor.setZenHelper(zenHelper);
                 mSignalExtractors[i] = extractor;
+                mExtractorDependencies[i] = extractor.getDependencies();
             } catch (ClassNotFoundException e) {
                 Slog.w(TAG, "Couldn't find extractor " + extractorNames[i] + ".", e);
             } catch (InstantiationException e) {
@@ -170,9 +191,23 @@ public class RankingHelper implements RankingConfig {
     }
 
     public void extractSignals(NotificationRecord r) {
+        extractSignals(r, NotificationSignalExtractor.CHANGE_ALL);
+    }
+
+    /**
+     * Runs the extractors whose {@link NotificationSignalExtractor#getDependencies()} overlap
+     * {@code changes}, a mask of the {@code NotificationSignalExtractor.CHANGE_} constants.
+     * Signals from the other extractors are left as they are on the record.
+     */
+    public void extractSignals(NotificationRecord r, int changes) {
         final int N = mSignalExtractors.length;
         for (int i = 0; i < N; i++) {
             NotificationSignalExtractor extractor = mSignalExtractors[i];
+            if ((mExtractorDependencies[i] & changes) == 0) {
+                mExtractorSkipCounts[i]++;
+                continue;
+            }
+            final long startNs = SystemClock.elapsedRealtimeNanos();
             try {
                 RankingReconsideration recon = extractor.process(r);
                 if (recon != null) {
@@ -181,6 +216,8 @@ public class RankingHelper implements RankingConfig {
             } catch (Throwable t) {
                 Slog.w(TAG, "NotificationSignalExtractor failed.", t);
             }
+            mExtractorRunCounts[i]++;
+            mExtractorTimeNs[i] += SystemClock.elapsedRealtimeNanos() - startNs;
         }
     }
 
@@ -454,10 +491,11 @@ public class RankingHelper implements RankingConfig {
         for (int i = 0; i < N; i++) {
             mSignalExtractors[i].setConfig(this);
         }
-        mRankingHandler.requestSort();
+        mRankingHandler.requestSort(NotificationSignalExtractor.CHANGE_CONFIG);
     }
 
     public void sort(ArrayList<NotificationRecord> notificationList) {
+        final long startNs = SystemClock.elapsedRealtimeNanos();
         final int N = notificationList.size();
         // clear global sort keys
         for (int i = N - 1; i >= 0; i--) {
@@ -465,56 +503,171 @@ public class RankingHelper implements RankingConfig {
         }
 
         // rank each record individually
+        final int generation = mPreliminaryComparator.getGeneration();
         Collections.sort(notificationList, mPreliminaryComparator);
 
-        synchronized (mProxyByGroupTmp) {
-            // record individual ranking result and nominate proxies for each group
-            for (int i = N - 1; i >= 0; i--) {
-                final NotificationRecord record = notificationList.get(i);
-                record.setAuthoritativeRank(i);
-                final String groupKey = record.getGroupKey();
-                NotificationRecord existingProxy = mProxyByGroupTmp.get(groupKey);
-                if (existingProxy == null) {
-                    mProxyByGroupTmp.put(groupKey, record);
-                }
+        synchronized (mProxyByGroup) {
+            assignGlobalSortKeysLocked(notificationList);
+        }
+
+        // Do a second ranking pass, using group proxies
+        Collections.sort(notificationList, mFinalComparator);
+
+        mSortedCount = N;
+        mSortedGeneration = generation;
+        mFullSortCount++;
+        mFullSortTimeNs += SystemClock.elapsedRealtimeNanos() - startNs;
+    }
+
+    /**
+     * Re-sorts {@code notificationList} after {@code changed} was added to it, or replaced
+     * {@code replaced} in it, with nothing else in the list changing since the last sort.
+     *
+     * The other records keep their relative order from the last sort, so {@code changed} is
+     * placed in the individual ranking with a binary search, and only the records of groups
+     * whose proxy moved are re-inserted into the final order. Falls back to {@link #sort} when
+     * the list does not look like the result of a previous sort.
+     */
+    public void sortAfterPost(ArrayList<NotificationRecord> notificationList,
+            NotificationRecord changed, NotificationRecord replaced) {
+        final long startNs = SystemClock.elapsedRealtimeNanos();
+        final int N = notificationList.size();
+        final int generation = mPreliminaryComparator.getGeneration();
+        if (mSortedCount < 0 || generation != mSortedGeneration) {
+            sort(notificationList);
+            return;
+        }
+
+        // Rebuild the individual ranking of the other records from their last ranks. Records
+        // that were removed since then leave holes; anything unranked forces a full sort.
+        final NotificationRecord[] byRank = new NotificationRecord[mSortedCount];
+        for (int i = 0; i < N; i++) {
+            final NotificationRecord record = notificationList.get(i);
+            if (record == changed) {
+                continue;
+            }
+            final int rank = record.getAuthoritativeRank();
+            if (record.getGlobalSortKey() == null || rank < 0 || rank >= byRank.length
+                    || byRank[rank] != null) {
+                sort(notificationList);
+                return;
+            }
+            byRank[rank] = record;
+        }
+        final ArrayList<NotificationRecord> ranked = new ArrayList<>(N);
+        for (NotificationRecord record : byRank) {
+            if (record != null) {
+                ranked.add(record);
             }
-            // assign global sort key:
-            //   is_recently_intrusive:group_rank:is_group_summary:group_sort_key:rank
+        }
+        if (ranked.size() != N - 1) {
+            sort(notificationList);
+            return;
+        }
+        int pos = Collections.binarySearch(ranked, changed, mPreliminaryComparator);
+        ranked.add(pos < 0 ? -pos - 1 : pos, changed);
+
+        synchronized (mProxyByGroup) {
+            final ArrayMap<String, NotificationRecord> oldProxies = mProxyByGroupTmp;
+            oldProxies.putAll(mProxyByGroup);
+            assignGlobalSortKeysLocked(ranked);
+
+            // Records whose group proxy is unchanged keep their final order: their ranks only
+            // shifted, and they all shifted the same way. Pull out the rest and put them back.
+            final String changedGroup = changed.getGroupKey();
+            final String replacedGroup = replaced != null ? replaced.getGroupKey() : null;
+            final ArrayList<NotificationRecord> moved = new ArrayList<>();
+            int kept = 0;
             for (int i = 0; i < N; i++) {
                 final NotificationRecord record = notificationList.get(i);
-                NotificationRecord groupProxy = mProxyByGroupTmp.get(record.getGroupKey());
-                String groupSortKey = record.getNotification().getSortKey();
-
-                // We need to make sure the developer provided group sort key (gsk) is handled
-                // correctly:
-                //   gsk="" < gsk=non-null-string < gsk=null
-                //
-                // We enforce this by using different prefixes for these three cases.
-                String groupSortKeyPortion;
-                if (groupSortKey == null) {
-                    groupSortKeyPortion = "nsk";
-                } else if (groupSortKey.equals("")) {
-                    groupSortKeyPortion = "esk";
+                final String groupKey = record.getGroupKey();
+                if (record == changed || groupKey.equals(changedGroup)
+                        || groupKey.equals(replacedGroup)
+                        || oldProxies.get(groupKey) != mProxyByGroup.get(groupKey)) {
+                    moved.add(record);
                 } else {
-                    groupSortKeyPortion = "gsk=" + groupSortKey;
+                    notificationList.set(kept++, record);
                 }
+            }
+            oldProxies.clear();
+            for (int i = N - 1; i >= kept; i--) {
+                notificationList.remove(i);
+            }
+            for (int i = 0; i < moved.size(); i++) {
+                final NotificationRecord record = moved.get(i);
+                pos = Collections.binarySearch(notificationList, record, mFinalComparator);
+                notificationList.add(pos < 0 ? -pos - 1 : pos, record);
+            }
+        }
 
-                boolean isGroupSummary = record.getNotification().isGroupSummary();
-                record.setGlobalSortKey(
-                        String.format("intrsv=%c:grnk=0x%04x:gsmry=%c:%s:rnk=0x%04x",
-                        record.isRecentlyIntrusive()
-                                && record.getImportance() > NotificationManager.IMPORTANCE_MIN
-                                ? '0' : '1',
-                        groupProxy.getAuthoritativeRank(),
-                        isGroupSummary ? '0' : '1',
-                        groupSortKeyPortion,
-                        record.getAuthoritativeRank()));
+        mSortedCount = N;
+        mIncrementalSortCount++;
+        mIncrementalSortTimeNs += SystemClock.elapsedRealtimeNanos() - startNs;
+    }
+
+    /**
+     * Records the individual rank of each record of {@code ranked}, which must be in
+     * {@link #mPreliminaryComparator} order, nominates the group proxies into
+     * {@link #mProxyByGroup} and assigns the global sort keys from them.
+     */
+    private void assignGlobalSortKeysLocked(ArrayList<NotificationRecord> ranked) {
+        final int N = ranked.size();
+        mProxyByGroup.clear();
+        // record individual ranking result and nominate proxies for each group
+        for (int i = N - 1; i >= 0; i--) {
+            final NotificationRecord record = ranked.get(i);
+            record.setAuthoritativeRank(i);
+            final String groupKey = record.getGroupKey();
+            NotificationRecord existingProxy = mProxyByGroup.get(groupKey);
+            if (existingProxy == null) {
+                mProxyByGroup.put(groupKey, record);
             }
-            mProxyByGroupTmp.clear();
         }
+        // assign global sort key:
+        //   is_recently_intrusive:group_rank:is_group_summary:group_sort_key:rank
+        final StringBuilder sb = mSortKeyBuilder;
+        for (int i = 0; i < N; i++) {
+            final NotificationRecord record = ranked.get(i);
+            NotificationRecord groupProxy = mProxyByGroup.get(record.getGroupKey());
+            String groupSortKey = record.getNotification().getSortKey();
+            boolean isGroupSummary = record.getNotification().isGroupSummary();
+
+            // Same as String.format("intrsv=%c:grnk=0x%04x:gsmry=%c:%s:rnk=0x%04x", ...),
+            // which is too slow to run for every record on every sort.
+            sb.setLength(0);
+            sb.append("intrsv=").append(record.isRecentlyIntrusive()
+                    && record.getImportance() > NotificationManager.IMPORTANCE_MIN
+                    ? '0' : '1');
+            sb.append(":grnk=0x");
+            appendHex4(sb, groupProxy.getAuthoritativeRank());
+            sb.append(":gsmry=").append(isGroupSummary ? '0' : '1').append(':');
+
+            // We need to make sure the developer provided group sort key (gsk) is handled
+            // correctly:
+            //   gsk="" < gsk=non-null-string < gsk=null
+            //
+            // We enforce this by using different prefixes for these three cases.
+            if (groupSortKey == null) {
+                sb.append("nsk");
+            } else if (groupSortKey.equals("")) {
+                sb.append("esk");
+            } else {
+                sb.append("gsk=").append(groupSortKey);
+            }
 
-        // Do a second ranking pass, using group proxies
-        Collections.sort(notificationList, mFinalComparator);
+            sb.append(":rnk=0x");
+            appendHex4(sb, record.getAuthoritativeRank());
+            record.setGlobalSortKey(sb.toString());
+        }
+    }
+
+    /** Appends {@code value} as lower case hex, zero padded to at least four digits. */
+    private static void appendHex4(StringBuilder sb, int value) {
+        final String hex = Integer.toHexString(value);
+        for (int i = hex.length(); i < 4; i++) {
+            sb.append('0');
+        }
+        sb.append(hex);
     }
 
     public int indexOf(ArrayList<NotificationRecord> notificationList, NotificationRecord target) {
@@ -1086,8 +1239,21 @@ public class RankingHelper implements RankingConfig {
         for (int i = 0; i < N; i++) {
             pw.print(prefix);
             pw.print("  ");
-            pw.println(mSignalExtractors[i].getClass().getSimpleName());
+            final NotificationSignalExtractor extractor = mSignalExtractors[i];
+            if (extractor == null) {
+                pw.println("null");
+                continue;
+            }
+            pw.print(extractor.getClass().getSimpleName());
+            pw.print(" runs="); pw.print(mExtractorRunCounts[i]);
+            pw.print(" skipped="); pw.print(mExtractorSkipCounts[i]);
+            pw.print(" totalUs="); pw.println(mExtractorTimeNs[i] / 1000);
         }
+        pw.print(prefix);
+        pw.print("sorts: full="); pw.print(mFullSortCount);
+        pw.print(" totalUs="); pw.print(mFullSortTimeNs / 1000);
+        pw.print(" incremental="); pw.print(mIncrementalSortCount);
+        pw.print(" totalUs="); pw.println(mIncrementalSortTimeNs / 1000);
 
         pw.print(prefix);
         pw.println("per-package config:");
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.notification;
+
+import static android.app.NotificationManager.IMPORTANCE_DEFAULT;
+import static android.app.NotificationManager.IMPORTANCE_HIGH;
+import static android.app.NotificationManager.IMPORTANCE_LOW;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManagerInternal;
+import android.os.Build;
+import android.os.UserHandle;
+import android.service.notification.StatusBarNotification;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.server.LocalServices;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Checks that {@link RankingHelper#sortAfterPost} leaves notifications in the same order as a
+ * full {@link RankingHelper#sort}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class RankingHelperSortTest {
+    private static final String PKG = "com.android.server.notification";
+    private static final String CHANNEL_ID = "channel";
+    private static final int UID = 0;
+    private static final long POST_TIME = 1000000;
+    private static final int RECORD_COUNT = 60;
+
+    private static final int[] IMPORTANCES = {
+            IMPORTANCE_LOW, IMPORTANCE_DEFAULT, IMPORTANCE_HIGH };
+    private static final String[] GROUPS = { null, "a", "b", "c" };
+    private static final String[] CATEGORIES = {
+            null, Notification.CATEGORY_MESSAGE, Notification.CATEGORY_CALL };
+
+    @Mock PackageManager mPm;
+    @Mock RankingHandler mHandler;
+    @Mock ZenModeHelper mZenModeHelper;
+    @Mock NotificationUsageStats mUsageStats;
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mContext = InstrumentationRegistry.getContext();
+        final PackageManagerInternal pmi = mock(PackageManagerInternal.class);
+        when(pmi.getPackageTargetSdkVersion(anyString())).thenReturn(Build.VERSION_CODES.O);
+        LocalServices.removeServiceForTest(PackageManagerInternal.class);
+        LocalServices.addService(PackageManagerInternal.class, pmi);
+    }
+
+    @Test
+    public void testPostMatchesSort() {
+        final RankingHelper sortHelper = createHelper();
+        final RankingHelper incrementalHelper = createHelper();
+        final ArrayList<NotificationRecord> sorted = new ArrayList<>();
+        final ArrayList<NotificationRecord> incremental = new ArrayList<>();
+        final Random sortRandom = new Random(1);
+        final Random incrementalRandom = new Random(1);
+
+        for (int id = 0; id < RECORD_COUNT; id++) {
+            sorted.add(createRecord(sortRandom, id));
+            sortHelper.sort(sorted);
+
+            final NotificationRecord record = createRecord(incrementalRandom, id);
+            incremental.add(record);
+            incrementalHelper.sortAfterPost(incremental, record, null);
+
+            assertEquals("after posting " + id, getIds(sorted), getIds(incremental));
+        }
+    }
+
+    @Test
+    public void testUpdateMatchesSort() {
+        final RankingHelper sortHelper = createHelper();
+        final RankingHelper incrementalHelper = createHelper();
+        final ArrayList<NotificationRecord> sorted = new ArrayList<>();
+        final ArrayList<NotificationRecord> incremental = new ArrayList<>();
+        final Random sortRandom = new Random(2);
+        final Random incrementalRandom = new Random(2);
+        for (int id = 0; id < RECORD_COUNT; id++) {
+            sorted.add(createRecord(sortRandom, id));
+            incremental.add(createRecord(incrementalRandom, id));
+        }
+        sortHelper.sort(sorted);
+        incrementalHelper.sort(incremental);
+
+        // Repost notifications with new attributes, each replacing the previous instance.
+        final Random ids = new Random(3);
+        for (int i = 0; i < RECORD_COUNT; i++) {
+            final int id = ids.nextInt(RECORD_COUNT);
+            replace(sorted, createRecord(sortRandom, id));
+            sortHelper.sort(sorted);
+
+            final NotificationRecord record = createRecord(incrementalRandom, id);
+            final NotificationRecord old = replace(incremental, record);
+            incrementalHelper.sortAfterPost(incremental, record, old);
+
+            assertEquals("after updating " + id, getIds(sorted), getIds(incremental));
+        }
+    }
+
+    private RankingHelper createHelper() {
+        return new RankingHelper(mContext, mPm, mHandler, mZenModeHelper, mUsageStats,
+                new String[0]);
+    }
+
+    /**
+     * Creates a record with attributes drawn from {@code random}, so that two generators with
+     * the same seed create identical records.
+     */
+    private NotificationRecord createRecord(Random random, int id) {
+        final String group = GROUPS[random.nextInt(GROUPS.length)];
+        final Notification.Builder builder = new Notification.Builder(mContext, CHANNEL_ID)
+                .setSmallIcon(android.R.drawable.sym_def_app_icon)
+                .setWhen(POST_TIME - random.nextInt(1000))
+                .setCategory(CATEGORIES[random.nextInt(CATEGORIES.length)]);
+        if (group != null) {
+            builder.setGroup(group).setGroupSummary(random.nextInt(5) == 0);
+        }
+        final StatusBarNotification sbn = new StatusBarNotification(PKG, PKG, id, null, UID, 0,
+                builder.build(), UserHandle.SYSTEM, null, POST_TIME);
+        final NotificationChannel channel = new NotificationChannel(CHANNEL_ID, "test",
+                IMPORTANCES[random.nextInt(IMPORTANCES.length)]);
+        return new NotificationRecord(mContext, sbn, channel);
+    }
+
+    private static NotificationRecord replace(ArrayList<NotificationRecord> list,
+            NotificationRecord record) {
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i).getKey().equals(record.getKey())) {
+                return list.set(i, record);
+            }
+        }
+        throw new IllegalArgumentException("No record for " + record.getKey());
+    }
+
+    private static String getIds(ArrayList<NotificationRecord> list) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < list.size(); i++) {
+            sb.append(list.get(i).sbn.getId()).append(' ');
+        }
+        return sb.toString();
+    }
+}
@@ -57,4 +57,9 @@ public class VisibilityExtractor implements NotificationSignalExtractor {
     public void setZenHelper(ZenModeHelper helper) {
 
     }
+
+    @Override
+    public int getDependencies() {
+        return CHANGE_NOTIFICATION | CHANGE_CONFIG;
+    }
 }
@@ -8503,7 +8503,8 @@ public class PackageManagerService extends IPackageManager.Stub
         }
         try (ParallelPackageParser parallelPackageParser = new ParallelPackageParser(
                 mSeparateProcesses, mOnlyCore, mMetrics, mCacheDir,
-                mParallelPackageParserCallback)) {
+                mParallelPackageParserCallback,
+                SystemProperties.getBoolean("pm.boot.adaptive_parallel_parsing", true))) {
             // Submit files for parsing in parallel
             int fileCount = 0;
             // 找出所用应用程序文件，如.apk
@@ -21869,6 +21870,10 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
 
             if (dumpState.isDumping(DumpState.DUMP_PACKAGES)) {
                 mSettings.dumpPackagesLPr(pw, packageName, permissionNames, dumpState, checkin);
+                if (!checkin && packageName == null) {
+                    pw.println();
+                    PackageParser.dumpCacheStats(pw, "");
+                }
             }
 
             if (dumpState.isDumping(DumpState.DUMP_SHARED_USERS)) {
@@ -18,17 +18,26 @@ package com.android.server.pm;
 
 import android.content.pm.PackageParser;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.Trace;
 import android.util.DisplayMetrics;
+import android.util.Slog;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ConcurrentUtils;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static android.os.Trace.TRACE_TAG_PACKAGE_MANAGER;
 
@@ -36,12 +45,31 @@ import static android.os.Trace.TRACE_TAG_PACKAGE_MANAGER;
  * Helper class for parallel parsing of packages using {@link PackageParser}.
  * <p>Parsing requests are processed by a thread-pool of {@link #MAX_THREADS}.
  * At any time, at most {@link #QUEUE_CAPACITY} results are kept in RAM</p>
+ *
+ * <p>In adaptive mode the pool is sized from the number of cores and grows while parsing is
+ * waiting on I/O, submissions are held until the first {@link #take()} and then parsed
+ * largest-first, and results are queued without bound so a slow consumer never stalls the
+ * parsing threads.</p>
  */
 class ParallelPackageParser implements AutoCloseable {
 
+    private static final String TAG = "ParallelPackageParser";
+
     private static final int QUEUE_CAPACITY = 10;
     private static final int MAX_THREADS = 4;
 
+    /** Upper bound on the threads the adaptive mode starts with. */
+    private static final int ADAPTIVE_MAX_THREADS = 8;
+    /** Upper bound on the threads the adaptive mode grows to while parsing is I/O bound. */
+    private static final int ADAPTIVE_MAX_IO_THREADS = 16;
+    /** Parses needed before the CPU share of parsing is trusted. */
+    private static final int ADAPTIVE_MIN_SAMPLES = 4;
+    /** Add a thread when parsing spends less than this percentage of its time on the CPU. */
+    private static final int ADAPTIVE_IO_BOUND_CPU_PERCENT = 50;
+
+    /** Packages taking longer than this to parse are logged. */
+    private static final long SLOW_PARSE_THRESHOLD_MS = 200;
+
     private final String[] mSeparateProcesses;
     private final boolean mOnlyCore;
     private final DisplayMetrics mMetrics;
@@ -49,18 +77,50 @@ class ParallelPackageParser implements AutoCloseable {
     private final PackageParser.Callback mPackageParserCallback;
     private volatile String mInterruptedInThread;
 
-    private final BlockingQueue<ParseResult> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final boolean mAdaptive;
+    private final BlockingQueue<ParseResult> mQueue;
+    private final ExecutorService mService;
+    /** {@link #mService} in adaptive mode, to grow it; null otherwise. */
+    private final ThreadPoolExecutor mAdaptiveExecutor;
 
-    private final ExecutorService mService = ConcurrentUtils.newFixedThreadPool(MAX_THREADS,
-            "package-parsing-thread", Process.THREAD_PRIORITY_FOREGROUND);
+    /** Submissions not yet handed to {@link #mService}, adaptive mode only. */
+    @GuardedBy("mPendingSubmissions")
+    private final ArrayList<Submission> mPendingSubmissions = new ArrayList<>();
+
+    private final AtomicInteger mParsedCount = new AtomicInteger();
+    private final AtomicLong mTotalParseMs = new AtomicLong();
+    private final AtomicLong mTotalParseCpuMs = new AtomicLong();
+    private final int mMaxIoThreads;
 
     ParallelPackageParser(String[] separateProcesses, boolean onlyCoreApps,
             DisplayMetrics metrics, File cacheDir, PackageParser.Callback callback) {
+        this(separateProcesses, onlyCoreApps, metrics, cacheDir, callback, false);
+    }
+
+    ParallelPackageParser(String[] separateProcesses, boolean onlyCoreApps,
+            DisplayMetrics metrics, File cacheDir, PackageParser.Callback callback,
+            boolean adaptive) {
         mSeparateProcesses = separateProcesses;
         mOnlyCore = onlyCoreApps;
         mMetrics = metrics;
         mCacheDir = cacheDir;
         mPackageParserCallback = callback;
+        mAdaptive = adaptive;
+        if (adaptive) {
+            final int cores = Runtime.getRuntime().availableProcessors();
+            final int threads = Math.max(MAX_THREADS, Math.min(cores, ADAPTIVE_MAX_THREADS));
+            mMaxIoThreads = Math.max(threads, Math.min(cores * 2, ADAPTIVE_MAX_IO_THREADS));
+            mQueue = new LinkedBlockingQueue<>();
+            mAdaptiveExecutor = ConcurrentUtils.newResizableThreadPool(threads, mMaxIoThreads,
+                    "package-parsing-thread", Process.THREAD_PRIORITY_FOREGROUND);
+            mService = mAdaptiveExecutor;
+        } else {
+            mMaxIoThreads = MAX_THREADS;
+            mAdaptiveExecutor = null;
+            mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+            mService = ConcurrentUtils.newFixedThreadPool(MAX_THREADS,
+                    "package-parsing-thread", Process.THREAD_PRIORITY_FOREGROUND);
+        }
     }
 
     static class ParseResult {
@@ -68,6 +128,7 @@ class ParallelPackageParser implements AutoCloseable {
         PackageParser.Package pkg; // Parsed package
         File scanFile; // File that was parsed
         Throwable throwable; // Set if an error occurs during parsing
+        long parseTimeMs; // Time spent parsing, not counting time spent queued
 
         @Override
         public String toString() {
@@ -89,6 +150,9 @@ class ParallelPackageParser implements AutoCloseable {
             if (mInterruptedInThread != null) {
                 throw new InterruptedException("Interrupted in " + mInterruptedInThread);
             }
+            if (mAdaptive) {
+                dispatchPendingSubmissions();
+            }
             return mQueue.take();
         } catch (InterruptedException e) {
             // We cannot recover from interrupt here
@@ -103,33 +167,121 @@ class ParallelPackageParser implements AutoCloseable {
      * @param parseFlags parse falgs
      */
     public void submit(File scanFile, int parseFlags) {
-        mService.submit(() -> {
-            ParseResult pr = new ParseResult();
-            Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "parallel parsePackage [" + scanFile + "]");
-            try {
-                PackageParser pp = new PackageParser();
-                pp.setSeparateProcesses(mSeparateProcesses);
-                pp.setOnlyCoreApps(mOnlyCore);
-                pp.setDisplayMetrics(mMetrics);
-                pp.setCacheDir(mCacheDir);
-                pp.setCallback(mPackageParserCallback);
-                pr.scanFile = scanFile;
-                pr.pkg = parsePackage(pp, scanFile, parseFlags);
-            } catch (Throwable e) {
-                pr.throwable = e;
-            } finally {
-                Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
+        if (mAdaptive) {
+            synchronized (mPendingSubmissions) {
+                mPendingSubmissions.add(new Submission(scanFile, parseFlags));
+            }
+            return;
+        }
+        mService.submit(() -> parseAndQueue(scanFile, parseFlags));
+    }
+
+    /**
+     * Hands the held submissions to the pool, largest package first, so the longest parses
+     * start early instead of finishing last.
+     */
+    private void dispatchPendingSubmissions() {
+        final Submission[] submissions;
+        synchronized (mPendingSubmissions) {
+            if (mPendingSubmissions.isEmpty()) {
+                return;
             }
-            try {
-                mQueue.put(pr);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                // Propagate result to callers of take().
-                // This is helpful to prevent main thread from getting stuck waiting on
-                // ParallelPackageParser to finish in case of interruption
-                mInterruptedInThread = Thread.currentThread().getName();
+            submissions = mPendingSubmissions.toArray(new Submission[mPendingSubmissions.size()]);
+            mPendingSubmissions.clear();
+        }
+        Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "sort package submissions");
+        try {
+            for (Submission submission : submissions) {
+                submission.size = getPackageSize(submission.scanFile);
+            }
+            Arrays.sort(submissions, (a, b) -> Long.compare(b.size, a.size));
+        } finally {
+            Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
+        }
+        for (Submission submission : submissions) {
+            mService.submit(() -> parseAndQueue(submission.scanFile, submission.parseFlags));
+        }
+    }
+
+    private static long getPackageSize(File scanFile) {
+        if (!scanFile.isDirectory()) {
+            return scanFile.length();
+        }
+        // Cluster package: the base APK and its splits.
+        long size = 0;
+        final File[] files = scanFile.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (PackageParser.isApkFile(file)) {
+                    size += file.length();
+                }
+            }
+        }
+        return size;
+    }
+
+    private void parseAndQueue(File scanFile, int parseFlags) {
+        ParseResult pr = new ParseResult();
+        Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "parallel parsePackage [" + scanFile + "]");
+        final long startTime = SystemClock.uptimeMillis();
+        final long startCpuTime = SystemClock.currentThreadTimeMillis();
+        try {
+            PackageParser pp = new PackageParser();
+            pp.setSeparateProcesses(mSeparateProcesses);
+            pp.setOnlyCoreApps(mOnlyCore);
+            pp.setDisplayMetrics(mMetrics);
+            pp.setCacheDir(mCacheDir);
+            pp.setCallback(mPackageParserCallback);
+            pr.scanFile = scanFile;
+            pr.pkg = parsePackage(pp, scanFile, parseFlags);
+        } catch (Throwable e) {
+            pr.throwable = e;
+        } finally {
+            Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
+        }
+        pr.parseTimeMs = SystemClock.uptimeMillis() - startTime;
+        if (mAdaptive) {
+            onParseFinished(scanFile, pr.parseTimeMs,
+                    SystemClock.currentThreadTimeMillis() - startCpuTime);
+        }
+        try {
+            mQueue.put(pr);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // Propagate result to callers of take().
+            // This is helpful to prevent main thread from getting stuck waiting on
+            // ParallelPackageParser to finish in case of interruption
+            mInterruptedInThread = Thread.currentThread().getName();
+        }
+    }
+
+    /**
+     * Records the cost of one parse, and adds a thread when parsing has mostly been waiting on
+     * I/O so far.
+     */
+    private void onParseFinished(File scanFile, long parseTimeMs, long cpuTimeMs) {
+        if (parseTimeMs > SLOW_PARSE_THRESHOLD_MS) {
+            Slog.i(TAG, "Slow parse of " + scanFile + ": " + parseTimeMs + "ms, cpu="
+                    + cpuTimeMs + "ms");
+        }
+        final int count = mParsedCount.incrementAndGet();
+        final long totalMs = mTotalParseMs.addAndGet(parseTimeMs);
+        final long totalCpuMs = mTotalParseCpuMs.addAndGet(cpuTimeMs);
+        if (count < ADAPTIVE_MIN_SAMPLES || totalMs == 0
+                || totalCpuMs * 100 >= totalMs * ADAPTIVE_IO_BOUND_CPU_PERCENT) {
+            return;
+        }
+        final ThreadPoolExecutor executor = mAdaptiveExecutor;
+        synchronized (executor) {
+            final int threads = executor.getCorePoolSize();
+            if (threads < mMaxIoThreads && !executor.getQueue().isEmpty()) {
+                // The maximum is already mMaxIoThreads, the queue is unbounded so only the core
+                // size decides how many threads run.
+                executor.setCorePoolSize(threads + 1);
+                Trace.traceCounter(TRACE_TAG_PACKAGE_MANAGER, "package-parsing-threads",
+                        threads + 1);
             }
-        });
+        }
     }
 
     @VisibleForTesting
@@ -138,9 +290,31 @@ class ParallelPackageParser implements AutoCloseable {
         return packageParser.parsePackage(scanFile, parseFlags, true /* useCaches */);
     }
 
+    private static final class Submission {
+        final File scanFile;
+        final int parseFlags;
+        long size;
+
+        Submission(File scanFile, int parseFlags) {
+            this.scanFile = scanFile;
+            this.parseFlags = parseFlags;
+        }
+
+        @Override
+        public String toString() {
+            return scanFile.toString();
+        }
+    }
+
     @Override
     public void close() {
         List<Runnable> unfinishedTasks = mService.shutdownNow();
+        synchronized (mPendingSubmissions) {
+            if (!mPendingSubmissions.isEmpty()) {
+                throw new IllegalStateException("Submissions never taken before calling close: "
+                        + mPendingSubmissions);
+            }
+        }
         if (!unfinishedTasks.isEmpty()) {
             throw new IllegalStateException("Not all tasks finished before calling close: "
                     + unfinishedTasks);
@@ -39,6 +39,7 @@ import java.util.Deque;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Spliterator;
@@ -77,6 +78,10 @@ class ZipFile implements ZipConstants, Closeable {
     // that doesn't use unlink before closing the file.
     private final File fileToRemoveOnClose;
 
+    // Android-added: Entries resolved through any open instance of the same file, or null if
+    // this file isn't cached.
+    private final CentralDirectory directory;
+
     private static final int STORED = ZipEntry.STORED;
     private static final int DEFLATED = ZipEntry.DEFLATED;
 
@@ -235,10 +240,18 @@ class ZipFile implements ZipConstants, Closeable {
         this.zc = ZipCoder.get(charset);
         // Android-changed: Skip perf counters
         // long t0 = System.nanoTime();
-        jzfile = open(name, mode, file.lastModified(), usemmap);
+        long lastModified = file.lastModified();
+        jzfile = open(name, mode, lastModified, usemmap);
         // Android-changed: Skip perf counters
         // sun.misc.PerfCounter.getZipFileOpenTime().addElapsedTimeFrom(t0);
         // sun.misc.PerfCounter.getZipFileCount().increment();
+        // Android-added: Share entry lookups with other open instances of the same file.
+        // Entry names are only cached as UTF-8, which is what every APK uses.
+        if (fileToRemoveOnClose == null && zc.isUTF8() && useDirectoryCache) {
+            directory = CentralDirectory.acquire(name, length, lastModified);
+        } else {
+            directory = null;
+        }
         this.name = name;
         this.total = getTotal(jzfile);
         this.locsig = startsWithLOC(jzfile);
@@ -337,12 +350,25 @@ class ZipFile implements ZipConstants, Closeable {
         long jzentry = 0;
         synchronized (this) {
             ensureOpen();
+            // Android-added: Answer repeated lookups without going through JNI.
+            if (directory != null) {
+                ZipEntry cached = directory.getEntry(name);
+                if (cached != null) {
+                    return cached == CentralDirectory.NO_ENTRY ? null : (ZipEntry) cached.clone();
+                }
+            }
             jzentry = getEntry(jzfile, zc.getBytes(name), true);
             if (jzentry != 0) {
                 ZipEntry ze = getZipEntry(name, jzentry);
                 freeEntry(jzfile, jzentry);
+                if (directory != null) {
+                    directory.putEntry(name, (ZipEntry) ze.clone());
+                }
                 return ze;
             }
+            if (directory != null) {
+                directory.putEntry(name, CentralDirectory.NO_ENTRY);
+            }
         }
         return null;
     }
@@ -676,6 +702,10 @@ class ZipFile implements ZipConstants, Closeable {
 
                 close(zf);
             }
+            // Android-added: Drop the shared directory once no instance has the file open.
+            if (directory != null) {
+                directory.release(name);
+            }
             // Android-changed, explicit delete for OPEN_DELETE ZipFile.
             if (fileToRemoveOnClose != null) {
                 fileToRemoveOnClose.delete();
@@ -844,6 +874,110 @@ class ZipFile implements ZipConstants, Closeable {
 
     private static native int getFileDescriptor(long jzfile);
 
+    // Android-added: Process-wide cache of central directories.
+    private static volatile boolean useDirectoryCache = true;
+
+    /**
+     * Enables or disables sharing entry lookups between open instances of the same file.
+     * Disabling it also stops sharing the directories cached so far with new instances.
+     *
+     * @hide
+     */
+    // @VisibleForTesting
+    public static void setCentralDirectoryCacheEnabled(boolean enabled) {
+        useDirectoryCache = enabled;
+        if (!enabled) {
+            CentralDirectory.clear();
+        }
+    }
+
+    /**
+     * The {@link #getEntry(String)} results of a zip file that is open, keyed by path, size and
+     * modification time, and shared by every instance that has the same file open, as class
+     * loaders sharing a jar do. Lookups are remembered here, including misses, and answered
+     * without JNI afterwards.
+     *
+     * A directory lives only as long as some instance has its file open, and holds nothing
+     * native: while the file is open the native zip cache already shares its mapped central
+     * directory between instances.
+     */
+    private static final class CentralDirectory {
+        private static final int MAX_DIRECTORIES = 8;
+        private static final int MAX_ENTRIES = 4096;
+
+        /** Marks a name that has no entry. */
+        static final ZipEntry NO_ENTRY = new ZipEntry("");
+
+        // Least recently opened first. Evicted directories stay usable by the instances that
+        // hold them, they are just no longer shared with new ones.
+        private static final LinkedHashMap<String, CentralDirectory> directories =
+                new LinkedHashMap<String, CentralDirectory>(MAX_DIRECTORIES, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(
+                            Map.Entry<String, CentralDirectory> eldest) {
+                        return size() > MAX_DIRECTORIES;
+                    }
+                };
+
+        private final long length;
+        private final long lastModified;
+        // Open instances using this directory, guarded by the directories lock.
+        private int openCount;
+        // Guarded by itself.
+        private final HashMap<String, ZipEntry> entries = new HashMap<>();
+
+        private CentralDirectory(long length, long lastModified) {
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Returns the directory for a newly opened instance of the file, which must call
+         * {@link #release(String)} when it is closed.
+         */
+        static CentralDirectory acquire(String name, long length, long lastModified) {
+            synchronized (directories) {
+                CentralDirectory directory = directories.get(name);
+                if (directory == null || directory.length != length
+                        || directory.lastModified != lastModified) {
+                    // Not open, or the file changed since it was opened.
+                    directory = new CentralDirectory(length, lastModified);
+                    directories.put(name, directory);
+                }
+                directory.openCount++;
+                return directory;
+            }
+        }
+
+        static void clear() {
+            synchronized (directories) {
+                directories.clear();
+            }
+        }
+
+        ZipEntry getEntry(String name) {
+            synchronized (entries) {
+                return entries.get(name);
+            }
+        }
+
+        void putEntry(String name, ZipEntry entry) {
+            synchronized (entries) {
+                if (entries.size() < MAX_ENTRIES) {
+                    entries.put(name, entry);
+                }
+            }
+        }
+
+        void release(String name) {
+            synchronized (directories) {
+                if (--openCount == 0 && directories.get(name) == this) {
+                    directories.remove(name);
+                }
+            }
+        }
+    }
+
     private static native long open(String name, int mode, long lastModified,
                                     boolean usemmap) throws IOException;
     private static native int getTotal(long jzfile);